@@ -0,0 +1,31 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * @return a temporary file of `size` random bytes, deleted on exit if not before.
+     */
+    static File createFile(long size) throws IOException {
+        File file = File.createTempFile("benchmark", ".bin");
+        file.deleteOnExit();
+        Random random = new Random(1234);
+        byte[] bytes = new byte[1024 * 1024];
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += bytes.length) {
+                random.nextBytes(bytes);
+                outputStream.write(bytes, 0, (int) Math.min(bytes.length, size - written));
+            }
+        }
+        return file;
+    }
+}
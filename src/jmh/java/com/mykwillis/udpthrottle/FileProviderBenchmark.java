@@ -0,0 +1,111 @@
+package com.mykwillis.udpthrottle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for the server to load the file it serves, and the rate at which chunks
+ * can then be read from it, for both the heap-backed FileProvider and the
+ * MappedFileProvider that the server uses.
+ *
+ * Chunks are read in order, wrapping around at the end of the file, so the
+ * chunk benchmarks report chunks per second; multiply by the chunk size
+ * (FileProvider.CHUNK_PAYLOAD_SIZE) for bytes per second.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileProviderBenchmark {
+    @Param({"67108864"})
+    long fileSize;
+
+    File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Benchmarks.createFile(fileSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public FileProvider load_fileProvider() throws IOException {
+        return new FileProvider(file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MappedFileProvider load_mappedFileProvider() throws IOException {
+        return new MappedFileProvider(file);
+    }
+
+    /**
+     * The providers loaded, and the position of each thread reading from them.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        FileProvider fileProvider;
+        MappedFileProvider mappedFileProvider;
+        ByteBuffer sendBuffer = ByteBuffer.allocateDirect(FileProvider.CHUNK_SIZE);
+        long chunk;
+
+        @Setup(Level.Trial)
+        public void setUp(FileProviderBenchmark benchmark) throws IOException {
+            fileProvider = new FileProvider(benchmark.file);
+            mappedFileProvider = new MappedFileProvider(benchmark.file);
+        }
+
+        long nextChunk() {
+            if (++chunk == fileProvider.getChunkCount()) {
+                chunk = 0;
+            }
+            return chunk;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] getChunk_fileProvider(Reader reader) {
+        return reader.fileProvider.getChunk(reader.nextChunk());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int readChunk_fileProvider(Reader reader) {
+        reader.sendBuffer.clear();
+        return reader.fileProvider.readChunk(reader.nextChunk(), reader.sendBuffer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int readChunk_mappedFileProvider(Reader reader) {
+        reader.sendBuffer.clear();
+        return reader.mappedFileProvider.readChunk(reader.nextChunk(), reader.sendBuffer);
+    }
+}
@@ -0,0 +1,98 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate at which the client writes received PAYLOAD messages to its file.
+ *
+ * Each invocation receives a whole file, in order, into a new FileReceiver
+ * (each chunk is only written once, so a receiver can't be reused), and the
+ * score is the time taken; the write throughput is `fileSize` divided by it.
+ * Datagrams are received into one reused array, as by the client. Every chunk
+ * carries the same data, so the checksums are computed once, in setup, and the
+ * score includes verifying each chunk's checksum, but not computing it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class FileReceiverBenchmark {
+    @Param({"67108864"})
+    long fileSize;
+
+    @Param({"8192", "32768"})
+    int chunkSize;
+
+    byte[] receiveBytes;
+    ByteBuffer receiveBuffer;
+    int[] checksums;
+    File file;
+    FileReceiver fileReceiver;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        receiveBytes = new byte[chunkSize];
+        receiveBuffer = ByteBuffer.wrap(receiveBytes);
+        new Random(1234).nextBytes(receiveBytes);
+
+        int payloadSize = chunkSize - FileProvider.CHUNK_HEADER_SIZE;
+        checksums = new int[(int) FileReceiver.getExpectedChunks(fileSize, payloadSize)];
+        Crc32c crc = new Crc32c();
+        for (int chunk = 0; chunk < checksums.length; chunk++) {
+            long position = (long) chunk * payloadSize;
+            checksums[chunk] = PayloadFlyweight.checksum(crc, position, receiveBuffer,
+                    FileProvider.CHUNK_HEADER_SIZE, (int) Math.min(payloadSize, fileSize - position));
+        }
+        file = File.createTempFile("receiver", ".bin");
+        file.deleteOnExit();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        fileReceiver = new FileReceiver(file.getPath(), fileSize, chunkSize);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        fileReceiver.complete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean processPacket() throws IOException {
+        int payloadSize = chunkSize - FileProvider.CHUNK_HEADER_SIZE;
+        int chunk = 0;
+        for (long position = 0; position < fileSize; position += payloadSize) {
+            receiveBuffer.clear();
+            PayloadFlyweight.encodeHeader(receiveBuffer, position, checksums[chunk++]);
+            int length = FileProvider.CHUNK_HEADER_SIZE + (int) Math.min(payloadSize, fileSize - position);
+            fileReceiver.processPacket(receiveBytes, length);
+        }
+        return fileReceiver.isDownloadComplete();
+    }
+}
@@ -0,0 +1,117 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.BeginMessage;
+import com.mykwillis.udpthrottle.message.ProbeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end goodput over loopback: a Server and a Client in the same JVM,
+ * downloading a file through the real sockets, pacing, reports and NACKs.
+ *
+ * Each invocation is one complete download, so the score is the time taken;
+ * the goodput is `fileSize` divided by it. The server's bandwidth limit is set
+ * well above what loopback carries, so that its congestion control (seeded by
+ * the client's packet train) decides the rate. The client asks for datagrams
+ * of `maxDatagramSize`, to compare the default chunk size with the largest.
+ *
+ * The server's threads can't be stopped, so they run for the rest of the fork.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    static final long TARGET_BITS_PER_SECOND = 100L * 1000 * 1000 * 1000;
+
+    @Param({"67108864"})
+    long fileSize;
+
+    @Param({"8196", "65507"})
+    int maxDatagramSize;
+
+    File file;
+    File directory;
+    int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        file = Benchmarks.createFile(fileSize);
+        directory = Files.createTempDirectory("benchmark").toFile();
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        Server server = new Server(port, file, TARGET_BITS_PER_SECOND);
+        server.setChunkSize(FileProvider.MAX_CHUNK_SIZE);
+        Thread thread = new Thread(server::run, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        awaitServer();
+    }
+
+    /**
+     * Wait until the server answers a PROBE, since the client only sends BEGIN once.
+     */
+    private void awaitServer() throws IOException {
+        ProbeMessage probe = new ProbeMessage(FileProvider.MIN_CHUNK_SIZE);
+        byte[] replyBytes = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(100);
+            while (true) {
+                socket.send(probe.getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+                try {
+                    socket.receive(new DatagramPacket(replyBytes, replyBytes.length));
+                    return;
+                } catch (SocketTimeoutException e) {
+                    // not listening yet
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDownload() {
+        new File(directory, file.getName()).delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public File download() {
+        FileReceiver.FileDownloadResult result = Client.receiveFile(
+                InetAddress.getLoopbackAddress().getHostAddress(), port, null,
+                BeginMessage.DEFAULT_WEIGHT, null, maxDatagramSize, false, directory);
+        if (result == null) {
+            throw new IllegalStateException("Download failed.");
+        }
+        return result.file;
+    }
+}
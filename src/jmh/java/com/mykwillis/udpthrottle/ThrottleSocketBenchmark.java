@@ -0,0 +1,119 @@
+package com.mykwillis.udpthrottle;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Overhead and accuracy of the server's bandwidth limiting.
+ *
+ * The overhead benchmarks time reserve() and send() alone. The pacing
+ * benchmarks send full-sized chunks to a loopback socket as fast as the limiter
+ * allows, waiting for each datagram's reserved time as the server's event loop
+ * does. For pacedSend, the `bytes` counter is the rate actually achieved, to be
+ * compared with `targetKbps`; for pacedSend_spacing, each operation is one
+ * packet interval, and the percentiles show how evenly packets are spaced.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ThrottleSocketBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    long targetKbps;
+
+    ThrottleSocket socket;
+    DatagramChannel sink;
+    SocketAddress sinkAddress;
+    ByteBuffer sendBuffer = ByteBuffer.allocateDirect(FileProvider.CHUNK_SIZE);
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        socket = new ThrottleSocket(0, TokenBucketRateLimiter.forBitsPerSecond(targetKbps * 1000));
+        sink = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sinkAddress = sink.getLocalAddress();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        socket.getChannel().close();
+        sink.close();
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sent {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long reserve() {
+        return socket.reserve(FileProvider.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean send() throws IOException {
+        sendBuffer.clear();
+        return socket.send(sendBuffer, sinkAddress);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void pacedSend(Sent sent) throws IOException {
+        sent.bytes += sendPaced();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int pacedSend_spacing() throws IOException {
+        return sendPaced();
+    }
+
+    private int sendPaced() throws IOException {
+        long sendAt = socket.reserve(FileProvider.CHUNK_SIZE);
+        long wait;
+        while ((wait = sendAt - nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        sendBuffer.clear();
+        while (!socket.send(sendBuffer, sinkAddress)) {
+            // The socket's send buffer is full; the server would wait for OP_WRITE.
+            Thread.yield();
+        }
+        return FileProvider.CHUNK_SIZE;
+    }
+}
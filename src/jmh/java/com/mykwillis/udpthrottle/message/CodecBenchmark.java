@@ -0,0 +1,108 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+import com.mykwillis.udpthrottle.FileProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the messages on the data path: the type check made
+ * for every datagram received, PAYLOAD messages (through both the allocating
+ * PayloadMessage and the PayloadFlyweight used by the server and client), and
+ * INFO messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    byte[] payloadBytes;
+    ByteBuffer payloadBuffer;
+    ByteBuffer sendBuffer;
+    byte[] chunk;
+    PayloadFlyweight payload = new PayloadFlyweight();
+    Crc32c crc = new Crc32c();
+    int checksum;
+    long position;
+
+    InfoMessage infoMessage;
+    byte[] infoBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        chunk = new byte[FileProvider.CHUNK_PAYLOAD_SIZE];
+        sendBuffer = ByteBuffer.allocateDirect(FileProvider.CHUNK_SIZE);
+        payloadBuffer = ByteBuffer.allocate(FileProvider.CHUNK_SIZE);
+        checksum = PayloadFlyweight.checksum(crc, 1L << 33, ByteBuffer.wrap(chunk), 0, chunk.length);
+        PayloadFlyweight.encodeHeader(payloadBuffer, 1L << 33, checksum);
+        payloadBuffer.put(chunk);
+        payloadBytes = payloadBuffer.array();
+
+        infoMessage = new InfoMessage("payload.bin", 1L << 30, new InetSocketAddress("239.1.2.3", 9000),
+                FileProvider.CHUNK_SIZE, 8);
+        infoBytes = infoMessage.getBytes();
+    }
+
+    @Benchmark
+    public boolean isMessageType() {
+        return Message.isMessageType(Message.MESSAGE_TYPE_PAYLOAD, payloadBytes);
+    }
+
+    @Benchmark
+    public int getMessageType_flyweight() {
+        return MessageFlyweight.getMessageType(payloadBuffer, 0, payloadBytes.length);
+    }
+
+    @Benchmark
+    public long payloadMessage_decode() throws IOException {
+        return new PayloadMessage(payloadBytes, payloadBytes.length).getPosition();
+    }
+
+    @Benchmark
+    public long payloadFlyweight_decode() {
+        return payload.wrap(payloadBuffer, 0, payloadBytes.length).getPosition();
+    }
+
+    /**
+     * Check a full chunk's checksum, as the client does for every PAYLOAD message.
+     */
+    @Benchmark
+    public boolean payloadFlyweight_verify() {
+        return payload.wrap(payloadBuffer, 0, payloadBytes.length).isIntact(crc);
+    }
+
+    @Benchmark
+    public int payloadFlyweight_encode() {
+        sendBuffer.clear();
+        // The server sends checksums computed in advance, so none is computed here.
+        PayloadFlyweight.encodeHeader(sendBuffer, position += chunk.length, checksum);
+        sendBuffer.put(chunk);
+        return sendBuffer.position();
+    }
+
+    @Benchmark
+    public byte[] infoMessage_encode() throws IOException {
+        return new InfoMessage(infoMessage.getFilename(), infoMessage.getFileSize(),
+                infoMessage.getMulticastGroup(), infoMessage.getChunkSize(), infoMessage.getTrainLength()).getBytes();
+    }
+
+    @Benchmark
+    public InfoMessage infoMessage_decode() throws IOException {
+        return new InfoMessage(infoBytes, infoBytes.length);
+    }
+}
@@ -0,0 +1,150 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static com.mykwillis.udpthrottle.FileProvider.CHUNK_HEADER_SIZE;
+
+/**
+ * Provides a file's contents through a ChunkCache, which may be shared with the
+ * providers of other files.
+ *
+ * Unlike MappedFileProvider, which leaves it to the operating system to decide
+ * which parts of a file stay in memory, this holds at most the cache's capacity
+ * of data for all the files it is shared between, so that a server can serve
+ * many more files (or much larger ones) than it has memory for, while keeping
+ * those in demand resident. The file is kept open until close() is called.
+ *
+ * Errors reading the file are thrown from readChunk() and the methods built on
+ * it as UncheckedIOException.
+ *
+ * Providers for other chunk sizes (see withChunkSize()) share the same file and
+ * cached pages.
+ */
+public class CachedFileProvider implements ChunkProvider, Closeable {
+    private final FileChannel channel;
+    private final ChunkCache cache;
+    private final int fileId;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkPayloadSize;
+    private final long chunkCount;
+
+    /**
+     * Create a new CachedFileProvider for the File given.
+     *
+     * @param file A file on the local filesystem.
+     * @param cache the cache through which the file is read.
+     */
+    public CachedFileProvider(File file, ChunkCache cache) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.cache = cache;
+        this.fileId = cache.register();
+        this.fileSize = channel.size();
+        this.chunkSize = FileProvider.CHUNK_SIZE;
+        this.chunkPayloadSize = FileProvider.CHUNK_PAYLOAD_SIZE;
+        this.chunkCount = (fileSize + chunkPayloadSize - 1) / chunkPayloadSize;
+    }
+
+    private CachedFileProvider(CachedFileProvider other, int chunkSize) {
+        if (chunkSize < FileProvider.MIN_CHUNK_SIZE || chunkSize > FileProvider.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.channel = other.channel;
+        this.cache = other.cache;
+        this.fileId = other.fileId;
+        this.fileSize = other.fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkPayloadSize = chunkSize - CHUNK_HEADER_SIZE;
+        this.chunkCount = (fileSize + chunkPayloadSize - 1) / chunkPayloadSize;
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public ChunkProvider withChunkSize(int chunkSize) {
+        return chunkSize == this.chunkSize ? this : new CachedFileProvider(this, chunkSize);
+    }
+
+    @Override
+    public int readChunk(long index, ByteBuffer dst) {
+        if (index < 0 || index >= chunkCount) {
+            return -1;
+        }
+
+        int length = getChunkLength(index);
+        try {
+            cache.read(fileId, channel, getChunkPosition(index), length, dst);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return length;
+    }
+
+    /**
+     * Gets a read-only copy of a chunk's file data.
+     *
+     * Unlike MappedFileProvider's, the buffer returned is a copy, allocated on
+     * each call; the server's send path uses readChunk() instead.
+     */
+    @Override
+    public ByteBuffer getChunkPayload(long index) {
+        if (index < 0 || index >= chunkCount) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(getChunkLength(index));
+        readChunk(index, payload);
+        payload.flip();
+        return payload.asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] getChunk(long index) {
+        if (index < 0 || index >= chunkCount) {
+            return null;
+        }
+
+        byte[] chunk = new byte[CHUNK_HEADER_SIZE + getChunkLength(index)];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(chunk);
+        long position = getChunkPosition(index);
+        byteBuffer.position(CHUNK_HEADER_SIZE);
+        readChunk(index, byteBuffer);
+        byteBuffer.position(0);
+        PayloadFlyweight.encodeHeader(byteBuffer, position, PayloadFlyweight.checksum(new Crc32c(), position,
+                byteBuffer, CHUNK_HEADER_SIZE, chunk.length - CHUNK_HEADER_SIZE));
+        return chunk;
+    }
+
+    /**
+     * Close the file, and drop its pages from the cache. This closes it for the
+     * providers of all chunk sizes, none of which may be read again.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.close();
+            cache.unregister(fileId);
+        }
+    }
+}
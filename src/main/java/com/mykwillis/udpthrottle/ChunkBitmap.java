@@ -0,0 +1,225 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.ChunkRange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed-size set of chunk indices, packed 64 to a word.
+ *
+ * This takes one bit per chunk, rather than the byte per chunk of a boolean[], and
+ * is indexed by long, so it can track files of more than 2^31 chunks. Searching
+ * for the next chunk that is (or isn't) in the set skips whole words at a time,
+ * which makes finding the ranges of missing chunks cheap even for large files.
+ */
+class ChunkBitmap {
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long WORD_MASK = 0xFFFFFFFFFFFFFFFFL;
+
+    private final long size;
+    private final long[] words;
+    private long cardinality = 0;
+
+    /**
+     * @param size the number of chunks; all are initially absent from the set.
+     */
+    ChunkBitmap(long size) {
+        long wordCount = (size + 63) >>> ADDRESS_BITS_PER_WORD;
+        if (size < 0 || wordCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid bitmap size: " + size);
+        }
+        this.size = size;
+        this.words = new long[(int) wordCount];
+    }
+
+    /**
+     * @return a copy of another set.
+     */
+    ChunkBitmap(ChunkBitmap other) {
+        this.size = other.size;
+        this.words = other.words.clone();
+        this.cardinality = other.cardinality;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of chunks in the set.
+     */
+    long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return the number of chunks from `from` (inclusive) to `to` (exclusive)
+     *  that are in the set, counted a word at a time.
+     */
+    long cardinality(long from, long to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, size);
+        long count = 0;
+        while (from < to) {
+            int word = (int) (from >>> ADDRESS_BITS_PER_WORD);
+            long bits = words[word] & (WORD_MASK << from);
+            long wordEnd = ((long) word + 1) << ADDRESS_BITS_PER_WORD;
+            if (to < wordEnd) {
+                bits &= ~(WORD_MASK << to);
+            }
+            count += Long.bitCount(bits);
+            from = wordEnd;
+        }
+        return count;
+    }
+
+    boolean isFull() {
+        return cardinality == size;
+    }
+
+    boolean get(long index) {
+        return (words[(int) (index >>> ADDRESS_BITS_PER_WORD)] & (1L << index)) != 0;
+    }
+
+    /**
+     * Add a chunk to the set.
+     *
+     * @return true if the chunk was not already in the set.
+     */
+    boolean set(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " out of range");
+        }
+        int word = (int) (index >>> ADDRESS_BITS_PER_WORD);
+        long bit = 1L << index;
+        if ((words[word] & bit) != 0) {
+            return false;
+        }
+        words[word] |= bit;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * Add the chunks from `from` (inclusive) to `to` (exclusive) to the set, a word
+     * at a time.
+     */
+    void set(long from, long to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Chunks " + from + " to " + to + " out of range");
+        }
+        while (from < to && (from & 63) != 0) {
+            set(from++);
+        }
+        for (; to - from >= 64; from += 64) {
+            int word = (int) (from >>> ADDRESS_BITS_PER_WORD);
+            cardinality += 64 - Long.bitCount(words[word]);
+            words[word] = WORD_MASK;
+        }
+        while (from < to) {
+            set(from++);
+        }
+    }
+
+    /**
+     * Remove every chunk from the set.
+     */
+    void clear() {
+        Arrays.fill(words, 0);
+        cardinality = 0;
+    }
+
+    /**
+     * @return the number of words holding the set, as saved by getWord().
+     */
+    int wordCount() {
+        return words.length;
+    }
+
+    /**
+     * @return the word holding chunks `64 * index` to `64 * index + 63`, the lowest
+     *  chunk in the lowest bit.
+     */
+    long getWord(int index) {
+        return words[index];
+    }
+
+    /**
+     * Replace a word of the set, as returned by getWord(). Bits for chunks past the
+     * end of the set are ignored.
+     */
+    void setWord(int index, long word) {
+        if (index == words.length - 1 && (size & 63) != 0) {
+            word &= ~(WORD_MASK << size);
+        }
+        cardinality += Long.bitCount(word) - Long.bitCount(words[index]);
+        words[index] = word;
+    }
+
+    /**
+     * @return the first chunk at or after `from` that is in the set, or `size` if
+     *  there is none.
+     */
+    long nextSet(long from) {
+        if (from >= size) {
+            return size;
+        }
+        int word = (int) (from >>> ADDRESS_BITS_PER_WORD);
+        long bits = words[word] & (WORD_MASK << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return size;
+            }
+            bits = words[word];
+        }
+        return Math.min(size, ((long) word << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(bits));
+    }
+
+    /**
+     * @return the first chunk at or after `from` that is not in the set, or `size`
+     *  if there is none.
+     */
+    long nextClear(long from) {
+        if (from >= size) {
+            return size;
+        }
+        int word = (int) (from >>> ADDRESS_BITS_PER_WORD);
+        long bits = ~words[word] & (WORD_MASK << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return size;
+            }
+            bits = ~words[word];
+        }
+        return Math.min(size, ((long) word << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(bits));
+    }
+
+    /**
+     * Find the ranges of chunks that are not in the set.
+     *
+     * @param maxRanges the largest number of ranges to return.
+     * @param coverRest if there are more than `maxRanges` ranges, whether to extend
+     *                  the last range returned to the end of the set, so that the
+     *                  ranges cover every missing chunk (and some that aren't).
+     *                  Otherwise, only the first `maxRanges` ranges are returned.
+     * @return the ranges, in ascending order.
+     *
+     * This skips over chunks in the set 64 at a time, so its cost depends on the
+     * size of the set in words, plus the number of ranges found.
+     */
+    List<ChunkRange> getClearRanges(int maxRanges, boolean coverRest) {
+        List<ChunkRange> ranges = new ArrayList<>();
+        long first = nextClear(0);
+        while (first < size && ranges.size() < maxRanges) {
+            long end = nextSet(first);
+            if (coverRest && ranges.size() == maxRanges - 1 && nextClear(end) < size) {
+                end = size;
+            }
+            ranges.add(new ChunkRange(first, end - first));
+            first = nextClear(end);
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,316 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of file data of fixed size, shared by every file a server serves.
+ *
+ * Files are cached in pages of PAGE_SIZE bytes, rather than in chunks, since the
+ * same file is divided into chunks of different sizes for different clients; a
+ * chunk is copied out of the one or two pages it spans. Pages are read from disk
+ * when first needed, and when the cache is full, the least recently used are
+ * evicted to make room, as approximated by the CLOCK algorithm: each page has a
+ * reference bit, set whenever the page is read, and a clock hand sweeps over the
+ * pages, clearing the bits it finds set and evicting the first page whose bit is
+ * already clear. Newly loaded pages start with their bit clear, so they must be
+ * read again to earn a second chance, and a file that is read through once
+ * doesn't push out the pages that are in steady use.
+ *
+ * The cache is divided into SEGMENTS segments, each with its own lock, pages and
+ * clock, and each page belongs to the segment chosen by hashing its file and
+ * index, so that the server's sender threads rarely contend for the same lock.
+ * Reading a cached page allocates nothing.
+ *
+ * Files are assumed not to change while they are being served.
+ */
+public class ChunkCache {
+    /**
+     * Size of the unit in which file data is cached (64KB).
+     */
+    static final int PAGE_SIZE = 64 * 1024;
+
+    /**
+     * Number of independently locked parts into which the cache is divided.
+     */
+    static final int SEGMENTS = 16;
+
+    /**
+     * Largest number of files that may be registered with a cache. File IDs share
+     * a 64-bit key with page indices, leaving room for files of up to 2^56 bytes.
+     */
+    static final int MAX_FILES = 1 << 23;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Integer> freeFileIds = new ConcurrentLinkedQueue<>();
+    private final long capacity;
+
+    /**
+     * @param capacity the most file data to hold, in bytes. This is rounded down
+     *                 to a whole number of pages in each segment, but is at least
+     *                 one page per segment.
+     */
+    public ChunkCache(long capacity) {
+        long pagesPerSegment = Math.max(1, capacity / PAGE_SIZE / SEGMENTS);
+        if (pagesPerSegment > Integer.MAX_VALUE / PAGE_SIZE) {
+            throw new IllegalArgumentException("Cache size is too large: " + capacity);
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((int) pagesPerSegment);
+        }
+        this.capacity = pagesPerSegment * SEGMENTS * PAGE_SIZE;
+    }
+
+    /**
+     * @return the most file data the cache holds, in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Allocate an ID by which a file's pages are known to the cache. IDs given up
+     * with unregister() are used again.
+     */
+    int register() {
+        Integer freeId = freeFileIds.poll();
+        if (freeId != null) {
+            return freeId;
+        }
+        int fileId = nextFileId.getAndIncrement();
+        if (fileId >= MAX_FILES) {
+            throw new IllegalStateException("Too many files registered with the cache");
+        }
+        return fileId;
+    }
+
+    /**
+     * Drop a file's pages from the cache, and give up its ID. This sweeps every
+     * page of the cache, so is meant for files that are no longer being served.
+     *
+     * @param fileId the file's ID, from register(); it mustn't be read again.
+     */
+    void unregister(int fileId) {
+        for (Segment segment : segments) {
+            segment.drop(fileId);
+        }
+        freeFileIds.add(fileId);
+    }
+
+    /**
+     * Copy file data into a buffer, reading any pages that aren't cached from disk.
+     *
+     * @param fileId the file's ID, from register().
+     * @param channel the file, from which pages that aren't cached are read.
+     * @param position the file offset of the first byte to copy.
+     * @param length the number of bytes to copy.
+     * @param dst the buffer into which the data is copied, starting at its
+     *            current position.
+     * @throws EOFException if the file is shorter than `position + length`.
+     */
+    void read(int fileId, FileChannel channel, long position, int length, ByteBuffer dst) throws IOException {
+        while (length > 0) {
+            long page = position / PAGE_SIZE;
+            int offset = (int) (position % PAGE_SIZE);
+            int count = Math.min(length, PAGE_SIZE - offset);
+            long key = ((long) fileId << 40) | page;
+            long hash = hash(key);
+            segments[(int) (hash >>> 60)].read(key, (int) hash, channel, page, offset, count, dst);
+            position += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * @return the number of reads of a page that found it cached.
+     */
+    long getHitCount() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of pages read from disk.
+     */
+    long getMissCount() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    private static long hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * A part of the cache, with pages of its own.
+     *
+     * Pages are held in slots of one direct buffer. The slot holding each page is
+     * found through an open-addressed hash table (with linear probing), so that
+     * looking up a page allocates nothing.
+     */
+    private static final class Segment {
+        private static final long FREE = -1;
+
+        private final ByteBuffer data;
+        private final ByteBuffer view;      // of `data`, reused for every copy
+        private final long[] slotKeys;      // page held by each slot, or FREE
+        private final int[] slotLengths;    // bytes of the page read from the file
+        private final boolean[] referenced; // the CLOCK reference bits
+        private int hand = 0;
+
+        private final long[] tableKeys;
+        private final int[] tableSlots;
+        private final int mask;
+
+        long hits = 0;
+        long misses = 0;
+
+        Segment(int slots) {
+            data = ByteBuffer.allocateDirect(slots * PAGE_SIZE);
+            view = data.duplicate();
+            slotKeys = new long[slots];
+            slotLengths = new int[slots];
+            referenced = new boolean[slots];
+            Arrays.fill(slotKeys, FREE);
+
+            // At most half full, so that probe sequences stay short.
+            int tableSize = Integer.highestOneBit(slots) * 4;
+            tableKeys = new long[tableSize];
+            tableSlots = new int[tableSize];
+            mask = tableSize - 1;
+            Arrays.fill(tableKeys, FREE);
+        }
+
+        synchronized void read(long key, int hash, FileChannel channel, long page, int offset, int count,
+                               ByteBuffer dst) throws IOException {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                slot = load(key, hash, channel, page);
+                misses++;
+            } else {
+                referenced[slot] = true;
+                hits++;
+            }
+            if (offset + count > slotLengths[slot]) {
+                throw new EOFException("File is shorter than when it was opened");
+            }
+
+            int start = slot * PAGE_SIZE + offset;
+            view.limit(start + count).position(start);
+            dst.put(view);
+        }
+
+        /**
+         * Free the slots holding a file's pages.
+         */
+        synchronized void drop(int fileId) {
+            for (int slot = 0; slot < slotKeys.length; slot++) {
+                long key = slotKeys[slot];
+                if (key != FREE && (int) (key >>> 40) == fileId) {
+                    remove(key, (int) hash(key));
+                    slotKeys[slot] = FREE;
+                }
+            }
+        }
+
+        /**
+         * Read a page from disk into a slot, evicting the slot's page if need be.
+         */
+        private int load(long key, int hash, FileChannel channel, long page) throws IOException {
+            int slot = evict();
+            int start = slot * PAGE_SIZE;
+            view.limit(start + PAGE_SIZE).position(start);
+            long position = page * PAGE_SIZE;
+            while (view.hasRemaining()) {
+                if (channel.read(view, position + view.position() - start) < 0) {
+                    break;
+                }
+            }
+
+            slotKeys[slot] = key;
+            slotLengths[slot] = view.position() - start;
+            referenced[slot] = false;
+            insert(key, hash, slot);
+            return slot;
+        }
+
+        /**
+         * Advance the clock hand to a slot that is free, or whose page has not
+         * been read since the hand last passed it, and free that slot.
+         */
+        private int evict() {
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) % slotKeys.length;
+                if (slotKeys[slot] == FREE) {
+                    return slot;
+                }
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                } else {
+                    remove(slotKeys[slot], (int) hash(slotKeys[slot]));
+                    slotKeys[slot] = FREE;
+                    return slot;
+                }
+            }
+        }
+
+        private int find(long key, int hash) {
+            for (int i = hash & mask; tableKeys[i] != FREE; i = (i + 1) & mask) {
+                if (tableKeys[i] == key) {
+                    return tableSlots[i];
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long key, int hash, int slot) {
+            int i = hash & mask;
+            while (tableKeys[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = key;
+            tableSlots[i] = slot;
+        }
+
+        /**
+         * Remove a key from the table, moving back any keys after it in the same
+         * probe sequence, so that no tombstones are needed.
+         */
+        private void remove(long key, int hash) {
+            int i = hash & mask;
+            while (tableKeys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = FREE;
+            for (int j = (i + 1) & mask; tableKeys[j] != FREE; j = (j + 1) & mask) {
+                int home = (int) hash(tableKeys[j]) & mask;
+                // The key at j may move to i unless its home lies cyclically in (i, j].
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    tableKeys[i] = tableKeys[j];
+                    tableSlots[i] = tableSlots[j];
+                    tableKeys[j] = FREE;
+                    i = j;
+                }
+            }
+        }
+    }
+}
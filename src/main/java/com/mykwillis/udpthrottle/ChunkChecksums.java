@@ -0,0 +1,83 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The checksum of every chunk of a file, as carried in PAYLOAD messages, indexed
+ * by long.
+ *
+ * The server computes these once for each chunk size it serves a file in, so that
+ * sending a chunk doesn't require checksumming it. The receiver keeps the checksum
+ * of each chunk it has verified, so that it can verify the whole file, through the
+ * root of the Merkle tree of these checksums, without reading the file again.
+ *
+ * Checksums are held in pages of PAGE_SIZE, rather than one array, so that files
+ * of more than 2^31 chunks can be described.
+ */
+class ChunkChecksums {
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final long size;
+    private final int[][] pages;
+
+    /**
+     * @param size the number of chunks; every checksum is initially 0.
+     */
+    ChunkChecksums(long size) {
+        long pageCount = (size + PAGE_SIZE - 1) >>> PAGE_BITS;
+        if (size < 0 || pageCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid chunk count: " + size);
+        }
+        this.size = size;
+        this.pages = new int[(int) pageCount][];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new int[(int) Math.min(PAGE_SIZE, size - ((long) i << PAGE_BITS))];
+        }
+    }
+
+    /**
+     * Compute the checksum of every chunk of a file, reading the whole file.
+     */
+    static ChunkChecksums compute(ChunkProvider chunks) {
+        ChunkChecksums checksums = new ChunkChecksums(chunks.getChunkCount());
+        Crc32c crc = new Crc32c();
+        ByteBuffer chunk = ByteBuffer.allocate(chunks.getChunkPayloadSize());
+        for (long index = 0; index < checksums.size; index++) {
+            chunk.clear();
+            int length = chunks.readChunk(index, chunk);
+            checksums.set(index, PayloadFlyweight.checksum(crc, chunks.getChunkPosition(index), chunk, 0, length));
+        }
+        return checksums;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int get(long index) {
+        return pages[(int) (index >>> PAGE_BITS)][(int) index & (PAGE_SIZE - 1)];
+    }
+
+    void set(long index, int checksum) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Chunk " + index + " out of range");
+        }
+        pages[(int) (index >>> PAGE_BITS)][(int) index & (PAGE_SIZE - 1)] = checksum;
+    }
+
+    /**
+     * @return the root of the Merkle tree of the checksums; see MerkleTree.
+     */
+    byte[] getMerkleRoot() {
+        MerkleTree tree = new MerkleTree();
+        for (int[] page : pages) {
+            for (int checksum : page) {
+                tree.add(checksum);
+            }
+        }
+        return tree.getRoot();
+    }
+}
@@ -0,0 +1,105 @@
+package com.mykwillis.udpthrottle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of file data to be served to clients, divided into chunks.
+ *
+ * Chunk `i` holds the file bytes starting at offset `i * getChunkPayloadSize()`;
+ * every chunk except the last is exactly getChunkPayloadSize() bytes long. Chunks
+ * are indexed by long, so that files of more than 2^31 chunks can be served.
+ *
+ * The same file may be divided into chunks of different sizes, for clients that
+ * have negotiated different chunk sizes; see withChunkSize().
+ */
+public interface ChunkProvider {
+
+    /**
+     * @return the size of a PAYLOAD message carrying a full chunk, header included.
+     */
+    int getChunkSize();
+
+    /**
+     * @return the number of file bytes in every chunk but the last.
+     */
+    default int getChunkPayloadSize() {
+        return getChunkSize() - FileProvider.CHUNK_HEADER_SIZE;
+    }
+
+    /**
+     * Get a provider of the same file, divided into chunks of a different size.
+     *
+     * Providers are created on demand, and share this provider's copy of the file
+     * data where they can. Callers that use a size repeatedly should keep the
+     * provider, rather than asking for it again.
+     *
+     * @param chunkSize the size of a PAYLOAD message carrying a full chunk, between
+     *                  FileProvider.MIN_CHUNK_SIZE and FileProvider.MAX_CHUNK_SIZE.
+     * @return a provider of chunks of `chunkSize`, which may be this provider.
+     */
+    ChunkProvider withChunkSize(int chunkSize);
+
+    /**
+     * @return the file offset of the first byte of the chunk at `index`.
+     */
+    default long getChunkPosition(long index) {
+        return index * getChunkPayloadSize();
+    }
+
+    /**
+     * @return the total size of the file being served, in bytes.
+     */
+    long getFileSize();
+
+    /**
+     * @return the number of chunks the file is divided into.
+     */
+    long getChunkCount();
+
+    /**
+     * Gets a chunk by index, prefixed with the PAYLOAD message header.
+     *
+     * @param index The index to fetch.
+     * @return a byte[] suitable for passing directly to a DatagramPacket, or null
+     *  if the requested index is out of bounds.
+     */
+    byte[] getChunk(long index);
+
+    /**
+     * Gets a read-only view of a chunk's file data, without the message header.
+     *
+     * The returned buffer's position and limit bound the chunk's payload. Callers
+     * may freely change the position and limit of the returned buffer, as it is
+     * not shared with other callers.
+     *
+     * @param index The index to fetch.
+     * @return a view of the chunk's payload, or null if the requested index is out
+     *  of bounds.
+     */
+    ByteBuffer getChunkPayload(long index);
+
+    /**
+     * Copy a chunk's file data into a buffer.
+     *
+     * Unlike getChunkPayload(), this allocates nothing, and so is suitable for use
+     * on the send path.
+     *
+     * @param index The index to fetch.
+     * @param dst the buffer into which the chunk's payload is copied, starting at
+     *            its current position.
+     * @return the number of bytes copied, or -1 if the requested index is out of
+     *  bounds.
+     */
+    int readChunk(long index, ByteBuffer dst);
+
+    /**
+     * @return the size of a chunk's payload, or -1 if the requested index is out
+     *  of bounds.
+     */
+    default int getChunkLength(long index) {
+        if (index < 0 || index >= getChunkCount()) {
+            return -1;
+        }
+        return (int) Math.min(getChunkPayloadSize(), getFileSize() - getChunkPosition(index));
+    }
+}
@@ -1,28 +1,49 @@
 package com.mykwillis.udpthrottle;
 
 import com.mykwillis.udpthrottle.message.BeginMessage;
+import com.mykwillis.udpthrottle.message.ByteRange;
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.EndFlyweight;
 import com.mykwillis.udpthrottle.message.InfoMessage;
 import com.mykwillis.udpthrottle.message.Message;
-import com.mykwillis.udpthrottle.message.PayloadMessage;
+import com.mykwillis.udpthrottle.message.MessageFlyweight;
+import com.mykwillis.udpthrottle.message.NackMessage;
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import com.mykwillis.udpthrottle.message.ReportMessage;
+import com.mykwillis.udpthrottle.message.ResumeMessage;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 
 public class Client {
 
     /**
      * Client.jar entry point.
      *
-     * @param args Command line arguments for `ipaddr` and `port`.
+     * @param args Command line arguments for `ipaddr`, `port` and (optionally) the
+     *             client's bandwidth `weight`, and options.
      */
     public static void main(String[] args) {
         String ipaddr;
         int port;
+        int weight = BeginMessage.DEFAULT_WEIGHT;
+        NetworkInterface multicastInterface = null;
+        int maxDatagramSize = BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE;
+        boolean probeMtu = false;
+        String filename = null;
+        List<ByteRange> ranges = new ArrayList<>();
 
         if (args.length < 2) {
             usage();
@@ -38,95 +59,452 @@ public class Client {
             return;
         }
 
-        System.out.println(String.format("Client provided ip address %s port %d", ipaddr, port));
+        try {
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("--interface") && i + 1 < args.length) {
+                    multicastInterface = MulticastSupport.findInterface(args[++i]);
+                } else if (args[i].equals("--file") && i + 1 < args.length) {
+                    filename = args[++i];
+                } else if (args[i].equals("--log-level") && i + 1 < args.length) {
+                    Log.setLevel(Log.parseLevel(args[++i]));
+                } else if (args[i].equals("--max-datagram") && i + 1 < args.length) {
+                    maxDatagramSize = Integer.parseInt(args[++i]);
+                    if (maxDatagramSize <= 0 || maxDatagramSize > FileProvider.MAX_DATAGRAM_SIZE) {
+                        throw new IllegalArgumentException("Datagram size must be between 1 and "
+                                + FileProvider.MAX_DATAGRAM_SIZE);
+                    }
+                } else if (args[i].equals("--range") && i + 1 < args.length) {
+                    ranges.add(parseRange(args[++i]));
+                    if (ranges.size() > BeginMessage.MAX_RANGES) {
+                        throw new IllegalArgumentException("At most " + BeginMessage.MAX_RANGES
+                                + " ranges may be given");
+                    }
+                } else if (args[i].equals("--probe-mtu")) {
+                    probeMtu = true;
+                    if (maxDatagramSize == BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE) {
+                        maxDatagramSize = FileProvider.MAX_DATAGRAM_SIZE;
+                    }
+                } else {
+                    weight = Integer.parseInt(args[i]);
+                }
+            }
+        } catch(IllegalArgumentException | IOException e) {
+            System.err.println("Invalid argument specified: " + e.getMessage());
+            usage();
+            return;
+        }
+
+        Log.info("Client provided ip address %s port %d", ipaddr, port);
 
-        receiveFile(ipaddr, port);
+        receiveFile(ipaddr, port, filename, weight, multicastInterface, maxDatagramSize, probeMtu, null, ranges);
+        Log.flush();
+    }
+
+    /**
+     * Parse a byte range given as `<first>-<last>`, the offsets of its first and
+     * last bytes, as in an HTTP Range header.
+     */
+    static ByteRange parseRange(String range) {
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            throw new IllegalArgumentException("Invalid byte range: " + range);
+        }
+        long first = Long.parseLong(range.substring(0, dash));
+        long last = Long.parseLong(range.substring(dash + 1));
+        if (first < 0 || last < first) {
+            throw new IllegalArgumentException("Invalid byte range: " + range);
+        }
+        return new ByteRange(first, last - first + 1);
     }
 
     static void usage() {
-        System.out.println("Usage: java -jar Client.jar <ip address> <port>");
+        System.out.println("Usage: java -jar Client.jar <ip address> <port> [weight] [options]");
+        System.out.println("Options:");
+        System.out.println("  --file <name>              file to download from a server serving a directory");
+        System.out.println("  --interface <interface>    network interface for multicast");
+        System.out.println("  --max-datagram <bytes>     largest datagram to ask the server for; default "
+                + BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE);
+        System.out.println("  --range <first>-<last>     download only these bytes of the file (repeatable);");
+        System.out.println("                             the rest of the file is left sparse");
+        System.out.println("  --probe-mtu                probe for the largest datagram that gets through");
+        System.out.println("                             unfragmented, up to --max-datagram if given");
+        System.out.println("  --log-level <level>        error, warn, info (the default), debug or trace");
     }
 
     /**
      * Send a BEGIN packet to the server, and handle the file download.
+     *
+     * If the file was partly downloaded before, and the progress of that download
+     * was saved, a RESUME packet is sent instead, asking for only the chunks that
+     * are missing. Where the file's name isn't known until the server's INFO
+     * arrives, the RESUME is sent then, to replace the download the server has
+     * already started.
+     *
+     * @param filename the name of the file to download from a server serving a
+     *                 catalog, or null to download a single-file server's file.
+     * @param multicastInterface the interface on which to join a multicast group,
+     *                           if the server names one, or null to let the
+     *                           operating system choose.
+     * @param maxDatagramSize the largest datagram the server should send.
+     * @param probeMtu whether to reduce `maxDatagramSize` to the largest datagram
+     *                 found to reach the server unfragmented.
+     * @param directory the directory in which to save the file, or null for the
+     *                  working directory.
+     * @return the outcome of the download, or null if the server never replied
+     *  or the download failed.
      */
-    private static void receiveFile(String ipAddr, int port) {
+    static FileReceiver.FileDownloadResult receiveFile(String ipAddr, int port, String filename, int weight,
+                                                       NetworkInterface multicastInterface,
+                                                       int maxDatagramSize, boolean probeMtu,
+                                                       File directory) {
+        return receiveFile(ipAddr, port, filename, weight, multicastInterface, maxDatagramSize, probeMtu, directory,
+                null);
+    }
+
+    /**
+     * Send a BEGIN packet to the server, and download the byte ranges of the file
+     * given. The chunks holding no part of them are neither sent nor saved, and
+     * the rest of the file is left sparse. A download of byte ranges is never
+     * resumed.
+     *
+     * @param ranges the byte ranges to download, or null (or an empty list) to
+     *               download the whole file.
+     */
+    static FileReceiver.FileDownloadResult receiveFile(String ipAddr, int port, String filename, int weight,
+                                                       NetworkInterface multicastInterface,
+                                                       int maxDatagramSize, boolean probeMtu,
+                                                       File directory, List<ByteRange> ranges) {
+        boolean ranged = ranges != null && !ranges.isEmpty();
         final int MAX_PACKET_SIZE = 65507;
         final int INACTIVITY_TIMEOUT = 5 * 1000;   // 5 seconds
+        final int NACK_INTERVAL = 250;  // silence (ms) after which missing chunks are requested
+        final int SPOOL_SLOTS = 256;    // payloads held in memory before INFO arrives
+        final int REPORT_INTERVAL = 200;    // ms between reports of how the download is going
+        final int CHECKPOINT_INTERVAL = 1000;   // ms between saves of the download's progress
 
-        try {
-            // Open the UDP socket and block, awaiting a client packet.
-            DatagramSocket socket = new DatagramSocket();
+        // Open the UDP socket and block, awaiting a client packet.
+        try (DatagramSocket socket = new DatagramSocket()) {
+
+            InetAddress serverAddr = InetAddress.getByName(ipAddr);
+            if (probeMtu) {
+                maxDatagramSize = new PathMtuProbe(socket, serverAddr, port).probe(maxDatagramSize);
+                Log.info("Client: largest datagram is %d bytes", maxDatagramSize);
+            }
 
-            // Send BEGIN packet
-            System.out.printf("Client: sending BEGIN");
-            BeginMessage beginMessage = new BeginMessage();
-            socket.send(beginMessage.getDatagramPacket(InetAddress.getByName(ipAddr), port));
+            // Send BEGIN packet, or RESUME if we have saved part of the file before.
+            Message request = null;
+            if (filename != null && !ranged) {
+                request = resumeMessage(ProgressFile.load(new File(directory, filename)), weight, maxDatagramSize,
+                        filename);
+            }
+            if (request == null) {
+                Log.info("Client: sending BEGIN [max datagram: %d, ranges: %d]", maxDatagramSize,
+                        ranged ? ranges.size() : 0);
+                request = new BeginMessage(weight, maxDatagramSize, filename, ranges);
+            }
+            socket.send(request.getDatagramPacket(serverAddr, port));
+            long beginTime = currentTimeMillis();
 
 
             // Start receiving packets.
             byte[] incomingPacketBuffer = new byte[MAX_PACKET_SIZE];
             DatagramPacket incomingPacket = new DatagramPacket(incomingPacketBuffer, incomingPacketBuffer.length);
 
-            socket.setSoTimeout(INACTIVITY_TIMEOUT);
+            // Incoming messages are decoded in place, by flyweights over this buffer.
+            ByteBuffer incomingBuffer = ByteBuffer.wrap(incomingPacketBuffer);
+            PayloadFlyweight payload = new PayloadFlyweight();
+            ParityFlyweight parity = new ParityFlyweight();
+            EndFlyweight end = new EndFlyweight();
+
+            socket.setSoTimeout(NACK_INTERVAL);
+
+            // File data arrives on `socket` unless the server sends it to a multicast
+            // group, in which case we switch to a socket that has joined the group.
+            // NACKs are always sent from `socket`.
+            DatagramSocket receiveSocket = socket;
+            boolean multicast = false;
 
             FileReceiver fileReceiver = null;
-            ArrayList<byte[]> pending = new ArrayList<>();
+            // Payloads that arrive before INFO are expected to be of the size we
+            // asked for.
+            PayloadSpool spool = new PayloadSpool(SPOOL_SLOTS, FileProvider.getChunkSizeForDatagram(maxDatagramSize)
+                    - FileProvider.CHUNK_HEADER_SIZE);
+            long lastReceiveTime = currentTimeMillis();
+            long lastReportTime = lastReceiveTime;
+            long lastCheckpointTime = lastReceiveTime;
+            Log.Sampler payloadLog = new Log.Sampler(Log.Level.DEBUG, 10);
+
+            // When we last asked for missing chunks (or sent our request again),
+            // and the round trip time measured from our request to INFO. A retried
+            // END that arrives within a round trip of our asking crossed it on the
+            // way, and is ignored.
+            long lastRequestTime = beginTime;
+            long roundTrip = NACK_INTERVAL;
+
+            // Arrival times of the packet train that the server sends after INFO,
+            // which are reported (once INFO has said how long the train is) as an
+            // estimate of our path's capacity.
+            PacketTrain train = new PacketTrain();
+            boolean trainReported = false;
+            int trainLength = 0;
+            long infoTime = 0;
             try {
                 do {
-                    socket.receive(incomingPacket);
+                    try {
+                        receiveSocket.receive(incomingPacket);
+                    } catch(SocketTimeoutException e) {
+                        if (currentTimeMillis() - lastReceiveTime >= INACTIVITY_TIMEOUT) {
+                            throw e;
+                        }
+                        // The server has gone quiet, which most likely means it has
+                        // sent everything it was asked for. Ask it to resend whatever
+                        // was lost. If we haven't had INFO, our BEGIN or the INFO
+                        // itself was lost, so ask again.
+                        if (fileReceiver != null) {
+                            fileReceiver.checkpoint();
+                            sendNack(socket, fileReceiver, filename, serverAddr, port);
+                        } else {
+                            Log.info("Client: no INFO yet, sending %s again",
+                                    request instanceof ResumeMessage ? "RESUME" : "BEGIN");
+                            socket.send(request.getDatagramPacket(serverAddr, port));
+                        }
+                        lastRequestTime = currentTimeMillis();
+                        continue;
+                    }
+                    long arrivalTime = nanoTime();
+                    lastReceiveTime = currentTimeMillis();
+
+                    // Tell the server how the download is going, so that it can send
+                    // to us as fast as, but no faster than, our path can carry. The
+                    // first report is made as soon as the packet train is in (or a
+                    // report interval after INFO, if some of it was lost). Reports are
+                    // of no use to a multicast sender, which can't pace the group for
+                    // any one of its members.
+                    if (fileReceiver != null && !multicast) {
+                        int chunkPayloadSize = fileReceiver.getChunkSize() - FileProvider.CHUNK_HEADER_SIZE;
+                        if (!trainReported) {
+                            if (train.isComplete(trainLength, chunkPayloadSize)
+                                    || lastReceiveTime - infoTime >= REPORT_INTERVAL) {
+                                sendReport(socket, fileReceiver, lastReceiveTime - beginTime,
+                                        train.estimate(trainLength, chunkPayloadSize), serverAddr, port);
+                                lastReportTime = lastReceiveTime;
+                                trainReported = true;
+                            }
+                        } else if (lastReceiveTime - lastReportTime >= REPORT_INTERVAL) {
+                            sendReport(socket, fileReceiver, lastReceiveTime - beginTime, 0, serverAddr, port);
+                            lastReportTime = lastReceiveTime;
+                        }
+                    }
+
+                    // Save the chunks received so far, in the background, so that
+                    // the download can be resumed if the client is stopped.
+                    if (fileReceiver != null && lastReceiveTime - lastCheckpointTime >= CHECKPOINT_INTERVAL) {
+                        fileReceiver.checkpoint();
+                        lastCheckpointTime = lastReceiveTime;
+                    }
+
                     byte[] bytes = incomingPacket.getData();
                     int length = incomingPacket.getLength();
 
-                    // When we receive the INFO message, we can create the FileReceiver.
-                    if (Message.isInfoMessage(bytes)) {
-                        InfoMessage infoMessage = new InfoMessage(bytes);
-                        fileReceiver = new FileReceiver(
-                                infoMessage.getFilename(), infoMessage.getFileSize());
-                        System.out.printf("Client: received INFO [file: %s, length: %d]\n",
-                                infoMessage.getFilename(), infoMessage.getFileSize());
-                        while (!pending.isEmpty()) {
-                            byte[] p = pending.remove(0);
-                            fileReceiver.processPacket(p, p.length);
+                    try {
+                        int packetType = MessageFlyweight.getMessageType(incomingBuffer, 0, length);
+
+                        // When we receive the INFO message, we can create the FileReceiver.
+                        if (packetType == Message.MESSAGE_TYPE_INFO) {
+                            if (fileReceiver != null) {
+                                continue;   // duplicate
+                            }
+                            InfoMessage infoMessage = new InfoMessage(bytes, length);
+                            fileReceiver = new FileReceiver(new File(directory, infoMessage.getFilename()).getPath(),
+                                    infoMessage.getFileSize(), infoMessage.getChunkSize(), infoMessage.getMerkleRoot(),
+                                    ranges);
+                            trainLength = infoMessage.getTrainLength();
+                            trainReported = trainLength == 0;
+                            infoTime = lastReceiveTime;
+                            roundTrip = Math.max(1, infoTime - lastRequestTime);
+                            Log.info("Client: received INFO [file: %s, length: %d, chunk size: %d]",
+                                    infoMessage.getFilename(), infoMessage.getFileSize(), infoMessage.getChunkSize());
+                            if (infoMessage.getMulticastGroup() != null) {
+                                Log.info("Client: joining multicast group %s",
+                                        infoMessage.getMulticastGroup());
+                                receiveSocket = MulticastSupport.joinGroup(
+                                        infoMessage.getMulticastGroup(), multicastInterface);
+                                receiveSocket.setSoTimeout(NACK_INTERVAL);
+                                multicast = true;
+                            }
+                            if (fileReceiver.isResumed()) {
+                                Log.info("Client: resuming download [chunks saved: %d of %d]",
+                                        fileReceiver.getChunksReceived(), fileReceiver.getExpectedChunks());
+                                if (!(request instanceof ResumeMessage) && !fileReceiver.isDownloadComplete()) {
+                                    // The server is sending the whole file; ask for just
+                                    // the chunks we are missing.
+                                    List<ChunkRange> missing = fileReceiver.getMissingRanges(
+                                            ResumeMessage.MAX_RANGES, true);
+                                    Log.info("Client: sending RESUME [ranges: %d]", missing.size());
+                                    request = new ResumeMessage(weight, maxDatagramSize, fileReceiver.getChunkSize(),
+                                            missing, filename);
+                                    socket.send(request.getDatagramPacket(serverAddr, port));
+                                }
+                            }
+                            if (spool.size() > 0) {
+                                Log.info("Client: processing %d payloads received before INFO (%d spilled to disk)",
+                                        spool.size(), spool.getSpilled());
+                                spool.drainTo(fileReceiver);
+                            }
+                            continue;
+                        } else if (packetType == Message.MESSAGE_TYPE_END) {
+                            // The server has sent everything it was asked for, so any
+                            // chunk we are still missing was lost, and there's no need
+                            // to wait for the server to go quiet before asking for it.
+                            end.wrap(incomingBuffer, 0, length);
+                            if ((end.getProbe() > 0 && lastReceiveTime - lastRequestTime < roundTrip)
+                                    || (fileReceiver != null && end.getChunkSize() != fileReceiver.getChunkSize())) {
+                                continue;
+                            }
+                            Log.info("Client: received END [chunks: %d, probe: %d]",
+                                    end.getChunkCount(), end.getProbe());
+                            if (fileReceiver != null) {
+                                fileReceiver.checkpoint();
+                                sendNack(socket, fileReceiver, filename, serverAddr, port);
+                            } else {
+                                // Our INFO was lost, though the chunks may not have been.
+                                Log.info("Client: no INFO yet, sending %s again",
+                                        request instanceof ResumeMessage ? "RESUME" : "BEGIN");
+                                socket.send(request.getDatagramPacket(serverAddr, port));
+                            }
+                            lastRequestTime = lastReceiveTime;
+                            continue;
+                        } else if (packetType == Message.MESSAGE_TYPE_PARITY) {
+                            if (!trainReported) {
+                                train.onPacket(arrivalTime, length, -1);
+                            }
+                            // Parity is only useful alongside the chunks it covers, so any
+                            // that arrives before INFO is dropped.
+                            if (fileReceiver != null) {
+                                fileReceiver.processParity(parity.wrap(incomingBuffer, 0, length));
+                            }
+                            continue;
+                        } else if (packetType != Message.MESSAGE_TYPE_PAYLOAD) {
+                            Log.warn("Client: unexpected packet [type: %d]", packetType);
+                            continue;
                         }
-                        continue;
-                    } else if (!Message.isPayloadMessage(bytes)) {
-                        System.out.printf("Client: unexpected packet.");
-                        continue;
-                    }
 
-                    PayloadMessage payloadMessage = new PayloadMessage(bytes, length);
-                    System.out.printf("Client: received PAYLOAD [position: %d, length: %d]\n",
-                            payloadMessage.getPosition(), payloadMessage.getPayloadSize());
-
-                    // Normally, every PAYLOAD message would be given directly to the
-                    // FileReceiver for processing as soon as it was received. However, it is
-                    // possible that we have yet to receive the INFO packet, and therefore have
-                    // not yet created the FileReceiver. In this case, we store the packet in-
-                    // memory until the INFO packet receives.
-                    if (fileReceiver == null) {
-                        pending.add(Arrays.copyOfRange(bytes, payloadMessage.getHeaderSize(), length));
-                    } else {
-                        fileReceiver.processPacket(bytes, length);
+                        payload.wrap(incomingBuffer, 0, length);
+                        if (!trainReported) {
+                            train.onPacket(arrivalTime, length, payload.getPosition());
+                        }
+                        if (payloadLog.isEnabled()) {
+                            payloadLog.log("Client: received PAYLOAD [position: %d, length: %d]",
+                                    payload.getPosition(), payload.getPayloadLength());
+                        }
+
+                        // Normally, every PAYLOAD message would be given directly to the
+                        // FileReceiver for processing as soon as it was received. However, it is
+                        // possible that we have yet to receive the INFO packet, and therefore have
+                        // not yet created the FileReceiver. In this case, we hold the payload in
+                        // the spool until the INFO packet arrives.
+                        if (fileReceiver == null) {
+                            spool.add(payload);
+                        } else {
+                            fileReceiver.processPayload(payload);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // A truncated or corrupt datagram, or one that isn't ours.
+                        Log.warn("Client: discarding malformed message: %s", e);
+                        continue;
                     }
 
                 } while (fileReceiver == null || !fileReceiver.isDownloadComplete());
 
+                // Tell the server that we need nothing more, so that it stops
+                // sending to us (or stops sending END messages, if it has finished).
+                sendNack(socket, fileReceiver, filename, serverAddr, port);
+
             } catch(SocketTimeoutException e) {
-                System.out.printf("Timeout: " + e);
+                Log.warn("Timeout: %s", e);
+            } finally {
+                if (multicast) {
+                    receiveSocket.close();
+                }
             }
 
+            if (fileReceiver == null) {
+                Log.warn("Client: the server did not reply to BEGIN");
+                return null;
+            }
 
             FileReceiver.FileDownloadResult result = fileReceiver.complete();
-            System.out.println(String.format("Download of %s complete!", result.file.getName()));
-            System.out.println("Packets received: " + result.packetsReceived);
-            System.out.println("Packets expected: " + result.expectedPackets);
-            System.out.println("Message Loss %: " + result.packetLoss());
-            System.out.println("Average b/w (kbps): " + result.kiloBitsPerSecond);
-
+            Log.info("Download of %s complete!", result.file.getName());
+            Log.info("Packets received: %d", result.packetsReceived);
+            Log.info("Packets expected: %d", result.expectedPackets);
+            Log.info("Chunks recovered by FEC: %d", result.chunksRecovered);
+            if (result.chunksSkipped > 0) {
+                Log.info("Chunks skipped, outside the ranges asked for: %d", result.chunksSkipped);
+            }
+            if (result.chunksResumed > 0) {
+                Log.info("Chunks resumed from an earlier download: %d", result.chunksResumed);
+            }
+            Log.info("Packets failing checksum: %d", result.packetsCorrupted);
+            Log.info("Message Loss %%: %s", result.packetLoss());
+            Log.info("Average b/w (kbps): %s", result.kiloBitsPerSecond);
+            if (result.verified) {
+                Log.info("Verified %s against the server's Merkle root", result.file.getName());
+            } else if (fileReceiver.isDownloadComplete() && !ranged) {
+                Log.error("Client: %s does not match the server's Merkle root", result.file.getName());
+            }
+            return result;
 
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param saved the progress saved by an earlier download of the file, or null.
+     * @return a RESUME message asking for the chunks missing from the earlier
+     *  download, or null if there was none.
+     */
+    private static ResumeMessage resumeMessage(ProgressFile.Saved saved, int weight, int maxDatagramSize,
+                                               String filename) throws IOException {
+        if (saved == null) {
+            return null;
+        }
+        List<ChunkRange> missing = saved.chunksReceived.getClearRanges(ResumeMessage.MAX_RANGES, true);
+        Log.info("Client: sending RESUME [chunks saved: %d of %d, ranges: %d, max datagram: %d]",
+                saved.chunksReceived.cardinality(), saved.chunksReceived.size(), missing.size(), maxDatagramSize);
+        return new ResumeMessage(weight, maxDatagramSize, saved.chunkSize, missing, filename);
+    }
+
+    /**
+     * Send a NACK packet to the server, listing the chunks that are missing.
+     */
+    private static void sendNack(DatagramSocket socket, FileReceiver fileReceiver, String filename,
+                                 InetAddress serverAddr, int port) throws IOException {
+        List<ChunkRange> missing = fileReceiver.getMissingRanges(NackMessage.MAX_RANGES);
+        Log.info("Client: sending NACK [ranges: %d]", missing.size());
+        NackMessage nackMessage = new NackMessage(missing, fileReceiver.getChunkSize(), filename);
+        socket.send(nackMessage.getDatagramPacket(serverAddr, port));
+    }
+
+    /**
+     * Send a REPORT packet to the server, with the counts of packets received,
+     * lost and reordered so far.
+     *
+     * @param timestamp the time, in ms, since BEGIN was sent.
+     * @param capacityEstimate the capacity of our path, in bytes per second, as
+     *                         measured from the packet train, or 0 if unknown.
+     */
+    private static void sendReport(DatagramSocket socket, FileReceiver fileReceiver, long timestamp,
+                                   long capacityEstimate, InetAddress serverAddr, int port) throws IOException {
+        ReceiveStats stats = fileReceiver.getStats();
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Client: sending REPORT [received: %d, lost: %d, reordered: %d, capacity: %d kbps]",
+                    stats.getPacketsReceived(), stats.getPacketsLost(), stats.getPacketsReordered(),
+                    capacityEstimate * 8 / 1000);
         }
+        ReportMessage reportMessage = new ReportMessage(timestamp, stats.getPacketsReceived(),
+                stats.getBytesReceived(), stats.getPacketsLost(), stats.getPacketsReordered(), capacityEstimate);
+        socket.send(reportMessage.getDatagramPacket(serverAddr, port));
     }
 }
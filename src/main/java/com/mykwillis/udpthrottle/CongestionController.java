@@ -0,0 +1,189 @@
+package com.mykwillis.udpthrottle;
+
+import static com.mykwillis.udpthrottle.TokenBucketRateLimiter.tokenNanos;
+
+/**
+ * Paces the data sent to one client at the rate its path can carry, as learned
+ * from the client's REPORT messages.
+ *
+ * The controller is additive-increase, multiplicative-decrease (AIMD), driven by
+ * the loss the client reports rather than by acknowledgements:
+ *
+ * - The rate starts at the path capacity that the client measured from the
+ *   packet train sent after INFO, if it reports one (see PacketTrain), and
+ *   otherwise at the rate the client first reports receiving.
+ * - Until the client first reports loss, the rate doubles with each report (as in
+ *   TCP's slow start), so that a fast path is found quickly. This is skipped if
+ *   the rate started at a measured capacity, as there is nothing to find.
+ * - When a report shows more than LOSS_THRESHOLD of the packets sent since the
+ *   previous one were lost, the rate is cut to DECREASE_FACTOR of the rate at
+ *   which the client was actually receiving. Packets already on their way when
+ *   the rate was cut are lost too, so the report after a cut never cuts again.
+ * - Otherwise, the rate grows by one full-sized packet per report interval.
+ * - The rate only grows while the client receives at least APP_LIMITED_FRACTION
+ *   of it. When the client is held back by something else, such as the server's
+ *   overall bandwidth limit or its share among other clients, a higher rate
+ *   would prove nothing about the path, and would let the client burst later.
+ * - If the client stops reporting while it is being sent data, its reports may be
+ *   being lost to congestion, so the rate is halved for each REPORT_TIMEOUT_NANOS
+ *   without one.
+ *
+ * A client that never reports (such as one built before REPORT existed) is never
+ * paced, and is limited only by the server's overall bandwidth limit, as before.
+ * Once a client has been sent its packet train, however, it is sent nothing more
+ * until it reports, or for up to TRAIN_REPORT_TIMEOUT_NANOS, so that the rest of
+ * its data goes at the rate the train measured rather than as fast as the server
+ * can send it.
+ *
+ * Reports carry cumulative counts, from which each rate is worked out as the
+ * difference between consecutive reports, so a lost report costs nothing but a
+ * longer interval. Pacing works as in TokenBucketRateLimiter: the controller
+ * tracks the time at which its bucket will next be full, and a packet may be
+ * sent once that is no more than BURST_PACKETS full-sized packets away.
+ *
+ * The controller is used by a single event loop, and is not thread safe.
+ */
+class CongestionController {
+    static final long MIN_BYTES_PER_SECOND = 16 * 1024;
+    static final double LOSS_THRESHOLD = 0.02;
+    static final double DECREASE_FACTOR = 0.7;
+    static final double APP_LIMITED_FRACTION = 0.5;
+    static final long REPORT_TIMEOUT_NANOS = 1000L * 1000 * 1000;   // 1s
+    static final int BURST_PACKETS = 2;
+    static final long TRAIN_REPORT_TIMEOUT_NANOS = 300L * 1000 * 1000;   // 300ms
+
+    private final int packetSize;
+    private long bytesPerSecond = 0;    // zero until the first report; not paced
+    private boolean slowStart = true;
+    private boolean justDecreased = false;
+
+    // Until the first report, the time before which nothing is to be sent.
+    private boolean holding = false;
+    private long holdUntil;
+
+    // Counts from the previous report.
+    private long lastTimestamp = 0;
+    private long lastPacketsReceived = 0;
+    private long lastBytesReceived = 0;
+    private long lastPacketsLost = 0;
+    private long lastReportAt;
+
+    // Time at which the bucket will next be full.
+    private long fullAt;
+
+    /**
+     * @param packetSize the size of a full-sized packet sent to the client.
+     */
+    CongestionController(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * @return whether the client has reported, and so is being paced.
+     */
+    boolean isActive() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * @return the rate at which the client is paced, or zero if it isn't.
+     */
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Adjust the rate according to a REPORT from the client.
+     *
+     * @param timestamp the report's timestamp, in ms on the client's clock.
+     * @param packetsReceived the client's count of packets received.
+     * @param bytesReceived the client's count of bytes received.
+     * @param packetsLost the client's count of packets lost.
+     * @param capacityEstimate the client's estimate of its path's capacity, in
+     *                         bytes per second, or 0 if it has none.
+     * @param now the current System.nanoTime().
+     * @return false if the report was ignored, as it was older than one already
+     *  used.
+     */
+    boolean onReport(long timestamp, long packetsReceived, long bytesReceived, long packetsLost,
+                     long capacityEstimate, long now) {
+        long interval = timestamp - lastTimestamp;
+        if (interval <= 0 || packetsReceived < lastPacketsReceived || bytesReceived < lastBytesReceived) {
+            return false;
+        }
+        long packets = packetsReceived - lastPacketsReceived;
+        long bytes = bytesReceived - lastBytesReceived;
+        // The lost count falls when packets thought lost turn out to be reordered.
+        long lost = Math.max(0, packetsLost - lastPacketsLost);
+        lastTimestamp = timestamp;
+        lastPacketsReceived = packetsReceived;
+        lastBytesReceived = bytesReceived;
+        lastPacketsLost = packetsLost;
+        lastReportAt = now;
+
+        long receiveRate = bytes * 1000 / interval;
+        double loss = lost + packets > 0 ? lost / (double) (lost + packets) : 0;
+
+        if (justDecreased) {
+            justDecreased = false;
+        } else if (loss > LOSS_THRESHOLD) {
+            long base = isActive() ? Math.min(bytesPerSecond, receiveRate)
+                    : capacityEstimate > 0 ? capacityEstimate : receiveRate;
+            setRate((long) (base * DECREASE_FACTOR), now);
+            slowStart = false;
+            justDecreased = true;
+        } else if (!isActive()) {
+            setRate(capacityEstimate > 0 ? capacityEstimate : receiveRate, now);
+            slowStart = capacityEstimate <= 0;
+        } else if (receiveRate >= bytesPerSecond * APP_LIMITED_FRACTION) {
+            setRate(slowStart ? bytesPerSecond * 2 : bytesPerSecond + packetSize * 1000L / interval, now);
+        }
+        return true;
+    }
+
+    private void setRate(long bytesPerSecond, long now) {
+        if (!isActive()) {
+            fullAt = now;
+        }
+        this.bytesPerSecond = Math.max(MIN_BYTES_PER_SECOND, bytesPerSecond);
+    }
+
+    /**
+     * Send the client nothing more until its first report arrives, or until
+     * TRAIN_REPORT_TIMEOUT_NANOS have passed. This is used once the client has
+     * been sent its packet train, and has no effect if it has already reported.
+     */
+    void awaitReport(long now) {
+        if (!isActive()) {
+            holding = true;
+            holdUntil = now + TRAIN_REPORT_TIMEOUT_NANOS;
+        }
+    }
+
+    /**
+     * @return the time, in nanoseconds from `now`, until a packet may be sent to
+     *  the client, or zero if one may be sent now.
+     */
+    long getDelay(long now) {
+        if (!isActive()) {
+            return holding ? Math.max(0, holdUntil - now) : 0;
+        }
+        long sendAt = fullAt - tokenNanos((long) BURST_PACKETS * packetSize, bytesPerSecond);
+        return Math.max(0, sendAt - now);
+    }
+
+    /**
+     * Record that a packet has been sent to the client.
+     */
+    void onSend(int bytes, long now) {
+        if (!isActive()) {
+            return;
+        }
+        if (now - lastReportAt > REPORT_TIMEOUT_NANOS) {
+            setRate(bytesPerSecond / 2, now);
+            slowStart = false;
+            lastReportAt = now;
+        }
+        fullAt = Math.max(fullAt, now) + tokenNanos(bytes, bytesPerSecond);
+    }
+}
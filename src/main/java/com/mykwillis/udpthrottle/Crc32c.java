@@ -0,0 +1,214 @@
+package com.mykwillis.udpthrottle;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Computes CRC32C (Castagnoli) checksums, as used to detect corruption of file
+ * data in transit.
+ *
+ * On Java 9 and later, this uses java.util.zip.CRC32C, which the JVM implements
+ * with the processor's CRC32 instructions where it has them. The build targets
+ * Java 8, which lacks that class, so it is found by reflection, and on a Java 8
+ * runtime a table-driven implementation (slicing-by-8) is used instead. Both
+ * give the same results.
+ *
+ * An instance is reused for one checksum after another, and so allocates
+ * nothing. Instances are not thread-safe.
+ */
+public final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;   // reversed Castagnoli polynomial
+
+    private static final MethodHandle NEW_CRC32C;
+    private static final MethodHandle UPDATE_BUFFER;    // Checksum.update(ByteBuffer), Java 9+
+
+    static {
+        MethodHandle newCrc32c = null;
+        MethodHandle updateBuffer = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+            newCrc32c = lookup.findConstructor(crc32c, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateBuffer = lookup.findVirtual(Checksum.class, "update",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            newCrc32c = null;
+            updateBuffer = null;
+        }
+        NEW_CRC32C = newCrc32c;
+        UPDATE_BUFFER = updateBuffer;
+    }
+
+    // Tables for slicing-by-8: TABLE[k][b] is the CRC of byte b followed by k zero bytes.
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int i = 0; i < 8; i++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            TABLE[0][b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int k = 1; k < 8; k++) {
+                TABLE[k][b] = (TABLE[k - 1][b] >>> 8) ^ TABLE[0][TABLE[k - 1][b] & 0xFF];
+            }
+        }
+    }
+
+    private final Checksum checksum;
+    private final byte[] scratch = new byte[8];
+    private byte[] copyBuffer;      // for direct buffers, when there is no intrinsic
+
+    public Crc32c() {
+        checksum = NEW_CRC32C != null ? newCrc32c() : new SoftwareCrc32c();
+    }
+
+    private static Checksum newCrc32c() {
+        try {
+            return (Checksum) NEW_CRC32C.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to create CRC32C", e);
+        }
+    }
+
+    /**
+     * @return whether checksums are computed by the JVM's CRC32C, rather than in Java.
+     */
+    public static boolean isIntrinsic() {
+        return NEW_CRC32C != null;
+    }
+
+    /**
+     * Start a new checksum.
+     */
+    public Crc32c reset() {
+        checksum.reset();
+        return this;
+    }
+
+    public Crc32c update(byte[] bytes, int offset, int length) {
+        checksum.update(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Add the bytes of `buffer` between `index` and `index + length`, leaving the
+     * buffer's position and limit as they were.
+     */
+    public Crc32c update(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + index, length);
+            return this;
+        }
+
+        int position = buffer.position();
+        int limit = buffer.limit();
+        try {
+            buffer.limit(index + length);
+            buffer.position(index);
+            if (UPDATE_BUFFER != null) {
+                UPDATE_BUFFER.invokeExact(checksum, buffer);
+            } else {
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[4096];
+                }
+                while (buffer.hasRemaining()) {
+                    int count = Math.min(buffer.remaining(), copyBuffer.length);
+                    buffer.get(copyBuffer, 0, count);
+                    checksum.update(copyBuffer, 0, count);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+        return this;
+    }
+
+    /**
+     * Add the bytes of `buffer` between its position and limit, leaving its
+     * position unchanged.
+     */
+    public Crc32c update(ByteBuffer buffer) {
+        return update(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Add the 8 bytes of a long, in network (big-endian) order.
+     */
+    public Crc32c updateLong(long value) {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        checksum.update(scratch, 0, 8);
+        return this;
+    }
+
+    /**
+     * Add the 4 bytes of an int, in network (big-endian) order.
+     */
+    public Crc32c updateInt(int value) {
+        for (int i = 0; i < 4; i++) {
+            scratch[i] = (byte) (value >>> (24 - 8 * i));
+        }
+        checksum.update(scratch, 0, 4);
+        return this;
+    }
+
+    /**
+     * @return the checksum of the bytes added since reset().
+     */
+    public int getValue() {
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * CRC32C computed eight bytes at a time, with a table for each byte position.
+     */
+    static final class SoftwareCrc32c implements Checksum {
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[0][(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            int c = crc;
+            int end = offset + length;
+            for (; offset + 8 <= end; offset += 8) {
+                int low = c ^ ((bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                        | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24);
+                c = TABLE[7][low & 0xFF] ^ TABLE[6][(low >>> 8) & 0xFF]
+                        ^ TABLE[5][(low >>> 16) & 0xFF] ^ TABLE[4][low >>> 24]
+                        ^ TABLE[3][bytes[offset + 4] & 0xFF] ^ TABLE[2][bytes[offset + 5] & 0xFF]
+                        ^ TABLE[1][bytes[offset + 6] & 0xFF] ^ TABLE[0][bytes[offset + 7] & 0xFF];
+            }
+            for (; offset < end; offset++) {
+                c = (c >>> 8) ^ TABLE[0][(c ^ bytes[offset]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.mykwillis.udpthrottle;
 
-import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -10,24 +11,64 @@ import java.util.List;
 /**
  * Provides a file's contents as a number of byte array chunks, each prefixed with
  * a protocol-specific header.
+ *
+ * The file is read completely onto the heap, which makes this class suitable only
+ * for small files. See MappedFileProvider for serving large files. Each chunk's
+ * header, checksum included, is computed as the file is read.
  */
-public class FileProvider {
+public class FileProvider implements ChunkProvider {
     /**
-     * Chunk size for network transmission.
+     * Default chunk size for network transmission.
      *
-     * The chunk includes both the file payload, as well as a 12 byte header used
-     * to specify the packet type, and the byte offset within the file of the
-     * current chunk.
+     * The chunk includes both the file payload, as well as a 16 byte header used
+     * to specify the packet type, the byte offset within the file of the current
+     * chunk, and the chunk's checksum.
      *
-     * The optimal chunk size would be determined by the specific application and
-     * execution environment. In a production environment, we would want to test
-     * various chunk sizes, and potentially choose the chunk size dynamically
-     * depending on circumstances.
+     * The optimal chunk size depends on the path between server and client: a
+     * chunk larger than the path MTU is fragmented by IP, and the loss of any one
+     * fragment loses the whole chunk, while on loopback or jumbo-frame paths much
+     * larger chunks cut per-packet overhead. Clients therefore tell the server the
+     * largest datagram they can take in their BEGIN message, and the server
+     * chooses a chunk size for each session between MIN_CHUNK_SIZE and
+     * MAX_CHUNK_SIZE. This size is used when nothing has been negotiated.
      */
     public static final int CHUNK_SIZE = 8192;
-    public static final int CHUNK_HEADER_SIZE = 12;
+    public static final int CHUNK_HEADER_SIZE = PayloadFlyweight.HEADER_SIZE;
     public static final int CHUNK_PAYLOAD_SIZE = CHUNK_SIZE - CHUNK_HEADER_SIZE;
 
+    /**
+     * Largest UDP datagram that can be sent over IPv4.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Number of bytes by which a PARITY message exceeds the PAYLOAD message of a
+     * full chunk.
+     */
+    public static final int PARITY_OVERHEAD = ParityFlyweight.HEADER_SIZE - CHUNK_HEADER_SIZE;
+
+    /**
+     * Smallest chunk size that may be negotiated. Every IPv4 host can reassemble
+     * a 576 byte packet, which leaves 548 bytes for a UDP datagram.
+     */
+    public static final int MIN_CHUNK_SIZE = 548 - PARITY_OVERHEAD;
+
+    /**
+     * Largest chunk size that may be negotiated, leaving room for the larger
+     * header of a PARITY message.
+     */
+    public static final int MAX_CHUNK_SIZE = MAX_DATAGRAM_SIZE - PARITY_OVERHEAD;
+
+    public static final int MAX_CHUNK_PAYLOAD_SIZE = MAX_CHUNK_SIZE - CHUNK_HEADER_SIZE;
+
+    /**
+     * @return the largest chunk size whose datagrams, PARITY messages included,
+     *  are no larger than `datagramSize`, limited to the allowed range.
+     */
+    public static int getChunkSizeForDatagram(int datagramSize) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, datagramSize - PARITY_OVERHEAD));
+    }
+
     /**
      * A List of byte arrays, each array holding one chunk of file data prefixed with
      * the protocols-defined header. Each byte array is suitable for passing directly
@@ -35,14 +76,17 @@ public class FileProvider {
      */
     List<byte[]> chunks = new ArrayList<>();
 
+    private long fileSize;
+    private final int chunkSize;
+    private final int chunkPayloadSize;
+
     /**
      * Create a new FileProvider for the File given.
      *
      * @param file A file on the local filesystem. This file should be less than 10MB.
      */
     public FileProvider(File file) throws FileNotFoundException {
-        FileInputStream inputStream = new FileInputStream(file);
-        readFile(inputStream);
+        this(new FileInputStream(file));
     }
 
     /**
@@ -52,6 +96,19 @@ public class FileProvider {
      *                    be less than 10MB in size.
      */
     public FileProvider(InputStream inputStream) {
+        this(inputStream, CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new FileProvider for the given InputStream, divided into chunks of
+     * `chunkSize` bytes, header included.
+     */
+    public FileProvider(InputStream inputStream, int chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.chunkPayloadSize = chunkSize - CHUNK_HEADER_SIZE;
         readFile(inputStream);
     }
 
@@ -61,15 +118,67 @@ public class FileProvider {
      * Specifying an index greater than the number of chunks returns null.
      *
      * @param index The index to fetch.
-     * @return a byte[] consisting of a 4 byte offset header followed by file data,
+     * @return a byte[] consisting of the PAYLOAD header followed by file data,
      *  or null if the requested index is out of bounds.
      *
      */
-    public byte[] getChunk(int index) {
-        if (index >= chunks.size()) {
+    @Override
+    public byte[] getChunk(long index) {
+        if (index < 0 || index >= chunks.size()) {
+            return null;
+        }
+        return chunks.get((int) index);
+    }
+
+    @Override
+    public ByteBuffer getChunkPayload(long index) {
+        byte[] chunk = getChunk(index);
+        if (chunk == null) {
             return null;
         }
-        return chunks.get(index);
+        return ByteBuffer.wrap(chunk, CHUNK_HEADER_SIZE, chunk.length - CHUNK_HEADER_SIZE)
+                .asReadOnlyBuffer();
+    }
+
+    @Override
+    public int readChunk(long index, ByteBuffer dst) {
+        byte[] chunk = getChunk(index);
+        if (chunk == null) {
+            return -1;
+        }
+        dst.put(chunk, CHUNK_HEADER_SIZE, chunk.length - CHUNK_HEADER_SIZE);
+        return chunk.length - CHUNK_HEADER_SIZE;
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public long getChunkCount() {
+        return chunks.size();
+    }
+
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Divide the file into chunks of another size. As the whole file is held on
+     * the heap, this makes another copy of it.
+     */
+    @Override
+    public ChunkProvider withChunkSize(int chunkSize) {
+        if (chunkSize == this.chunkSize) {
+            return this;
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) fileSize);
+        for (byte[] chunk : chunks) {
+            outputStream.write(chunk, CHUNK_HEADER_SIZE, chunk.length - CHUNK_HEADER_SIZE);
+        }
+        return new FileProvider(new ByteArrayInputStream(outputStream.toByteArray()), chunkSize);
     }
 
     /**
@@ -83,28 +192,39 @@ public class FileProvider {
      */
     void readFile(InputStream inputStream) {
 
-        int bytesRead = 0;
+        int bytesRead;
         long offset = 0;
+        Crc32c crc = new Crc32c();
         try {
             do {
-                byte[] chunk = new byte[CHUNK_SIZE];
+                byte[] chunk = new byte[chunkSize];
                 ByteBuffer byteBuffer = ByteBuffer.wrap(chunk);
-                byteBuffer.putInt(Message.MESSAGE_TYPE_PAYLOAD);
-                byteBuffer.putLong(offset);
-
-                bytesRead = inputStream.read(chunk, CHUNK_HEADER_SIZE, CHUNK_PAYLOAD_SIZE);
 
-                // The last read of a file may give us less than CHUNK_PAYLOAD_SIZE bytes.
-                // In this case, we need to re-allocate the byte array to the proper size,
-                // as the array size is used to determine how many bytes to transmit.
-                if (bytesRead > 0 && bytesRead < CHUNK_PAYLOAD_SIZE) {
-                    chunk = java.util.Arrays.copyOf(chunk, CHUNK_HEADER_SIZE + bytesRead);
+                // A read may return fewer bytes than asked for before the end of the
+                // file, so fill the chunk with as many reads as it takes: every chunk
+                // but the last must be full, for its position to follow from its index.
+                bytesRead = 0;
+                int read;
+                while (bytesRead < chunkPayloadSize && (read = inputStream.read(chunk,
+                        CHUNK_HEADER_SIZE + bytesRead, chunkPayloadSize - bytesRead)) > 0) {
+                    bytesRead += read;
                 }
+
                 if (bytesRead > 0) {
+                    PayloadFlyweight.encodeHeader(byteBuffer, offset,
+                            PayloadFlyweight.checksum(crc, offset, byteBuffer, CHUNK_HEADER_SIZE, bytesRead));
+
+                    // The last chunk of a file may hold less than chunkPayloadSize bytes.
+                    // In this case, we need to re-allocate the byte array to the proper size,
+                    // as the array size is used to determine how many bytes to transmit.
+                    if (bytesRead < chunkPayloadSize) {
+                        chunk = java.util.Arrays.copyOf(chunk, CHUNK_HEADER_SIZE + bytesRead);
+                    }
                     chunks.add(chunk);
+                    offset += bytesRead;
                 }
-                offset += bytesRead;
-            } while(bytesRead > 0);
+            } while (bytesRead == chunkPayloadSize);
+            fileSize = offset;
         } catch (IOException e) {
             e.printStackTrace();
         }
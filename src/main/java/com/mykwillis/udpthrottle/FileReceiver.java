@@ -1,9 +1,18 @@
 package com.mykwillis.udpthrottle;
 
+import com.mykwillis.udpthrottle.message.ByteRange;
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 
 import static java.lang.System.currentTimeMillis;
 
@@ -13,71 +22,530 @@ import static java.lang.System.currentTimeMillis;
  * This class is used by the Client to receive each packet (chunk) of data that
  * comes in from the server, and save it to the appropriate offset in the output
  * file.
+ *
+ * If the server sends forward error correction data (PARITY messages), a chunk
+ * that was lost can be rebuilt once the rest of its block, and the block's parity,
+ * have been received.
+ *
+ * The output file is preallocated to its full size and memory-mapped, and each
+ * chunk is copied straight into the mapping. Receiving a packet therefore makes no
+ * system calls: the operating system writes the data back to disk in the
+ * background, and the receive loop never waits on the disk. As in
+ * MappedFileProvider, large files are mapped as a number of overlapping segments,
+ * such that each chunk lies wholly within one segment.
+ *
+ * Chunks are of the size the server confirmed in its INFO message, and the chunk
+ * indices in PARITY and NACK messages refer to chunks of that size.
+ *
+ * Chunks are indexed by long, and the chunks received are tracked in a bitmap of
+ * one bit per chunk, so files of any size the file system allows can be received.
+ *
+ * Every PAYLOAD and PARITY message is checked against its checksum before it is
+ * used. A message that fails the check is counted and dropped, so that its chunk
+ * remains missing and is asked for again. The checksum of each chunk saved (or
+ * rebuilt) is kept, and once the download is complete, the root of their Merkle
+ * tree is compared with the one the server sent in INFO, which verifies the whole
+ * file without reading it back.
+ *
+ * When the server sends a Merkle root, the chunks received are also recorded in
+ * a progress file alongside the output file (see ProgressFile), which is saved
+ * whenever checkpoint() is called, and when the receiver is completed. If the
+ * download is not finished, the progress file is kept, and a FileReceiver created
+ * later for the same file, chunk size and Merkle root picks up from the chunks
+ * already saved. The progress file is deleted once the download is complete.
+ *
+ * A receiver may be asked for only some byte ranges of the file, in which case
+ * the chunks that hold no part of them are skipped: they are treated as received
+ * from the start, and the output file is left sparse where they would be. Such a
+ * download can't be verified against the Merkle root, which covers the whole file,
+ * nor resumed, but each chunk is still checked against its own checksum.
  */
 public class FileReceiver {
     private File file;
     private RandomAccessFile outputFile;
+    private MappedByteBuffer[] segments;
     private long expectedSize;
-    private boolean[] chunksReceived;
-    private int numberOfChunksReceived;
-    private int expectedChunks;
+    private int chunkSize;
+    private int chunkPayloadSize;
+    private ChunkBitmap chunksReceived;
+    private long numberOfChunksRecovered;
+    private final long numberOfChunksResumed;
+    private final ChunkBitmap chunksSkipped;    // outside the ranges asked for, or null
+    private long numberOfPacketsCorrupted;
+    private final ChunkChecksums checksums;
+    private final byte[] merkleRoot;
+    private final ProgressFile progress;
+    private final boolean resumed;
+    private long expectedChunks;
     private long startTime;
+    private final ReceiveStats stats;
 
-    static int getExpectedChunks(long expectedSize) {
-        return (int) (expectedSize + FileProvider.CHUNK_PAYLOAD_SIZE - 1) / FileProvider.CHUNK_PAYLOAD_SIZE;
+    // Parity of blocks that are still missing chunks. Every block holds the same
+    // number of chunks except the last, so blocks are found by index; the size is
+    // learned from the first PARITY message for a block other than the last.
+    private int parityBlockSize;
+    private ParityBlock[] parityBlocks;
+    private ParityBlock lastParityBlock;
+
+    // Reused when decoding packets handed to processPacket(byte[], int).
+    private final PayloadFlyweight payload = new PayloadFlyweight();
+    private final ParityFlyweight parity = new ParityFlyweight();
+    private ByteBuffer packetBuffer = ByteBuffer.allocate(0);
+    private final Crc32c crc = new Crc32c();
+
+    // Scratch space for rebuilding chunks from parity.
+    private final byte[] recoveryBytes;
+
+    static long getExpectedChunks(long expectedSize) {
+        return getExpectedChunks(expectedSize, FileProvider.CHUNK_PAYLOAD_SIZE);
     }
 
-    static int getChunkIndexByPosition(long position) {
-        return (int) position / (FileProvider.CHUNK_PAYLOAD_SIZE);
+    static long getExpectedChunks(long expectedSize, int chunkPayloadSize) {
+        return (expectedSize + chunkPayloadSize - 1) / chunkPayloadSize;
+    }
+
+    static long getChunkIndexByPosition(long position) {
+        return position / FileProvider.CHUNK_PAYLOAD_SIZE;
     }
 
     FileReceiver(String filename, long expectedSize) throws IOException {
+        this(filename, expectedSize, FileProvider.CHUNK_SIZE);
+    }
+
+    FileReceiver(String filename, long expectedSize, int chunkSize) throws IOException {
+        this(filename, expectedSize, chunkSize, null);
+    }
+
+    /**
+     * @param chunkSize the chunk size confirmed by the server, header included.
+     * @param merkleRoot the root of the Merkle tree of the file's chunk checksums,
+     *                   sent by the server in INFO, or null if the file isn't to
+     *                   be verified. Progress is only saved, and resumed, if the
+     *                   root is given, as it shows that the file is unchanged.
+     */
+    FileReceiver(String filename, long expectedSize, int chunkSize, byte[] merkleRoot) throws IOException {
+        this(filename, expectedSize, chunkSize, merkleRoot, null);
+    }
+
+    /**
+     * @param ranges the byte ranges of the file to receive, or null (or an empty
+     *               list) to receive the whole file.
+     */
+    FileReceiver(String filename, long expectedSize, int chunkSize, byte[] merkleRoot, List<ByteRange> ranges)
+            throws IOException {
+        if (chunkSize < FileProvider.MIN_CHUNK_SIZE || chunkSize > FileProvider.MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size: " + chunkSize);
+        }
         file = new File(filename);
+        boolean ranged = ranges != null && !ranges.isEmpty();
+        ProgressFile.Saved saved = merkleRoot != null && !ranged ? ProgressFile.load(file) : null;
+        resumed = saved != null && saved.fileSize == expectedSize && saved.chunkSize == chunkSize
+                && Arrays.equals(saved.merkleRoot, merkleRoot);
         outputFile = new RandomAccessFile(file, "rw");
         outputFile.setLength(expectedSize);
         this.expectedSize = expectedSize;
+        this.chunkSize = chunkSize;
+        this.chunkPayloadSize = chunkSize - FileProvider.CHUNK_HEADER_SIZE;
+
+        // The mapping remains valid after the file has been closed.
+        segments = MappedFileProvider.mapSegments(outputFile.getChannel(), FileChannel.MapMode.READ_WRITE,
+                expectedSize);
+
+        expectedChunks = getExpectedChunks(expectedSize, chunkPayloadSize);
+        if (resumed) {
+            chunksReceived = saved.chunksReceived;
+            checksums = saved.checksums;
+            numberOfChunksResumed = chunksReceived.cardinality();
+        } else {
+            numberOfChunksResumed = 0;
+            chunksReceived = new ChunkBitmap(expectedChunks);
+            checksums = new ChunkChecksums(expectedChunks);
+        }
+        if (ranged) {
+            chunksSkipped = new ChunkBitmap(expectedChunks);
+            long next = 0;
+            for (ChunkRange wanted : ByteRange.toChunkRanges(ranges, expectedSize, chunkPayloadSize)) {
+                chunksSkipped.set(next, wanted.getFirstChunk());
+                next = wanted.getEndChunk();
+            }
+            chunksSkipped.set(next, expectedChunks);
+            for (long chunk = chunksSkipped.nextSet(0); chunk < expectedChunks; ) {
+                long end = chunksSkipped.nextClear(chunk);
+                chunksReceived.set(chunk, end);
+                chunk = chunksSkipped.nextSet(end);
+            }
+        } else {
+            chunksSkipped = null;
+        }
+        // Chunks saved before a resume, or outside the ranges asked for, aren't sent.
+        stats = resumed || ranged ? new ReceiveStats(new ChunkBitmap(chunksReceived)) : new ReceiveStats();
+        this.merkleRoot = merkleRoot;
+        recoveryBytes = new byte[chunkPayloadSize];
+        progress = merkleRoot != null && !ranged ? new ProgressFile(file, expectedSize, chunkSize, merkleRoot,
+                segments, chunksReceived, checksums, resumed) : null;
+    }
+
+    /**
+     * @return whether the download carries on from the chunks saved by an earlier
+     *  FileReceiver for the same file.
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Start saving the chunks received so far to the progress file, in the
+     * background, if the server sent a Merkle root.
+     */
+    void checkpoint() {
+        if (progress != null) {
+            progress.checkpoint();
+        }
+    }
 
-        expectedChunks = getExpectedChunks(expectedSize);
-        chunksReceived = new boolean[expectedChunks];   // default to false
+    int getChunkSize() {
+        return chunkSize;
     }
 
     void processPacket(byte[] bytes, int length) throws IOException {
+        processPayload(payload.wrap(wrap(bytes), 0, length));
+    }
+
+    void processParity(byte[] bytes, int length) throws IOException {
+        processParity(parity.wrap(wrap(bytes), 0, length));
+    }
+
+    private ByteBuffer wrap(byte[] bytes) {
+        if (!packetBuffer.hasArray() || packetBuffer.array() != bytes) {
+            packetBuffer = ByteBuffer.wrap(bytes);
+        }
+        return packetBuffer;
+    }
+
+    /**
+     * Save the data carried by a PAYLOAD message to the file.
+     *
+     * This allocates nothing, as the payload is written directly from the buffer
+     * into which it was received. The buffer must be backed by an array.
+     */
+    void processPayload(PayloadFlyweight payload) throws IOException {
+        if (!payload.isIntact(crc)) {
+            onCorruptPacket(payload.length());
+            return;
+        }
+        long chunkIndex = beginChunk(payload.getPosition(), payload.getPayloadLength());
+        if (chunkIndex < 0) {
+            return;
+        }
+        ByteBuffer buffer = payload.buffer();
+        seekChunk(chunkIndex).put(buffer.array(), buffer.arrayOffset() + payload.getPayloadOffset(),
+                payload.getPayloadLength());
+        endChunk(chunkIndex, payload.getChecksum());
+    }
+
+    /**
+     * Save a chunk of file data, held between `data`'s position and limit, to the
+     * file. This is used for data that was received before the FileReceiver was
+     * created, and has since been held elsewhere.
+     *
+     * @param checksum the checksum from the chunk's PAYLOAD message.
+     */
+    void processChunk(long position, ByteBuffer data, int checksum) throws IOException {
+        if (PayloadFlyweight.checksum(crc, position, data, data.position(), data.remaining()) != checksum) {
+            onCorruptPacket(FileProvider.CHUNK_HEADER_SIZE + data.remaining());
+            return;
+        }
+        long chunkIndex = beginChunk(position, data.remaining());
+        if (chunkIndex < 0) {
+            return;
+        }
+        seekChunk(chunkIndex).put(data);
+        endChunk(chunkIndex, checksum);
+    }
+
+    /**
+     * Count a message that failed its checksum. Its chunk is left missing, to be
+     * asked for again.
+     */
+    private void onCorruptPacket(int bytes) {
+        if (startTime == 0) {
+            startTime = currentTimeMillis();
+        }
+        stats.onPacket(bytes);
+        numberOfPacketsCorrupted++;
+    }
+
+    /**
+     * Validate a chunk of file data that is about to be saved.
+     *
+     * @return the chunk's index, or -1 if the chunk has already been received.
+     */
+    private long beginChunk(long position, int payloadSize) throws IOException {
         if (startTime == 0) {
             startTime = currentTimeMillis();
         }
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-        int packetType = byteBuffer.getInt();
-        long position = byteBuffer.getLong();
-        int payloadSize = length - FileProvider.CHUNK_HEADER_SIZE;
-        if (position + payloadSize > expectedSize) {
+        if (position < 0 || position + payloadSize > expectedSize
+                || position % chunkPayloadSize != 0 || payloadSize > chunkPayloadSize) {
             throw new IOException("Invalid position in packet.");
         }
 
-        int chunkIndex = getChunkIndexByPosition(position);
-        if (chunksReceived[chunkIndex]) {
+        long chunkIndex = position / chunkPayloadSize;
+        boolean isNew = !chunksReceived.get(chunkIndex);
+        stats.onChunk(chunkIndex, FileProvider.CHUNK_HEADER_SIZE + payloadSize, isNew);
+        if (!isNew) {
             // duplicate message was received
+            return -1;
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * Record that a chunk has been saved, and use it to rebuild a lost chunk from
+     * parity if possible.
+     */
+    private void endChunk(long chunkIndex, int checksum) throws IOException {
+        chunksReceived.set(chunkIndex);
+        checksums.set(chunkIndex, checksum);
+        if (progress != null) {
+            progress.onChunk(chunkIndex);
+        }
+
+        ParityBlock block = findParityBlock(chunkIndex);
+        if (block != null) {
+            recover(block);
+        }
+    }
+
+    /**
+     * Process a PARITY message, rebuilding a lost chunk of its block if possible.
+     *
+     * If the block is missing more than one chunk, the parity is kept until enough
+     * of the block's chunks have arrived. If the block is already complete, as it
+     * is when nothing has been lost, the message is ignored without allocating.
+     */
+    void processParity(ParityFlyweight parity) throws IOException {
+        if (!parity.isIntact(crc)) {
+            onCorruptPacket(parity.length());
+            return;
+        }
+        stats.onPacket(parity.length());
+        long first = parity.getFirstChunk();
+        int chunkCount = parity.getChunkCount();
+        if (first + chunkCount > expectedChunks) {
+            throw new IOException("Invalid parity block.");
+        }
+
+        if (findMissingChunk(first, first + chunkCount) == -1 || findParityBlock(first) != null) {
+            // the block is complete, or a duplicate message was received
+            return;
+        }
+        if (chunksSkipped != null && chunksSkipped.nextSet(first) < first + chunkCount) {
+            // chunks that we skipped can't be XORed out of the parity
+            return;
+        }
+
+        ByteBuffer buffer = parity.buffer();
+        byte[] data = new byte[parity.getParityLength()];
+        System.arraycopy(buffer.array(), buffer.arrayOffset() + parity.getParityOffset(), data, 0, data.length);
+        ParityBlock block = new ParityBlock(first, chunkCount, data);
+
+        if (block.endChunk() == expectedChunks && first != 0) {
+            lastParityBlock = block;
+        } else {
+            if (parityBlocks == null) {
+                long blockCount = (expectedChunks + chunkCount - 1) / chunkCount;
+                if (blockCount > Integer.MAX_VALUE - 8) {
+                    // too many blocks to index; lost chunks will be resent instead
+                    return;
+                }
+                parityBlockSize = chunkCount;
+                parityBlocks = new ParityBlock[(int) blockCount];
+            }
+            if (first % parityBlockSize != 0 || (chunkCount != parityBlockSize && block.endChunk() != expectedChunks)) {
+                throw new IOException("Invalid parity block.");
+            }
+            parityBlocks[(int) (first / parityBlockSize)] = block;
+        }
+        recover(block);
+    }
+
+    /**
+     * @return the parity held for the block containing `chunkIndex`, or null.
+     */
+    private ParityBlock findParityBlock(long chunkIndex) {
+        if (lastParityBlock != null && chunkIndex >= lastParityBlock.firstChunk) {
+            return lastParityBlock;
+        }
+        if (parityBlocks != null) {
+            return parityBlocks[(int) (chunkIndex / parityBlockSize)];
+        }
+        return null;
+    }
+
+    private void discardParityBlock(ParityBlock block) {
+        if (block == lastParityBlock) {
+            lastParityBlock = null;
+        } else {
+            parityBlocks[(int) (block.firstChunk / parityBlockSize)] = null;
+        }
+    }
+
+    /**
+     * @return the only chunk in [firstChunk, endChunk) that has not been received,
+     *  -1 if all have been received, or -2 if more than one is missing.
+     */
+    private long findMissingChunk(long firstChunk, long endChunk) {
+        long missing = chunksReceived.nextClear(firstChunk);
+        if (missing >= endChunk) {
+            return -1;
+        }
+        return chunksReceived.nextClear(missing + 1) < endChunk ? -2 : missing;
+    }
+
+    /**
+     * Rebuild the one chunk of a block that has not been received, by XORing the
+     * block's other chunks out of its parity.
+     *
+     * The parity is discarded once the block is complete; it is kept if the block
+     * is still missing more than one chunk.
+     */
+    private void recover(ParityBlock block) throws IOException {
+        long missing = findMissingChunk(block.firstChunk, block.endChunk());
+        if (missing == -2) {
+            return;
+        }
+        discardParityBlock(block);
+        if (missing < 0) {
             return;
         }
 
-        outputFile.seek(position);
-        outputFile.write(bytes, FileProvider.CHUNK_HEADER_SIZE, payloadSize);
+        byte[] data = block.parity;
+        for (long chunk = block.firstChunk; chunk < block.endChunk(); chunk++) {
+            if (chunk == missing) {
+                continue;
+            }
+            int chunkLength = getChunkLength(chunk);
+            seekChunk(chunk).get(recoveryBytes, 0, chunkLength);
+            for (int i = 0; i < Math.min(chunkLength, data.length); i++) {
+                data[i] ^= recoveryBytes[i];
+            }
+        }
+
+        int missingLength = getChunkLength(missing);
+        if (missingLength > data.length) {
+            throw new IOException("Invalid parity block.");
+        }
+        seekChunk(missing).put(data, 0, missingLength);
+
+        chunksReceived.set(missing);
+        long position = missing * chunkPayloadSize;
+        checksums.set(missing, crc.reset().updateLong(position).update(data, 0, missingLength).getValue());
+        if (progress != null) {
+            progress.onChunk(missing);
+        }
+        numberOfChunksRecovered++;
+    }
+
+    /**
+     * @return the mapped segment holding a chunk, positioned at the chunk's start.
+     */
+    private MappedByteBuffer seekChunk(long index) {
+        long position = index * chunkPayloadSize;
+        MappedByteBuffer segment = segments[(int) (position / MappedFileProvider.SEGMENT_SIZE)];
+        segment.position((int) (position % MappedFileProvider.SEGMENT_SIZE));
+        return segment;
+    }
 
-        chunksReceived[chunkIndex] = true;
-        numberOfChunksReceived++;
+    private int getChunkLength(long index) {
+        return (int) Math.min(chunkPayloadSize, expectedSize - index * chunkPayloadSize);
+    }
+
+    /**
+     * Find the chunks that have not yet been received.
+     *
+     * @param maxRanges the largest number of ranges to return.
+     * @return ranges of missing chunks, in ascending order. If there are more than
+     *  `maxRanges` ranges, only the first `maxRanges` are returned.
+     *
+     * This skips over received chunks 64 at a time, so its cost depends on the size
+     * of the file in words, plus the number of ranges found.
+     */
+    List<ChunkRange> getMissingRanges(int maxRanges) {
+        return getMissingRanges(maxRanges, false);
+    }
+
+    /**
+     * Find the chunks that have not yet been received; see ChunkBitmap.getClearRanges().
+     */
+    List<ChunkRange> getMissingRanges(int maxRanges, boolean coverRest) {
+        return chunksReceived.getClearRanges(maxRanges, coverRest);
+    }
+
+    /**
+     * @return the number of chunks received (or recovered) so far.
+     */
+    long getChunksReceived() {
+        return chunksReceived.cardinality();
+    }
+
+    /**
+     * @return counts of the packets received, and of those lost or reordered.
+     */
+    ReceiveStats getStats() {
+        return stats;
+    }
+
+    long getExpectedChunks() {
+        return expectedChunks;
     }
 
     boolean isDownloadComplete() {
-        return numberOfChunksReceived == expectedChunks;
+        return chunksReceived.isFull();
+    }
+
+    /**
+     * @return the number of PAYLOAD and PARITY messages dropped for failing their
+     *  checksums.
+     */
+    long getPacketsCorrupted() {
+        return numberOfPacketsCorrupted;
+    }
+
+    /**
+     * @return whether every chunk has been received, and the root of the Merkle
+     *  tree of their checksums matches the one the server sent. This hashes a
+     *  checksum per chunk, but doesn't read the file. A download of only some
+     *  byte ranges of the file can't be verified.
+     */
+    boolean verify() {
+        return merkleRoot != null && chunksSkipped == null && isDownloadComplete()
+                && Arrays.equals(merkleRoot, checksums.getMerkleRoot());
     }
 
     FileDownloadResult complete() throws IOException {
         outputFile.close();
+        if (progress != null) {
+            if (isDownloadComplete()) {
+                progress.delete();
+            } else {
+                progress.close();
+                Log.info("Saved progress of %s: %d of %d chunks", file.getName(), chunksReceived.cardinality(),
+                        expectedChunks);
+            }
+        }
         long endTime = currentTimeMillis();
         if (endTime == startTime) { endTime++; }
         FileDownloadResult result = new FileDownloadResult();
         result.file = file;
-        result.packetsReceived = numberOfChunksReceived;
-        result.expectedPackets = expectedChunks;
+        long chunksSkippedCount = chunksSkipped != null ? chunksSkipped.cardinality() : 0;
+        result.packetsReceived = chunksReceived.cardinality() - numberOfChunksRecovered - numberOfChunksResumed
+                - chunksSkippedCount;
+        result.chunksRecovered = numberOfChunksRecovered;
+        result.chunksResumed = numberOfChunksResumed;
+        result.chunksSkipped = chunksSkippedCount;
+        result.packetsCorrupted = numberOfPacketsCorrupted;
+        result.verified = verify();
+        result.expectedPackets = expectedChunks - numberOfChunksResumed - chunksSkippedCount;
         // BUGBUG: need actual bytes received, not expected size
         result.kiloBitsPerSecond = startTime != 0 ? ((expectedSize * 8) / (endTime - startTime)) : 0;
         return result;
@@ -85,11 +553,35 @@ public class FileReceiver {
 
     static class FileDownloadResult {
         File file;
-        int packetsReceived;
-        int expectedPackets;
+        long packetsReceived;
+        long expectedPackets;
+        long chunksRecovered;   // rebuilt from parity, rather than received
+        long chunksResumed;     // saved by an earlier download, and so not expected
+        long chunksSkipped;     // outside the byte ranges asked for
+        long packetsCorrupted;  // dropped for failing their checksums
+        boolean verified;       // the file matched the server's Merkle root
         double packetLoss() {
             return (expectedPackets - packetsReceived) / (double) expectedPackets;
         }
         long kiloBitsPerSecond;
     }
+
+    /**
+     * Parity received for a block of chunks.
+     */
+    private static class ParityBlock {
+        final long firstChunk;
+        final int chunkCount;
+        final byte[] parity;
+
+        ParityBlock(long firstChunk, int chunkCount, byte[] parity) {
+            this.firstChunk = firstChunk;
+            this.chunkCount = chunkCount;
+            this.parity = parity;
+        }
+
+        long endChunk() {
+            return firstChunk + chunkCount;
+        }
+    }
 }
@@ -0,0 +1,248 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * A UDP relay on loopback that passes datagrams between clients and a server
+ * through a simulated network.
+ *
+ * Clients send to getAddress() rather than to the server. Each client is given
+ * its own socket towards the server, so the server sees each at a distinct
+ * address, and its own pair of Impairments (one for each direction), so that
+ * each client has a path of its own, as it would on a real network. Datagrams
+ * are held until the time their Impairment gives, and then sent on.
+ *
+ * The relay runs on one thread, driven by a Selector, until close() is called.
+ * Its counts may be read once that thread has finished.
+ */
+class ImpairedLink implements Runnable {
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final Selector selector;
+    private final DatagramChannel front;
+    private final SocketAddress server;
+    private final Supplier<Impairment> upstream;
+    private final Supplier<Impairment> downstream;
+    private volatile boolean closed = false;
+
+    private final HashMap<SocketAddress, Path> paths = new HashMap<>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    private final long[] deliveryTimes = new long[Impairment.MAX_COPIES];
+    private long sequence = 0;
+
+    long datagrams = 0;     // received from either side
+    long lost = 0;          // dropped by an Impairment
+    long duplicated = 0;    // delivered twice by an Impairment
+    long overflowed = 0;    // dropped because a socket's send buffer was full
+
+    /**
+     * @param upstream creates the Impairment for datagrams from a client to the server.
+     * @param downstream creates the Impairment for datagrams from the server to a client.
+     */
+    ImpairedLink(SocketAddress server, Supplier<Impairment> upstream, Supplier<Impairment> downstream)
+            throws IOException {
+        this.server = server;
+        this.upstream = upstream;
+        this.downstream = downstream;
+        selector = Selector.open();
+        front = openChannel();
+        front.register(selector, SelectionKey.OP_READ);
+    }
+
+    private static DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * @return the address to which clients should send.
+     */
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) front.getLocalAddress();
+    }
+
+    /**
+     * Stop relaying, and close the link's sockets.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                waitForEvents();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Path path = (Path) key.attachment();
+                    if (path == null) {
+                        receiveFromClients();
+                    } else {
+                        receiveFromServer(path);
+                    }
+                }
+                selector.selectedKeys().clear();
+                deliverDue();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                for (Path path : paths.values()) {
+                    path.channel.close();
+                }
+                front.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wait until a datagram arrives, or the next is due to be delivered.
+     *
+     * Selector timeouts are in whole milliseconds, which would deliver datagrams
+     * in bursts; a datagram due sooner than that is waited for by parking.
+     */
+    private void waitForEvents() throws IOException {
+        Delivery next = deliveries.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long wait = next.at - nanoTime();
+        if (wait <= 0) {
+            selector.selectNow();
+        } else if (wait < 1000 * 1000) {
+            LockSupport.parkNanos(wait);
+            selector.selectNow();
+        } else {
+            selector.select(wait / (1000 * 1000));
+        }
+    }
+
+    private void receiveFromClients() throws IOException {
+        SocketAddress client;
+        while ((client = receive(front)) != null) {
+            Path path = paths.get(client);
+            if (path == null) {
+                path = new Path(client, openChannel(), upstream.get(), downstream.get());
+                path.channel.register(selector, SelectionKey.OP_READ, path);
+                paths.put(client, path);
+            }
+            schedule(path.up, path.channel, server);
+        }
+    }
+
+    private void receiveFromServer(Path path) throws IOException {
+        while (receive(path.channel) != null) {
+            schedule(path.down, front, path.client);
+        }
+    }
+
+    /**
+     * Receive a datagram into receiveBuffer, if one is available.
+     */
+    private SocketAddress receive(DatagramChannel channel) throws IOException {
+        receiveBuffer.clear();
+        SocketAddress sender = channel.receive(receiveBuffer);
+        if (sender != null) {
+            receiveBuffer.flip();
+            datagrams++;
+        }
+        return sender;
+    }
+
+    /**
+     * Pass the datagram in receiveBuffer through an Impairment, and queue the
+     * copies that survive it for delivery.
+     */
+    private void schedule(Impairment impairment, DatagramChannel channel, SocketAddress target) {
+        int copies = impairment.apply(receiveBuffer.remaining(), nanoTime(), deliveryTimes);
+        if (copies == 0) {
+            lost++;
+            return;
+        }
+        duplicated += copies - 1;
+        byte[] data = new byte[receiveBuffer.remaining()];
+        receiveBuffer.get(data);
+        for (int i = 0; i < copies; i++) {
+            deliveries.add(new Delivery(deliveryTimes[i], sequence++, data, channel, target));
+        }
+    }
+
+    private void deliverDue() throws IOException {
+        long now = nanoTime();
+        Delivery delivery;
+        while ((delivery = deliveries.peek()) != null && delivery.at - now <= 0) {
+            deliveries.poll();
+            if (delivery.channel.send(ByteBuffer.wrap(delivery.data), delivery.target) == 0) {
+                overflowed++;
+            }
+        }
+    }
+
+    /**
+     * One client's path to the server.
+     */
+    private static class Path {
+        final SocketAddress client;
+        final DatagramChannel channel;  // the client's socket towards the server
+        final Impairment up;
+        final Impairment down;
+
+        Path(SocketAddress client, DatagramChannel channel, Impairment up, Impairment down) {
+            this.client = client;
+            this.channel = channel;
+            this.up = up;
+            this.down = down;
+        }
+    }
+
+    /**
+     * A datagram waiting to be delivered. Datagrams due at the same time are
+     * delivered in the order they were received.
+     */
+    private static class Delivery implements Comparable<Delivery> {
+        final long at;
+        final long sequence;
+        final byte[] data;
+        final DatagramChannel channel;
+        final SocketAddress target;
+
+        Delivery(long at, long sequence, byte[] data, DatagramChannel channel, SocketAddress target) {
+            this.at = at;
+            this.sequence = sequence;
+            this.data = data;
+            this.channel = channel;
+            this.target = target;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            long difference = at - other.at;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
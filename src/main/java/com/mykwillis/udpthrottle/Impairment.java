@@ -0,0 +1,36 @@
+package com.mykwillis.udpthrottle;
+
+/**
+ * Decides what a simulated network does to each datagram passing through an
+ * ImpairedLink: whether it is lost, when it is delivered, and whether it is
+ * delivered more than once.
+ *
+ * An Impairment is used for a single direction of a single client's path, by a
+ * single thread, so it may keep state (such as a queue for a bandwidth cap)
+ * without synchronization.
+ */
+interface Impairment {
+    /**
+     * Delivers every datagram at once.
+     */
+    Impairment NONE = (length, now, deliveries) -> {
+        deliveries[0] = now;
+        return 1;
+    };
+
+    /**
+     * The largest number of copies of a datagram that may be delivered.
+     */
+    int MAX_COPIES = 2;
+
+    /**
+     * Decide the fate of a datagram.
+     *
+     * @param length the size of the datagram, in bytes.
+     * @param now the System.nanoTime() at which it entered the link.
+     * @param deliveries filled with the System.nanoTime() at which each copy is
+     *                   to be delivered; has room for MAX_COPIES.
+     * @return the number of copies to deliver: 0 if the datagram is lost.
+     */
+    int apply(int length, long now, long[] deliveries);
+}
@@ -0,0 +1,420 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.BeginMessage;
+import com.mykwillis.udpthrottle.message.ProbeMessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Runs a Server and many clients in one JVM, over loopback, with a simulated
+ * network between them, and reports how well the server shared its bandwidth.
+ *
+ * Each client is a real Client download, on a thread of its own, saving to a
+ * directory of its own. The clients reach the server through an ImpairedLink,
+ * which gives each its own path, impaired by a NetworkImpairment: random loss,
+ * reordering and duplication, and delay and jitter, in both directions, and a
+ * bandwidth cap (with its queue) on the way to the client. When every client
+ * has finished, the downloads are checked against the served file, and the
+ * generator reports each client's completion time and goodput, the aggregate
+ * goodput, and how fairly it was shared (as Jain's fairness index).
+ */
+public class LoadGenerator {
+    static final int DEFAULT_CLIENTS = 10;
+    static final long DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+    static final long DEFAULT_TARGET_BITS_PER_SECOND = 1000L * 1000 * 1000;    // 1 Gbps
+    static final long SERVER_START_TIMEOUT_NANOS = 10L * 1000 * 1000 * 1000;    // 10s
+
+    private int clientCount = DEFAULT_CLIENTS;
+    private long fileSize = DEFAULT_FILE_SIZE;
+    private File file = null;       // created if not given
+    private long targetBitsPerSecond = DEFAULT_TARGET_BITS_PER_SECOND;
+    private int senderThreads = 1;
+    private int parityBlockSize = 0;
+    private int maxDatagramSize = BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE;
+    private long staggerMillis = 0;
+    private long seed = 1;
+
+    private double lossRate = 0;
+    private double reorderRate = 0;
+    private double duplicateRate = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private long bandwidthBitsPerSecond = 0;
+    private long queueNanos = NetworkImpairment.DEFAULT_QUEUE_NANOS;
+
+    /**
+     * LoadGenerator entry point.
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator;
+        Log.setLevel(Log.Level.WARN);
+        try {
+            generator = parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid argument specified: " + e.getMessage());
+            usage();
+            return;
+        }
+        if (generator == null) {
+            usage();
+            return;
+        }
+
+        try {
+            generator.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.flush();
+    }
+
+    /**
+     * @return a generator configured by the command line arguments, or null if
+     *  --help was given.
+     * @throws IllegalArgumentException if an argument is invalid.
+     */
+    static LoadGenerator parseArguments(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--help")) {
+                return null;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--clients":
+                    generator.clientCount = Integer.parseInt(value);
+                    if (generator.clientCount <= 0) {
+                        throw new IllegalArgumentException("Number of clients must be positive.");
+                    }
+                    break;
+                case "--size":
+                    generator.fileSize = Long.parseLong(value);
+                    if (generator.fileSize <= 0) {
+                        throw new IllegalArgumentException("File size must be positive.");
+                    }
+                    break;
+                case "--file":
+                    generator.file = new File(value);
+                    if (!generator.file.isFile()) {
+                        throw new IllegalArgumentException("The file " + value + " does not exist.");
+                    }
+                    break;
+                case "--target":
+                    generator.targetBitsPerSecond = Long.parseLong(value) * 1000;
+                    if (generator.targetBitsPerSecond <= 0) {
+                        throw new IllegalArgumentException("Target bandwidth must be positive.");
+                    }
+                    break;
+                case "--senders":
+                    generator.senderThreads = Integer.parseInt(value);
+                    if (generator.senderThreads <= 0) {
+                        throw new IllegalArgumentException("Number of sender threads must be positive.");
+                    }
+                    break;
+                case "--fec":
+                    generator.parityBlockSize = Integer.parseInt(value);
+                    if (generator.parityBlockSize < 0) {
+                        throw new IllegalArgumentException("FEC block size must not be negative.");
+                    }
+                    break;
+                case "--max-datagram":
+                    generator.maxDatagramSize = Integer.parseInt(value);
+                    if (generator.maxDatagramSize <= 0 || generator.maxDatagramSize > FileProvider.MAX_DATAGRAM_SIZE) {
+                        throw new IllegalArgumentException("Datagram size must be between 1 and "
+                                + FileProvider.MAX_DATAGRAM_SIZE);
+                    }
+                    break;
+                case "--stagger":
+                    generator.staggerMillis = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    generator.seed = Long.parseLong(value);
+                    break;
+                case "--loss":
+                    generator.lossRate = Double.parseDouble(value);
+                    break;
+                case "--reorder":
+                    generator.reorderRate = Double.parseDouble(value);
+                    break;
+                case "--duplicate":
+                    generator.duplicateRate = Double.parseDouble(value);
+                    break;
+                case "--delay":
+                    generator.delayNanos = Long.parseLong(value) * 1000 * 1000;
+                    break;
+                case "--jitter":
+                    generator.jitterNanos = Long.parseLong(value) * 1000 * 1000;
+                    break;
+                case "--bandwidth":
+                    generator.bandwidthBitsPerSecond = Long.parseLong(value) * 1000;
+                    break;
+                case "--queue":
+                    generator.queueNanos = Long.parseLong(value) * 1000 * 1000;
+                    break;
+                case "--log-level":
+                    Log.setLevel(Log.parseLevel(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        // Check the impairment settings before starting anything.
+        generator.newImpairment(0, true);
+        return generator;
+    }
+
+    static void usage() {
+        System.out.println("Usage: java -cp Server.jar com.mykwillis.udpthrottle.LoadGenerator [options]");
+        System.out.println("Options:");
+        System.out.println("  --clients <n>              number of clients; default " + DEFAULT_CLIENTS);
+        System.out.println("  --size <bytes>             size of the file served; default " + DEFAULT_FILE_SIZE);
+        System.out.println("  --file <file>              serve this file, rather than one of random bytes");
+        System.out.println("  --target <kbps>            server's target bandwidth; default "
+                + DEFAULT_TARGET_BITS_PER_SECOND / 1000);
+        System.out.println("  --senders <threads>        server's sender threads");
+        System.out.println("  --fec <chunks>             server's FEC block size");
+        System.out.println("  --max-datagram <bytes>     largest datagram the clients ask for");
+        System.out.println("  --stagger <ms>             time between the starts of successive clients");
+        System.out.println("  --seed <n>                 seed for the simulated network's randomness");
+        System.out.println("Network impairment, for each client's path:");
+        System.out.println("  --loss <rate>              fraction of datagrams lost, each way");
+        System.out.println("  --reorder <rate>           fraction of datagrams delivered late, each way");
+        System.out.println("  --duplicate <rate>         fraction of datagrams delivered twice, each way");
+        System.out.println("  --delay <ms>               one-way delay");
+        System.out.println("  --jitter <ms>              largest variation in the one-way delay");
+        System.out.println("  --bandwidth <kbps>         bandwidth of the path to the client");
+        System.out.println("  --queue <ms>               longest a datagram waits for that bandwidth; default "
+                + NetworkImpairment.DEFAULT_QUEUE_NANOS / (1000 * 1000));
+        System.out.println("  --log-level <level>        error, warn (the default), info, debug or trace");
+    }
+
+    /**
+     * @param downstream whether the impairment is for the path to the client,
+     *                   which alone has the bandwidth cap.
+     */
+    NetworkImpairment newImpairment(long seed, boolean downstream) {
+        return new NetworkImpairment(seed)
+                .setLossRate(lossRate)
+                .setReorderRate(reorderRate)
+                .setDuplicateRate(duplicateRate)
+                .setDelay(delayNanos, jitterNanos)
+                .setBandwidth(downstream ? bandwidthBitsPerSecond : 0, queueNanos);
+    }
+
+    /**
+     * Run the clients' downloads, and report on them.
+     *
+     * @return how each client's download went.
+     */
+    ClientResult[] run() throws IOException, InterruptedException {
+        boolean createdFile = file == null;
+        if (createdFile) {
+            file = createFile(fileSize, seed);
+        }
+        long checksum = checksum(file);
+
+        InetSocketAddress serverAddress = startServer();
+        // Each path's seed is drawn from this, as Randoms with nearby seeds start
+        // out alike.
+        Random seeds = new Random(seed);
+        ImpairedLink link = new ImpairedLink(serverAddress,
+                () -> newImpairment(seeds.nextLong(), false),
+                () -> newImpairment(seeds.nextLong(), true));
+        Thread linkThread = new Thread(link, "impaired-link");
+        linkThread.start();
+
+        File directory = Files.createTempDirectory("loadgenerator").toFile();
+        ClientResult[] results = new ClientResult[clientCount];
+        Thread[] threads = new Thread[clientCount];
+        InetSocketAddress linkAddress = link.getAddress();
+        for (int i = 0; i < clientCount; i++) {
+            ClientResult result = results[i] = new ClientResult(new File(directory, "client-" + i));
+            threads[i] = new Thread(() -> result.download(linkAddress, maxDatagramSize, checksum), "client-" + i);
+            threads[i].start();
+            if (staggerMillis > 0) {
+                Thread.sleep(staggerMillis);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        link.close();
+        linkThread.join();
+
+        report(results, link);
+
+        directory.delete();
+        if (createdFile) {
+            file.delete();
+        }
+        return results;
+    }
+
+    /**
+     * Start a Server on a thread of its own, and wait until it is answering.
+     * The server's threads can't be stopped, so they run until the JVM exits.
+     *
+     * @throws IOException if the server isn't answering within
+     *  SERVER_START_TIMEOUT_NANOS.
+     */
+    private InetSocketAddress startServer() throws IOException {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server server = new Server(port, file, targetBitsPerSecond);
+        server.setSenderThreads(senderThreads);
+        server.setParityBlockSize(parityBlockSize);
+        server.setChunkSize(FileProvider.MAX_CHUNK_SIZE);
+        Thread thread = new Thread(server::run, "server");
+        thread.setDaemon(true);
+        thread.start();
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        ProbeMessage probe = new ProbeMessage(FileProvider.MIN_CHUNK_SIZE);
+        byte[] replyBytes = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(100);
+            long deadline = nanoTime() + SERVER_START_TIMEOUT_NANOS;
+            while (nanoTime() - deadline < 0) {
+                socket.send(probe.getDatagramPacket(address.getAddress(), port));
+                try {
+                    socket.receive(new DatagramPacket(replyBytes, replyBytes.length));
+                    return address;
+                } catch (SocketTimeoutException e) {
+                    // not listening yet
+                }
+            }
+        }
+        throw new IOException("The server on port " + port + " did not answer");
+    }
+
+    private void report(ClientResult[] results, ImpairedLink link) {
+        int complete = 0;
+        long firstStart = Long.MAX_VALUE;
+        long lastEnd = Long.MIN_VALUE;
+        long[] completionMillis = new long[results.length];
+        double[] goodput = new double[results.length];   // kbps
+
+        System.out.printf("Clients: %d, file size: %d bytes\n", results.length, file.length());
+        for (int i = 0; i < results.length; i++) {
+            ClientResult result = results[i];
+            long elapsed = result.endNanos - result.startNanos;
+            completionMillis[i] = elapsed / (1000 * 1000);
+            goodput[i] = result.complete ? file.length() * 8 * 1000 * 1000.0 / elapsed : 0;
+            firstStart = Math.min(firstStart, result.startNanos);
+            lastEnd = Math.max(lastEnd, result.endNanos);
+            if (result.complete) {
+                complete++;
+            }
+            System.out.printf("  client %d: %s in %d ms, %d kbps\n", i,
+                    result.complete ? "complete" : "FAILED", completionMillis[i], (long) goodput[i]);
+        }
+
+        long[] sorted = completionMillis.clone();
+        Arrays.sort(sorted);
+        System.out.printf("Complete: %d of %d\n", complete, results.length);
+        System.out.printf("Completion time (ms): min %d, median %d, 95th percentile %d, max %d\n",
+                sorted[0], sorted[sorted.length / 2], sorted[(int) Math.ceil(sorted.length * 0.95) - 1],
+                sorted[sorted.length - 1]);
+        System.out.printf("Aggregate goodput: %d kbps\n",
+                complete * file.length() * 8 * 1000 * 1000 / Math.max(1, lastEnd - firstStart));
+        System.out.printf("Fairness (Jain's index of client goodput): %.3f\n", fairness(goodput));
+        System.out.printf("Link: %d datagrams, %d lost, %d duplicated, %d dropped by full sockets\n",
+                link.datagrams, link.lost, link.duplicated, link.overflowed);
+    }
+
+    /**
+     * @return Jain's fairness index of the values: 1 if they are all equal, down
+     *  to 1/n if one of them has everything.
+     */
+    static double fairness(double[] values) {
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (double value : values) {
+            sum += value;
+            sumOfSquares += value * value;
+        }
+        return sumOfSquares == 0 ? 0 : sum * sum / (values.length * sumOfSquares);
+    }
+
+    /**
+     * @return a temporary file of `size` random bytes.
+     */
+    static File createFile(long size, long seed) throws IOException {
+        File file = File.createTempFile("loadgenerator", ".bin");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        byte[] bytes = new byte[64 * 1024];
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += bytes.length) {
+                random.nextBytes(bytes);
+                outputStream.write(bytes, 0, (int) Math.min(bytes.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[64 * 1024];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(bytes)) > 0) {
+                crc.update(bytes, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * One simulated client, and how its download went.
+     */
+    static class ClientResult {
+        final File directory;
+        long startNanos;
+        long endNanos;
+        boolean complete = false;
+
+        ClientResult(File directory) {
+            this.directory = directory;
+        }
+
+        void download(InetSocketAddress server, int maxDatagramSize, long checksum) {
+            directory.mkdir();
+            startNanos = nanoTime();
+            FileReceiver.FileDownloadResult result = Client.receiveFile(server.getAddress().getHostAddress(),
+                    server.getPort(), null, BeginMessage.DEFAULT_WEIGHT, null, maxDatagramSize, false, directory);
+            endNanos = nanoTime();
+            if (result != null) {
+                try {
+                    complete = checksum(result.file) == checksum;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                result.file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
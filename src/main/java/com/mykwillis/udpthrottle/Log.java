@@ -0,0 +1,246 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Console logging with levels, kept off the packet path.
+ *
+ * A message below the current level costs one field read: callers on the packet
+ * path check isEnabled() (or a Sampler's isEnabled()) before calling, so that not
+ * even the message's arguments are evaluated. A message that is logged is queued,
+ * with its format string and arguments, for a background appender thread, which
+ * formats and writes it. The thread calling log() therefore never formats a
+ * string or waits on the console; if the appender falls so far behind that the
+ * queue fills, messages are dropped (and counted) rather than blocking the caller.
+ *
+ * Messages are written one per line, ERROR and WARN to System.err and the rest to
+ * System.out. The queue is flushed when the JVM shuts down, and can be flushed
+ * explicitly with flush().
+ *
+ * The level defaults to INFO, or to the value of the udpthrottle.log.level system
+ * property, and can be changed with setLevel() (as by the --log-level option).
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    static final int QUEUE_CAPACITY = 8192;
+    static final long FLUSH_TIMEOUT_MILLIS = 2000;
+
+    private static volatile int threshold = initialLevel().ordinal();
+
+    private static final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    private static Level initialLevel() {
+        try {
+            return parseLevel(System.getProperty("udpthrottle.log.level", "INFO"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    /**
+     * @return the level named by `name`, in any case.
+     * @throws IllegalArgumentException if there is no such level.
+     */
+    public static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+    }
+
+    /**
+     * @return whether messages of `level` are logged.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args, 0);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args, 0);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args, 0);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args, 0);
+    }
+
+    public static void trace(String format, Object... args) {
+        log(Level.TRACE, format, args, 0);
+    }
+
+    /**
+     * Queue a message for the appender, if its level is enabled.
+     *
+     * @param suppressed the number of similar messages that a Sampler suppressed
+     *                   before this one, which is noted after it.
+     */
+    static void log(Level level, String format, Object[] args, long suppressed) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!queue.offer(new Record(level, format, args, suppressed, null))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until every message queued so far has been written, or for at most
+     * FLUSH_TIMEOUT_MILLIS.
+     */
+    public static void flush() {
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            if (queue.offer(new Record(null, null, null, 0, written), FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                written.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Entry point for the appender thread.
+     */
+    private static void append() {
+        while (true) {
+            Record record;
+            try {
+                record = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                System.err.printf("Log: %d messages dropped, as the console could not keep up\n", lost);
+            }
+            if (record.flushed != null) {
+                System.out.flush();
+                System.err.flush();
+                record.flushed.countDown();
+                continue;
+            }
+
+            PrintStream out = record.level.compareTo(Level.WARN) <= 0 ? System.err : System.out;
+            String message;
+            try {
+                message = String.format(record.format, record.args);
+            } catch (RuntimeException e) {
+                message = record.format + " (" + e + ")";
+            }
+            if (record.suppressed > 0) {
+                message += " (" + record.suppressed + " similar messages suppressed)";
+            }
+            out.println(message);
+        }
+    }
+
+    /**
+     * A message waiting to be written, or (if `flushed` is not null) a marker to
+     * be counted down when every earlier message has been written.
+     */
+    private static class Record {
+        final Level level;
+        final String format;
+        final Object[] args;
+        final long suppressed;
+        final CountDownLatch flushed;
+
+        Record(Level level, String format, Object[] args, long suppressed, CountDownLatch flushed) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+            this.suppressed = suppressed;
+            this.flushed = flushed;
+        }
+    }
+
+    /**
+     * Limits a frequent message, such as one logged for every packet, to at most a
+     * given number per second. Messages in excess of that are counted rather than
+     * logged, and the count is noted after the next message that is logged.
+     *
+     * A Sampler is not thread safe; each thread logging the message should have
+     * its own.
+     */
+    public static final class Sampler {
+        private final Level level;
+        private final long intervalNanos;
+        private long nextAt = nanoTime();
+        private long suppressed = 0;
+
+        /**
+         * @param level the level at which the message is logged.
+         * @param perSecond the largest number of messages logged per second.
+         */
+        public Sampler(Level level, int perSecond) {
+            if (perSecond <= 0) {
+                throw new IllegalArgumentException("Sampling rate must be positive.");
+            }
+            this.level = level;
+            this.intervalNanos = 1000L * 1000 * 1000 / perSecond;
+        }
+
+        /**
+         * @return whether the message should be logged now. If its level is
+         *  enabled but it is too soon after the last, it is counted as suppressed.
+         */
+        public boolean isEnabled() {
+            if (!Log.isEnabled(level)) {
+                return false;
+            }
+            long now = nanoTime();
+            if (now - nextAt < 0) {
+                suppressed++;
+                return false;
+            }
+            nextAt = now + intervalNanos;
+            return true;
+        }
+
+        /**
+         * Log the message. This should only be called when isEnabled() has just
+         * returned true.
+         */
+        public void log(String format, Object... args) {
+            long count = suppressed;
+            suppressed = 0;
+            Log.log(level, format, args, count);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static com.mykwillis.udpthrottle.FileProvider.CHUNK_HEADER_SIZE;
+import static com.mykwillis.udpthrottle.FileProvider.MAX_CHUNK_PAYLOAD_SIZE;
+
+/**
+ * Provides a file's contents by memory-mapping the file, rather than reading it
+ * onto the heap.
+ *
+ * Chunks are handed out as views over the mapping, so no file data is copied
+ * until it is written to the network, and the operating system's page cache is
+ * shared by every client (and every server process) serving the same file. Both
+ * heap usage and startup time are independent of the size of the file.
+ *
+ * A single MappedByteBuffer can address at most 2GB, so large files are mapped as
+ * a number of segments. Segment `i` starts at `i * SEGMENT_SIZE`, and overlaps
+ * the next by the largest chunk payload, so that whatever the chunk size, every
+ * chunk lies wholly within the segment in which it starts.
+ *
+ * Providers for other chunk sizes (see withChunkSize()) share the same mapping.
+ */
+public class MappedFileProvider implements ChunkProvider {
+    /**
+     * Distance between the starts of consecutive mapped segments (1GB).
+     */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkPayloadSize;
+    private final long chunkCount;
+    private final MappedByteBuffer[] segments;
+
+    // Views of the segments used by readChunk(), which are reused so that copying
+    // a chunk allocates nothing. Each thread has its own views, as reading a
+    // chunk changes a view's position and limit.
+    private final ThreadLocal<ByteBuffer[]> segmentViews = ThreadLocal.withInitial(this::duplicateSegments);
+
+    /**
+     * Create a new MappedFileProvider for the File given.
+     *
+     * @param file A file on the local filesystem.
+     */
+    public MappedFileProvider(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            // The mapping remains valid after the channel has been closed.
+            segments = mapSegments(channel, FileChannel.MapMode.READ_ONLY, fileSize);
+        }
+        chunkSize = FileProvider.CHUNK_SIZE;
+        chunkPayloadSize = FileProvider.CHUNK_PAYLOAD_SIZE;
+        chunkCount = (fileSize + chunkPayloadSize - 1) / chunkPayloadSize;
+    }
+
+    private MappedFileProvider(MappedFileProvider other, int chunkSize) {
+        if (chunkSize < FileProvider.MIN_CHUNK_SIZE || chunkSize > FileProvider.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.fileSize = other.fileSize;
+        this.segments = other.segments;
+        this.chunkSize = chunkSize;
+        this.chunkPayloadSize = chunkSize - CHUNK_HEADER_SIZE;
+        this.chunkCount = (fileSize + chunkPayloadSize - 1) / chunkPayloadSize;
+    }
+
+    /**
+     * Map the first `size` bytes of a file as overlapping segments, as described
+     * above. This is shared with FileReceiver, which maps its output file the
+     * same way.
+     */
+    static MappedByteBuffer[] mapSegments(FileChannel channel, FileChannel.MapMode mode, long size)
+            throws IOException {
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = i * SEGMENT_SIZE;
+            segments[i] = channel.map(mode, position,
+                    Math.min(SEGMENT_SIZE + MAX_CHUNK_PAYLOAD_SIZE, size - position));
+        }
+        return segments;
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    @Override
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public ChunkProvider withChunkSize(int chunkSize) {
+        return chunkSize == this.chunkSize ? this : new MappedFileProvider(this, chunkSize);
+    }
+
+    @Override
+    public ByteBuffer getChunkPayload(long index) {
+        if (index < 0 || index >= chunkCount) {
+            return null;
+        }
+
+        // Each caller is given its own view of the segment, so that concurrent
+        // readers don't interfere with one another's position and limit.
+        long position = getChunkPosition(index);
+        ByteBuffer view = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+        int start = (int) (position % SEGMENT_SIZE);
+        view.limit(start + getChunkLength(index));
+        view.position(start);
+        return view;
+    }
+
+    @Override
+    public int readChunk(long index, ByteBuffer dst) {
+        if (index < 0 || index >= chunkCount) {
+            return -1;
+        }
+
+        long position = getChunkPosition(index);
+        ByteBuffer view = segmentViews.get()[(int) (position / SEGMENT_SIZE)];
+        int start = (int) (position % SEGMENT_SIZE);
+        int length = getChunkLength(index);
+        view.clear();
+        view.limit(start + length);
+        view.position(start);
+
+        dst.put(view);
+        return length;
+    }
+
+    private ByteBuffer[] duplicateSegments() {
+        ByteBuffer[] views = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            views[i] = segments[i].duplicate();
+        }
+        return views;
+    }
+
+    /**
+     * Gets a chunk by index, prefixed with the PAYLOAD message header.
+     *
+     * Unlike getChunkPayload(), this copies the chunk's data onto the heap, and
+     * computes its checksum. It exists for compatibility with callers that require
+     * a byte[]; the server's send path does not use it.
+     */
+    @Override
+    public byte[] getChunk(long index) {
+        ByteBuffer payload = getChunkPayload(index);
+        if (payload == null) {
+            return null;
+        }
+
+        byte[] chunk = new byte[CHUNK_HEADER_SIZE + payload.remaining()];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(chunk);
+        long position = getChunkPosition(index);
+        PayloadFlyweight.encodeHeader(byteBuffer, position, PayloadFlyweight.checksum(new Crc32c(), position,
+                payload, payload.position(), payload.remaining()));
+        byteBuffer.put(payload);
+        return chunk;
+    }
+}
@@ -0,0 +1,102 @@
+package com.mykwillis.udpthrottle;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the root of a Merkle tree of chunk checksums, by which a whole file is
+ * verified.
+ *
+ * The tree is that of RFC 6962 (Certificate Transparency), over SHA-256: a leaf's
+ * hash is SHA-256(0x00 || checksum), with the checksum as 4 big-endian bytes, and
+ * a node's hash is SHA-256(0x01 || left || right). A tree of n leaves is split
+ * into a left subtree of the largest power of two leaves less than n, and a right
+ * subtree of the rest. The root of an empty tree is SHA-256 of nothing.
+ *
+ * Leaves are added one at a time, in order, and only the roots of the complete
+ * subtrees seen so far are kept (one per bit of the leaf count), so computing the
+ * root of any number of leaves takes constant space, and allocates nothing until
+ * getRoot() is called.
+ */
+class MerkleTree {
+    static final int HASH_SIZE = 32;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final MessageDigest sha256;
+    private final byte[][] subtrees = new byte[64][HASH_SIZE];  // subtrees[i] has 2^i leaves
+    private final byte[] leaf = new byte[5];
+    private final byte[] hash = new byte[HASH_SIZE];
+    private long leafCount = 0;
+
+    MerkleTree() {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Add the checksum of the next chunk.
+     */
+    void add(int checksum) {
+        leaf[0] = LEAF_PREFIX;
+        leaf[1] = (byte) (checksum >>> 24);
+        leaf[2] = (byte) (checksum >>> 16);
+        leaf[3] = (byte) (checksum >>> 8);
+        leaf[4] = (byte) checksum;
+        sha256.update(leaf);
+        digest(hash);
+
+        // Merge complete subtrees of equal size, as in incrementing a binary counter.
+        int level = 0;
+        for (; (leafCount >>> level & 1) != 0; level++) {
+            node(subtrees[level], hash, hash);
+        }
+        System.arraycopy(hash, 0, subtrees[level], 0, HASH_SIZE);
+        leafCount++;
+    }
+
+    long getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return the root of the tree of the checksums added so far.
+     */
+    byte[] getRoot() {
+        byte[] root = new byte[HASH_SIZE];
+        if (leafCount == 0) {
+            digest(root);
+            return root;
+        }
+
+        // The smallest subtree is rightmost; fold the larger ones in from the left.
+        int level = Long.numberOfTrailingZeros(leafCount);
+        System.arraycopy(subtrees[level], 0, root, 0, HASH_SIZE);
+        for (level++; level < 64; level++) {
+            if ((leafCount >>> level & 1) != 0) {
+                node(subtrees[level], root, root);
+            }
+        }
+        return root;
+    }
+
+    private void node(byte[] left, byte[] right, byte[] dst) {
+        sha256.update(NODE_PREFIX);
+        sha256.update(left);
+        sha256.update(right);
+        digest(dst);
+    }
+
+    private void digest(byte[] dst) {
+        try {
+            sha256.digest(dst, 0, HASH_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Helpers for the multicast distribution mode, shared by Client and Server.
+ *
+ * In multicast mode, the server sends each chunk of the file once, to a multicast
+ * group, rather than once to each client. Clients learn the group from the INFO
+ * message, and join it to receive file data.
+ */
+class MulticastSupport {
+    /**
+     * Time-to-live of multicast datagrams, limiting how many routers they cross.
+     */
+    static final int MULTICAST_TTL = 16;
+
+    /**
+     * Parse a multicast group given as `address:port`.
+     */
+    static InetSocketAddress parseGroup(String group) throws UnknownHostException {
+        int separator = group.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Multicast group must be given as <address>:<port>");
+        }
+        InetAddress address = InetAddress.getByName(group.substring(0, separator));
+        if (!address.isMulticastAddress()) {
+            throw new IllegalArgumentException(address.getHostAddress() + " is not a multicast address");
+        }
+        return new InetSocketAddress(address, Integer.parseInt(group.substring(separator + 1)));
+    }
+
+    /**
+     * Find a network interface by name (such as "lo" or "eth0") or by one of its
+     * addresses.
+     */
+    static NetworkInterface findInterface(String name) throws IOException {
+        NetworkInterface networkInterface = NetworkInterface.getByName(name);
+        if (networkInterface == null) {
+            networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+        }
+        if (networkInterface == null) {
+            throw new SocketException("No such network interface: " + name);
+        }
+        return networkInterface;
+    }
+
+    /**
+     * Open a channel, bound to `port`, from which datagrams may be sent to `group`.
+     *
+     * @param networkInterface the interface on which multicast datagrams are sent,
+     *                         or null to let the operating system choose.
+     */
+    static DatagramChannel openSenderChannel(int port, InetSocketAddress group,
+                                             NetworkInterface networkInterface) throws IOException {
+        StandardProtocolFamily family = group.getAddress().getAddress().length == 4 ?
+                StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+        DatagramChannel channel = DatagramChannel.open(family);
+        channel.bind(new InetSocketAddress(port));
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        return channel;
+    }
+
+    /**
+     * Open a socket that receives datagrams sent to `group`.
+     *
+     * @param networkInterface the interface on which to join the group, or null to
+     *                         let the operating system choose.
+     */
+    static MulticastSocket joinGroup(InetSocketAddress group, NetworkInterface networkInterface)
+            throws IOException {
+        MulticastSocket socket = new MulticastSocket(group.getPort());
+        socket.joinGroup(group, networkInterface);
+        return socket;
+    }
+}
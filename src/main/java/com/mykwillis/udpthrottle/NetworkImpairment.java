@@ -0,0 +1,116 @@
+package com.mykwillis.udpthrottle;
+
+import java.util.Random;
+
+/**
+ * An Impairment modelled on a single network path: random loss, a bottleneck
+ * link with a drop-tail queue, propagation delay with jitter, and random
+ * reordering and duplication. Each of these is off unless set.
+ *
+ * A datagram is first dropped at random, with probability `lossRate`. If the
+ * path has a bandwidth cap, it then waits for the datagrams ahead of it to be
+ * serialized onto the bottleneck, and is dropped if that would take longer
+ * than `queueNanos`. It then takes `delayNanos` to arrive, give or take up to
+ * `jitterNanos` (chosen uniformly); jitter larger than the packet interval
+ * reorders datagrams on its own. With probability `reorderRate` a datagram is
+ * held back a further REORDER_NANOS, so that those behind it overtake it, and
+ * with probability `duplicateRate` it is delivered twice.
+ */
+class NetworkImpairment implements Impairment {
+    static final long REORDER_NANOS = 1000 * 1000;      // 1ms
+    static final long DEFAULT_QUEUE_NANOS = 50 * 1000 * 1000;  // 50ms
+
+    private final Random random;
+    private double lossRate = 0;
+    private double reorderRate = 0;
+    private double duplicateRate = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private long bytesPerSecond = 0;
+    private long queueNanos = DEFAULT_QUEUE_NANOS;
+
+    // Time at which the bottleneck will have sent everything queued on it.
+    private long idleAt = Long.MIN_VALUE;
+
+    NetworkImpairment(long seed) {
+        random = new Random(seed);
+    }
+
+    NetworkImpairment setLossRate(double lossRate) {
+        this.lossRate = checkRate(lossRate);
+        return this;
+    }
+
+    NetworkImpairment setReorderRate(double reorderRate) {
+        this.reorderRate = checkRate(reorderRate);
+        return this;
+    }
+
+    NetworkImpairment setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = checkRate(duplicateRate);
+        return this;
+    }
+
+    NetworkImpairment setDelay(long delayNanos, long jitterNanos) {
+        if (delayNanos < 0 || jitterNanos < 0) {
+            throw new IllegalArgumentException("Delay and jitter must not be negative.");
+        }
+        this.delayNanos = delayNanos;
+        this.jitterNanos = jitterNanos;
+        return this;
+    }
+
+    /**
+     * @param bitsPerSecond the bandwidth of the bottleneck, or 0 for none.
+     * @param queueNanos the longest a datagram may wait for the bottleneck
+     *                   before it is dropped.
+     */
+    NetworkImpairment setBandwidth(long bitsPerSecond, long queueNanos) {
+        if (bitsPerSecond < 0 || queueNanos < 0) {
+            throw new IllegalArgumentException("Bandwidth and queue length must not be negative.");
+        }
+        this.bytesPerSecond = bitsPerSecond / 8;
+        this.queueNanos = queueNanos;
+        return this;
+    }
+
+    private static double checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Rates must be between 0 and 1.");
+        }
+        return rate;
+    }
+
+    @Override
+    public int apply(int length, long now, long[] deliveries) {
+        if (lossRate > 0 && random.nextDouble() < lossRate) {
+            return 0;
+        }
+
+        long sentAt = now;
+        if (bytesPerSecond > 0) {
+            long start = Math.max(now, idleAt);
+            if (start - now > queueNanos) {
+                return 0;
+            }
+            idleAt = start + TokenBucketRateLimiter.tokenNanos(length, bytesPerSecond);
+            sentAt = idleAt;
+        }
+
+        long arrival = sentAt + delayNanos;
+        if (jitterNanos > 0) {
+            long jitter = (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+            arrival = Math.max(sentAt, arrival + jitter);
+        }
+        if (reorderRate > 0 && random.nextDouble() < reorderRate) {
+            arrival += REORDER_NANOS;
+        }
+
+        deliveries[0] = arrival;
+        if (duplicateRate > 0 && random.nextDouble() < duplicateRate) {
+            deliveries[1] = arrival;
+            return 2;
+        }
+        return 1;
+    }
+}
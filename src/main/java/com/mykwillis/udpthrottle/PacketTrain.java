@@ -0,0 +1,112 @@
+package com.mykwillis.udpthrottle;
+
+/**
+ * Estimates the capacity of the path from the server from the arrival times of
+ * the packet train that the server sends at the start of a download.
+ *
+ * The server sends the first few chunks of the file back-to-back. However fast
+ * they leave the server, they can arrive no faster than the narrowest link on the
+ * path can carry them, so the rate at which they arrive is that link's capacity.
+ * This is known after a handful of packets, rather than after the many report
+ * intervals it would take to find by raising the rate until packets are lost.
+ *
+ * Packets are recorded from the start of the download, as the train may arrive
+ * before the INFO message that says how long it is. The train is then the
+ * PAYLOAD messages for its chunks, together with any other packets (such as
+ * PARITY) that arrived among them.
+ *
+ * Arrival times are taken when the client reads each packet. Packets that arrive
+ * while the client is busy (as it is in handling INFO, just before the train)
+ * wait in the socket's receive buffer, and are then read back-to-back, which
+ * makes the head of the train look faster than it was. So rather than timing
+ * the whole train, each tail of it of at least MIN_PACKETS packets is timed,
+ * from its first packet's arrival to the last's, and the slowest is taken.
+ */
+class PacketTrain {
+    static final int MAX_PACKETS = 64;
+    static final int MIN_PACKETS = 3;
+
+    private final long[] arrivals = new long[MAX_PACKETS];
+    private final int[] sizes = new int[MAX_PACKETS];
+    private final long[] positions = new long[MAX_PACKETS];
+    private int count = 0;
+
+    /**
+     * Record the arrival of a packet. Packets beyond the first MAX_PACKETS are
+     * ignored.
+     *
+     * @param nanos the System.nanoTime() at which the packet was received.
+     * @param bytes the size of the datagram.
+     * @param position the file offset of the packet's payload, or -1 if it is not
+     *                 a PAYLOAD message.
+     */
+    void onPacket(long nanos, int bytes, long position) {
+        if (count == MAX_PACKETS) {
+            return;
+        }
+        arrivals[count] = nanos;
+        sizes[count] = bytes;
+        positions[count] = position;
+        count++;
+    }
+
+    /**
+     * @return whether every chunk of the train has arrived, or no more packets can
+     *  be recorded.
+     */
+    boolean isComplete(int trainLength, int chunkPayloadSize) {
+        if (count == MAX_PACKETS) {
+            return true;
+        }
+        int members = 0;
+        for (int i = 0; i < count; i++) {
+            if (isMember(i, trainLength, chunkPayloadSize)) {
+                members++;
+            }
+        }
+        return members >= trainLength;
+    }
+
+    /**
+     * @param trainLength the number of chunks in the train, from INFO.
+     * @param chunkPayloadSize the payload size of the download's chunks.
+     * @return the estimated capacity in bytes per second, or 0 if fewer than
+     *  MIN_PACKETS packets of the train arrived, or they arrived too close together
+     *  to time.
+     */
+    long estimate(int trainLength, int chunkPayloadSize) {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            if (isMember(i, trainLength, chunkPayloadSize)) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first < 0) {
+            return 0;
+        }
+
+        // Walk back from the end of the train, timing each tail that starts with
+        // a member of the train.
+        long estimate = 0;
+        long bytes = 0;
+        int packets = 1;
+        for (int i = last - 1; i >= first; i--) {
+            bytes += sizes[i + 1];
+            packets++;
+            long nanos = arrivals[last] - arrivals[i];
+            if (packets >= MIN_PACKETS && nanos > 0 && isMember(i, trainLength, chunkPayloadSize)) {
+                long rate = bytes * 1000 * 1000 * 1000 / nanos;
+                estimate = estimate == 0 ? rate : Math.min(estimate, rate);
+            }
+        }
+        return estimate;
+    }
+
+    private boolean isMember(int i, int trainLength, int chunkPayloadSize) {
+        return positions[i] >= 0 && positions[i] / chunkPayloadSize < trainLength;
+    }
+}
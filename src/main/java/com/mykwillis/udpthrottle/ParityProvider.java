@@ -0,0 +1,163 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides forward error correction (parity) chunks for a file.
+ *
+ * The file's chunks are divided into blocks of `blockSize` consecutive chunks, and
+ * each block is given one parity chunk: the XOR of the payloads of the chunks in
+ * the block, each padded with zeroes to the chunk payload size. A receiver that is
+ * missing any one chunk of a block can rebuild it from the parity chunk and the
+ * block's other chunks. The redundancy is thus 1/blockSize: smaller blocks
+ * survive more loss, at the cost of more bandwidth.
+ *
+ * Parity, and the checksum of each block's PARITY message, is computed for the
+ * whole file when the provider is created, and is shared by every client, so that
+ * sending a parity chunk costs no more than sending a data chunk.
+ */
+public class ParityProvider {
+    private final ChunkProvider fileProvider;
+    private final int blockSize;
+    private final int blockCount;
+    private final int chunkPayloadSize;
+    private final ByteBuffer parity;
+    private final int[] checksums;
+
+    // Views of `parity` used by readParity(), one per thread, as in MappedFileProvider.
+    private final ThreadLocal<ByteBuffer> parityViews;
+
+    /**
+     * Create a ParityProvider, computing the parity of every block of the file.
+     *
+     * @param fileProvider the file for which parity is computed.
+     * @param blockSize the number of data chunks covered by each parity chunk.
+     */
+    public ParityProvider(ChunkProvider fileProvider, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+        this.fileProvider = fileProvider;
+        this.blockSize = blockSize;
+        this.chunkPayloadSize = fileProvider.getChunkPayloadSize();
+
+        long blocks = (fileProvider.getChunkCount() + blockSize - 1) / blockSize;
+        if (blocks * chunkPayloadSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File is too large for this block size.");
+        }
+        this.blockCount = (int) blocks;
+        this.parity = ByteBuffer.allocateDirect(blockCount * chunkPayloadSize);
+
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkPayloadSize);
+        for (long index = 0; index < fileProvider.getChunkCount(); index++) {
+            chunk.clear();
+            fileProvider.readChunk(index, chunk);
+            chunk.flip();
+            xor(parity, getBlock(index) * chunkPayloadSize, chunk);
+        }
+
+        this.checksums = new int[blockCount];
+        Crc32c crc = new Crc32c();
+        for (int block = 0; block < blockCount; block++) {
+            checksums[block] = ParityFlyweight.checksum(crc, getFirstChunk(block), getBlockChunkCount(block),
+                    parity, block * chunkPayloadSize, getParityLength(block));
+        }
+        this.parityViews = ThreadLocal.withInitial(parity::duplicate);
+    }
+
+    /**
+     * XOR `src` (between its position and limit) into `dst`, starting at `offset`.
+     */
+    static void xor(ByteBuffer dst, int offset, ByteBuffer src) {
+        int length = src.remaining();
+        int start = src.position();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst.putLong(offset + i, dst.getLong(offset + i) ^ src.getLong(start + i));
+        }
+        for (; i < length; i++) {
+            dst.put(offset + i, (byte) (dst.get(offset + i) ^ src.get(start + i)));
+        }
+    }
+
+    /**
+     * @return the number of data chunks covered by each parity chunk.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the block containing the chunk at `index`.
+     */
+    public int getBlock(long index) {
+        return (int) (index / blockSize);
+    }
+
+    /**
+     * @return the index of the first chunk in `block`.
+     */
+    public long getFirstChunk(int block) {
+        return (long) block * blockSize;
+    }
+
+    /**
+     * @return the number of data chunks in `block`. This is `blockSize` for every
+     *  block but the last.
+     */
+    public int getBlockChunkCount(int block) {
+        return (int) Math.min(blockSize, fileProvider.getChunkCount() - getFirstChunk(block));
+    }
+
+    /**
+     * @return whether the chunk at `index` is the last in its block, such that the
+     *  block's parity chunk may be sent once it has been.
+     */
+    public boolean isLastInBlock(long index) {
+        return (index + 1) % blockSize == 0 || index + 1 == fileProvider.getChunkCount();
+    }
+
+    /**
+     * @return the size of a block's parity data, or -1 if the block is out of
+     *  bounds. This is the size of the block's longest (first) chunk.
+     */
+    public int getParityLength(int block) {
+        if (block < 0 || block >= blockCount) {
+            return -1;
+        }
+        return fileProvider.getChunkLength(getFirstChunk(block));
+    }
+
+    /**
+     * @return the checksum of the block's PARITY message.
+     */
+    public int getChecksum(int block) {
+        return checksums[block];
+    }
+
+    /**
+     * Copy a block's parity data into a buffer. This allocates nothing.
+     *
+     * @param dst the buffer into which the parity is copied, starting at its
+     *            current position.
+     * @return the number of bytes copied, or -1 if the block is out of bounds.
+     */
+    public int readParity(int block, ByteBuffer dst) {
+        int length = getParityLength(block);
+        if (length < 0) {
+            return -1;
+        }
+        ByteBuffer view = parityViews.get();
+        int start = block * chunkPayloadSize;
+        view.limit(start + length);
+        view.position(start);
+        dst.put(view);
+        return length;
+    }
+}
@@ -0,0 +1,166 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.ProbeMessage;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Finds the largest datagram that can be exchanged with the server without
+ * fragmentation, so that the client can ask for chunks that fit in it.
+ *
+ * The search is bounded above by the MTU of the local interface on the route to
+ * the server, less the IP and UDP headers. Within that bound, the client sends
+ * PROBE messages to the server, searching for the largest that the server echoes:
+ * it first tries the bound itself, which is usually enough on a LAN or loopback,
+ * and otherwise searches between that and FileProvider.MIN_CHUNK_SIZE.
+ *
+ * Where the JVM can set the IP "don't fragment" flag on the socket (Java 19 and
+ * later, on some platforms), a probe larger than the MTU of some link further
+ * along the path is dropped rather than fragmented, so the search also finds the
+ * path MTU. Elsewhere, the result is limited only by the local interface's MTU.
+ */
+class PathMtuProbe {
+    static final int IPV4_HEADERS = 20 + 8;    // IPv4 and UDP headers
+    static final int IPV6_HEADERS = 40 + 8;    // IPv6 and UDP headers
+
+    /**
+     * Time to wait for the server to echo a probe, and number of times each size
+     * is tried before it is taken to be too large.
+     */
+    static final int PROBE_TIMEOUT = 200;   // ms
+    static final int PROBE_ATTEMPTS = 2;
+
+    private final DatagramSocket socket;
+    private final InetAddress serverAddr;
+    private final int port;
+    private final byte[] replyBytes = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+
+    PathMtuProbe(DatagramSocket socket, InetAddress serverAddr, int port) {
+        this.socket = socket;
+        this.serverAddr = serverAddr;
+        this.port = port;
+    }
+
+    /**
+     * Find the largest datagram, of at most `limit` bytes, that can be exchanged
+     * with the server.
+     *
+     * @return the datagram size, which is at least the smallest allowed chunk
+     *  size's datagram, even if no probe got through.
+     */
+    int probe(int limit) throws IOException {
+        int smallest = FileProvider.MIN_CHUNK_SIZE + FileProvider.PARITY_OVERHEAD;
+        int largest = Math.max(smallest, Math.min(limit, getInterfaceLimit()));
+        boolean dontFragment = setDontFragment(socket);
+        Log.info("Client: probing datagram sizes up to %d (don't fragment: %s)",
+                largest, dontFragment);
+
+        int originalTimeout = socket.getSoTimeout();
+        try {
+            if (tryProbe(largest)) {
+                return largest;
+            }
+            // Binary search for the largest size that gets through; `smallest` is
+            // assumed to, as every IPv4 path must carry it.
+            int low = smallest;
+            int high = largest - 1;
+            while (low < high) {
+                int size = low + (high - low + 1) / 2;
+                if (tryProbe(size)) {
+                    low = size;
+                } else {
+                    high = size - 1;
+                }
+            }
+            return low;
+        } finally {
+            socket.setSoTimeout(originalTimeout);
+        }
+    }
+
+    /**
+     * @return whether the server echoed a probe of `size` bytes.
+     */
+    private boolean tryProbe(int size) throws IOException {
+        DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+        ByteBuffer replyBuffer = ByteBuffer.wrap(replyBytes);
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+            try {
+                socket.send(new ProbeMessage(size).getDatagramPacket(serverAddr, port));
+            } catch (IOException e) {
+                // Too large for the socket, or refused by the local stack because
+                // it would need fragmenting.
+                return false;
+            }
+
+            long deadline = currentTimeMillis() + PROBE_TIMEOUT;
+            long wait;
+            while ((wait = deadline - currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) wait);
+                try {
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (reply.getLength() == size && Message.getMessageType(replyBytes) == Message.MESSAGE_TYPE_PROBE
+                        && replyBuffer.getInt(4) == size) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the MTU of the local interface on the route to the server, less the
+     *  IP and UDP headers, or the largest datagram size if it can't be found.
+     */
+    private int getInterfaceLimit() {
+        try (DatagramSocket routeSocket = new DatagramSocket()) {
+            // Connecting a UDP socket sends nothing, but picks the local address
+            // from which the server is reached.
+            routeSocket.connect(serverAddr, port);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(routeSocket.getLocalAddress());
+            if (networkInterface == null || networkInterface.getMTU() <= 0) {
+                return FileProvider.MAX_DATAGRAM_SIZE;
+            }
+            int headers = serverAddr instanceof Inet6Address ? IPV6_HEADERS : IPV4_HEADERS;
+            return Math.min(FileProvider.MAX_DATAGRAM_SIZE, networkInterface.getMTU() - headers);
+        } catch (IOException e) {
+            return FileProvider.MAX_DATAGRAM_SIZE;
+        }
+    }
+
+    /**
+     * Set the "don't fragment" flag on a socket, if this JVM supports it.
+     *
+     * The option (jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT) and the means of
+     * setting it (DatagramSocket.setOption) are both newer than the Java version
+     * we build for, so they are looked up by reflection.
+     *
+     * @return whether the flag was set.
+     */
+    static boolean setDontFragment(DatagramSocket socket) {
+        try {
+            Class<?> options = Class.forName("jdk.net.ExtendedSocketOptions");
+            Object option = options.getField("IP_DONTFRAGMENT").get(null);
+            Method setOption = DatagramSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(socket, option, Boolean.TRUE);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Holds PAYLOAD data that arrives before the INFO message, until there is a
+ * FileReceiver to hand it to.
+ *
+ * Payloads are copied into a fixed number of slots in a single direct buffer,
+ * which is allocated once and reused, so the spool never grows the heap. Each
+ * slot's file offset, length and checksum are kept alongside it, in a ring. The
+ * checksum is verified by the FileReceiver, once the payload is drained to it. If the ring
+ * fills, further payloads are spilled to a temporary file rather than dropped.
+ * Draining visits each payload once, in the order it arrived.
+ */
+class PayloadSpool {
+    private final int slotSize;
+    private final ByteBuffer slots;
+    private final long[] positions;
+    private final int[] lengths;
+    private final int[] checksums;
+    private int head = 0;
+    private int count = 0;
+
+    private File spillFile;
+    private DataOutputStream spillStream;
+    private int spilled = 0;
+
+    PayloadSpool(int slotCount) {
+        this(slotCount, FileProvider.CHUNK_PAYLOAD_SIZE);
+    }
+
+    /**
+     * @param slotCount the number of payloads held in memory before spilling.
+     * @param slotSize the largest payload held in a slot, which should be the
+     *                 payload size of the chunks expected. Larger payloads go
+     *                 straight to the spill file.
+     */
+    PayloadSpool(int slotCount, int slotSize) {
+        this.slotSize = slotSize;
+        slots = ByteBuffer.allocateDirect(slotCount * slotSize);
+        positions = new long[slotCount];
+        lengths = new int[slotCount];
+        checksums = new int[slotCount];
+    }
+
+    /**
+     * @return the number of payloads held, in memory or spilled.
+     */
+    int size() {
+        return count + spilled;
+    }
+
+    /**
+     * @return the number of payloads that were spilled to disk.
+     */
+    int getSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Copy a payload into the spool. The payload's buffer must be backed by an array.
+     */
+    void add(PayloadFlyweight payload) throws IOException {
+        ByteBuffer buffer = payload.buffer();
+        int offset = buffer.arrayOffset() + payload.getPayloadOffset();
+        int length = payload.getPayloadLength();
+
+        if (count == positions.length || length > slotSize) {
+            spill(payload.getPosition(), payload.getChecksum(), buffer.array(), offset, length);
+            return;
+        }
+
+        int slot = (head + count) % positions.length;
+        slots.clear();
+        slots.position(slot * slotSize);
+        slots.put(buffer.array(), offset, length);
+        positions[slot] = payload.getPosition();
+        lengths[slot] = length;
+        checksums[slot] = payload.getChecksum();
+        count++;
+    }
+
+    private void spill(long position, int checksum, byte[] bytes, int offset, int length) throws IOException {
+        if (spillStream == null) {
+            spillFile = File.createTempFile("udpthrottle", ".spool");
+            spillFile.deleteOnExit();
+            spillStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        }
+        spillStream.writeLong(position);
+        spillStream.writeInt(checksum);
+        spillStream.writeInt(length);
+        spillStream.write(bytes, offset, length);
+        spilled++;
+    }
+
+    /**
+     * Hand every payload held to a FileReceiver, and empty the spool.
+     */
+    void drainTo(FileReceiver fileReceiver) throws IOException {
+        while (count > 0) {
+            int start = head * slotSize;
+            slots.limit(start + lengths[head]);
+            slots.position(start);
+            fileReceiver.processChunk(positions[head], slots, checksums[head]);
+
+            head = (head + 1) % positions.length;
+            count--;
+        }
+        slots.clear();
+
+        if (spillStream != null) {
+            spillStream.close();
+            spillStream = null;
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(spillFile)))) {
+                byte[] bytes = new byte[slotSize];
+                for (int i = 0; i < spilled; i++) {
+                    long position = input.readLong();
+                    int checksum = input.readInt();
+                    int length = input.readInt();
+                    if (length > bytes.length) {
+                        bytes = new byte[length];
+                    }
+                    input.readFully(bytes, 0, length);
+                    fileReceiver.processChunk(position, ByteBuffer.wrap(bytes, 0, length), checksum);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Spool file is truncated.", e);
+            } finally {
+                spillFile.delete();
+                spillFile = null;
+                spilled = 0;
+            }
+        }
+    }
+}
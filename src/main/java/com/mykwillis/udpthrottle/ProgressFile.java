@@ -0,0 +1,353 @@
+package com.mykwillis.udpthrottle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Records which chunks of a download have been saved, in a file alongside the
+ * output file, so that a download that is interrupted (by the client being killed,
+ * or giving up on a silent server) can carry on where it left off.
+ *
+ * The progress file is named for the output file, with PROGRESS_SUFFIX added, and
+ * holds:
+ *
+ *     INT magic ("UDPR")
+ *     INT version
+ *     LONG fileSize
+ *     INT chunkSize
+ *     INT merkleRootSize
+ *     BYTES merkleRoot     (padded to 32 bytes)
+ *     (padding to HEADER_SIZE bytes)
+ *     LONG words[]         the receive bitmap, as in ChunkBitmap.getWord()
+ *     INT checksums[]      the checksum of every chunk received
+ *
+ * A download is only resumed from a progress file whose size, chunk size and
+ * Merkle root match the server's INFO, so a file that has changed on the server
+ * is downloaded again from scratch.
+ *
+ * The receive thread calls checkpoint() every so often, which copies the parts of
+ * the bitmap and checksums that have changed, in pages of PAGE_CHUNKS chunks, and
+ * hands them to a background thread to write. Writes are batched, with one fsync
+ * for the file data and one or two for the progress file per checkpoint, rather
+ * than one per chunk, and the receive thread never waits on the disk. A checkpoint
+ * that comes while the last is still being written is skipped; its changes are
+ * picked up by the next.
+ *
+ * Each checkpoint forces the output file's mapping to disk before the checksums
+ * are written, and forces the checksums before the bitmap, so that whatever point
+ * the client is stopped at, a chunk marked as received in the progress file has
+ * both its data and its checksum on disk.
+ */
+class ProgressFile implements Closeable {
+    static final String PROGRESS_SUFFIX = ".progress";
+    static final int MAGIC = 0x55445052;    // "UDPR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int MAX_ROOT_SIZE = 32;
+
+    /**
+     * Number of chunks whose state is written together when any of them changes.
+     * This is a multiple of 64, so that a page is a whole number of bitmap words.
+     */
+    static final int PAGE_CHUNKS = 1024;
+
+    private final File file;
+    private final RandomAccessFile progressFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final ChunkBitmap chunksReceived;
+    private final ChunkChecksums checksums;
+    private final long checksumsOffset;
+    private final ChunkBitmap dirtyPages;
+    private final ExecutorService writer;
+    private Future<?> pendingSave;
+
+    /**
+     * The state of a download, as read from a progress file.
+     */
+    static class Saved {
+        final long fileSize;
+        final int chunkSize;
+        final byte[] merkleRoot;
+        final ChunkBitmap chunksReceived;
+        final ChunkChecksums checksums;
+
+        Saved(long fileSize, int chunkSize, byte[] merkleRoot, ChunkBitmap chunksReceived,
+              ChunkChecksums checksums) {
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.merkleRoot = merkleRoot;
+            this.chunksReceived = chunksReceived;
+            this.checksums = checksums;
+        }
+    }
+
+    /**
+     * @return the progress file for an output file.
+     */
+    static File getProgressFile(File output) {
+        return new File(output.getPath() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Read the progress of an earlier download of an output file.
+     *
+     * @return the progress saved, or null if there is none, or it doesn't describe
+     *  the output file as it is.
+     */
+    static Saved load(File output) {
+        File file = getProgressFile(output);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            long fileSize = header.getLong();
+            int chunkSize = header.getInt();
+            int rootSize = header.getInt();
+            if (fileSize < 0 || fileSize != output.length() || rootSize < 0 || rootSize > MAX_ROOT_SIZE
+                    || chunkSize < FileProvider.MIN_CHUNK_SIZE || chunkSize > FileProvider.MAX_CHUNK_SIZE) {
+                return null;
+            }
+            byte[] merkleRoot = new byte[rootSize];
+            header.get(merkleRoot);
+
+            long chunkCount = FileReceiver.getExpectedChunks(fileSize, chunkSize - FileProvider.CHUNK_HEADER_SIZE);
+            ChunkBitmap chunksReceived = new ChunkBitmap(chunkCount);
+            ChunkChecksums checksums = new ChunkChecksums(chunkCount);
+            long checksumsOffset = HEADER_SIZE + 8L * chunksReceived.wordCount();
+            if (channel.size() != checksumsOffset + 4 * chunkCount) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int word = 0; word < chunksReceived.wordCount(); ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), 8L * (chunksReceived.wordCount() - word)));
+                readFully(channel, buffer, HEADER_SIZE + 8L * word);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    chunksReceived.setWord(word++, buffer.getLong());
+                }
+            }
+            for (long chunk = 0; chunk < chunkCount; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), 4 * (chunkCount - chunk)));
+                readFully(channel, buffer, checksumsOffset + 4 * chunk);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    checksums.set(chunk++, buffer.getInt());
+                }
+            }
+            return new Saved(fileSize, chunkSize, merkleRoot, chunksReceived, checksums);
+        } catch (IOException e) {
+            Log.warn("Failed to read %s: %s", file, e);
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Open the progress file for a download.
+     *
+     * @param output the output file.
+     * @param segments the mapping of the output file, forced to disk before the
+     *                 chunks written to it are recorded as saved.
+     * @param chunksReceived the chunks received, which are updated by the caller.
+     * @param checksums the checksums of the chunks received, likewise.
+     * @param resumed whether the progress file already describes the download, as
+     *                read by load(). If not, it is started afresh.
+     */
+    ProgressFile(File output, long fileSize, int chunkSize, byte[] merkleRoot, MappedByteBuffer[] segments,
+                 ChunkBitmap chunksReceived, ChunkChecksums checksums, boolean resumed) throws IOException {
+        if (merkleRoot.length > MAX_ROOT_SIZE) {
+            throw new IllegalArgumentException("Merkle root is too long");
+        }
+        this.file = getProgressFile(output);
+        this.segments = segments;
+        this.chunksReceived = chunksReceived;
+        this.checksums = checksums;
+        this.checksumsOffset = HEADER_SIZE + 8L * chunksReceived.wordCount();
+        this.dirtyPages = new ChunkBitmap((chunksReceived.size() + PAGE_CHUNKS - 1) / PAGE_CHUNKS);
+
+        progressFile = new RandomAccessFile(file, "rw");
+        channel = progressFile.getChannel();
+        if (!resumed) {
+            progressFile.setLength(0);
+            progressFile.setLength(checksumsOffset + 4 * chunksReceived.size());
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(fileSize).putInt(chunkSize)
+                    .putInt(merkleRoot.length).put(merkleRoot);
+            header.clear();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Record that a chunk's data and checksum have changed, so that they are saved
+     * by the next checkpoint.
+     */
+    void onChunk(long index) {
+        dirtyPages.set(index / PAGE_CHUNKS);
+    }
+
+    /**
+     * Start saving the chunks received since the last checkpoint, in the background.
+     * This is skipped if the last checkpoint is still being saved.
+     */
+    void checkpoint() {
+        if (dirtyPages.cardinality() == 0 || (pendingSave != null && !pendingSave.isDone())) {
+            return;
+        }
+        Snapshot snapshot = snapshot();
+        pendingSave = writer.submit(() -> {
+            try {
+                save(snapshot);
+            } catch (IOException e) {
+                Log.warn("Failed to save progress to %s: %s", file, e);
+            }
+        });
+    }
+
+    /**
+     * Save the chunks received since the last checkpoint, waiting until they are on
+     * disk, and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitPendingSave();
+            if (dirtyPages.cardinality() > 0) {
+                save(snapshot());
+            }
+        } finally {
+            writer.shutdown();
+            progressFile.close();
+        }
+    }
+
+    /**
+     * Close and delete the progress file, once the download is complete.
+     */
+    void delete() throws IOException {
+        try {
+            awaitPendingSave();
+        } finally {
+            writer.shutdown();
+            progressFile.close();
+        }
+        if (!file.delete() && file.exists()) {
+            Log.warn("Failed to delete %s", file);
+        }
+    }
+
+    private void awaitPendingSave() throws IOException {
+        if (pendingSave == null) {
+            return;
+        }
+        try {
+            pendingSave.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving progress", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The bitmap words and checksums of the pages that have changed, copied so that
+     * the receive thread may carry on updating them while they are written.
+     */
+    private static class Snapshot {
+        final long[] pages;
+        final ByteBuffer words;
+        final ByteBuffer checksums;
+
+        Snapshot(int pageCount) {
+            pages = new long[pageCount];
+            words = ByteBuffer.allocate(pageCount * (PAGE_CHUNKS / 8));
+            checksums = ByteBuffer.allocate(pageCount * PAGE_CHUNKS * 4);
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot((int) dirtyPages.cardinality());
+        int i = 0;
+        for (long page = dirtyPages.nextSet(0); page < dirtyPages.size(); page = dirtyPages.nextSet(page + 1)) {
+            snapshot.pages[i++] = page;
+            int firstWord = (int) (page * (PAGE_CHUNKS / 64));
+            int endWord = Math.min(firstWord + PAGE_CHUNKS / 64, chunksReceived.wordCount());
+            for (int word = firstWord; word < endWord; word++) {
+                snapshot.words.putLong(chunksReceived.getWord(word));
+            }
+            long endChunk = Math.min((page + 1) * PAGE_CHUNKS, chunksReceived.size());
+            for (long chunk = page * PAGE_CHUNKS; chunk < endChunk; chunk++) {
+                snapshot.checksums.putInt(checksums.get(chunk));
+            }
+        }
+        dirtyPages.clear();
+        snapshot.words.flip();
+        snapshot.checksums.flip();
+        return snapshot;
+    }
+
+    private void save(Snapshot snapshot) throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+
+        ByteBuffer checksumsBuffer = snapshot.checksums;
+        for (long page : snapshot.pages) {
+            int count = (int) (Math.min((page + 1) * PAGE_CHUNKS, chunksReceived.size()) - page * PAGE_CHUNKS);
+            checksumsBuffer.limit(checksumsBuffer.position() + 4 * count);
+            write(checksumsBuffer, checksumsOffset + 4L * page * PAGE_CHUNKS);
+        }
+        channel.force(false);
+
+        ByteBuffer wordsBuffer = snapshot.words;
+        for (long page : snapshot.pages) {
+            int firstWord = (int) (page * (PAGE_CHUNKS / 64));
+            int count = Math.min(PAGE_CHUNKS / 64, chunksReceived.wordCount() - firstWord);
+            wordsBuffer.limit(wordsBuffer.position() + 8 * count);
+            write(wordsBuffer, HEADER_SIZE + 8L * firstWord);
+        }
+        channel.force(false);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
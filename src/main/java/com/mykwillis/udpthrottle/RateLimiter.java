@@ -0,0 +1,40 @@
+package com.mykwillis.udpthrottle;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when a packet may be sent in order to enforce a bandwidth limit.
+ *
+ * Callers reserve capacity for each packet before sending it. A reservation is
+ * always granted, but may be granted for some time in the future; the caller is
+ * then responsible for waiting until that time before it sends.
+ */
+public interface RateLimiter {
+
+    /**
+     * Reserve capacity for sending a single packet.
+     *
+     * @param bytes the size of the packet, in bytes.
+     * @return the System.nanoTime() value at or after which the packet may be sent.
+     */
+    long reserve(int bytes);
+
+    /**
+     * Reserve capacity for sending a single packet, blocking the calling thread
+     * until the packet may be sent.
+     *
+     * @param bytes the size of the packet, in bytes.
+     */
+    default void acquire(int bytes) throws InterruptedException {
+        long deadline = reserve(bytes);
+        long remaining;
+        // parkNanos() may return early (spuriously, or because of unpark()), so we
+        // loop until the deadline has actually passed.
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.mykwillis.udpthrottle;
+
+/**
+ * Counts the packets a client receives, and estimates how many were lost or
+ * reordered on the way, for the REPORT messages that let the server pace its
+ * sending to what the path can carry.
+ *
+ * The server sends chunks in increasing order, so a chunk that arrives more than
+ * one past the highest received so far leaves a gap, and the chunks in the gap
+ * are counted as lost. If one of them then arrives while it is still within
+ * REORDER_WINDOW of the highest, it was only reordered: it is counted as such,
+ * and no longer as lost. A chunk arriving from further back is a resend (or the
+ * start of another pass over the file) and is counted as neither. Chunks the
+ * client already had when the download began, as when it is resumed, and those
+ * outside the byte ranges it asked for, aren't sent, so aren't counted as lost
+ * when they fall in a gap.
+ *
+ * Every count is cumulative, as sent in REPORT messages.
+ */
+class ReceiveStats {
+    static final int REORDER_WINDOW = 16;   // chunks
+
+    private long packetsReceived = 0;
+    private long bytesReceived = 0;
+    private long packetsLost = 0;
+    private long packetsReordered = 0;
+    private long highestChunk = -1;
+    private final ChunkBitmap unsent;   // chunks the server won't send, or null
+
+    ReceiveStats() {
+        this(null);
+    }
+
+    /**
+     * @param unsent the chunks the client already has or didn't ask for, and so
+     *               won't be sent; the set mustn't change while the chunks
+     *               are being received.
+     */
+    ReceiveStats(ChunkBitmap unsent) {
+        this.unsent = unsent;
+    }
+
+    /**
+     * Count a packet that carries no chunk, such as a PARITY message.
+     */
+    void onPacket(int bytes) {
+        packetsReceived++;
+        bytesReceived += bytes;
+    }
+
+    /**
+     * Count a packet carrying a chunk.
+     *
+     * @param isNew whether the chunk had not been received before.
+     */
+    void onChunk(long chunkIndex, int bytes, boolean isNew) {
+        onPacket(bytes);
+        if (chunkIndex > highestChunk) {
+            packetsLost += chunkIndex - highestChunk - 1;
+            if (unsent != null) {
+                packetsLost -= unsent.cardinality(highestChunk + 1, chunkIndex);
+            }
+            highestChunk = chunkIndex;
+        } else if (isNew && chunkIndex > highestChunk - REORDER_WINDOW && packetsLost > 0) {
+            packetsReordered++;
+            packetsLost--;
+        }
+    }
+
+    long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    long getPacketsLost() {
+        return packetsLost;
+    }
+
+    long getPacketsReordered() {
+        return packetsReordered;
+    }
+}
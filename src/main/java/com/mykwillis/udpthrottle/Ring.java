@@ -0,0 +1,118 @@
+package com.mykwillis.udpthrottle;
+
+/**
+ * A circular list in which each element holds its own links (an intrusive
+ * list), so that adding an element at the back, removing any element, and
+ * moving the front element to the back are all O(1), and allocate nothing.
+ *
+ * The server's event loops keep the clients they are sending to in a Ring, in
+ * deficit round-robin order, so that the cost of choosing the next client, and
+ * of dropping one that has finished or gone away, doesn't grow with the number
+ * of clients.
+ *
+ * An element may be in at most one ring at a time. Rings are not thread safe.
+ */
+class Ring<E extends Ring.Link<E>> {
+    /**
+     * The links by which an element is held in a ring. Both are null while the
+     * element is in none.
+     */
+    static class Link<E> {
+        E prev;
+        E next;
+    }
+
+    private E head;
+    private int size;
+
+    /**
+     * @return the element at the front of the ring, or null if it is empty.
+     */
+    E peekFirst() {
+        return head;
+    }
+
+    /**
+     * Remove the element at the front of the ring.
+     *
+     * @return the element removed, or null if the ring is empty.
+     */
+    E pollFirst() {
+        E first = head;
+        if (first != null) {
+            remove(first);
+        }
+        return first;
+    }
+
+    /**
+     * Add an element at the back of the ring.
+     *
+     * @throws IllegalStateException if the element is already in a ring.
+     */
+    void addLast(E element) {
+        if (element.next != null) {
+            throw new IllegalStateException("Element is already in a ring");
+        }
+        if (head == null) {
+            element.prev = element;
+            element.next = element;
+            head = element;
+        } else {
+            E tail = head.prev;
+            element.prev = tail;
+            element.next = head;
+            tail.next = element;
+            head.prev = element;
+        }
+        size++;
+    }
+
+    /**
+     * Remove an element, wherever it is in the ring.
+     *
+     * @return whether the element was in a ring (which is assumed to be this one).
+     */
+    boolean remove(E element) {
+        if (element.next == null) {
+            return false;
+        }
+        if (element.next == element) {
+            head = null;
+        } else {
+            element.prev.next = element.next;
+            element.next.prev = element.prev;
+            if (head == element) {
+                head = element.next;
+            }
+        }
+        element.prev = null;
+        element.next = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Move the element at the front of the ring to the back.
+     */
+    void rotate() {
+        if (head != null) {
+            head = head.next;
+        }
+    }
+
+    /**
+     * @return whether the element is in a ring (which is assumed to be this one).
+     */
+    boolean contains(E element) {
+        return element.next != null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return head == null;
+    }
+}
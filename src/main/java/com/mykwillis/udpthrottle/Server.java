@@ -1,32 +1,123 @@
 package com.mykwillis.udpthrottle;
 
+import com.mykwillis.udpthrottle.message.BeginFlyweight;
+import com.mykwillis.udpthrottle.message.ByteRange;
+import com.mykwillis.udpthrottle.message.BeginMessage;
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.EndFlyweight;
 import com.mykwillis.udpthrottle.message.InfoMessage;
+import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.MessageFlyweight;
+import com.mykwillis.udpthrottle.message.NackFlyweight;
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import com.mykwillis.udpthrottle.message.ProbeFlyweight;
+import com.mykwillis.udpthrottle.message.ProbeMessage;
+import com.mykwillis.udpthrottle.message.ReportFlyweight;
+import com.mykwillis.udpthrottle.message.ResumeFlyweight;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
 
 /**
  * Throttled UDP Server.
  *
  */
 public class Server {
-    final static int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10 Mebibytes
+    /**
+     * Largest number of chunk sizes for which layouts are kept. Clients asking for
+     * other sizes once this many exist are given the server's chunk size, so that
+     * clients can't make the server compute parity for arbitrarily many sizes.
+     */
+    static final int MAX_CHUNK_LAYOUTS = 8;
+
+    /**
+     * Number of chunks sent back-to-back at the start of each unicast download, as
+     * a packet train from which the client measures the capacity of its path.
+     */
+    static final int TRAIN_LENGTH = 8;
+
+    /**
+     * Memory used to cache file data when serving a catalog (256MB).
+     */
+    static final long DEFAULT_CACHE_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Largest number of a catalog's files kept open at once. Files that no client
+     * is being sent are closed, least recently used first, to keep within this,
+     * and within a quarter of the cache size for their checksums and parity; the
+     * rest of the cache size is left for file data.
+     */
+    static final int MAX_OPEN_FILES = 256;
+
+    /**
+     * Time after which a client that has sent nothing at all is taken to have
+     * gone away. Clients send REPORT messages as they receive data, and this is
+     * twice the time after which a client gives up on a silent server.
+     */
+    static final long DEFAULT_SESSION_TIMEOUT_NANOS = 10L * 1000 * 1000 * 1000;   // 10s
+
     private int serverPort;
-    private File file;
-    private BlockingQueue<ClientContext> clients = new LinkedBlockingQueue<>();
+    private File file;      // the file served, or the catalog's directory
+    private long targetBitsPerSecond;
+    private int senderThreads = 1;
+    private EventLoop[] loops;
+    private InetSocketAddress multicastGroup;
+    private NetworkInterface multicastInterface;
+    private int parityBlockSize = 0;
+    private int chunkSize = FileProvider.CHUNK_SIZE;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private ServedFile servedFile;  // the file served, unless serving a catalog
+    private ChunkCache cache;       // shared by the catalog's files, if serving one
+    private long layoutBudget;      // for the checksums and parity of the catalog's open files
+    private final ConcurrentHashMap<String, ServedFile> catalog = new ConcurrentHashMap<>();
+    private Executor layoutExecutor;    // computes checksums and parity, off the event loops
+    private ExecutorService layoutThread;   // the layoutExecutor, if the server started it
+    private long sessionTimeoutNanos = DEFAULT_SESSION_TIMEOUT_NANOS;
 
     /**
      * Server.jar entry point.
      *
-     * @param args Command line arguments for `port` and `filename`
+     * @param args Command line arguments for `port`, `filename` (or the directory
+     *             of a catalog), (optionally) the target bandwidth in kilobits per
+     *             second, and options.
      */
     public static void main(String[] args) {
         int port;
         String filename;
+        long targetBitsPerSecond = ThrottleSocket.DEFAULT_TARGET_BITS_PER_SECOND;
+        int senderThreads = 1;
+        InetSocketAddress multicastGroup = null;
+        NetworkInterface multicastInterface = null;
+        int parityBlockSize = 0;
+        int chunkSize = FileProvider.CHUNK_SIZE;
+        long cacheSize = DEFAULT_CACHE_SIZE;
 
         if (args.length < 2) {
             usage();
@@ -42,163 +133,1622 @@ public class Server {
             return;
         }
 
-        System.out.println(String.format("Server provided port %d and file %s", port, filename));
+        try {
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("--senders") && i + 1 < args.length) {
+                    senderThreads = Integer.parseInt(args[++i]);
+                    if (senderThreads <= 0) {
+                        System.err.println("Number of sender threads must be positive.");
+                        usage();
+                        return;
+                    }
+                } else if (args[i].equals("--multicast") && i + 1 < args.length) {
+                    multicastGroup = MulticastSupport.parseGroup(args[++i]);
+                } else if (args[i].equals("--interface") && i + 1 < args.length) {
+                    multicastInterface = MulticastSupport.findInterface(args[++i]);
+                } else if (args[i].equals("--chunk-size") && i + 1 < args.length) {
+                    chunkSize = Integer.parseInt(args[++i]);
+                    if (chunkSize < FileProvider.MIN_CHUNK_SIZE || chunkSize > FileProvider.MAX_CHUNK_SIZE) {
+                        System.err.printf("Chunk size must be between %d and %d.\n",
+                                FileProvider.MIN_CHUNK_SIZE, FileProvider.MAX_CHUNK_SIZE);
+                        usage();
+                        return;
+                    }
+                } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                    cacheSize = Long.parseLong(args[++i]) * 1024 * 1024;
+                    if (cacheSize <= 0) {
+                        System.err.println("Cache size must be positive.");
+                        usage();
+                        return;
+                    }
+                } else if (args[i].equals("--log-level") && i + 1 < args.length) {
+                    Log.setLevel(Log.parseLevel(args[++i]));
+                } else if (args[i].equals("--fec") && i + 1 < args.length) {
+                    parityBlockSize = Integer.parseInt(args[++i]);
+                    if (parityBlockSize < 0) {
+                        System.err.println("FEC block size must not be negative.");
+                        usage();
+                        return;
+                    }
+                } else {
+                    targetBitsPerSecond = Long.parseLong(args[i]) * 1000;
+                    if (targetBitsPerSecond <= 0) {
+                        System.err.println("Target bandwidth must be positive.");
+                        usage();
+                        return;
+                    }
+                }
+            }
+        } catch(IllegalArgumentException | IOException e) {
+            System.err.println("Failed to parse argument: " + e.getMessage());
+            usage();
+            return;
+        }
+
+        Log.info("Server provided port %d and file %s", port, filename);
 
         File file = new File(filename);
-        if (!file.exists() || file.isDirectory()) {
-            System.err.println("The file " + filename + " does not exist, or is a directory.");
+        if (!file.exists()) {
+            System.err.println("The file " + filename + " does not exist.");
+            usage();
+            return;
+        }
+        if (file.isDirectory() && multicastGroup != null) {
+            System.err.println("A catalog can't be sent to a multicast group.");
             usage();
             return;
         }
 
-        new Server(port, file).run();
-    }
-
-    static void log(String msg) {
-        System.err.println(msg);
+        Server server = new Server(port, file, targetBitsPerSecond);
+        server.setSenderThreads(senderThreads);
+        server.setMulticast(multicastGroup, multicastInterface);
+        server.setParityBlockSize(parityBlockSize);
+        server.setChunkSize(chunkSize);
+        server.setCacheSize(cacheSize);
+        server.run();
     }
 
     static void usage() {
-        System.out.println("Usage: java -jar Server.jar <port> <filename>");
+        System.out.println("Usage: java -jar Server.jar <port> <filename|directory> [target kbps] [options]");
+        System.out.println("Options:");
+        System.out.println("  --senders <threads>        number of threads sending file data");
+        System.out.println("  --multicast <group:port>   send file data once, to a multicast group");
+        System.out.println("  --interface <interface>    network interface for multicast");
+        System.out.println("  --fec <chunks>             send a parity chunk after every <chunks> data chunks");
+        System.out.println("  --chunk-size <bytes>       largest chunk (datagram) size to use; default " + FileProvider.CHUNK_SIZE);
+        System.out.println("  --cache <MB>               memory for caching the files of a directory; default "
+                + DEFAULT_CACHE_SIZE / (1024 * 1024));
+        System.out.println("  --log-level <level>        error, warn, info (the default), debug or trace");
     }
 
     public Server(int port, File file) {
+        this(port, file, ThrottleSocket.DEFAULT_TARGET_BITS_PER_SECOND);
+    }
+
+    /**
+     * @param file the file to serve, or a directory, to serve a catalog of the
+     *             files in it. Clients ask for a catalog's files by name.
+     */
+    public Server(int port, File file, long targetBitsPerSecond) {
         this.serverPort = port;
         this.file = file;
+        this.targetBitsPerSecond = targetBitsPerSecond;
+    }
+
+    /**
+     * Set the number of threads used to send file data.
+     *
+     * Clients are partitioned between the threads by address, and all threads draw
+     * on the same bandwidth budget.
+     */
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
     }
 
+    /**
+     * Send file data to a multicast group, rather than to each client.
+     *
+     * Each chunk is then sent once, no matter how many clients are downloading the
+     * file. The group is given to clients in the INFO message. A catalog can't be
+     * sent to a multicast group.
+     *
+     * @param group the multicast group, or null to send file data to each client.
+     * @param networkInterface the interface on which to send multicast datagrams,
+     *                         or null to let the operating system choose.
+     */
+    public void setMulticast(InetSocketAddress group, NetworkInterface networkInterface) {
+        this.multicastGroup = group;
+        this.multicastInterface = networkInterface;
+    }
 
     /**
-     * Begin listening on our socket, and start the sender thread.
+     * Send forward error correction data along with the file.
      *
-     * This method serves as the main loop for receiving BEGIN messages from the client.
-     * Each time a BEGIN message is received, it sends an INFO message and places a ClientContext
-     * object on the queue it shares with the SenderThread.
+     * After each block of `blockSize` chunks is sent to a client, the client is sent
+     * a parity chunk from which it can rebuild any one chunk of the block that was
+     * lost, without waiting for it to be resent.
      *
-     * The SenderThread, responsible for sending PAYLOAD messages to the client, is created
-     * by this method.
+     * @param blockSize the number of data chunks per parity chunk, or 0 to send no
+     *                  parity.
      */
-    public void run() {
+    public void setParityBlockSize(int blockSize) {
+        this.parityBlockSize = blockSize;
+    }
 
-        try {
-            if (file.length() > MAX_FILE_SIZE) {
-                throw new IllegalArgumentException("File is too large.");
+    /**
+     * Set the largest chunk size the server uses.
+     *
+     * Each client is sent chunks of this size, or smaller if the client can't
+     * receive datagrams this large. A multicast group is always sent chunks of
+     * this size.
+     *
+     * @param chunkSize the size of the PAYLOAD message carrying a full chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the memory used to cache file data when serving a catalog.
+     *
+     * The files of a catalog are read through a single ChunkCache, so that those
+     * most in demand stay in memory, and the rest are read from disk as needed.
+     * A single file is instead memory-mapped, and left to the operating system
+     * to cache.
+     *
+     * @param cacheSize the size of the cache, in bytes.
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Set the time after which a client that has sent nothing is dropped.
+     */
+    void setSessionTimeout(long sessionTimeoutNanos) {
+        this.sessionTimeoutNanos = sessionTimeoutNanos;
+    }
+
+    /**
+     * Set the executor on which the checksums and parity for new chunk sizes are
+     * computed. By default, this is a single thread of the server's own.
+     */
+    void setLayoutExecutor(Executor layoutExecutor) {
+        this.layoutExecutor = layoutExecutor;
+    }
+
+    /**
+     * The file divided into chunks of one size, with the checksums, parity and
+     * INFO message for that size.
+     */
+    static class ChunkLayout {
+        final ServedFile file;
+        final ChunkProvider chunks;
+        final ChunkChecksums checksums;
+        final ParityProvider parity;    // null if forward error correction is off
+        final InfoMessage infoMessage;
+
+        ChunkLayout(ServedFile file, ChunkProvider chunks, ChunkChecksums checksums, ParityProvider parity,
+                    InfoMessage infoMessage) {
+            this.file = file;
+            this.chunks = chunks;
+            this.checksums = checksums;
+            this.parity = parity;
+            this.infoMessage = infoMessage;
+        }
+
+        /**
+         * @return the memory taken by the layout's checksums and parity, in bytes.
+         */
+        long getMemorySize() {
+            long size = checksums.size() * 4;
+            if (parity != null) {
+                size += (long) parity.getBlockCount() * (chunks.getChunkPayloadSize() + 4);
             }
-            FileProvider fileProvider = new FileProvider(file);
+            return size;
+        }
+    }
+
+    /**
+     * @return the chunk size for a client that can receive datagrams of up to
+     *  `maxDatagramSize` bytes.
+     */
+    int negotiateChunkSize(int maxDatagramSize) {
+        return Math.min(chunkSize, FileProvider.getChunkSizeForDatagram(maxDatagramSize));
+    }
+
+    /**
+     * A file being served, with its layouts for each chunk size in use.
+     *
+     * Each session sending the file holds it open, from acquire() to release(),
+     * so that a file of the catalog is only closed while no client is being sent
+     * it.
+     */
+    class ServedFile {
+        final String name;
+        final ChunkProvider chunks;
+        private final ConcurrentHashMap<Integer, CompletableFuture<ChunkLayout>> layouts =
+                new ConcurrentHashMap<>();
+        private int sessions = 0;
+        private boolean closed = false;
+        private volatile long lastUsed = nanoTime();
+
+        ServedFile(String name, ChunkProvider chunks) {
+            this.name = name;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Get the layout for a chunk size, creating it (and computing its checksums
+         * and parity) the first time the size is used. If MAX_CHUNK_LAYOUTS sizes are already in use,
+         * the layout for the server's own chunk size is returned instead, and is
+         * created if need be, whatever the number of sizes in use.
+         *
+         * This waits for the layout to be ready, however it is being created.
+         */
+        ChunkLayout getLayout(int chunkSize) throws IOException {
+            try {
+                return prepareLayout(chunkSize, Runnable::run).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Get the layout for a chunk size, as getLayout() does, but without waiting
+         * for it to be created: a new layout is created on `executor`.
+         *
+         * @return the layout, once it is ready. A layout that couldn't be created
+         *  is forgotten, so that a later request tries again.
+         */
+        CompletableFuture<ChunkLayout> prepareLayout(int chunkSize, Executor executor) {
+            lastUsed = nanoTime();
+            CompletableFuture<ChunkLayout> layout = layouts.get(chunkSize);
+            if (layout != null) {
+                return layout;
+            }
+            synchronized (layouts) {
+                layout = layouts.get(chunkSize);
+                if (layout == null && layouts.size() >= MAX_CHUNK_LAYOUTS) {
+                    chunkSize = Server.this.chunkSize;
+                    layout = layouts.get(chunkSize);
+                }
+                if (layout == null) {
+                    int size = chunkSize;
+                    CompletableFuture<ChunkLayout> created = new CompletableFuture<>();
+                    layouts.put(size, created);
+                    executor.execute(() -> {
+                        try {
+                            created.complete(createLayout(size));
+                            if (cache != null) {
+                                trimCatalog(this);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            layouts.remove(size, created);
+                            created.completeExceptionally(e);
+                        }
+                    });
+                    layout = created;
+                }
+                return layout;
+            }
+        }
+
+        /**
+         * @return the layout for a chunk size, or null if no client has been given
+         *  that size, or it isn't ready yet.
+         */
+        ChunkLayout findLayout(int chunkSize) {
+            CompletableFuture<ChunkLayout> layout = layouts.get(chunkSize);
+            return layout == null || layout.isCompletedExceptionally() ? null : layout.getNow(null);
+        }
+
+        /**
+         * Count a session sending the file, unless the file has been closed.
+         *
+         * @return whether the file is still open, and may be sent.
+         */
+        synchronized boolean acquire() {
+            if (closed) {
+                return false;
+            }
+            sessions++;
+            lastUsed = nanoTime();
+            return true;
+        }
+
+        /**
+         * Count the end of a session that acquire() counted.
+         */
+        synchronized void release() {
+            sessions--;
+            lastUsed = nanoTime();
+        }
 
-            System.out.printf("Server: Serving file [name=%s, size=%d]\n",
-                    file.getName(), file.length());
-            System.out.println("Target bandwidth is " + (ThrottleSocket.TARGET_BITS_PER_SECOND / 1000) + " kbps");
+        /**
+         * Close the file, and drop its layouts, unless a session is sending it.
+         *
+         * @return whether the file was closed.
+         */
+        synchronized boolean closeIfIdle() {
+            if (sessions > 0) {
+                return false;
+            }
+            closed = true;
+            layouts.clear();
+            if (chunks instanceof Closeable) {
+                try {
+                    ((Closeable) chunks).close();
+                } catch (IOException e) {
+                    Log.warn("Server: failed to close %s: %s", name, e);
+                }
+            }
+            return true;
+        }
 
-            ThrottleSocket socket = new ThrottleSocket(serverPort);
+        /**
+         * @return the memory taken by the checksums and parity of the layouts
+         *  that are ready, in bytes.
+         */
+        long getLayoutMemorySize() {
+            long size = 0;
+            for (CompletableFuture<ChunkLayout> layout : layouts.values()) {
+                if (layout.isDone() && !layout.isCompletedExceptionally()) {
+                    size += layout.join().getMemorySize();
+                }
+            }
+            return size;
+        }
 
-            new Thread(new SenderThread(socket, fileProvider, clients)).start();
+        private ChunkLayout createLayout(int chunkSize) throws IOException {
+            ChunkProvider layoutChunks = chunks.withChunkSize(chunkSize);
+            long checksumStart = nanoTime();
+            ChunkChecksums checksums = ChunkChecksums.compute(layoutChunks);
+            byte[] merkleRoot = checksums.getMerkleRoot();
+            Log.info("Server: computed %d chunk checksums of size %d for %s in %d ms",
+                    checksums.size(), chunkSize, name, (nanoTime() - checksumStart) / (1000 * 1000));
 
-            do {
-                DatagramPacket incomingPacket = socket.receive();
-                InetAddress addr = incomingPacket.getAddress();
-                int port = incomingPacket.getPort();
+            ParityProvider parity = null;
+            if (parityBlockSize > 0) {
+                long start = nanoTime();
+                parity = new ParityProvider(layoutChunks, parityBlockSize);
+                Log.info("Server: computed %d parity chunks of size %d for %s in %d ms",
+                        parity.getBlockCount(), chunkSize, name, (nanoTime() - start) / (1000 * 1000));
+            }
+            InfoMessage infoMessage = new InfoMessage(name, layoutChunks.getFileSize(),
+                    multicastGroup, chunkSize, multicastGroup == null ? TRAIN_LENGTH : 0, merkleRoot);
+            return new ChunkLayout(this, layoutChunks, checksums, parity, infoMessage);
+        }
+    }
 
-                System.out.printf("Server: received BEGIN [client=%s:%d]\n", addr
-                        .getHostAddress(), port);
+    /**
+     * Find the file a client has asked for, opening it the first time a file of
+     * the catalog is asked for.
+     *
+     * @param name the name the client gave, or null if it gave none.
+     * @return the file, or null if the server has no such file.
+     */
+    ServedFile openFile(String name) throws IOException {
+        ServedFile served = findFile(name);
+        if (served != null || cache == null || !isCatalogName(name)) {
+            return served;
+        }
+        synchronized (catalog) {
+            served = catalog.get(name);
+            if (served == null) {
+                File catalogFile = new File(file, name);
+                if (!catalogFile.isFile()) {
+                    return null;
+                }
+                served = new ServedFile(name, new CachedFileProvider(catalogFile, cache));
+                catalog.put(name, served);
+                Log.info("Server: opened %s [size=%d]", name, served.chunks.getFileSize());
+                trimCatalog(served);
+            }
+            return served;
+        }
+    }
 
-                // Send info packet.
-                InfoMessage infoMessage = new InfoMessage(file.getName(), file.length());
-                socket.send(infoMessage, addr, port);
+    /**
+     * Close files of the catalog that no client is being sent, least recently
+     * used first, until at most MAX_OPEN_FILES are open, and their checksums and
+     * parity fit within the layout budget.
+     *
+     * @param keep a file not to close, as a client is waiting for it.
+     */
+    private void trimCatalog(ServedFile keep) {
+        synchronized (catalog) {
+            long layoutMemory = 0;
+            for (ServedFile served : catalog.values()) {
+                layoutMemory += served.getLayoutMemorySize();
+            }
+            if (catalog.size() <= MAX_OPEN_FILES && layoutMemory <= layoutBudget) {
+                return;
+            }
 
+            List<ServedFile> files = new ArrayList<>(catalog.values());
+            files.sort(Comparator.comparingLong(served -> served.lastUsed));
+            for (ServedFile served : files) {
+                if (catalog.size() <= MAX_OPEN_FILES && layoutMemory <= layoutBudget) {
+                    break;
+                }
+                long size = served.getLayoutMemorySize();
+                if (served != keep && served.closeIfIdle()) {
+                    catalog.remove(served.name, served);
+                    layoutMemory -= size;
+                    Log.info("Server: closed %s", served.name);
+                }
+            }
+        }
+    }
 
-                // Add the client to the queue of clients.
-                ClientContext context = new ClientContext();
-                context.addr = addr;
-                context.port = port;
-                clients.add(context);
+    /**
+     * @return the file a client has asked for, or null if the server has no such
+     *  file, or (if serving a catalog) hasn't yet opened it.
+     */
+    ServedFile findFile(String name) {
+        if (cache == null) {
+            // A single file is served whether or not the client names it.
+            return name == null || name.equals(servedFile.name) ? servedFile : null;
+        }
+        return name == null ? null : catalog.get(name);
+    }
 
-            } while(true);
+    /**
+     * @return whether `name` names a file directly within the catalog's directory.
+     */
+    static boolean isCatalogName(String name) {
+        return name != null && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
 
+    /**
+     * Begin listening on our socket, and run the server's event loops.
+     *
+     * The server's network I/O is performed by one EventLoop per sender thread.
+     * The first of these runs on the calling thread, and receives BEGIN messages
+     * for all of them; each client (and any NACK it later sends) is then handed to
+     * the loop chosen by hashing its address, which sends it INFO and PAYLOAD
+     * messages. All of the loops share one
+     * socket, and therefore one bandwidth budget. This method does not return
+     * unless the first loop fails.
+     */
+    public void run() {
+        try {
+            open();
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "sender-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            loops[0].run();
 
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Sends file data to connected clients.
+     * Open the served file (or prepare the catalog's cache) and the server's
+     * socket, and create its event loops, without running them.
+     *
+     * @return the event loops, the first of which receives messages from clients.
+     */
+    EventLoop[] open() throws IOException {
+        if (file.isDirectory()) {
+            layoutBudget = cacheSize / 4;
+            cache = new ChunkCache(cacheSize - layoutBudget);
+            Log.info("Server: Serving catalog [directory=%s, cache size=%d MB, layouts=%d MB, chunk size=%d]",
+                    file.getPath(), cache.getCapacity() / (1024 * 1024), layoutBudget / (1024 * 1024),
+                    chunkSize);
+        } else {
+            servedFile = new ServedFile(file.getName(), new MappedFileProvider(file));
+            Log.info("Server: Serving file [name=%s, size=%d, chunk size=%d]",
+                    file.getName(), servedFile.chunks.getFileSize(), chunkSize);
+
+            // The server's own chunk size is always available, and is prepared
+            // up front so that the first client isn't kept waiting for its parity.
+            servedFile.getLayout(chunkSize);
+        }
+        Log.info("Target bandwidth is %d kbps", targetBitsPerSecond / 1000);
+        if (layoutExecutor == null) {
+            layoutExecutor = layoutThread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "layouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        RateLimiter rateLimiter = TokenBucketRateLimiter.forBitsPerSecond(targetBitsPerSecond);
+        ThrottleSocket socket;
+        if (multicastGroup != null) {
+            Log.info("Sending file data to multicast group %s", multicastGroup);
+            socket = new ThrottleSocket(MulticastSupport.openSenderChannel(
+                    serverPort, multicastGroup, multicastInterface), rateLimiter);
+        } else {
+            socket = new ThrottleSocket(serverPort, rateLimiter);
+        }
+
+        loops = new EventLoop[senderThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(socket, i == 0);
+        }
+        return loops;
+    }
+
+    /**
+     * Close the socket and event loops created by open(), and stop the thread
+     * computing layouts if the server started it. The loops must not be running.
+     */
+    void close() throws IOException {
+        if (layoutThread != null) {
+            layoutThread.shutdown();
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.close();
+            }
+            loops[0].socket.getChannel().close();
+        }
+    }
+
+    /**
+     * Receives requests from, and sends file data to, connected clients.
+     *
+     * The event loop is driven by a Selector over a non-blocking DatagramChannel. It
+     * keeps at most one outgoing datagram pending at a time: having reserved
+     * bandwidth for the datagram with the ThrottleSocket, it waits on the Selector
+     * (servicing any incoming messages) until the datagram may be sent.
+     *
+     * Control messages such as INFO are sent ahead of file data, and chunks a
+     * client has asked to be resent (with a NACK) are sent ahead of chunks it has
+     * not yet been sent. If forward error correction is enabled, a PARITY message
+     * follows the first sending of the last chunk of each block. PAYLOAD messages
+     * are scheduled between clients using deficit round-robin: each time a client
+     * goes to the back of the queue, it earns quantumBytes of credit for each unit
+     * of its weight, and it is sent chunks for as long as its credit covers them.
+     * Over time, each client's share of bandwidth is thus proportional to its weight.
      *
-     * There is a single sender thread that is used for sending PAYLOAD messages to all
-     * clients. This thread loops through the collection of active clients, sending
-     * each client messages in a round-robin fashion. It uses a ThrottleSocket object
-     * to enforce global bandwidth limitations.
+     * The first chunks sent to a new client follow INFO back-to-back, as a packet
+     * train, ahead of other clients' data and without waiting on the ThrottleSocket
+     * (although they are counted against its limit), so that the client can time
+     * their arrival to measure its path's capacity. The client is then sent nothing
+     * more until it reports the capacity (or for a short while, if it doesn't).
+     *
+     * A client that sends REPORT messages is also paced by its own
+     * CongestionController, so that it is sent data no faster than its path can
+     * carry. A client that is waiting on its controller is passed over in the
+     * round-robin without earning credit, and if every client is waiting, the loop
+     * sleeps until the first of them may be sent to. All datagrams remain subject
+     * to the ThrottleSocket's overall limit.
+     *
+     * Datagrams are assembled in direct buffers that are allocated once, so that
+     * in the steady state, sending a chunk allocates nothing.
+     *
+     * When there are several loops, clients are only scheduled against others on
+     * the same loop, so weights are honoured exactly within a loop, and
+     * approximately (given enough clients to spread evenly) between loops.
      */
-    private class SenderThread implements Runnable {
+    class EventLoop implements Runnable {
+        static final int MAX_PACKET_SIZE = 65507;
+
+        /**
+         * Waits shorter than this are made by parking the thread rather than with
+         * Selector.select(), whose timeout has only millisecond resolution.
+         */
+        static final long SELECT_RESOLUTION_NANOS = 1000 * 1000;   // 1ms
+
+        /**
+         * Maximum number of datagrams received each time the channel is readable,
+         * so that a flood of requests can't stall sending.
+         */
+        static final int MAX_RECEIVES_PER_WAKEUP = 64;
+
+        /**
+         * Number of END messages sent to a client that has been sent every chunk,
+         * unless it asks for more first, and the interval before the first retry,
+         * which doubles with each one after.
+         */
+        static final int END_PROBES = 4;
+        static final long END_PROBE_INTERVAL_NANOS = 20L * 1000 * 1000;   // 20ms
+
+        /**
+         * Credit earned by a client of weight 1 on each pass. This covers the
+         * largest datagram that any session may be sent (a PARITY message for a
+         * chunk of the server's chunk size), so that each visit to a client sends
+         * it at least one, however large the chunks it negotiated.
+         */
+        private final int quantumBytes = chunkSize + FileProvider.PARITY_OVERHEAD;
+
         private final ThrottleSocket socket;
-        private final FileProvider fileProvider;
-        private final BlockingQueue<ClientContext> clients;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final int baseInterestOps;
+
+        // Work handed to this loop by the loop that received a client's message.
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // Clients being sent data, in deficit round-robin order, and every client
+        // with a session, by address (so a repeated request finds the session it
+        // started). Clients still being sent their packet trains are also queued
+        // in `trains`, from which they are dropped once their trains are done, or
+        // their trainRemaining is cleared.
+        private final Ring<ClientContext> clients = new Ring<>();
+
+        // Clients that their congestion controllers are holding back, until the
+        // time at which they may be sent to, when they rejoin `clients`.
+        private final TimingWheel<ClientContext> pacing = new TimingWheel<>(nanoTime());
+        private final ArrayDeque<ClientContext> trains = new ArrayDeque<>();
+        private final HashMap<SocketAddress, ClientContext> sessions = new HashMap<>();
+        private final ArrayDeque<OutgoingMessage> controlMessages = new ArrayDeque<>();
+
+        // END messages to be sent to clients that have been sent every chunk, in
+        // the order they are due. Clients stay in `sessions` until the last.
+        private final PriorityQueue<EndProbe> endProbes = new PriorityQueue<>(
+                (a, b) -> Long.signum(a.dueAt - b.dueAt));
+
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        private final BeginFlyweight beginFlyweight = new BeginFlyweight();
+        private final NackFlyweight nackFlyweight = new NackFlyweight();
+        private final ProbeFlyweight probeFlyweight = new ProbeFlyweight();
+        private final ReportFlyweight reportFlyweight = new ReportFlyweight();
+        private final ResumeFlyweight resumeFlyweight = new ResumeFlyweight();
+
+        // Messages logged for every datagram sent are sampled, so that even at
+        // DEBUG level the console doesn't limit the rate at which we can send.
+        private final Log.Sampler chunkLog = new Log.Sampler(Log.Level.DEBUG, 10);
+        private final Log.Sampler parityLog = new Log.Sampler(Log.Level.DEBUG, 10);
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+        // The datagram held in sendBuffer is sent to sendTarget once the time reaches
+        // sendAt. sendTarget is null when no datagram is pending.
+        private SocketAddress sendTarget;
+        private long sendAt;
 
-        SenderThread(ThrottleSocket socket, FileProvider fileProvider,
-                     BlockingQueue<ClientContext> clients) {
+        // When no datagram is pending because every client is waiting on its
+        // congestion controller (or there are none, but an END message is still
+        // to be sent), the time at which the first may be sent to. The loop
+        // sleeps until then, however many clients are waiting.
+        private boolean paced;
+        private long pacedUntil;
+
+        /**
+         * @param acceptsRequests whether this loop receives messages from clients.
+         *                        Exactly one loop should do so.
+         */
+        EventLoop(ThrottleSocket socket, boolean acceptsRequests) throws IOException {
             this.socket = socket;
-            this.fileProvider = fileProvider;
-            this.clients = clients;
+            this.selector = Selector.open();
+            this.baseInterestOps = acceptsRequests ? SelectionKey.OP_READ : 0;
+            this.key = socket.getChannel().register(selector, baseInterestOps);
+        }
+
+        /**
+         * Run a task on this loop's thread. This may be called from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
         }
 
         /**
-         * Entry point for sender thread.
+         * Entry point for the event loop.
          *
-         * This thread will loop forever (or until interrupted), sending messages to clients
-         * when they are waiting, and blocking until new clients are connected.
+         * This loops forever (or until an I/O error occurs), sending messages to
+         * clients when they are waiting, and blocking until new clients are connected.
          */
         @Override
         public void run() {
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
 
-            // Loop until InterruptedException forces a return
-            while (true) {
-                // Iterate the connected clients, sending each one a single PAYLOAD message
-                // in round-robin fashion.
-                for (ClientContext client : clients) {
-                    byte[] chunk = fileProvider.getChunk(client.nextChunk);
-                    if (chunk == null) {
-                        clients.remove(client);
-                        System.out.printf("Server: sent all chunks [client=%s:%d]\n",
-                                client.addr.getHostAddress(), client.port);
-                        continue;
+                    if (!isSendPending()) {
+                        prepareNextDatagram();
                     }
 
-                    System.out.printf("Server: sending chunk %d, length %d [client=%s:%d]\n",
-                            client.nextChunk, chunk.length, client.addr.getHostAddress(), client.port);
+                    waitForEvents();
+                    sendPending();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                    try {
-                        socket.send(chunk, client.addr, client.port);
-                        client.nextChunk++;
-                    } catch (IOException | InterruptedException e) {
-                        e.printStackTrace();
+        /**
+         * @return whether a datagram is held in sendBuffer, waiting to be sent.
+         */
+        boolean isSendPending() {
+            return sendTarget != null;
+        }
+
+        /**
+         * Send the pending datagram, if there is one and it is due.
+         *
+         * @return whether a datagram was sent.
+         */
+        boolean sendPending() throws IOException {
+            if (sendTarget == null || isWriteBlocked() || nanoTime() - sendAt < 0) {
+                return false;
+            }
+            if (!socket.send(sendBuffer, sendTarget)) {
+                // The socket's send buffer is full; wait for it to drain.
+                key.interestOps(baseInterestOps | SelectionKey.OP_WRITE);
+                return false;
+            }
+            sendTarget = null;
+            return true;
+        }
+
+        private boolean isWriteBlocked() {
+            return (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+        }
+
+        /**
+         * Wait until the pending datagram may be sent (or, if clients are being
+         * paced, until the next may be prepared), or until a datagram arrives,
+         * whichever comes first, and handle any events.
+         */
+        private void waitForEvents() throws IOException {
+            int ready;
+            long deadline = sendTarget != null ? sendAt : pacedUntil;
+            if (sendTarget == null ? !paced : isWriteBlocked()) {
+                ready = selector.select();
+            } else {
+                long wait = deadline - nanoTime();
+                if (wait >= SELECT_RESOLUTION_NANOS) {
+                    ready = selector.select(wait / SELECT_RESOLUTION_NANOS);
+                } else {
+                    ready = selector.selectNow();
+                    if (ready == 0 && wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            }
+
+            if (ready == 0) {
+                return;
+            }
+
+            // Our channel is the only one registered, so rather than iterating the
+            // selected keys (which allocates), we just consult its ready set.
+            selector.selectedKeys().clear();
+            if (key.isWritable()) {
+                key.interestOps(baseInterestOps);
+            }
+            if (key.isReadable()) {
+                receiveDatagrams();
+            }
+        }
+
+        private void receiveDatagrams() throws IOException {
+            for (int i = 0; i < MAX_RECEIVES_PER_WAKEUP; i++) {
+                receiveBuffer.clear();
+                SocketAddress sender = socket.receive(receiveBuffer);
+                if (sender == null) {
+                    return;
+                }
+                receiveBuffer.flip();
+
+                int length = receiveBuffer.remaining();
+                int packetType = MessageFlyweight.getMessageType(receiveBuffer, 0, length);
+                try {
+                    if (packetType == Message.MESSAGE_TYPE_BEGIN) {
+                        beginFlyweight.wrap(receiveBuffer, 0, length);
+                        handleBegin((InetSocketAddress) sender, beginFlyweight.getWeight(),
+                                beginFlyweight.getMaxDatagramSize(), beginFlyweight.getFilename(),
+                                beginFlyweight.getRanges());
+                    } else if (packetType == Message.MESSAGE_TYPE_RESUME) {
+                        resumeFlyweight.wrap(receiveBuffer, 0, length);
+                        handleResume((InetSocketAddress) sender, resumeFlyweight.getWeight(),
+                                resumeFlyweight.getMaxDatagramSize(), resumeFlyweight.getChunkSize(),
+                                resumeFlyweight.getRanges(), resumeFlyweight.getFilename());
+                    } else if (packetType == Message.MESSAGE_TYPE_NACK) {
+                        nackFlyweight.wrap(receiveBuffer, 0, length);
+                        handleNack((InetSocketAddress) sender, nackFlyweight.getRanges(),
+                                nackFlyweight.getChunkSize(), nackFlyweight.getFilename());
+                    } else if (packetType == Message.MESSAGE_TYPE_PROBE) {
+                        // Echo probes that arrived whole, so the client learns that
+                        // datagrams of that size get through both ways.
+                        probeFlyweight.wrap(receiveBuffer, 0, length);
+                        if (probeFlyweight.isComplete()) {
+                            controlMessages.add(new OutgoingMessage(
+                                    new ProbeMessage(probeFlyweight.getProbeSize()), sender));
+                        }
+                    } else if (packetType == Message.MESSAGE_TYPE_REPORT) {
+                        reportFlyweight.wrap(receiveBuffer, 0, length);
+                        handleReport((InetSocketAddress) sender, reportFlyweight.getTimestamp(),
+                                reportFlyweight.getPacketsReceived(), reportFlyweight.getBytesReceived(),
+                                reportFlyweight.getPacketsLost(), reportFlyweight.getCapacityEstimate());
                     }
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Server: discarding malformed message: %s", e);
                 }
+            }
+        }
+
+        /**
+         * @return the loop responsible for a client.
+         */
+        private EventLoop loopFor(SocketAddress address) {
+            return loops[(address.hashCode() & Integer.MAX_VALUE) % loops.length];
+        }
+
+        /**
+         * Hand a client that has sent a BEGIN message to the loop responsible for it.
+         */
+        private void handleBegin(InetSocketAddress sender, int weight, int maxDatagramSize, String filename,
+                                 List<ByteRange> byteRanges) {
+            Log.info("Server: received BEGIN [client=%s:%d, weight=%d, max datagram=%d, file=%s, ranges=%d]",
+                    sender.getAddress().getHostAddress(), sender.getPort(), weight, maxDatagramSize, filename,
+                    byteRanges.size());
+            start(sender, weight, maxDatagramSize, filename, byteRanges, 0, null);
+        }
+
+        /**
+         * Hand a client that has sent a RESUME message to the loop responsible for it.
+         */
+        private void handleResume(InetSocketAddress sender, int weight, int maxDatagramSize, int chunkSize,
+                                  List<ChunkRange> ranges, String filename) {
+            Log.info("Server: received RESUME [client=%s:%d, weight=%d, max datagram=%d, chunk size=%d, ranges=%d, file=%s]",
+                    sender.getAddress().getHostAddress(), sender.getPort(), weight, maxDatagramSize, chunkSize,
+                    ranges.size(), filename);
+            start(sender, weight, maxDatagramSize, filename, Collections.<ByteRange>emptyList(), chunkSize, ranges);
+        }
+
+        /**
+         * Start sending a file to a client, on the loop responsible for it.
+         *
+         * A multicast group is always sent the whole file, so a RESUME message is
+         * treated as a BEGIN, and byte ranges are ignored. Otherwise, a client that
+         * asks for byte ranges is sent only the chunks that hold any part of them,
+         * and a resuming client is sent only the ranges it asked for, provided that
+         * it can still be sent chunks of the size to which they refer; if not, it
+         * is sent the whole file, in chunks of the size negotiated as for BEGIN.
+         *
+         * The checksums and parity for a chunk size no client has used before take
+         * a pass over the whole file, so they are computed off the loop, and the
+         * request is handled again once they are ready. A file of the catalog that
+         * isn't yet open is likewise opened off the loop.
+         *
+         * @param byteRanges the byte ranges asked for by BEGIN, or an empty list
+         *                   to send the whole file.
+         * @param resumeChunkSize the chunk size to which `resumeRanges` refer.
+         * @param resumeRanges the chunks a resuming client is missing, or null to
+         *                     send the whole file.
+         */
+        private void start(InetSocketAddress sender, int weight, int maxDatagramSize, String filename,
+                           List<ByteRange> byteRanges, int resumeChunkSize, List<ChunkRange> resumeRanges) {
+            if (multicastGroup != null) {
+                EventLoop loop = loopFor(multicastGroup);
+                if (loop == this) {
+                    join(sender);
+                } else {
+                    loop.execute(() -> loop.join(sender));
+                }
+                return;
+            }
 
-                // If there are no clients in the queue, we need to block until one is added.
-                // (In the case where there are clients in the queue, we will immediately go
-                // back to the beginning of the send loop).
-                if (clients.isEmpty()) {
-                    // There is no blocking peek(), so do a (blocking) take() and replace the
-                    // item that was removed with add().
-                    ClientContext client = null;
+            ServedFile served = findFile(filename);
+            if (served == null && cache != null && isCatalogName(filename)) {
+                layoutExecutor.execute(() -> {
                     try {
-                        client = clients.take();
-                    } catch (InterruptedException e) {
-                        System.err.println("SenderThread was interrupted.");
+                        if (openFile(filename) != null) {
+                            execute(() -> start(sender, weight, maxDatagramSize, filename, byteRanges,
+                                    resumeChunkSize, resumeRanges));
+                            return;
+                        }
+                    } catch (IOException | UncheckedIOException e) {
+                        Log.error("Server: failed to open %s: %s", filename, e);
                         return;
                     }
-                    clients.add(client);
+                    discardUnknown(sender, filename, resumeRanges != null);
+                });
+                return;
+            }
+            if (served == null) {
+                discardUnknown(sender, filename, resumeRanges != null);
+                return;
+            }
+            int chunkSize = negotiateChunkSize(maxDatagramSize);
+            if (resumeRanges != null && resumeChunkSize >= FileProvider.MIN_CHUNK_SIZE
+                    && resumeChunkSize <= chunkSize) {
+                chunkSize = resumeChunkSize;
+            }
+
+            CompletableFuture<ChunkLayout> pending = served.prepareLayout(chunkSize, layoutExecutor);
+            if (!pending.isDone()) {
+                pending.whenComplete((ready, e) -> {
+                    if (e == null) {
+                        execute(() -> start(sender, weight, maxDatagramSize, filename, byteRanges,
+                                resumeChunkSize, resumeRanges));
+                    } else {
+                        Log.error("Server: failed to prepare %s: %s", filename, e);
+                    }
+                });
+                return;
+            }
+            ChunkLayout layout;
+            try {
+                layout = pending.join();
+            } catch (CompletionException e) {
+                Log.error("Server: failed to prepare %s: %s", filename, e.getCause());
+                return;
+            }
+
+            boolean resumable = resumeRanges != null && layout.chunks.getChunkSize() == resumeChunkSize;
+            if (resumeRanges != null && !resumable) {
+                Log.info("Server: can't resume in chunks of size %d; sending the whole file [client=%s:%d]",
+                        resumeChunkSize, sender.getAddress().getHostAddress(), sender.getPort());
+            }
+            List<ChunkRange> ranges = resumable ? resumeRanges : byteRanges.isEmpty() ? null
+                    : ByteRange.toChunkRanges(byteRanges, layout.chunks.getFileSize(),
+                            layout.chunks.getChunkPayloadSize());
+            boolean resume = resumeRanges != null;
+
+            if (!served.acquire()) {
+                // The file has just been closed, and is about to leave the catalog;
+                // handle the request again, to open it anew.
+                execute(() -> start(sender, weight, maxDatagramSize, filename, byteRanges,
+                        resumeChunkSize, resumeRanges));
+                return;
+            }
+            ClientContext context = new ClientContext(sender, layout);
+            context.weight = weight;
+
+            EventLoop loop = loopFor(sender);
+            if (loop == this) {
+                admit(context, ranges, resume);
+            } else {
+                loop.execute(() -> loop.admit(context, ranges, resume));
+            }
+        }
+
+        private void discardUnknown(InetSocketAddress sender, String filename, boolean resume) {
+            Log.warn("Server: discarding %s for unknown file %s [client=%s:%d]", resume ? "RESUME" : "BEGIN",
+                    filename, sender.getAddress().getHostAddress(), sender.getPort());
+        }
+
+        /**
+         * Hand a client's NACK message to the loop responsible for it.
+         */
+        private void handleNack(InetSocketAddress sender, List<ChunkRange> ranges, int chunkSize,
+                                String filename) {
+            Log.info("Server: received NACK [client=%s:%d, ranges=%d]",
+                    sender.getAddress().getHostAddress(), sender.getPort(),
+                    ranges.size());
+
+            if (multicastGroup != null) {
+                EventLoop loop = loopFor(multicastGroup);
+                if (loop == this) {
+                    resendToGroup(ranges);
+                } else {
+                    loop.execute(() -> loop.resendToGroup(ranges));
+                }
+                return;
+            }
+
+            EventLoop loop = loopFor(sender);
+            if (loop == this) {
+                resend(sender, ranges, chunkSize, filename);
+            } else {
+                loop.execute(() -> loop.resend(sender, ranges, chunkSize, filename));
+            }
+        }
+
+        /**
+         * Hand a client's REPORT message to the loop responsible for it.
+         *
+         * Reports are ignored in multicast mode, where data is sent once for the
+         * whole group and so can't be paced for any one client.
+         */
+        private void handleReport(InetSocketAddress sender, long timestamp, long packetsReceived,
+                                  long bytesReceived, long packetsLost, long capacityEstimate) {
+            if (multicastGroup != null) {
+                return;
+            }
+
+            EventLoop loop = loopFor(sender);
+            if (loop == this) {
+                report(sender, timestamp, packetsReceived, bytesReceived, packetsLost, capacityEstimate);
+            } else {
+                loop.execute(() -> loop.report(sender, timestamp, packetsReceived, bytesReceived, packetsLost,
+                        capacityEstimate));
+            }
+        }
+
+        /**
+         * Adjust the rate at which a client is sent data according to its report.
+         */
+        private void report(InetSocketAddress sender, long timestamp, long packetsReceived,
+                            long bytesReceived, long packetsLost, long capacityEstimate) {
+            ClientContext client = sessions.get(sender);
+            if (client == null) {
+                return;
+            }
+            long now = nanoTime();
+            client.lastHeard = now;
+            boolean changed = client.congestion.onReport(timestamp, packetsReceived, bytesReceived, packetsLost,
+                    capacityEstimate, now);
+            // The report may let the client be sent to sooner than it was waiting for.
+            if (pacing.cancel(client)) {
+                clients.addLast(client);
+            }
+            if (changed && Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Server: received REPORT [client=%s:%d, received=%d, lost=%d, capacity=%d kbps, rate=%d kbps]",
+                        sender.getAddress().getHostAddress(), sender.getPort(), packetsReceived, packetsLost,
+                        capacityEstimate * 8 / 1000, client.congestion.getBytesPerSecond() * 8 / 1000);
+            }
+        }
+
+        /**
+         * Reply to a client's BEGIN or RESUME message with an INFO message, and start
+         * sending the client the file.
+         *
+         * @param ranges the chunks the client is to be sent, which are all that it
+         *               is sent, or null to send the whole file.
+         * @param resume whether the client sent RESUME, rather than BEGIN.
+         */
+        void admit(ClientContext client, List<ChunkRange> ranges, boolean resume) {
+            ClientContext existing = sessions.get(client.address);
+            if (existing != null) {
+                // A repeated BEGIN, sent because our INFO was lost or is late. Send
+                // it again, but carry on with the download already under way. A
+                // RESUME sent once the client has had our INFO (and found that it
+                // had part of the file already) cuts the download short.
+                controlMessages.add(new OutgoingMessage(existing.layout.infoMessage, client.address));
+                client.layout.file.release();
+                existing.lastHeard = nanoTime();
+                if (resume && ranges != null && existing.layout == client.layout) {
+                    existing.sendOnly(ranges);
+                    wake(existing);
+                }
+                return;
+            }
+            controlMessages.add(new OutgoingMessage(client.layout.infoMessage, client.address));
+            sessions.put(client.address, client);
+            enqueue(client);
+
+            if (ranges != null) {
+                // No packet train: the client may want too few chunks for one.
+                client.sendOnly(ranges);
+                return;
+            }
+            client.trainRemaining = (int) Math.min(client.layout.infoMessage.getTrainLength(), client.endChunk);
+            if (client.trainRemaining > 0) {
+                trains.add(client);
+            }
+        }
+
+        /**
+         * Reply to a client's BEGIN message with an INFO message naming the multicast
+         * group, and make sure that the whole file is sent to the group after the
+         * client has joined it.
+         *
+         * The group is served by a single session that cycles through the file. A
+         * client joining part way through a cycle picks up from the current chunk,
+         * and the session keeps going until it has wrapped around to that chunk
+         * again, so late joiners don't cause chunks to be sent twice as often.
+         */
+        private void join(InetSocketAddress sender) {
+            ClientContext group = groupSession();
+            controlMessages.add(new OutgoingMessage(group.layout.infoMessage, sender));
+            group.remaining = group.endChunk;
+        }
+
+        /**
+         * Queue chunks that a client of a multicast group has reported missing to
+         * be sent to the group again.
+         *
+         * Unlike a unicast NACK, this doesn't replace the repairs already queued,
+         * since they may have been requested by other members of the group.
+         */
+        private void resendToGroup(List<ChunkRange> ranges) {
+            if (!ranges.isEmpty()) {
+                groupSession().addRepairs(ranges);
+            }
+        }
+
+        /**
+         * @return the session sending to the multicast group, started if necessary.
+         */
+        private ClientContext groupSession() {
+            ClientContext group = sessions.get(multicastGroup);
+            if (group == null) {
+                group = new ClientContext(multicastGroup, servedFile.findLayout(chunkSize));
+                servedFile.acquire();
+                group.cycling = true;
+                sessions.put(multicastGroup, group);
+                enqueue(group);
+            } else {
+                wake(group);
+            }
+            return group;
+        }
+
+        /**
+         * Queue chunks that a client has reported missing to be sent again. A NACK
+         * listing no chunks at all is sent by a client that has the whole file (or
+         * all that it asked for), and ends its session.
+         *
+         * @param chunkSize the chunk size to which the ranges refer.
+         * @param filename the file to which the ranges refer, or null if the
+         *                 client didn't say.
+         */
+        private void resend(InetSocketAddress sender, List<ChunkRange> ranges, int chunkSize, String filename) {
+            ClientContext client = sessions.get(sender);
+            if (client == null) {
+                if (ranges.isEmpty()) {
+                    return;
+                }
+                // We have already sent this client the whole file, and forgotten it.
+                // Start a new session, to send it only the chunks it is missing. Only
+                // files and chunk sizes asked for by a BEGIN message are honoured.
+                ServedFile served = findFile(filename);
+                if (served == null) {
+                    Log.warn("Server: discarding NACK for unknown file %s", filename);
+                    return;
+                }
+                ChunkLayout layout = served.findLayout(chunkSize);
+                if (layout == null) {
+                    Log.warn("Server: discarding NACK for unknown chunk size %d", chunkSize);
+                    return;
+                }
+                if (!served.acquire()) {
+                    Log.warn("Server: discarding NACK for closed file %s", filename);
+                    return;
+                }
+                client = new ClientContext(sender, layout);
+                client.nextChunk = client.endChunk;
+                sessions.put(sender, client);
+                enqueue(client);
+            } else if (ranges.isEmpty()) {
+                // The client has every chunk it wants, and is done.
+                forget(client);
+                return;
+            } else {
+                client.lastHeard = nanoTime();
+                wake(client);
+            }
+            client.setRepairs(ranges);
+        }
+
+        /**
+         * End a client's session, whatever it was doing.
+         */
+        private void forget(ClientContext client) {
+            if (!pacing.cancel(client)) {
+                clients.remove(client);
+            }
+            client.trainRemaining = 0;
+            client.endProbe = null;
+            endSession(client);
+        }
+
+        /**
+         * Drop a client's session, if it still has one, and with it the client's
+         * hold on its file.
+         */
+        private void endSession(ClientContext client) {
+            if (sessions.remove(client.address, client)) {
+                client.layout.file.release();
+            }
+        }
+
+        /**
+         * Put a client that has been sent every chunk, and is being sent END
+         * messages, back in the round-robin, as it has asked for more.
+         */
+        private void wake(ClientContext client) {
+            if (client.endProbe != null) {
+                client.endProbe = null;
+                enqueue(client);
+            }
+        }
+
+        /**
+         * Start sending END messages to a client that has been sent every chunk,
+         * the first of them straight away.
+         */
+        private void end(ClientContext client, long now) {
+            client.endsSent = 0;
+            client.endProbe = new EndProbe(client, now);
+            endProbes.add(client.endProbe);
+        }
+
+        /**
+         * Place a client at the back of the queue, granting it credit for its next turn.
+         */
+        private void enqueue(ClientContext client) {
+            client.deficit += quantumBytes * client.weight;
+            clients.addLast(client);
+        }
+
+        /**
+         * Fill sendBuffer with the next datagram to be sent, if there is one, and
+         * reserve bandwidth for it.
+         */
+        void prepareNextDatagram() {
+            OutgoingMessage control = controlMessages.poll();
+            if (control != null) {
+                sendBuffer.clear();
+                sendBuffer.put(control.bytes);
+                sendBuffer.flip();
+                schedule(control.target);
+                return;
+            }
+
+            if (prepareEndProbe()) {
+                return;
+            }
+
+            ClientContext client = nextClient();
+            if (client == null) {
+                // Wake when the next END message is due, if that is sooner.
+                EndProbe probe = endProbes.peek();
+                if (probe != null && (!paced || probe.dueAt - pacedUntil < 0)) {
+                    paced = true;
+                    pacedUntil = probe.dueAt;
+                }
+                return;
+            }
+
+            if (client.pendingParity >= 0) {
+                int block = client.pendingParity;
+                ParityProvider parity = client.layout.parity;
+                if (parityLog.isEnabled()) {
+                    parityLog.log("Server: sending parity for block %d [client=%s:%d]",
+                            block, client.addr.getHostAddress(), client.port);
+                }
+
+                sendBuffer.clear();
+                ParityFlyweight.encodeHeader(sendBuffer, parity.getFirstChunk(block),
+                        parity.getBlockChunkCount(block), parity.getChecksum(block));
+                parity.readParity(block, sendBuffer);
+                sendBuffer.flip();
+
+                client.pendingParity = -1;
+                client.deficit -= sendBuffer.remaining();
+                client.congestion.onSend(sendBuffer.remaining(), nanoTime());
+                schedule(client.address, client.trainRemaining > 0);
+                return;
+            }
+
+            long chunk = client.peekChunk();
+            ChunkProvider chunks = client.layout.chunks;
+            if (chunkLog.isEnabled()) {
+                chunkLog.log("Server: sending chunk %d, length %d [client=%s:%d]",
+                        chunk, chunks.getChunkLength(chunk),
+                        client.addr.getHostAddress(), client.port);
+            }
+
+            sendBuffer.clear();
+            PayloadFlyweight.encodeHeader(sendBuffer, chunks.getChunkPosition(chunk),
+                    client.layout.checksums.get(chunk));
+            try {
+                chunks.readChunk(chunk, sendBuffer);
+            } catch (UncheckedIOException e) {
+                // The file can no longer be read, so there's no use carrying on;
+                // the client will give up once it stops hearing from us.
+                Log.error("Server: failed to read %s: %s [client=%s:%d]",
+                        client.layout.infoMessage.getFilename(), e.getCause(),
+                        client.addr.getHostAddress(), client.port);
+                forget(client);
+                return;
+            }
+            sendBuffer.flip();
+
+            boolean inTrain = client.trainRemaining > 0;
+            client.advance();
+            client.deficit -= sendBuffer.remaining();
+            client.congestion.onSend(sendBuffer.remaining(), nanoTime());
+            if (inTrain && --client.trainRemaining == 0) {
+                client.congestion.awaitReport(nanoTime());
+            }
+            schedule(client.address, inTrain);
+        }
+
+        /**
+         * Fill sendBuffer with the END message that is most overdue, if any is due,
+         * and reserve bandwidth for it. Once a client has been sent its last END
+         * message, its session is forgotten.
+         *
+         * @return whether an END message was prepared.
+         */
+        private boolean prepareEndProbe() {
+            long now = nanoTime();
+            EndProbe probe;
+            while ((probe = endProbes.peek()) != null && probe.dueAt - now <= 0) {
+                endProbes.poll();
+                ClientContext client = probe.client;
+                if (client.endProbe != probe) {
+                    continue;   // the client has asked for more since
+                }
+
+                ChunkProvider chunks = client.layout.chunks;
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug("Server: sending END [client=%s:%d, chunks=%d, probe=%d]",
+                            client.addr.getHostAddress(), client.port, chunks.getChunkCount(), client.endsSent);
+                }
+                sendBuffer.clear();
+                EndFlyweight.encode(sendBuffer, chunks.getChunkSize(), chunks.getChunkCount(), client.endsSent);
+                sendBuffer.flip();
+
+                if (++client.endsSent < END_PROBES) {
+                    client.endProbe = new EndProbe(client,
+                            now + (END_PROBE_INTERVAL_NANOS << (client.endsSent - 1)));
+                    endProbes.add(client.endProbe);
+                } else {
+                    client.endProbe = null;
+                    endSession(client);
+                }
+                schedule(client.address);
+                return true;
+            }
+            return false;
+        }
+
+        private void schedule(SocketAddress target) {
+            schedule(target, false);
+        }
+
+        /**
+         * @param now whether to send the datagram without waiting for the bandwidth
+         *            reserved for it, as for the packets of a train.
+         */
+        private void schedule(SocketAddress target, boolean now) {
+            sendTarget = target;
+            sendAt = socket.reserve(sendBuffer.remaining());
+            if (now) {
+                sendAt = Math.min(sendAt, nanoTime());
+            }
+        }
+
+        /**
+         * Find the client that should be sent the next chunk, according to deficit
+         * round-robin, discarding any clients that have been sent the whole file
+         * (which are then sent END messages), and those that have gone away.
+         * Clients that their congestion controllers are holding back are moved to
+         * the timing wheel until they may be sent to, and then rejoin the back of
+         * the round-robin, with the credit they had. Each client visited costs
+         * O(1), however many there are.
+         *
+         * A client still being sent its packet train is chosen ahead of all others.
+         *
+         * @return the next client to send to, or null if there are none, or if all
+         *  of them are being held back (in which case `paced` is set).
+         */
+        private ClientContext nextClient() {
+            ClientContext train;
+            while ((train = trains.peekFirst()) != null) {
+                if (train.trainRemaining > 0 && nextPacketSize(train) >= 0) {
+                    return train;
+                }
+                trains.pollFirst();
+            }
+
+            paced = false;
+            long now = nanoTime();
+            pacing.expire(now, clients);
+
+            ClientContext client;
+            while ((client = clients.peekFirst()) != null) {
+                // The group of a multicast session is never heard from itself.
+                if (!client.cycling && now - client.lastHeard > sessionTimeoutNanos) {
+                    Log.warn("Server: client timed out [client=%s:%d]",
+                            client.addr.getHostAddress(), client.port);
+                    forget(client);
+                    continue;
+                }
+
+                int packetSize = nextPacketSize(client);
+                if (packetSize < 0) {
+                    clients.pollFirst();
+                    Log.info("Server: sent all chunks [client=%s:%d]",
+                            client.addr.getHostAddress(), client.port);
+                    end(client, now);
+                    continue;
+                }
+
+                long delay = client.congestion.getDelay(now);
+                if (delay > 0) {
+                    clients.pollFirst();
+                    pacing.schedule(client, now + delay);
+                    continue;
+                }
+
+                if (packetSize <= client.deficit) {
+                    return client;
                 }
+
+                // This client has used up its credit; move on to the next.
+                enqueue(clients.pollFirst());
+            }
+
+            if (!pacing.isEmpty()) {
+                paced = true;
+                pacedUntil = pacing.nextDue();
+            }
+            return null;
+        }
+
+        /**
+         * @return the size of the next datagram to be sent to a client, or -1 if
+         *  there is nothing more to send it.
+         */
+        private int nextPacketSize(ClientContext client) {
+            if (client.pendingParity >= 0) {
+                return ParityFlyweight.HEADER_SIZE + client.layout.parity.getParityLength(client.pendingParity);
             }
+            int chunkLength = client.layout.chunks.getChunkLength(client.peekChunk());
+            return chunkLength < 0 ? -1 : FileProvider.CHUNK_HEADER_SIZE + chunkLength;
+        }
+    }
+
+    /**
+     * A message waiting to be sent.
+     */
+    static class OutgoingMessage {
+        final ByteBuffer bytes;
+        final SocketAddress target;
+
+        OutgoingMessage(Message message, SocketAddress target) {
+            this.bytes = ByteBuffer.wrap(message.getBytes());
+            this.target = target;
+        }
+    }
+
+    /**
+     * An END message due to be sent to a client. A probe is superseded, rather
+     * than removed from the queue, when the client asks for more.
+     */
+    static class EndProbe {
+        final ClientContext client;
+        final long dueAt;   // nanoTime()
+
+        EndProbe(ClientContext client, long dueAt) {
+            this.client = client;
+            this.dueAt = dueAt;
         }
     }
 
     /**
      * Represents a client that has requested the file download.
      */
-    class ClientContext {
+    class ClientContext extends TimingWheel.Timer<ClientContext> {
         InetAddress addr;
         int port;
-        int nextChunk = 0;  // next file chunk to be sent
+        InetSocketAddress address;  // addr and port, for sending
+        final ChunkLayout layout;   // chunk size, and chunks and parity of that size
+        final CongestionController congestion;  // paces the client, once it reports
+        long nextChunk = 0;  // next file chunk to be sent
+        long endChunk;       // one past the last chunk to be sent
+        int weight = BeginMessage.DEFAULT_WEIGHT;  // share of bandwidth relative to other clients
+        long deficit = 0;   // bytes this client may be sent before yielding to the next
+
+        // Chunks the client has asked to be resent, and the number of chunks of the
+        // first range that have been resent so far.
+        ArrayDeque<ChunkRange> repairs = new ArrayDeque<>();
+        long repairsSent = 0;
+
+        // A session sending to a multicast group cycles through the file, wrapping
+        // around to the first chunk, until `remaining` more chunks have been sent.
+        boolean cycling = false;
+        long remaining = 0;
+
+        // Block whose parity chunk is to be sent next, or -1 if none.
+        int pendingParity = -1;
+
+        // Chunks still to be sent back-to-back as the packet train.
+        int trainRemaining = 0;
+
+        // Once every chunk has been sent, the next END message to be sent, and
+        // the number sent so far. endProbe is null while there are chunks to send.
+        EndProbe endProbe;
+        int endsSent = 0;
+
+        // When the client last sent us a message (by nanoTime()).
+        long lastHeard = nanoTime();
+
+        ClientContext(InetSocketAddress address, ChunkLayout layout) {
+            this.addr = address.getAddress();
+            this.port = address.getPort();
+            this.address = address;
+            this.layout = layout;
+            this.endChunk = layout.chunks.getChunkCount();
+            this.congestion = new CongestionController(layout.chunks.getChunkSize());
+        }
+
+        /**
+         * @return the index of the next chunk to be sent to this client, or -1 if
+         *  there is nothing more to send.
+         */
+        long peekChunk() {
+            ChunkRange range;
+            while ((range = repairs.peekFirst()) != null) {
+                if (repairsSent < range.getChunkCount()) {
+                    return range.getFirstChunk() + repairsSent;
+                }
+                repairs.pollFirst();
+                repairsSent = 0;
+            }
+            if (cycling) {
+                return remaining > 0 && endChunk > 0 ? nextChunk : -1;
+            }
+            return nextChunk < endChunk ? nextChunk : -1;
+        }
+
+        /**
+         * Move past the chunk returned by peekChunk(), once it has been sent.
+         */
+        void advance() {
+            if (!repairs.isEmpty()) {
+                repairsSent++;
+                return;
+            }
+
+            // Once the last chunk of a block has been sent for the first time, send
+            // the block's parity.
+            if (layout.parity != null && layout.parity.isLastInBlock(nextChunk)) {
+                pendingParity = layout.parity.getBlock(nextChunk);
+            }
+            if (cycling) {
+                nextChunk = (nextChunk + 1) % endChunk;
+                remaining--;
+            } else {
+                nextChunk++;
+            }
+        }
+
+        /**
+         * Replace the chunks waiting to be resent.
+         *
+         * Each NACK lists every chunk the client is missing, so it supersedes any
+         * earlier NACK. Chunks that we have not yet sent for the first time are
+         * ignored, as they will be sent anyway.
+         */
+        void setRepairs(List<ChunkRange> ranges) {
+            repairs.clear();
+            repairsSent = 0;
+            for (ChunkRange range : ranges) {
+                long end = Math.min(range.getEndChunk(), nextChunk);
+                if (range.getFirstChunk() < end) {
+                    repairs.add(new ChunkRange(range.getFirstChunk(), end - range.getFirstChunk()));
+                }
+            }
+        }
+
+        /**
+         * Send only the given chunks, in place of whatever remained to be sent: the
+         * chunks that a client resuming an earlier download is missing, or those
+         * holding the byte ranges that a client asked for.
+         */
+        void sendOnly(List<ChunkRange> ranges) {
+            nextChunk = endChunk;
+            pendingParity = -1;
+            trainRemaining = 0;
+            repairs.clear();
+            repairsSent = 0;
+            addRepairs(ranges);
+        }
+
+        /**
+         * Add to the chunks waiting to be resent, without discarding those already
+         * queued.
+         */
+        void addRepairs(List<ChunkRange> ranges) {
+            for (ChunkRange range : ranges) {
+                long end = Math.min(range.getEndChunk(), endChunk);
+                if (range.getFirstChunk() < end) {
+                    repairs.add(new ChunkRange(range.getFirstChunk(), end - range.getFirstChunk()));
+                }
+            }
+        }
     }
 }
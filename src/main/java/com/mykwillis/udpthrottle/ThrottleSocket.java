@@ -1,138 +1,117 @@
 package com.mykwillis.udpthrottle;
 
-import com.mykwillis.udpthrottle.message.Message;
-
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 
 /**
  * Socket wrapper that enforces a maximum bandwidth limitation.
  *
- * Our general strategy is to measure the actual bytes sent over some (small)
- * period of time, and then introduce an artificial delay via sleep() when that
- * rate exceeds our target value.
+ * The socket is a non-blocking DatagramChannel, intended to be driven by a
+ * Selector. Before each datagram is sent, the caller reserves capacity for it
+ * with reserve(), which returns the time at which the RateLimiter allows the
+ * datagram to go out; the caller services other events until that time, and
+ * then calls send(). With the default TokenBucketRateLimiter, this paces packets
+ * evenly at the target rate, rather than sending in bursts and then sleeping to
+ * compensate.
  *
- * There are a couple of heuristics employed that attempt to smooth out the send
- * rate, preventing it from spiking for small periods of time before being stopped
- * completely.
+ * A single ThrottleSocket may be shared by several threads, each with its own
+ * Selector, in which case they all draw on the same bandwidth budget.
  */
 class ThrottleSocket {
 
     /**
-     * Desired bandwidth utilization, in bits per second.
-     */
-    static final int TARGET_BITS_PER_SECOND = 1 * 1024 * 1024;         // 1 Mebibit
-
-    /**
-     * Convenience constant for internal calculations that use bytes per millisecond.
+     * Default bandwidth utilization, in bits per second, used when none is
+     * specified on the command line.
      */
-    final static int TARGET_BYTES_PER_MILLISECOND = (TARGET_BITS_PER_SECOND / 8) / 1000;
+    static final long DEFAULT_TARGET_BITS_PER_SECOND = 1 * 1024 * 1024;         // 1 Mebibit
 
     /**
-     * Number of bytes that will be sent before checking bandwidth utilization. This
-     * is chosen to be ~ 10 times / second when we are saturating allocated bandwidth.
+     * Interval at which the achieved bandwidth is reported to the console.
      */
-    final static int BYTES_BETWEEN_DELAY_CHECKS = TARGET_BYTES_PER_MILLISECOND * 100;
+    static final long REPORT_INTERVAL_NANOS = 1000 * 1000 * 1000;   // 1 second
 
-    private DatagramSocket socket;
-    private long start = 0;
-    private long bytesSentThisPeriod = 0;
-    private boolean shouldStallEachPacket = true;
+    private final DatagramChannel channel;
+    private final RateLimiter rateLimiter;
+    private final AtomicLong periodStart = new AtomicLong(0);
+    private final LongAdder bytesSentThisPeriod = new LongAdder();
 
-    public ThrottleSocket(DatagramSocket socket) {
-        this.socket = socket;
+    ThrottleSocket(DatagramChannel channel, RateLimiter rateLimiter) throws IOException {
+        this.channel = channel;
+        this.rateLimiter = rateLimiter;
+        channel.configureBlocking(false);
     }
 
-    ThrottleSocket(int port) throws SocketException {
-        this.socket = new DatagramSocket(port);
+    ThrottleSocket(int port, RateLimiter rateLimiter) throws IOException {
+        this(DatagramChannel.open().bind(new InetSocketAddress(port)), rateLimiter);
     }
 
-    void send(Message message, InetAddress addr, int port) throws IOException, InterruptedException {
-        DatagramPacket packet = message.getDatagramPacket(addr, port);
-        send(packet);
+    /**
+     * @return the underlying channel, for registration with a Selector.
+     */
+    DatagramChannel getChannel() {
+        return channel;
     }
 
-    void send(byte[] bytes, InetAddress addr, int port) throws IOException, InterruptedException {
-        DatagramPacket packet = new DatagramPacket(bytes, bytes.length, addr, port);
-        send(packet);
+    /**
+     * Reserve capacity for sending a datagram.
+     *
+     * @param bytes the size of the datagram.
+     * @return the System.nanoTime() value at or after which the datagram may be sent.
+     */
+    long reserve(int bytes) {
+        return rateLimiter.reserve(bytes);
     }
 
     /**
-     * Send a datagram over the network, blocking if necessary to enforce bandwidth limits.
+     * Send a datagram for which capacity has already been reserved.
      *
-     * Bandwidth limits are enforced by periodically checking the
+     * @param buffer the datagram, between the buffer's position and limit.
+     * @param target the address to which the datagram is sent.
+     * @return true if the datagram was sent, or false if the socket's send buffer
+     *  is full and the caller should wait for the channel to become writable.
      */
-    private void send(DatagramPacket packet) throws IOException, InterruptedException {
-
-        if (start == 0) {
-            start = currentTimeMillis();
-        }
-
-        // In normal conditions, we are capable of sending bursts of data down to the network
-        // at a much faster rate than would be allowable by our bandwidth limits. When this is
-        // true, we introduce a delay before every packet to smooth out the utilization and
-        // avoid excessive burstiness.
-        if (shouldStallEachPacket) {
-            Thread.sleep(1);
-        }
-
-        socket.send(packet);
-        bytesSentThisPeriod += packet.getLength();
-
-        if (bytesSentThisPeriod >= BYTES_BETWEEN_DELAY_CHECKS) {
-            long end = currentTimeMillis();
-            long thisPeriodMs = end - start;
-            System.out.println("Elapsed time: " + thisPeriodMs + "ms");
-
-            // The clock resolution may be as bad as 10's of milliseconds, and so it is
-            // possible that (end-start) will be zero.  Increment in this case to avoid
-            // unpleasantries with division by zero.
-            if (thisPeriodMs == 0) {
-                thisPeriodMs++;
-            }
-
-            // Determine how long we should sleep in order to get us back to our target
-            // bandwidth. This formula is derived from the fact that:
-            //
-            // Bandwidth = (bytes sent) / time
-            //           = (bytes sent) / (time sending + time sleeping)
-            //
-            long sleepTime = (bytesSentThisPeriod / TARGET_BYTES_PER_MILLISECOND) - thisPeriodMs;
-
-            // Heuristic: if we are running more than twice as fast as we should, start introducing
-            // a delay between every packet (in addition to sleeping to make up for the fact
-            // that we've gone too quickly). We do this because our timer resolution is such that
-            // there is only so often we can actually measure.
-            shouldStallEachPacket = (sleepTime > thisPeriodMs);
-
-            if (sleepTime > 0) {
-                System.out.println("Server: sleeping for " + sleepTime + " ms");
-                Thread.sleep(sleepTime);
-            }
-
-            long periodEnd = currentTimeMillis();
-            long periodBandwidth = ((bytesSentThisPeriod * 8) / (periodEnd - start)); // kilobits per second
-            System.out.println("Server: b/w used this period: " + periodBandwidth + " kbps");
-            start = periodEnd;
-            bytesSentThisPeriod = 0;
+    boolean send(ByteBuffer buffer, SocketAddress target) throws IOException {
+        int length = buffer.remaining();
+        if (channel.send(buffer, target) == 0) {
+            return false;
         }
-
+        reportBandwidth(length);
+        return true;
     }
 
+    /**
+     * Receive a datagram, if one is available.
+     *
+     * @param buffer buffer into which the datagram is copied.
+     * @return the address of the datagram's sender, or null if no datagram was
+     *  available.
+     */
+    SocketAddress receive(ByteBuffer buffer) throws IOException {
+        return channel.receive(buffer);
+    }
 
-    DatagramPacket receive() throws IOException {
-        byte[] buffer = new byte[1024];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        do {
-            socket.receive(packet);
-        } while (!Message.isBeginMessage(packet.getData()));
-
-        return packet;
+    /**
+     * Periodically log the bandwidth that was actually achieved.
+     */
+    private void reportBandwidth(int bytesSent) {
+        long now = nanoTime();
+        periodStart.compareAndSet(0, now);
+        bytesSentThisPeriod.add(bytesSent);
+
+        // Only the thread that manages to start the next period reports on this one.
+        long start = periodStart.get();
+        long elapsed = now - start;
+        if (elapsed >= REPORT_INTERVAL_NANOS && periodStart.compareAndSet(start, now)) {
+            long periodBytes = bytesSentThisPeriod.sumThenReset();
+            long periodBandwidth = (periodBytes * 8 * 1000 * 1000) / elapsed;   // kilobits per second
+            Log.info("Server: b/w used this period: %d kbps", periodBandwidth);
+        }
     }
 }
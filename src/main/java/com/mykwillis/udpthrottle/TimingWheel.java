@@ -0,0 +1,167 @@
+package com.mykwillis.udpthrottle;
+
+/**
+ * A hashed timing wheel: holds elements until a time at which they are due,
+ * with O(1) scheduling and cancellation, and without the log factor of a
+ * priority queue.
+ *
+ * Time is divided into ticks of TICK_NANOS, and the wheel has a slot for each
+ * of SLOTS consecutive ticks; an element due at a given tick is kept in slot
+ * (tick % SLOTS), along with any due a whole number of turns of the wheel
+ * later. Each slot is a Ring, and elements hold their own links, so nothing is
+ * allocated as elements come and go. A bitmap of the slots that hold anything
+ * lets nextDue() skip over empty slots 64 at a time.
+ *
+ * The server's event loops hold each client that its congestion controller is
+ * holding back here until it may be sent to again, so that the loop need only
+ * wake when some client is due, however many are waiting. Elements are only
+ * ever in a wheel or a Ring, as they share the same links.
+ *
+ * Timing wheels are not thread safe.
+ */
+class TimingWheel<E extends TimingWheel.Timer<E>> {
+    static final long TICK_NANOS = 16 * 1024;  // about 16us
+    static final int SLOTS = 4096;             // about 67ms per turn of the wheel
+
+    /**
+     * The state an element needs to be held in a wheel.
+     */
+    static class Timer<E> extends Ring.Link<E> {
+        long dueAt;     // nanoTime() at which the element is due
+        int slot = -1;  // slot holding the element, or -1 if it is in no wheel
+    }
+
+    private final Ring<E>[] slots;
+    private final long[] occupied = new long[SLOTS / 64];
+    private long tick;      // the earliest tick that may still have elements due
+    private int size;
+
+    TimingWheel(long now) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Ring<E>[] slots = (Ring<E>[]) new Ring[SLOTS];
+        this.slots = slots;
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Ring<>();
+        }
+        tick = Math.floorDiv(now, TICK_NANOS);
+    }
+
+    /**
+     * @return the slot for a tick. Ticks, like nanoTime(), may be negative.
+     */
+    private static int slotOf(long tick) {
+        return (int) Math.floorMod(tick, (long) SLOTS);
+    }
+
+    /**
+     * Hold an element until the given time. An element due before the wheel's
+     * current tick is held until the next call to expire().
+     *
+     * @throws IllegalStateException if the element is already in a wheel or a ring.
+     */
+    void schedule(E element, long dueAt) {
+        int slot = slotOf(Math.max(Math.floorDiv(dueAt, TICK_NANOS), tick));
+        slots[slot].addLast(element);
+        occupied[slot >>> 6] |= 1L << slot;
+        element.dueAt = dueAt;
+        element.slot = slot;
+        size++;
+    }
+
+    /**
+     * Remove an element from the wheel before it is due.
+     *
+     * @return whether the element was in a wheel (which is assumed to be this one).
+     */
+    boolean cancel(E element) {
+        if (element.slot < 0) {
+            return false;
+        }
+        unlink(element);
+        return true;
+    }
+
+    private void unlink(E element) {
+        int slot = element.slot;
+        slots[slot].remove(element);
+        if (slots[slot].isEmpty()) {
+            occupied[slot >>> 6] &= ~(1L << slot);
+        }
+        element.slot = -1;
+        size--;
+    }
+
+    /**
+     * Move every element that is due by `now` to the back of a ring, in the order
+     * of the ticks at which they were due.
+     */
+    void expire(long now, Ring<E> due) {
+        long nowTick = Math.floorDiv(now, TICK_NANOS);
+        long ticks = Math.min(nowTick - tick + 1, SLOTS);
+        for (long t = 0; t < ticks && size > 0; t++) {
+            Ring<E> slot = slots[slotOf(tick + t)];
+            for (int i = slot.size(); i > 0; i--) {
+                E element = slot.peekFirst();
+                if (element.dueAt - now <= 0) {
+                    unlink(element);
+                    due.addLast(element);
+                } else {
+                    slot.rotate();
+                }
+            }
+        }
+        // The current tick's slot may hold elements due later in the tick.
+        tick = Math.max(tick, nowTick);
+    }
+
+    /**
+     * @return the time at which the next element is due, or Long.MAX_VALUE if
+     *  the wheel is empty. If no element is due within one turn of the wheel,
+     *  this is the time at which the next turn begins, when the caller will
+     *  find nothing due, and should ask again.
+     */
+    long nextDue() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        int start = slotOf(tick);
+        int distance = 0;
+        while (distance < SLOTS) {
+            int slot = (start + distance) % SLOTS;
+            long bits = occupied[slot >>> 6] >>> (slot & 63);
+            if (bits == 0) {
+                distance += 64 - (slot & 63);
+                continue;
+            }
+            distance += Long.numberOfTrailingZeros(bits);
+            if (distance >= SLOTS) {
+                break;
+            }
+
+            // The earliest element of the slot that is due in this turn, if any.
+            long turnEnd = (tick + distance + 1) * TICK_NANOS;
+            long earliest = turnEnd;
+            Ring<E> ring = slots[(start + distance) % SLOTS];
+            E element = ring.peekFirst();
+            for (int i = ring.size(); i > 0; i--) {
+                if (element.dueAt - earliest < 0) {
+                    earliest = element.dueAt;
+                }
+                element = element.next;
+            }
+            if (earliest != turnEnd) {
+                return earliest;
+            }
+            distance++;
+        }
+        return (tick + SLOTS) * TICK_NANOS;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,120 @@
+package com.mykwillis.udpthrottle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter that enforces byte/s and packet/s limits with a token bucket.
+ *
+ * Each limit is modeled as a bucket that fills at the configured rate, up to
+ * a maximum (the burst size), and from which every packet withdraws tokens. A
+ * packet that would overdraw a bucket is scheduled for the time at which the
+ * bucket will have refilled enough to cover it.
+ *
+ * Rather than tracking a token count, each bucket is represented by the single
+ * time at which it will next be full (its "theoretical arrival time"). Reserving
+ * `n` tokens pushes that time `n` token intervals into the future, and the
+ * reservation may be used as soon as the bucket is no more than `burst` tokens
+ * short of full. All times are measured with System.nanoTime(), so pacing is not
+ * subject to the poor resolution of currentTimeMillis().
+ *
+ * Because each bucket's state is a single long, reservations are made with a
+ * compare-and-set rather than a lock, and one limiter can be shared by many
+ * sending threads without serializing them.
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+    private static final long NANOS_PER_SECOND = 1000 * 1000 * 1000;
+
+    private final long bytesPerSecond;
+    private final long packetsPerSecond;
+    private final long byteBurstNanos;
+    private final long packetBurstNanos;
+
+    // Time at which each bucket will be full again.
+    private final AtomicLong byteBucketFullAt = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong packetBucketFullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Create a limiter that only limits bandwidth.
+     *
+     * @param bitsPerSecond target bandwidth, in bits per second.
+     */
+    public static TokenBucketRateLimiter forBitsPerSecond(long bitsPerSecond) {
+        long bytesPerSecond = Math.max(1, bitsPerSecond / 8);
+        // Allow bursts of up to 10ms worth of traffic, but never less than a
+        // single full-sized packet.
+        long burstBytes = Math.max(FileProvider.CHUNK_SIZE, bytesPerSecond / 100);
+        return new TokenBucketRateLimiter(bytesPerSecond, 0, burstBytes, 0);
+    }
+
+    /**
+     * Create a new TokenBucketRateLimiter.
+     *
+     * @param bytesPerSecond maximum sustained rate in bytes per second, or zero for
+     *                       no byte limit.
+     * @param packetsPerSecond maximum sustained rate in packets per second, or zero
+     *                         for no packet limit.
+     * @param burstBytes number of bytes that may be sent back-to-back after a
+     *                   period of inactivity.
+     * @param burstPackets number of packets that may be sent back-to-back after a
+     *                     period of inactivity.
+     */
+    public TokenBucketRateLimiter(long bytesPerSecond, long packetsPerSecond,
+                                  long burstBytes, long burstPackets) {
+        if (bytesPerSecond < 0 || packetsPerSecond < 0 || burstBytes < 0 || burstPackets < 0) {
+            throw new IllegalArgumentException("Rates and burst sizes must not be negative.");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.packetsPerSecond = packetsPerSecond;
+        this.byteBurstNanos = bytesPerSecond > 0 ? tokenNanos(burstBytes, bytesPerSecond) : 0;
+        this.packetBurstNanos = packetsPerSecond > 0 ? tokenNanos(burstPackets, packetsPerSecond) : 0;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    @Override
+    public long reserve(int bytes) {
+        long now = System.nanoTime();
+        long sendAt = now;
+
+        if (bytesPerSecond > 0) {
+            long fullAt = take(byteBucketFullAt, now, tokenNanos(bytes, bytesPerSecond));
+            sendAt = Math.max(sendAt, fullAt - byteBurstNanos);
+        }
+        if (packetsPerSecond > 0) {
+            long fullAt = take(packetBucketFullAt, now, tokenNanos(1, packetsPerSecond));
+            sendAt = Math.max(sendAt, fullAt - packetBurstNanos);
+        }
+        return sendAt;
+    }
+
+    /**
+     * Withdraw tokens from a bucket.
+     *
+     * @param bucketFullAt the time at which the bucket will be full.
+     * @param now the current time.
+     * @param nanos the time taken to accumulate the tokens being withdrawn.
+     * @return the time at which the bucket will be full after the withdrawal.
+     */
+    private static long take(AtomicLong bucketFullAt, long now, long nanos) {
+        long previous;
+        long next;
+        do {
+            previous = bucketFullAt.get();
+            next = Math.max(previous, now) + nanos;
+        } while (!bucketFullAt.compareAndSet(previous, next));
+        return next;
+    }
+
+    /**
+     * @return the time, in nanoseconds, taken for `tokens` tokens to accumulate.
+     */
+    static long tokenNanos(long tokens, long tokensPerSecond) {
+        return tokens * NANOS_PER_SECOND / tokensPerSecond;
+    }
+}
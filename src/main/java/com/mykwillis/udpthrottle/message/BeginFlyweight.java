@@ -0,0 +1,124 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flyweight codec for BEGIN messages.
+ *
+ *     INT packetType
+ *     INT weight          (optional)
+ *     INT maxDatagramSize (optional)
+ *     INT filenameSize    (optional)
+ *     BYTES filename      (UTF-8)
+ *     INT rangeCount      (optional)
+ *     { LONG offset, LONG length } ranges[rangeCount]
+ */
+public class BeginFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = TYPE_SIZE;
+    public static final int RANGE_SIZE = 16;
+
+    @Override
+    public BeginFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        int rangeCount = getRangeCount();
+        if (rangeCount < 0 || rangeCount > BeginMessage.MAX_RANGES
+                || (rangeCount > 0 && length < rangesPosition() + 4 + rangeCount * RANGE_SIZE)) {
+            throw new IllegalArgumentException("Invalid range count in BEGIN packet");
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            if (getRangeOffset(i) < 0 || getRangeLength(i) < 0 || getRangeOffset(i) + getRangeLength(i) < 0) {
+                throw new IllegalArgumentException("Invalid range in BEGIN packet");
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_BEGIN;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return the weight requested by the client, limited to the allowed range, or
+     *  the default weight if the message has no weight field.
+     */
+    public int getWeight() {
+        if (length < TYPE_SIZE + 4) {
+            return BeginMessage.DEFAULT_WEIGHT;
+        }
+        return BeginMessage.clampWeight(buffer.getInt(offset + TYPE_SIZE));
+    }
+
+    /**
+     * @return the largest datagram the client can receive, or the default if the
+     *  message has no such field.
+     */
+    public int getMaxDatagramSize() {
+        if (length < TYPE_SIZE + 8) {
+            return BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE;
+        }
+        return buffer.getInt(offset + TYPE_SIZE + 4);
+    }
+
+    /**
+     * @return the name of the file the client is asking for, or null if the
+     *  message names none, in which case it is asking for the server's only file.
+     */
+    public String getFilename() {
+        return getString(TYPE_SIZE + 8);
+    }
+
+    /**
+     * @return the position of the range count, which follows the filename.
+     */
+    private int rangesPosition() {
+        if (length < TYPE_SIZE + 12) {
+            return length;
+        }
+        return TYPE_SIZE + 12 + buffer.getInt(offset + TYPE_SIZE + 8);
+    }
+
+    /**
+     * @return the number of byte ranges the client is asking for, or 0 if it is
+     *  asking for the whole file.
+     */
+    public int getRangeCount() {
+        int position = rangesPosition();
+        if (position < 0 || length - 4 < position) {
+            return 0;
+        }
+        return buffer.getInt(offset + position);
+    }
+
+    public long getRangeOffset(int range) {
+        return buffer.getLong(offset + rangesPosition() + 4 + range * RANGE_SIZE);
+    }
+
+    public long getRangeLength(int range) {
+        return buffer.getLong(offset + rangesPosition() + 4 + range * RANGE_SIZE + 8);
+    }
+
+    /**
+     * Copy the message's byte ranges into a new list. This allocates nothing if
+     * there are none.
+     */
+    public List<ByteRange> getRanges() {
+        int rangeCount = getRangeCount();
+        if (rangeCount == 0) {
+            return Collections.emptyList();
+        }
+        List<ByteRange> ranges = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            ranges.add(new ByteRange(getRangeOffset(i), getRangeLength(i)));
+        }
+        return ranges;
+    }
+}
@@ -1,27 +1,178 @@
 package com.mykwillis.udpthrottle.message;
 
+import com.mykwillis.udpthrottle.FileProvider;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * BEGIN message, sent by a client to request the file.
+ *
+ * Fields following the packet type are optional, and were added to the protocol
+ * over time. A reader treats any field missing from the end of the message as
+ * having its default value, so older clients remain compatible.
+ */
 public class BeginMessage extends Message {
+    /**
+     * Weight given to clients that don't request one.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * Largest weight a client may request.
+     */
+    public static final int MAX_WEIGHT = 100;
+
+    /**
+     * Largest datagram assumed of clients that don't say: enough for the chunk
+     * size used before chunk sizes were negotiated, and its parity.
+     */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = FileProvider.CHUNK_SIZE + FileProvider.PARITY_OVERHEAD;
+
+    /**
+     * Largest number of byte ranges a BEGIN message may ask for.
+     */
+    public static final int MAX_RANGES = 256;
+
     byte[] bytes;
+    int weight = DEFAULT_WEIGHT;
+    int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+    String filename;
+    List<ByteRange> ranges = Collections.emptyList();
 
     public BeginMessage(byte[] bytes) throws IOException {
+        this(bytes, bytes.length);
+    }
+
+    /**
+     * Create BeginMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public BeginMessage(byte[] bytes, int length) throws IOException {
         if (!isBeginMessage(bytes)) {
            throw new IllegalArgumentException("Message is not BEGIN packet");
         }
+        BeginFlyweight begin = new BeginFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+        this.weight = begin.getWeight();
+        this.maxDatagramSize = begin.getMaxDatagramSize();
+        this.filename = begin.getFilename();
+        this.ranges = Collections.unmodifiableList(begin.getRanges());
         this.bytes = bytes;
     }
 
     public BeginMessage() throws IOException {
+        this(DEFAULT_WEIGHT);
+    }
+
+    /**
+     * Create a BEGIN message requesting a share of the server's bandwidth.
+     *
+     * @param weight the client's share of bandwidth, relative to other clients. A
+     *               client with weight 4 receives four times the bandwidth of a
+     *               client with weight 1.
+     */
+    public BeginMessage(int weight) throws IOException {
+        this(weight, DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Create a BEGIN message requesting a share of the server's bandwidth.
+     *
+     * @param weight the client's share of bandwidth, relative to other clients.
+     * @param maxDatagramSize the largest datagram the client can receive without
+     *                        fragmentation. The server chooses a chunk size such
+     *                        that none of the datagrams it sends are larger.
+     */
+    public BeginMessage(int weight, int maxDatagramSize) throws IOException {
+        this(weight, maxDatagramSize, null);
+    }
+
+    /**
+     * Create a BEGIN message requesting a file by name.
+     *
+     * @param weight the client's share of bandwidth, relative to other clients.
+     * @param maxDatagramSize the largest datagram the client can receive without
+     *                        fragmentation.
+     * @param filename the name of the file to download from a server serving a
+     *                 catalog of files, or null to download a single-file server's
+     *                 file.
+     */
+    public BeginMessage(int weight, int maxDatagramSize, String filename) throws IOException {
+        this(weight, maxDatagramSize, filename, null);
+    }
+
+    /**
+     * Create a BEGIN message requesting parts of a file.
+     *
+     * @param weight the client's share of bandwidth, relative to other clients.
+     * @param maxDatagramSize the largest datagram the client can receive without
+     *                        fragmentation.
+     * @param filename the name of the file to download, or null to download a
+     *                 single-file server's file.
+     * @param ranges the byte ranges of the file to send, or null (or an empty list)
+     *               to send the whole file. The server sends every chunk that
+     *               holds any part of them.
+     */
+    public BeginMessage(int weight, int maxDatagramSize, String filename, List<ByteRange> ranges)
+            throws IOException {
+        if (ranges != null && ranges.size() > MAX_RANGES) {
+            throw new IllegalArgumentException("Too many ranges for BEGIN packet");
+        }
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(outputStream);
 
+        this.weight = clampWeight(weight);
+        this.maxDatagramSize = maxDatagramSize;
+        this.filename = filename;
         dos.writeInt(MESSAGE_TYPE_BEGIN);
+        dos.writeInt(this.weight);
+        dos.writeInt(maxDatagramSize);
+        if (filename != null || (ranges != null && !ranges.isEmpty())) {
+            byte[] filenameBytes = filename != null ? filename.getBytes("UTF-8") : new byte[0];
+            dos.writeInt(filenameBytes.length);
+            dos.write(filenameBytes);
+        }
+        if (ranges != null && !ranges.isEmpty()) {
+            this.ranges = Collections.unmodifiableList(new ArrayList<>(ranges));
+            dos.writeInt(ranges.size());
+            for (ByteRange range : ranges) {
+                dos.writeLong(range.getOffset());
+                dos.writeLong(range.getLength());
+            }
+        }
         this.bytes = outputStream.toByteArray();
     }
 
+    static int clampWeight(int weight) {
+        return Math.max(DEFAULT_WEIGHT, Math.min(MAX_WEIGHT, weight));
+    }
+
     @Override
     public byte[] getBytes() {
         return bytes;
     }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the byte ranges asked for, or an empty list if the whole file is.
+     */
+    public List<ByteRange> getRanges() {
+        return ranges;
+    }
 }
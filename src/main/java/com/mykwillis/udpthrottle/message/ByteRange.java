@@ -0,0 +1,93 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of consecutive bytes of a file, as asked for by a client that needs only
+ * part of the file.
+ */
+public class ByteRange {
+    final long offset;
+    final long length;
+
+    public ByteRange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length < 0) {
+            throw new IllegalArgumentException("Invalid byte range");
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the offset one past the last byte in the range.
+     */
+    public long getEnd() {
+        return offset + length;
+    }
+
+    /**
+     * Find the chunks that hold any part of the byte ranges given.
+     *
+     * @param ranges the byte ranges, in any order, and possibly overlapping.
+     *               Parts of ranges past the end of the file are ignored.
+     * @param fileSize the size of the file.
+     * @param chunkPayloadSize the number of bytes of the file in each chunk.
+     * @return the chunks, as ranges in ascending order, with ranges that overlap
+     *  or abut merged.
+     */
+    public static List<ChunkRange> toChunkRanges(List<ByteRange> ranges, long fileSize, int chunkPayloadSize) {
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Long.compare(a.offset, b.offset));
+
+        List<ChunkRange> chunks = new ArrayList<>();
+        long first = -1;
+        long end = -1;
+        for (ByteRange range : sorted) {
+            long rangeEnd = Math.min(range.getEnd(), fileSize);
+            if (range.length == 0 || range.offset >= rangeEnd) {
+                continue;
+            }
+            long rangeFirst = range.offset / chunkPayloadSize;
+            long rangeEndChunk = (rangeEnd + chunkPayloadSize - 1) / chunkPayloadSize;
+            if (rangeFirst > end) {
+                if (first >= 0) {
+                    chunks.add(new ChunkRange(first, end - first));
+                }
+                first = rangeFirst;
+            }
+            end = Math.max(end, rangeEndChunk);
+        }
+        if (first >= 0) {
+            chunks.add(new ChunkRange(first, end - first));
+        }
+        return chunks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ByteRange)) {
+            return false;
+        }
+        ByteRange other = (ByteRange) o;
+        return offset == other.offset && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(offset) * 31 + Long.hashCode(length);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + offset + ", " + getEnd() + ")";
+    }
+}
@@ -0,0 +1,52 @@
+package com.mykwillis.udpthrottle.message;
+
+/**
+ * A run of consecutive chunk indices, as carried in messages that refer to
+ * parts of the file.
+ */
+public class ChunkRange {
+    final long firstChunk;
+    final long chunkCount;
+
+    public ChunkRange(long firstChunk, long chunkCount) {
+        if (firstChunk < 0 || chunkCount < 0) {
+            throw new IllegalArgumentException("Invalid chunk range");
+        }
+        this.firstChunk = firstChunk;
+        this.chunkCount = chunkCount;
+    }
+
+    public long getFirstChunk() {
+        return firstChunk;
+    }
+
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the index one past the last chunk in the range.
+     */
+    public long getEndChunk() {
+        return firstChunk + chunkCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkRange)) {
+            return false;
+        }
+        ChunkRange other = (ChunkRange) o;
+        return firstChunk == other.firstChunk && chunkCount == other.chunkCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(firstChunk) * 31 + Long.hashCode(chunkCount);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + firstChunk + ", " + getEndChunk() + ")";
+    }
+}
@@ -0,0 +1,63 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight codec for END messages.
+ *
+ *     INT packetType
+ *     INT chunkSize
+ *     LONG chunkCount
+ *     INT probe
+ */
+public class EndFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 20;
+
+    @Override
+    public EndFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_END;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return the chunk size of the download that the server has finished sending.
+     */
+    public int getChunkSize() {
+        return buffer.getInt(offset + TYPE_SIZE);
+    }
+
+    /**
+     * @return the number of chunks in the file, at that chunk size.
+     */
+    public long getChunkCount() {
+        return buffer.getLong(offset + TYPE_SIZE + 4);
+    }
+
+    /**
+     * @return 0 for the first END message sent at the end of a download, 1 for
+     *  the first retry, and so on.
+     */
+    public int getProbe() {
+        return buffer.getInt(offset + TYPE_SIZE + 12);
+    }
+
+    /**
+     * Write an END message at `dst`'s position.
+     */
+    public static void encode(ByteBuffer dst, int chunkSize, long chunkCount, int probe) {
+        dst.putInt(Message.MESSAGE_TYPE_END);
+        dst.putInt(chunkSize);
+        dst.putLong(chunkCount);
+        dst.putInt(probe);
+    }
+}
@@ -0,0 +1,69 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * END message, sent by the server once it has sent a client every chunk it was
+ * asked for.
+ *
+ * A client that is still missing chunks when END arrives knows that they were
+ * lost, rather than still on their way, and asks for them at once, instead of
+ * waiting for the server to go quiet. The server sends END a few times, at
+ * growing intervals, in case it is lost (or the chunks before it were), and
+ * stops as soon as the client asks for anything more. Each END is numbered by
+ * `probe`, from 0.
+ *
+ * The chunk size and count tell the client which download has ended, so that
+ * it can ignore one meant for a download of the file in chunks of another size.
+ */
+public class EndMessage extends Message {
+    byte[] bytes;
+    int chunkSize;
+    long chunkCount;
+    int probe;
+
+    /**
+     * Create EndMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public EndMessage(byte[] bytes, int length) throws IOException {
+        if (!isEndMessage(bytes)) {
+            throw new IllegalArgumentException("Message is not END packet");
+        }
+        EndFlyweight end = new EndFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+        this.chunkSize = end.getChunkSize();
+        this.chunkCount = end.getChunkCount();
+        this.probe = end.getProbe();
+        this.bytes = bytes;
+    }
+
+    public EndMessage(int chunkSize, long chunkCount, int probe) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(EndFlyweight.HEADER_SIZE);
+        EndFlyweight.encode(buffer, chunkSize, chunkCount, probe);
+
+        this.bytes = buffer.array();
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.probe = probe;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getProbe() {
+        return probe;
+    }
+}
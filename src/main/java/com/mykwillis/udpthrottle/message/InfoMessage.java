@@ -1,31 +1,136 @@
 package com.mykwillis.udpthrottle.message;
 
+import com.mykwillis.udpthrottle.FileProvider;
+
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
+/**
+ * INFO message, sent by the server in reply to a BEGIN message.
+ *
+ * As with BEGIN, fields following the filename are optional, and a reader treats
+ * any field missing from the end of the message as having its default value.
+ */
 public class InfoMessage extends Message {
     byte[] bytes;
     String filename;
     long fileSize;
+    InetSocketAddress multicastGroup;
+    int chunkSize = FileProvider.CHUNK_SIZE;
+    int trainLength = 0;
+    byte[] merkleRoot;
 
     public InfoMessage(byte[] bytes) throws IOException {
+        this(bytes, bytes.length);
+    }
+
+    /**
+     * Create InfoMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     * @throws IllegalArgumentException if the message is not INFO, or is malformed.
+     */
+    public InfoMessage(byte[] bytes, int length) throws IOException {
         if (!isInfoMessage(bytes)) {
            throw new IllegalArgumentException("Message is not info packet");
         }
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes, 0, length);
         DataInputStream dis = new DataInputStream(inputStream);
 
-        int packetType = dis.readInt();
-        long fileSize = dis.readLong();
-        int filenameSize = dis.readInt();
-        byte[] filenameBytes = new byte[filenameSize];
-        int filenameBytesRead = dis.read(filenameBytes);
+        long fileSize;
+        byte[] filenameBytes;
+        try {
+            int packetType = dis.readInt();
+            fileSize = dis.readLong();
+            int filenameSize = dis.readInt();
+            filenameBytes = new byte[checkSize(filenameSize, dis)];
+            dis.readFully(filenameBytes);
+
+            if (dis.available() >= 4) {
+                int addressSize = dis.readInt();
+                if (addressSize > 0) {
+                    byte[] addressBytes = new byte[checkSize(addressSize, dis)];
+                    dis.readFully(addressBytes);
+                    int port = dis.readInt();
+                    this.multicastGroup = new InetSocketAddress(InetAddress.getByAddress(addressBytes), port);
+                }
+            }
+            if (dis.available() >= 4) {
+                this.chunkSize = dis.readInt();
+            }
+            if (dis.available() >= 4) {
+                this.trainLength = dis.readInt();
+            }
+            if (dis.available() >= 4) {
+                int rootSize = dis.readInt();
+                if (rootSize > 0) {
+                    this.merkleRoot = new byte[checkSize(rootSize, dis)];
+                    dis.readFully(merkleRoot);
+                }
+            }
+        } catch (EOFException | UnknownHostException e) {
+            throw new IllegalArgumentException("Malformed INFO packet: " + e);
+        }
 
         this.bytes = bytes;
         this.filename = new String(filenameBytes, "UTF-8");
         this.fileSize = fileSize;
     }
 
+    /**
+     * @return `size`, the length of a field about to be read from `dis`.
+     * @throws IllegalArgumentException if the message is too short to hold it.
+     */
+    private static int checkSize(int size, DataInputStream dis) throws IOException {
+        if (size < 0 || size > dis.available()) {
+            throw new IllegalArgumentException("Invalid field length in INFO packet");
+        }
+        return size;
+    }
+
     public InfoMessage(String filename, long fileSize) throws IOException {
+        this(filename, fileSize, null);
+    }
+
+    public InfoMessage(String filename, long fileSize, InetSocketAddress multicastGroup)
+            throws IOException {
+        this(filename, fileSize, multicastGroup, FileProvider.CHUNK_SIZE);
+    }
+
+    public InfoMessage(String filename, long fileSize, InetSocketAddress multicastGroup, int chunkSize)
+            throws IOException {
+        this(filename, fileSize, multicastGroup, chunkSize, 0);
+    }
+
+    /**
+     * Create an INFO message.
+     *
+     * @param multicastGroup the multicast group to which the server sends file data,
+     *                       which the client should join, or null if file data is
+     *                       sent directly to the client.
+     * @param chunkSize the size of the PAYLOAD message carrying a full chunk, which
+     *                  the server has chosen for the session.
+     * @param trainLength the number of chunks, from the start of the file, that the
+     *                    server sends back-to-back after this message, so that the
+     *                    client can estimate its path's capacity; or 0 if none.
+     */
+    public InfoMessage(String filename, long fileSize, InetSocketAddress multicastGroup, int chunkSize,
+                       int trainLength) throws IOException {
+        this(filename, fileSize, multicastGroup, chunkSize, trainLength, null);
+    }
+
+    /**
+     * Create an INFO message.
+     *
+     * @param merkleRoot the root of the Merkle tree of the file's chunk checksums,
+     *                   for chunks of `chunkSize`, by which the client verifies the
+     *                   whole file once it has been received; or null if none.
+     */
+    public InfoMessage(String filename, long fileSize, InetSocketAddress multicastGroup, int chunkSize,
+                       int trainLength, byte[] merkleRoot) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(outputStream);
 
@@ -34,10 +139,28 @@ public class InfoMessage extends Message {
         byte[] filenameBytes = filename.getBytes("UTF-8");
         dos.writeInt(filenameBytes.length);
         dos.write(filenameBytes);
+        if (multicastGroup == null) {
+            dos.writeInt(0);
+        } else {
+            byte[] addressBytes = multicastGroup.getAddress().getAddress();
+            dos.writeInt(addressBytes.length);
+            dos.write(addressBytes);
+            dos.writeInt(multicastGroup.getPort());
+        }
+        dos.writeInt(chunkSize);
+        dos.writeInt(trainLength);
+        if (merkleRoot != null) {
+            dos.writeInt(merkleRoot.length);
+            dos.write(merkleRoot);
+        }
 
         this.bytes = outputStream.toByteArray();
         this.filename = filename;
         this.fileSize = fileSize;
+        this.multicastGroup = multicastGroup;
+        this.chunkSize = chunkSize;
+        this.trainLength = trainLength;
+        this.merkleRoot = merkleRoot;
     }
 
     @Override
@@ -52,4 +175,35 @@ public class InfoMessage extends Message {
     public long getFileSize() {
         return fileSize;
     }
+
+    /**
+     * @return the multicast group to which file data is sent, or null if file data
+     *  is sent directly to the client.
+     */
+    public InetSocketAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * @return the chunk size used for the session, header included.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the number of chunks sent back-to-back after this message, as a
+     *  packet train, or 0 if none are.
+     */
+    public int getTrainLength() {
+        return trainLength;
+    }
+
+    /**
+     * @return the root of the Merkle tree of the file's chunk checksums, or null
+     *  if the server didn't send one.
+     */
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
 }
@@ -1,6 +1,5 @@
 package com.mykwillis.udpthrottle.message;
 
-import java.io.*;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 
@@ -9,6 +8,12 @@ public abstract class Message {
     public static final int MESSAGE_TYPE_BEGIN = 0x01;
     public static final int MESSAGE_TYPE_INFO = 0x02;
     public static final int MESSAGE_TYPE_PAYLOAD = 0x03;
+    public static final int MESSAGE_TYPE_NACK = 0x04;
+    public static final int MESSAGE_TYPE_PARITY = 0x05;
+    public static final int MESSAGE_TYPE_PROBE = 0x06;
+    public static final int MESSAGE_TYPE_REPORT = 0x07;
+    public static final int MESSAGE_TYPE_RESUME = 0x08;
+    public static final int MESSAGE_TYPE_END = 0x09;
 
     public static boolean isBeginMessage(byte[] bytes) {
         return isMessageType(MESSAGE_TYPE_BEGIN, bytes);
@@ -22,14 +27,45 @@ public abstract class Message {
         return isMessageType(MESSAGE_TYPE_PAYLOAD, bytes);
     }
 
+    public static boolean isNackMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_NACK, bytes);
+    }
+
+    public static boolean isParityMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_PARITY, bytes);
+    }
+
+    public static boolean isProbeMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_PROBE, bytes);
+    }
+
+    public static boolean isReportMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_REPORT, bytes);
+    }
+
+    public static boolean isResumeMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_RESUME, bytes);
+    }
+
+    public static boolean isEndMessage(byte[] bytes) {
+        return isMessageType(MESSAGE_TYPE_END, bytes);
+    }
+
     static boolean isMessageType(int packetType, byte[] bytes) {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-        DataInputStream dis = new DataInputStream(inputStream);
-        try {
-            return dis.readInt() == packetType;
-        } catch(IOException e) {
-            return false;
+        return getMessageType(bytes) == packetType;
+    }
+
+    /**
+     * Read the packet type of a message, without allocating.
+     *
+     * @return the packet type, or MESSAGE_TYPE_INVALID if the message is too
+     *  short to have one.
+     */
+    public static int getMessageType(byte[] bytes) {
+        if (bytes.length < MessageFlyweight.TYPE_SIZE) {
+            return MESSAGE_TYPE_INVALID;
         }
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
     }
 
     public abstract byte[] getBytes();
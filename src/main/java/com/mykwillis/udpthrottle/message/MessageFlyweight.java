@@ -0,0 +1,122 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base class for flyweight message codecs.
+ *
+ * A flyweight reads the fields of a message in place, from the buffer into which
+ * the datagram was received, rather than copying them into a new object. One
+ * flyweight is created for each message type and re-wrapped around each incoming
+ * datagram, so that decoding a message allocates nothing. Encoding is likewise
+ * done by writing headers directly into the caller's (reusable) send buffer.
+ *
+ * Fields are read with absolute ByteBuffer accessors, so wrapping a buffer doesn't
+ * change its position or limit. Buffers must use the default (big-endian) byte
+ * order, which is the protocol's network order.
+ *
+ * The byte[] based Message classes remain as a convenient way to build the less
+ * frequent control messages.
+ */
+public abstract class MessageFlyweight {
+    /**
+     * Size of the packet type field that begins every message.
+     */
+    public static final int TYPE_SIZE = 4;
+
+    protected ByteBuffer buffer;
+    protected int offset;
+    protected int length;
+
+    /**
+     * Read the type of a message without decoding it.
+     *
+     * @return the message's packet type, or Message.MESSAGE_TYPE_INVALID if the
+     *  message is too short to have one.
+     */
+    public static int getMessageType(ByteBuffer buffer, int offset, int length) {
+        if (length < TYPE_SIZE) {
+            return Message.MESSAGE_TYPE_INVALID;
+        }
+        return buffer.getInt(offset);
+    }
+
+    /**
+     * Point this flyweight at a message.
+     *
+     * @param buffer the buffer holding the message.
+     * @param offset the index in `buffer` at which the message starts.
+     * @param length the length of the message, in bytes.
+     * @throws IllegalArgumentException if the message is not of this flyweight's
+     *  type, or is too short to hold its header.
+     */
+    public MessageFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        if (length < getHeaderSize() || buffer.getInt(offset) != getMessageType()) {
+            throw new IllegalArgumentException("Message is not a valid " + getClass().getSimpleName());
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return the packet type of the messages this flyweight decodes.
+     */
+    public abstract int getMessageType();
+
+    /**
+     * @return the size of the fixed part of the message.
+     */
+    public abstract int getHeaderSize();
+
+    /**
+     * Read an optional string field, encoded as its length followed by its UTF-8
+     * bytes.
+     *
+     * @param position the index of the field relative to the start of the message.
+     * @return the string, or null if the message ends before the field, or the
+     *  string is empty.
+     * @throws IllegalArgumentException if the string runs past the end of the message.
+     */
+    protected String getString(int position) {
+        if (length < position + 4) {
+            return null;
+        }
+        int size = buffer.getInt(offset + position);
+        if (size < 0 || size > length - position - 4) {
+            throw new IllegalArgumentException("Invalid string length in " + getClass().getSimpleName());
+        }
+        if (size == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = buffer.get(offset + position + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a string field, as read by getString(), at `dst`'s position. A null
+     * string is written as an empty one.
+     */
+    protected static void putString(ByteBuffer dst, String string) {
+        byte[] bytes = string == null ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+        dst.putInt(bytes.length);
+        dst.put(bytes);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+}
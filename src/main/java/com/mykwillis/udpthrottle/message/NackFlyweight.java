@@ -0,0 +1,121 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.FileProvider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flyweight codec for NACK messages.
+ *
+ *     INT packetType
+ *     INT rangeCount
+ *     { LONG firstChunk, LONG chunkCount } ranges[rangeCount]
+ *     INT chunkSize       (optional)
+ *     INT filenameSize    (optional)
+ *     BYTES filename      (UTF-8)
+ */
+public class NackFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 8;
+    public static final int RANGE_SIZE = 16;
+
+    @Override
+    public NackFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        int rangeCount = getRangeCount();
+        if (rangeCount < 0 || rangeCount > NackMessage.MAX_RANGES
+                || length < HEADER_SIZE + rangeCount * RANGE_SIZE) {
+            throw new IllegalArgumentException("Invalid range count in NACK packet");
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            if (getFirstChunk(i) < 0 || getChunkCount(i) < 0) {
+                throw new IllegalArgumentException("Invalid range in NACK packet");
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_NACK;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    public int getRangeCount() {
+        return buffer.getInt(offset + TYPE_SIZE);
+    }
+
+    public long getFirstChunk(int range) {
+        return buffer.getLong(offset + HEADER_SIZE + range * RANGE_SIZE);
+    }
+
+    public long getChunkCount(int range) {
+        return buffer.getLong(offset + HEADER_SIZE + range * RANGE_SIZE + 8);
+    }
+
+    /**
+     * @return the chunk size to which the ranges refer, or the default chunk size
+     *  if the message has no such field.
+     */
+    public int getChunkSize() {
+        int end = HEADER_SIZE + getRangeCount() * RANGE_SIZE;
+        if (length < end + 4) {
+            return FileProvider.CHUNK_SIZE;
+        }
+        return buffer.getInt(offset + end);
+    }
+
+    /**
+     * @return the name of the file to which the ranges refer, or null if the
+     *  message names none.
+     */
+    public String getFilename() {
+        return getString(HEADER_SIZE + getRangeCount() * RANGE_SIZE + 4);
+    }
+
+    /**
+     * Copy the message's ranges into a new list.
+     */
+    public List<ChunkRange> getRanges() {
+        List<ChunkRange> ranges = new ArrayList<>(getRangeCount());
+        for (int i = 0; i < getRangeCount(); i++) {
+            ranges.add(new ChunkRange(getFirstChunk(i), getChunkCount(i)));
+        }
+        return ranges;
+    }
+
+    /**
+     * Write a NACK message at `dst`'s position.
+     */
+    public static void encode(ByteBuffer dst, List<ChunkRange> ranges, int chunkSize) {
+        encode(dst, ranges, chunkSize, null);
+    }
+
+    /**
+     * Write a NACK message at `dst`'s position.
+     *
+     * @param filename the name of the file to which the ranges refer, or null to
+     *                 leave the field out.
+     */
+    public static void encode(ByteBuffer dst, List<ChunkRange> ranges, int chunkSize, String filename) {
+        if (ranges.size() > NackMessage.MAX_RANGES) {
+            throw new IllegalArgumentException("Too many ranges for NACK packet");
+        }
+        dst.putInt(Message.MESSAGE_TYPE_NACK);
+        dst.putInt(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            ChunkRange range = ranges.get(i);
+            dst.putLong(range.getFirstChunk());
+            dst.putLong(range.getChunkCount());
+        }
+        dst.putInt(chunkSize);
+        if (filename != null) {
+            putString(dst, filename);
+        }
+    }
+}
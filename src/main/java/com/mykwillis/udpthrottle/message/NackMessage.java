@@ -0,0 +1,108 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.FileProvider;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * NACK message, sent by a client to ask the server to resend chunks it has not
+ * received.
+ *
+ * Missing chunks are given as ranges of chunk indices, so that a burst of loss
+ * costs a single range no matter how many chunks it spans.
+ */
+public class NackMessage extends Message {
+    /**
+     * Largest number of ranges carried by a single NACK message, chosen so that
+     * the message fits comfortably in a single datagram.
+     */
+    public static final int MAX_RANGES = 1024;
+
+    byte[] bytes;
+    List<ChunkRange> ranges;
+    int chunkSize;
+    String filename;
+
+    /**
+     * Create NackMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public NackMessage(byte[] bytes, int length) throws IOException {
+        if (!isNackMessage(bytes)) {
+           throw new IllegalArgumentException("Message is not NACK packet");
+        }
+        NackFlyweight nack = new NackFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+
+        this.bytes = bytes;
+        this.ranges = Collections.unmodifiableList(nack.getRanges());
+        this.chunkSize = nack.getChunkSize();
+        this.filename = nack.getFilename();
+    }
+
+    public NackMessage(List<ChunkRange> ranges) throws IOException {
+        this(ranges, FileProvider.CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the chunk size of the session, to which the ranges refer.
+     *                  This lets the server resend chunks to a client whose session
+     *                  it has already ended.
+     */
+    public NackMessage(List<ChunkRange> ranges, int chunkSize) throws IOException {
+        this(ranges, chunkSize, null);
+    }
+
+    /**
+     * @param chunkSize the chunk size of the session, to which the ranges refer.
+     * @param filename the name of the file being downloaded from a server serving
+     *                 a catalog of files, or null if the server serves just one.
+     */
+    public NackMessage(List<ChunkRange> ranges, int chunkSize, String filename) throws IOException {
+        if (ranges.size() > MAX_RANGES) {
+            throw new IllegalArgumentException("Too many ranges for NACK packet");
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_NACK);
+        dos.writeInt(ranges.size());
+        for (ChunkRange range : ranges) {
+            dos.writeLong(range.getFirstChunk());
+            dos.writeLong(range.getChunkCount());
+        }
+        dos.writeInt(chunkSize);
+        if (filename != null) {
+            byte[] filenameBytes = filename.getBytes("UTF-8");
+            dos.writeInt(filenameBytes.length);
+            dos.write(filenameBytes);
+        }
+
+        this.bytes = outputStream.toByteArray();
+        this.ranges = Collections.unmodifiableList(new ArrayList<>(ranges));
+        this.chunkSize = chunkSize;
+        this.filename = filename;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public List<ChunkRange> getRanges() {
+        return ranges;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+}
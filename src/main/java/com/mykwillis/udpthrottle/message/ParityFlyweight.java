@@ -0,0 +1,95 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight codec for PARITY messages.
+ *
+ *     INT packetType
+ *     LONG firstChunk
+ *     INT chunkCount
+ *     INT checksum
+ *     BYTE[] parity
+ *
+ * The checksum is the CRC32C of firstChunk, chunkCount and the parity data.
+ */
+public class ParityFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 20;
+
+    @Override
+    public ParityFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        if (getFirstChunk() < 0 || getChunkCount() <= 0) {
+            throw new IllegalArgumentException("Invalid parity block");
+        }
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_PARITY;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    public long getFirstChunk() {
+        return buffer.getLong(offset + TYPE_SIZE);
+    }
+
+    public int getChunkCount() {
+        return buffer.getInt(offset + TYPE_SIZE + 8);
+    }
+
+    /**
+     * @return the checksum the sender computed for this message.
+     */
+    public int getChecksum() {
+        return buffer.getInt(offset + TYPE_SIZE + 12);
+    }
+
+    /**
+     * @return the index in buffer() at which the parity data starts.
+     */
+    public int getParityOffset() {
+        return offset + HEADER_SIZE;
+    }
+
+    public int getParityLength() {
+        return length - HEADER_SIZE;
+    }
+
+    /**
+     * @return whether the message's block and parity data match its checksum.
+     */
+    public boolean isIntact(Crc32c crc) {
+        return checksum(crc, getFirstChunk(), getChunkCount(), buffer, getParityOffset(), getParityLength())
+                == getChecksum();
+    }
+
+    /**
+     * Compute the checksum of a PARITY message.
+     *
+     * @param parity a buffer holding the parity data between `index` and `index + length`.
+     */
+    public static int checksum(Crc32c crc, long firstChunk, int chunkCount, ByteBuffer parity, int index,
+                               int length) {
+        return crc.reset().updateLong(firstChunk).updateInt(chunkCount).update(parity, index, length).getValue();
+    }
+
+    /**
+     * Write a PARITY header at `dst`'s position; the caller then writes the parity.
+     *
+     * @param checksum the message's checksum; see checksum().
+     */
+    public static void encodeHeader(ByteBuffer dst, long firstChunk, int chunkCount, int checksum) {
+        dst.putInt(Message.MESSAGE_TYPE_PARITY);
+        dst.putLong(firstChunk);
+        dst.putInt(chunkCount);
+        dst.putInt(checksum);
+    }
+}
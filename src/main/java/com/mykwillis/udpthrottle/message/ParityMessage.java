@@ -0,0 +1,91 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PARITY message, carrying forward error correction data for a block of chunks.
+ *
+ * The parity is the XOR of the payloads of `chunkCount` consecutive chunks starting
+ * at `firstChunk`, each padded with zeroes to the length of the longest. A client
+ * that has received all but one chunk of the block can rebuild the missing chunk
+ * from the parity, without asking the server to resend it.
+ */
+public class ParityMessage extends Message {
+    /**
+     * Size of the message header: INT packetType, LONG firstChunk, INT chunkCount,
+     * INT checksum.
+     */
+    public static final int HEADER_SIZE = ParityFlyweight.HEADER_SIZE;
+
+    byte[] bytes;
+    long firstChunk;
+    int chunkCount;
+    int length;
+
+    /**
+     * Create ParityMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public ParityMessage(byte[] bytes, int length) throws IOException {
+        if (!isParityMessage(bytes)) {
+            throw new IllegalArgumentException("Message is not parity packet");
+        }
+        ParityFlyweight parity = new ParityFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+
+        this.bytes = bytes;
+        this.firstChunk = parity.getFirstChunk();
+        this.chunkCount = parity.getChunkCount();
+        this.length = length;
+    }
+
+    /**
+     * Create a PARITY message.
+     *
+     * @param parity the parity data.
+     */
+    public ParityMessage(long firstChunk, int chunkCount, byte[] parity) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_PARITY);
+        dos.writeLong(firstChunk);
+        dos.writeInt(chunkCount);
+        dos.writeInt(ParityFlyweight.checksum(new Crc32c(), firstChunk, chunkCount, ByteBuffer.wrap(parity),
+                0, parity.length));
+        dos.write(parity);
+
+        this.bytes = outputStream.toByteArray();
+        this.firstChunk = firstChunk;
+        this.chunkCount = chunkCount;
+        this.length = bytes.length;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public long getFirstChunk() {
+        return firstChunk;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the offset in getBytes() at which the parity data starts.
+     */
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    public int getParitySize() {
+        return length - HEADER_SIZE;
+    }
+}
@@ -0,0 +1,89 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight codec for PAYLOAD messages.
+ *
+ *     INT packetType
+ *     LONG offset
+ *     INT checksum
+ *     BYTE[] payload
+ *
+ * The checksum is the CRC32C of the offset and payload, by which the receiver
+ * detects corruption that the UDP checksum missed.
+ */
+public class PayloadFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 16;
+
+    @Override
+    public PayloadFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_PAYLOAD;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return the file offset of this message's payload.
+     */
+    public long getPosition() {
+        return buffer.getLong(offset + TYPE_SIZE);
+    }
+
+    /**
+     * @return the checksum the sender computed for this message's offset and payload.
+     */
+    public int getChecksum() {
+        return buffer.getInt(offset + TYPE_SIZE + 8);
+    }
+
+    /**
+     * @return the index in buffer() at which the payload starts.
+     */
+    public int getPayloadOffset() {
+        return offset + HEADER_SIZE;
+    }
+
+    public int getPayloadLength() {
+        return length - HEADER_SIZE;
+    }
+
+    /**
+     * @return whether the message's offset and payload match its checksum.
+     */
+    public boolean isIntact(Crc32c crc) {
+        return checksum(crc, getPosition(), buffer, getPayloadOffset(), getPayloadLength()) == getChecksum();
+    }
+
+    /**
+     * Compute the checksum of a PAYLOAD message.
+     *
+     * @param position the file offset of the payload.
+     * @param payload a buffer holding the payload between `index` and `index + length`.
+     */
+    public static int checksum(Crc32c crc, long position, ByteBuffer payload, int index, int length) {
+        return crc.reset().updateLong(position).update(payload, index, length).getValue();
+    }
+
+    /**
+     * Write a PAYLOAD header at `dst`'s position; the caller then writes the payload.
+     *
+     * @param checksum the payload's checksum; see checksum().
+     */
+    public static void encodeHeader(ByteBuffer dst, long position, int checksum) {
+        dst.putInt(Message.MESSAGE_TYPE_PAYLOAD);
+        dst.putLong(position);
+        dst.putInt(checksum);
+    }
+}
@@ -3,6 +3,7 @@ package com.mykwillis.udpthrottle.message;
 import com.mykwillis.udpthrottle.FileProvider;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class PayloadMessage extends Message {
     byte[] bytes;
@@ -22,14 +23,10 @@ public class PayloadMessage extends Message {
         if (!isPayloadMessage(bytes)) {
            throw new IllegalArgumentException("Message is not payload packet");
         }
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-        DataInputStream dis = new DataInputStream(inputStream);
-
-        int packetType = dis.readInt();
-        long position = dis.readLong();
+        PayloadFlyweight payload = new PayloadFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
 
         this.bytes = bytes;
-        this.position = position;
+        this.position = payload.getPosition();
         this.length = length;
     }
 
@@ -54,7 +51,7 @@ public class PayloadMessage extends Message {
     }
 
     public int getHeaderSize() {
-        return 12;  // 4 for int packetType, 8 for long length
+        return PayloadFlyweight.HEADER_SIZE;
     }
 
     public long getPosition() {
@@ -0,0 +1,42 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight codec for PROBE messages.
+ *
+ *     INT packetType
+ *     INT probeSize
+ *     padding             (to probeSize bytes)
+ */
+public class ProbeFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 8;
+
+    @Override
+    public ProbeFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_PROBE;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    public int getProbeSize() {
+        return buffer.getInt(offset + TYPE_SIZE);
+    }
+
+    /**
+     * @return whether the message is as large as it claims to be, and so arrived
+     *  whole.
+     */
+    public boolean isComplete() {
+        return length == getProbeSize();
+    }
+}
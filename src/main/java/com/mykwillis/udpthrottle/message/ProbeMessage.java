@@ -0,0 +1,60 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PROBE message, used by a client to find the largest datagram that can be
+ * exchanged with the server.
+ *
+ * The client sends the server probes of various sizes, each padded with zeroes
+ * to its probeSize. The server echoes each probe that arrives whole, so a reply
+ * shows that a datagram of that size got through in both directions. As the
+ * reply is no larger than the probe, the server can't be used to amplify
+ * traffic towards a spoofed address.
+ */
+public class ProbeMessage extends Message {
+    byte[] bytes;
+    int probeSize;
+
+    /**
+     * Create ProbeMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public ProbeMessage(byte[] bytes, int length) throws IOException {
+        if (!isProbeMessage(bytes)) {
+            throw new IllegalArgumentException("Message is not PROBE packet");
+        }
+        this.probeSize = new ProbeFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length).getProbeSize();
+        this.bytes = bytes;
+    }
+
+    /**
+     * Create a PROBE message, padded to `probeSize` bytes.
+     */
+    public ProbeMessage(int probeSize) throws IOException {
+        if (probeSize < ProbeFlyweight.HEADER_SIZE) {
+            throw new IllegalArgumentException("Probe size is too small: " + probeSize);
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_PROBE);
+        dos.writeInt(probeSize);
+        dos.write(new byte[probeSize - ProbeFlyweight.HEADER_SIZE]);
+
+        this.bytes = outputStream.toByteArray();
+        this.probeSize = probeSize;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getProbeSize() {
+        return probeSize;
+    }
+}
@@ -0,0 +1,69 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight codec for REPORT messages.
+ *
+ *     INT packetType
+ *     LONG timestamp          (ms, on the client's clock)
+ *     LONG packetsReceived
+ *     LONG bytesReceived
+ *     LONG packetsLost
+ *     LONG packetsReordered
+ *     LONG capacityEstimate   (optional; bytes/s, or 0 if unknown)
+ */
+public class ReportFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 44;
+
+    @Override
+    public ReportFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        if (getPacketsReceived() < 0 || getBytesReceived() < 0 || getPacketsLost() < 0
+                || getPacketsReordered() < 0) {
+            throw new IllegalArgumentException("Invalid report");
+        }
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_REPORT;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    public long getTimestamp() {
+        return buffer.getLong(offset + TYPE_SIZE);
+    }
+
+    public long getPacketsReceived() {
+        return buffer.getLong(offset + TYPE_SIZE + 8);
+    }
+
+    public long getBytesReceived() {
+        return buffer.getLong(offset + TYPE_SIZE + 16);
+    }
+
+    public long getPacketsLost() {
+        return buffer.getLong(offset + TYPE_SIZE + 24);
+    }
+
+    public long getPacketsReordered() {
+        return buffer.getLong(offset + TYPE_SIZE + 32);
+    }
+
+    /**
+     * @return the client's estimate of its path's capacity, in bytes per second, or
+     *  0 if it has none.
+     */
+    public long getCapacityEstimate() {
+        if (length < HEADER_SIZE + 8) {
+            return 0;
+        }
+        return Math.max(0, buffer.getLong(offset + HEADER_SIZE));
+    }
+}
@@ -0,0 +1,110 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * REPORT message, sent periodically by a client to tell the server how its
+ * download is going, so that the server can send to it no faster than its path
+ * can carry.
+ *
+ * Every count is cumulative since the client sent BEGIN, and the timestamp is the
+ * time, in milliseconds, at which the report was made. The server works out rates
+ * from the difference between consecutive reports, so a lost report costs only
+ * a little precision. The timestamp is on the client's clock and need only be
+ * monotonic.
+ *
+ * packetsLost is the client's estimate of the PAYLOAD messages lost on the way,
+ * from gaps in the chunks it has received, and packetsReordered counts those that
+ * arrived after a later chunk and so were at first counted as lost.
+ *
+ * capacityEstimate, which is optional, is the rate at which the client received
+ * the packet train that followed INFO, and so the rate its path can carry. The
+ * client sends it in the report it makes as soon as the train has arrived, and
+ * 0 (unknown) thereafter.
+ */
+public class ReportMessage extends Message {
+    byte[] bytes;
+    long timestamp;
+    long packetsReceived;
+    long bytesReceived;
+    long packetsLost;
+    long packetsReordered;
+    long capacityEstimate;
+
+    /**
+     * Create ReportMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public ReportMessage(byte[] bytes, int length) throws IOException {
+        if (!isReportMessage(bytes)) {
+            throw new IllegalArgumentException("Message is not REPORT packet");
+        }
+        ReportFlyweight report = new ReportFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+        this.timestamp = report.getTimestamp();
+        this.packetsReceived = report.getPacketsReceived();
+        this.bytesReceived = report.getBytesReceived();
+        this.packetsLost = report.getPacketsLost();
+        this.packetsReordered = report.getPacketsReordered();
+        this.capacityEstimate = report.getCapacityEstimate();
+        this.bytes = bytes;
+    }
+
+    public ReportMessage(long timestamp, long packetsReceived, long bytesReceived,
+                         long packetsLost, long packetsReordered) throws IOException {
+        this(timestamp, packetsReceived, bytesReceived, packetsLost, packetsReordered, 0);
+    }
+
+    public ReportMessage(long timestamp, long packetsReceived, long bytesReceived,
+                         long packetsLost, long packetsReordered, long capacityEstimate) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_REPORT);
+        dos.writeLong(timestamp);
+        dos.writeLong(packetsReceived);
+        dos.writeLong(bytesReceived);
+        dos.writeLong(packetsLost);
+        dos.writeLong(packetsReordered);
+        dos.writeLong(capacityEstimate);
+
+        this.bytes = outputStream.toByteArray();
+        this.timestamp = timestamp;
+        this.packetsReceived = packetsReceived;
+        this.bytesReceived = bytesReceived;
+        this.packetsLost = packetsLost;
+        this.packetsReordered = packetsReordered;
+        this.capacityEstimate = capacityEstimate;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    public long getPacketsReordered() {
+        return packetsReordered;
+    }
+
+    public long getCapacityEstimate() {
+        return capacityEstimate;
+    }
+}
@@ -0,0 +1,121 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flyweight codec for RESUME messages.
+ *
+ *     INT packetType
+ *     INT weight
+ *     INT maxDatagramSize
+ *     INT chunkSize
+ *     INT rangeCount
+ *     { LONG firstChunk, LONG chunkCount } ranges[rangeCount]
+ *     INT filenameSize    (optional)
+ *     BYTES filename      (UTF-8)
+ */
+public class ResumeFlyweight extends MessageFlyweight {
+    public static final int HEADER_SIZE = 20;
+    public static final int RANGE_SIZE = NackFlyweight.RANGE_SIZE;
+
+    @Override
+    public ResumeFlyweight wrap(ByteBuffer buffer, int offset, int length) {
+        super.wrap(buffer, offset, length);
+        int rangeCount = getRangeCount();
+        if (rangeCount < 0 || rangeCount > ResumeMessage.MAX_RANGES
+                || length < HEADER_SIZE + rangeCount * RANGE_SIZE) {
+            throw new IllegalArgumentException("Invalid range count in RESUME packet");
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            if (getFirstChunk(i) < 0 || getChunkCount(i) < 0) {
+                throw new IllegalArgumentException("Invalid range in RESUME packet");
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public int getMessageType() {
+        return Message.MESSAGE_TYPE_RESUME;
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return HEADER_SIZE;
+    }
+
+    /**
+     * @return the weight requested by the client, limited to the allowed range.
+     */
+    public int getWeight() {
+        return BeginMessage.clampWeight(buffer.getInt(offset + TYPE_SIZE));
+    }
+
+    public int getMaxDatagramSize() {
+        return buffer.getInt(offset + TYPE_SIZE + 4);
+    }
+
+    /**
+     * @return the chunk size of the earlier download, to which the ranges refer.
+     */
+    public int getChunkSize() {
+        return buffer.getInt(offset + TYPE_SIZE + 8);
+    }
+
+    public int getRangeCount() {
+        return buffer.getInt(offset + TYPE_SIZE + 12);
+    }
+
+    public long getFirstChunk(int range) {
+        return buffer.getLong(offset + HEADER_SIZE + range * RANGE_SIZE);
+    }
+
+    public long getChunkCount(int range) {
+        return buffer.getLong(offset + HEADER_SIZE + range * RANGE_SIZE + 8);
+    }
+
+    /**
+     * @return the name of the file the client is asking for, or null if the
+     *  message names none.
+     */
+    public String getFilename() {
+        return getString(HEADER_SIZE + getRangeCount() * RANGE_SIZE);
+    }
+
+    /**
+     * Copy the message's ranges into a new list.
+     */
+    public List<ChunkRange> getRanges() {
+        List<ChunkRange> ranges = new ArrayList<>(getRangeCount());
+        for (int i = 0; i < getRangeCount(); i++) {
+            ranges.add(new ChunkRange(getFirstChunk(i), getChunkCount(i)));
+        }
+        return ranges;
+    }
+
+    /**
+     * Write a RESUME message at `dst`'s position.
+     *
+     * @param filename the name of the file requested, or null to leave the field out.
+     */
+    public static void encode(ByteBuffer dst, int weight, int maxDatagramSize, int chunkSize,
+                              List<ChunkRange> ranges, String filename) {
+        if (ranges.size() > ResumeMessage.MAX_RANGES) {
+            throw new IllegalArgumentException("Too many ranges for RESUME packet");
+        }
+        dst.putInt(Message.MESSAGE_TYPE_RESUME);
+        dst.putInt(weight);
+        dst.putInt(maxDatagramSize);
+        dst.putInt(chunkSize);
+        dst.putInt(ranges.size());
+        for (ChunkRange range : ranges) {
+            dst.putLong(range.getFirstChunk());
+            dst.putLong(range.getChunkCount());
+        }
+        if (filename != null) {
+            putString(dst, filename);
+        }
+    }
+}
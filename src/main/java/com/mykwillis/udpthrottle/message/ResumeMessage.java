@@ -0,0 +1,108 @@
+package com.mykwillis.udpthrottle.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * RESUME message, sent by a client in place of BEGIN to carry on with a download
+ * that was interrupted.
+ *
+ * Along with the fields of BEGIN, it gives the chunk size of the earlier download
+ * and the ranges of chunks that the client is still missing. If the server can
+ * use that chunk size, it replies with INFO as for BEGIN, but sends only those
+ * chunks; otherwise it treats the message as a BEGIN, and sends the whole file.
+ * A RESUME from a client that the server is already sending to replaces whatever
+ * it had left to send with the ranges given.
+ */
+public class ResumeMessage extends Message {
+    /**
+     * Largest number of ranges carried by a RESUME message, as for NACK. A client
+     * missing more ranges than this extends the last to the end of the file.
+     */
+    public static final int MAX_RANGES = NackMessage.MAX_RANGES;
+
+    byte[] bytes;
+    int weight;
+    int maxDatagramSize;
+    int chunkSize;
+    List<ChunkRange> ranges;
+    String filename;
+
+    /**
+     * Create ResumeMessage for buffer read from network.
+     *
+     * @param bytes byte array containing bytes read from network.
+     * @param length the number of bytes in `bytes` that were read from the network.
+     */
+    public ResumeMessage(byte[] bytes, int length) throws IOException {
+        if (!isResumeMessage(bytes)) {
+            throw new IllegalArgumentException("Message is not RESUME packet");
+        }
+        ResumeFlyweight resume = new ResumeFlyweight().wrap(ByteBuffer.wrap(bytes), 0, length);
+
+        this.bytes = bytes;
+        this.weight = resume.getWeight();
+        this.maxDatagramSize = resume.getMaxDatagramSize();
+        this.chunkSize = resume.getChunkSize();
+        this.ranges = Collections.unmodifiableList(resume.getRanges());
+        this.filename = resume.getFilename();
+    }
+
+    /**
+     * Create a RESUME message.
+     *
+     * @param weight the client's share of bandwidth, relative to other clients.
+     * @param maxDatagramSize the largest datagram the client can receive without
+     *                        fragmentation.
+     * @param chunkSize the chunk size of the earlier download, to which the ranges refer.
+     * @param ranges the chunks the client is missing.
+     * @param filename the name of the file to download from a server serving a
+     *                 catalog of files, or null if the server serves just one.
+     */
+    public ResumeMessage(int weight, int maxDatagramSize, int chunkSize, List<ChunkRange> ranges,
+                         String filename) throws IOException {
+        int size = ResumeFlyweight.HEADER_SIZE + ranges.size() * ResumeFlyweight.RANGE_SIZE;
+        if (filename != null) {
+            size += 4 + filename.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        ResumeFlyweight.encode(buffer, BeginMessage.clampWeight(weight), maxDatagramSize, chunkSize, ranges,
+                filename);
+
+        this.bytes = buffer.array();
+        this.weight = BeginMessage.clampWeight(weight);
+        this.maxDatagramSize = maxDatagramSize;
+        this.chunkSize = chunkSize;
+        this.ranges = Collections.unmodifiableList(new ArrayList<>(ranges));
+        this.filename = filename;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public List<ChunkRange> getRanges() {
+        return ranges;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+}
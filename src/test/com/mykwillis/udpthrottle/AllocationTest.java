@@ -0,0 +1,202 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.MessageFlyweight;
+import com.mykwillis.udpthrottle.message.ParityFlyweight;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that sending and receiving file data allocates nothing per packet.
+ *
+ * Allocation is measured with the HotSpot-specific ThreadMXBean, and the tests
+ * are skipped on JVMs that don't support it. Each test runs its path once to warm
+ * up (loading classes and filling thread-local caches), and then requires that
+ * many more packets allocate less than one byte each; as every object is larger
+ * than that, this means that no packet allocated anything.
+ */
+public class AllocationTest {
+    static final int CHUNK_COUNT = 1024;
+    static final long SEND_TIMEOUT_NANOS = 10L * 1000 * 1000 * 1000;   // 10s
+
+    File file;
+    com.sun.management.ThreadMXBean threadBean;
+
+    @Before
+    public void setUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] bytes = new byte[CHUNK_COUNT * FileProvider.CHUNK_PAYLOAD_SIZE - 100];
+        new Random(1234).nextBytes(bytes);
+        file = File.createTempFile("allocation", ".bin");
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(bytes);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void sendPath_allocatesNothingPerPacket() throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server server = new Server(port, file, 100L * 1000 * 1000 * 1000);
+        server.setParityBlockSize(8);
+        Server.EventLoop loop = server.open()[0];
+
+        // The client is sent the whole file as a single range, so that it isn't
+        // held back after a packet train. Its datagrams are dropped unread.
+        try (DatagramChannel receiver = DatagramChannel.open()) {
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Server.ChunkLayout layout = server.findFile(null).findLayout(FileProvider.CHUNK_SIZE);
+            Server.ClientContext client = server.new ClientContext(
+                    (InetSocketAddress) receiver.getLocalAddress(), layout);
+            loop.admit(client, Collections.singletonList(new ChunkRange(0, client.endChunk)), false);
+
+            // The measured datagrams stop short of the end of the file, after which
+            // the client is sent END messages.
+            sendDatagrams(loop, CHUNK_COUNT / 4);
+
+            int packets = CHUNK_COUNT / 2;
+            long before = allocatedBytes();
+            sendDatagrams(loop, packets);
+            long allocated = allocatedBytes() - before;
+
+            assertTrue("Allocated " + allocated + " bytes for " + packets + " packets", allocated < packets);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Run the event loop's send path until it has sent `packets` datagrams.
+     *
+     * Nothing here waits for a full send buffer to drain (as the loop would on
+     * its Selector), so the test fails if the datagrams aren't all sent in time.
+     */
+    static void sendDatagrams(Server.EventLoop loop, int packets) throws Exception {
+        long deadline = System.nanoTime() + SEND_TIMEOUT_NANOS;
+        int sent = 0;
+        while (sent < packets) {
+            if (System.nanoTime() - deadline >= 0) {
+                fail("Sent only " + sent + " of " + packets + " datagrams");
+            }
+            if (!loop.isSendPending()) {
+                loop.prepareNextDatagram();
+            }
+            if (loop.sendPending()) {
+                sent++;
+            }
+        }
+    }
+
+    @Test
+    public void receivePath_allocatesNothingPerPacket() throws Exception {
+        FileProvider fileProvider = new FileProvider(file);
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 8);
+
+        // Each chunk is only written once, so a fresh receiver is measured after
+        // warming up with another.
+        FileReceiver warmUp = new FileReceiver(file.getPath() + ".warmup", fileProvider.getFileSize());
+        FileReceiver measured = new FileReceiver(file.getPath() + ".measured", fileProvider.getFileSize(),
+                FileProvider.CHUNK_SIZE, ChunkChecksums.compute(fileProvider).getMerkleRoot());
+        try {
+            // Received datagrams are copied into a reused buffer, as by the client.
+            byte[] receiveBytes = new byte[FileProvider.CHUNK_SIZE + ParityFlyweight.HEADER_SIZE];
+            ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+            byte[][] datagrams = datagrams(fileProvider, parityProvider);
+
+            decodePackets(warmUp, datagrams, receiveBytes, receiveBuffer);
+
+            long before = allocatedBytes();
+            decodePackets(measured, datagrams, receiveBytes, receiveBuffer);
+            long allocated = allocatedBytes() - before;
+
+            assertTrue(measured.isDownloadComplete());
+            assertTrue(measured.verify());
+            assertTrue("Allocated " + allocated + " bytes for " + datagrams.length + " packets",
+                    allocated < datagrams.length);
+        } finally {
+            warmUp.complete().file.delete();
+            measured.complete().file.delete();
+        }
+    }
+
+    /**
+     * @return the datagrams the server would send for the file.
+     */
+    static byte[][] datagrams(ChunkProvider fileProvider, ParityProvider parityProvider) {
+        ChunkChecksums checksums = ChunkChecksums.compute(fileProvider);
+        ByteBuffer sendBuffer = ByteBuffer.allocate(FileProvider.CHUNK_SIZE + ParityFlyweight.HEADER_SIZE);
+        byte[][] datagrams = new byte[(int) fileProvider.getChunkCount() + parityProvider.getBlockCount()][];
+        int packet = 0;
+        for (long chunk = 0; chunk < fileProvider.getChunkCount(); chunk++) {
+            sendBuffer.clear();
+            PayloadFlyweight.encodeHeader(sendBuffer, fileProvider.getChunkPosition(chunk), checksums.get(chunk));
+            fileProvider.readChunk(chunk, sendBuffer);
+            datagrams[packet++] = Arrays.copyOf(sendBuffer.array(), sendBuffer.position());
+
+            if (parityProvider.isLastInBlock(chunk)) {
+                int block = parityProvider.getBlock(chunk);
+                sendBuffer.clear();
+                ParityFlyweight.encodeHeader(sendBuffer, parityProvider.getFirstChunk(block),
+                        parityProvider.getBlockChunkCount(block), parityProvider.getChecksum(block));
+                parityProvider.readParity(block, sendBuffer);
+                datagrams[packet++] = Arrays.copyOf(sendBuffer.array(), sendBuffer.position());
+            }
+        }
+        return datagrams;
+    }
+
+    static void decodePackets(FileReceiver fileReceiver, byte[][] datagrams,
+                              byte[] receiveBytes, ByteBuffer receiveBuffer) throws Exception {
+        PayloadFlyweight payload = new PayloadFlyweight();
+        ParityFlyweight parity = new ParityFlyweight();
+        for (byte[] datagram : datagrams) {
+            System.arraycopy(datagram, 0, receiveBytes, 0, datagram.length);
+            int length = datagram.length;
+
+            int packetType = MessageFlyweight.getMessageType(receiveBuffer, 0, length);
+            if (packetType == Message.MESSAGE_TYPE_PAYLOAD) {
+                fileReceiver.processPayload(payload.wrap(receiveBuffer, 0, length));
+            } else if (packetType == Message.MESSAGE_TYPE_PARITY) {
+                fileReceiver.processParity(parity.wrap(receiveBuffer, 0, length));
+            } else {
+                fail("Unexpected packet type " + packetType);
+            }
+        }
+    }
+}
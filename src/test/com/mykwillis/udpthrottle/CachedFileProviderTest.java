@@ -0,0 +1,72 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class CachedFileProviderTest {
+    ChunkCache cache = new ChunkCache(4 * ChunkCache.PAGE_SIZE * ChunkCache.SEGMENTS);
+
+    @Test
+    public void getChunk_singleChunkFile() throws Exception {
+        File file = new File("src/test/resources/test-file-small.txt");
+        try (CachedFileProvider fileProvider = new CachedFileProvider(file, cache)) {
+            assertEquals(1, fileProvider.getChunkCount());
+            assertEquals(file.length(), fileProvider.getFileSize());
+            assertNotNull(fileProvider.getChunk(0));
+            assertNull(fileProvider.getChunk(1));
+            assertNull(fileProvider.getChunkPayload(-1));
+        }
+    }
+
+    @Test
+    public void withChunkSize_matchesFileProvider() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        try (CachedFileProvider cachedProvider = new CachedFileProvider(file, cache)) {
+            for (int chunkSize : new int[] { FileProvider.MIN_CHUNK_SIZE, 1400, FileProvider.MAX_CHUNK_SIZE }) {
+                ChunkProvider heapLayout = new FileProvider(file).withChunkSize(chunkSize);
+                ChunkProvider cachedLayout = cachedProvider.withChunkSize(chunkSize);
+
+                assertEquals(heapLayout.getChunkCount(), cachedLayout.getChunkCount());
+                for (long i = 0; i < cachedLayout.getChunkCount(); i++) {
+                    assertArrayEquals(heapLayout.getChunk(i), cachedLayout.getChunk(i));
+                }
+            }
+            assertSame(cachedProvider, cachedProvider.withChunkSize(FileProvider.CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void readChunk_matchesGetChunkPayload() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        try (CachedFileProvider fileProvider = new CachedFileProvider(file, cache)) {
+            ByteBuffer buffer = ByteBuffer.allocate(FileProvider.CHUNK_PAYLOAD_SIZE);
+
+            for (int i = 0; i < fileProvider.getChunkCount(); i++) {
+                buffer.clear();
+                int length = fileProvider.readChunk(i, buffer);
+                buffer.flip();
+
+                assertEquals(fileProvider.getChunkLength(i), length);
+                assertEquals(fileProvider.getChunkPayload(i), buffer);
+            }
+            assertEquals(-1, fileProvider.readChunk(fileProvider.getChunkCount(), buffer));
+        }
+    }
+
+    @Test
+    public void filesShareTheCache() throws Exception {
+        File small = new File("src/test/resources/test-file-small.txt");
+        File medium = new File("src/test/resources/test-file-medium.txt");
+        try (CachedFileProvider smallProvider = new CachedFileProvider(small, cache);
+             CachedFileProvider mediumProvider = new CachedFileProvider(medium, cache)) {
+            byte[] first = smallProvider.getChunk(0);
+            mediumProvider.getChunk(0);
+            assertArrayEquals(first, smallProvider.getChunk(0));
+            assertEquals(2, cache.getMissCount());
+        }
+    }
+}
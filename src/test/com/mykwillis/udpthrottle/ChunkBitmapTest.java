@@ -0,0 +1,134 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ChunkBitmapTest {
+    @Test
+    public void set_countsEachChunkOnce() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(130);
+
+        assertTrue(bitmap.set(0));
+        assertTrue(bitmap.set(64));
+        assertTrue(bitmap.set(129));
+        assertFalse(bitmap.set(64));
+
+        assertTrue(bitmap.get(64));
+        assertFalse(bitmap.get(63));
+        assertEquals(3, bitmap.cardinality());
+        assertFalse(bitmap.isFull());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void set_throwsOutOfRange() throws Exception {
+        new ChunkBitmap(10).set(10);
+    }
+
+    @Test
+    public void nextSetAndClear_crossWordBoundaries() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(200);
+        for (long i = 60; i < 190; i++) {
+            bitmap.set(i);
+        }
+
+        assertEquals(60, bitmap.nextSet(0));
+        assertEquals(100, bitmap.nextSet(100));
+        assertEquals(200, bitmap.nextSet(190));
+        assertEquals(0, bitmap.nextClear(0));
+        assertEquals(190, bitmap.nextClear(60));
+        assertEquals(199, bitmap.nextClear(199));
+        assertEquals(200, bitmap.nextClear(200));
+
+        // bits past the end of the last word are never reported
+        for (long i = 190; i < 200; i++) {
+            bitmap.set(i);
+        }
+        for (long i = 0; i < 60; i++) {
+            bitmap.set(i);
+        }
+        assertTrue(bitmap.isFull());
+        assertEquals(200, bitmap.nextClear(0));
+    }
+
+    @Test
+    public void largeBitmap_indexesBeyondIntRange() throws Exception {
+        long size = (1L << 31) + 100;
+        ChunkBitmap bitmap = new ChunkBitmap(size);
+
+        bitmap.set(size - 1);
+        assertEquals(size - 1, bitmap.nextSet(0));
+        assertEquals(size - 2, bitmap.nextClear(size - 2));
+        assertEquals(size, bitmap.nextClear(size - 1));
+    }
+
+    @Test
+    public void getClearRanges_coversRestIfTooMany() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(200);
+        for (long i = 0; i < 200; i += 2) {
+            bitmap.set(i);
+        }
+        bitmap.set(199);
+
+        assertEquals(Arrays.asList(new ChunkRange(1, 1), new ChunkRange(3, 1)), bitmap.getClearRanges(2, false));
+        assertEquals(Arrays.asList(new ChunkRange(1, 1), new ChunkRange(3, 197)), bitmap.getClearRanges(2, true));
+        assertEquals(99, bitmap.getClearRanges(1000, true).size());
+        assertEquals(new ChunkRange(197, 1), bitmap.getClearRanges(1000, true).get(98));
+    }
+
+    @Test
+    public void setWord_countsBitsAndIgnoresThosePastEnd() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(70);
+        bitmap.setWord(0, 0xFFL);
+        bitmap.setWord(1, -1L);
+
+        assertEquals(8 + 6, bitmap.cardinality());
+        assertEquals(0x3FL, bitmap.getWord(1));
+        assertEquals(8, bitmap.nextClear(0));
+        assertEquals(70, bitmap.nextClear(64));
+
+        bitmap.setWord(0, 0x1L);
+        assertEquals(1 + 6, bitmap.cardinality());
+        bitmap.clear();
+        assertEquals(0, bitmap.cardinality());
+        assertEquals(70, bitmap.nextSet(0));
+    }
+
+    @Test
+    public void setRange_setsWholeWordsAndPartialEnds() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(300);
+        bitmap.set(70);
+        bitmap.set(10, 250);
+
+        assertEquals(240, bitmap.cardinality());
+        assertEquals(10, bitmap.nextSet(0));
+        assertEquals(250, bitmap.nextClear(10));
+        assertEquals(-1L, bitmap.getWord(2));
+
+        bitmap.set(250, 300);
+        bitmap.set(0, 10);
+        assertTrue(bitmap.isFull());
+    }
+
+    @Test
+    public void cardinalityOfRange_countsAcrossWords() throws Exception {
+        ChunkBitmap bitmap = new ChunkBitmap(300);
+        bitmap.set(10, 250);
+        bitmap.set(299);
+
+        assertEquals(241, bitmap.cardinality(0, 300));
+        assertEquals(0, bitmap.cardinality(0, 10));
+        assertEquals(4, bitmap.cardinality(60, 64));
+        assertEquals(100, bitmap.cardinality(60, 160));
+        assertEquals(1, bitmap.cardinality(250, 400));
+        assertEquals(0, bitmap.cardinality(20, 20));
+
+        ChunkBitmap copy = new ChunkBitmap(bitmap);
+        bitmap.set(0);
+        assertEquals(241, copy.cardinality());
+        assertFalse(copy.get(0));
+    }
+}
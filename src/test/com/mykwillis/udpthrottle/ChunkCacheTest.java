@@ -0,0 +1,134 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static com.mykwillis.udpthrottle.ChunkCache.PAGE_SIZE;
+import static com.mykwillis.udpthrottle.ChunkCache.SEGMENTS;
+import static org.junit.Assert.*;
+
+public class ChunkCacheTest {
+    static final int FILE_PAGES = 64;
+
+    File file;
+    byte[] fileBytes;
+    FileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("chunk-cache", ".bin");
+        fileBytes = new byte[FILE_PAGES * PAGE_SIZE - 1000];
+        new Random(1).nextBytes(fileBytes);
+        Files.write(file.toPath(), fileBytes);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        file.delete();
+    }
+
+    byte[] read(ChunkCache cache, int fileId, long position, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        cache.read(fileId, channel, position, length, buffer);
+        assertFalse(buffer.hasRemaining());
+        return buffer.array();
+    }
+
+    void assertReads(ChunkCache cache, int fileId, int position, int length) throws Exception {
+        byte[] expected = new byte[length];
+        System.arraycopy(fileBytes, position, expected, 0, length);
+        assertArrayEquals(expected, read(cache, fileId, position, length));
+    }
+
+    @Test
+    public void read_matchesFile() throws Exception {
+        ChunkCache cache = new ChunkCache(4 * PAGE_SIZE * SEGMENTS);
+        int fileId = cache.register();
+
+        assertReads(cache, fileId, 0, 100);
+        assertReads(cache, fileId, PAGE_SIZE - 10, 20);             // spans two pages
+        assertReads(cache, fileId, 3 * PAGE_SIZE + 5, 2 * PAGE_SIZE); // spans three
+        assertReads(cache, fileId, fileBytes.length - 50, 50);      // last page is short
+    }
+
+    @Test
+    public void read_cachesPages() throws Exception {
+        ChunkCache cache = new ChunkCache(4 * PAGE_SIZE * SEGMENTS);
+        int fileId = cache.register();
+
+        assertReads(cache, fileId, 0, 100);
+        assertReads(cache, fileId, 100, 100);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        // The same page of another file is another page.
+        read(cache, cache.register(), 0, 100);
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void read_evictsWhenFull() throws Exception {
+        ChunkCache cache = new ChunkCache(0);     // one page per segment
+        int fileId = cache.register();
+        assertEquals(SEGMENTS * PAGE_SIZE, cache.getCapacity());
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int page = 0; page < FILE_PAGES; page++) {
+                assertReads(cache, fileId, page * PAGE_SIZE, 100);
+            }
+        }
+        // The file is four times the size of the cache, so at least some of the
+        // second pass's pages must have been read again.
+        assertTrue(cache.getMissCount() > FILE_PAGES);
+        assertEquals(2 * FILE_PAGES, cache.getMissCount() + cache.getHitCount());
+    }
+
+    @Test
+    public void read_keepsPagesInUse() throws Exception {
+        ChunkCache cache = new ChunkCache(2 * PAGE_SIZE * SEGMENTS);
+        int fileId = cache.register();
+
+        // A page that is read between every read of a scan through the file is
+        // never evicted to make room for the scan.
+        read(cache, fileId, 0, 100);
+        for (int page = 1; page < FILE_PAGES; page++) {
+            assertReads(cache, fileId, page * PAGE_SIZE, 100);
+            assertReads(cache, fileId, 0, 100);
+        }
+        assertEquals(FILE_PAGES, cache.getMissCount());
+        assertEquals(FILE_PAGES - 1, cache.getHitCount());
+    }
+
+    @Test
+    public void unregister_dropsPagesAndReusesId() throws Exception {
+        ChunkCache cache = new ChunkCache(4 * PAGE_SIZE * SEGMENTS);
+        int fileId = cache.register();
+        int otherId = cache.register();
+        read(cache, fileId, 0, 100);
+        read(cache, otherId, 0, 100);
+
+        cache.unregister(fileId);
+        assertEquals(fileId, cache.register());
+        read(cache, fileId, 0, 100);
+        read(cache, otherId, 0, 100);
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test(expected = EOFException.class)
+    public void read_throwsPastEndOfFile() throws Exception {
+        ChunkCache cache = new ChunkCache(PAGE_SIZE * SEGMENTS);
+        read(cache, cache.register(), fileBytes.length - 50, 100);
+    }
+}
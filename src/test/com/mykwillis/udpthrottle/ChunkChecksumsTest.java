@@ -0,0 +1,85 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkChecksumsTest {
+
+    @Test
+    public void compute_matchesPayloadHeaders() throws Exception {
+        byte[] fileBytes = new byte[5 * FileProvider.CHUNK_PAYLOAD_SIZE + 99];
+        new Random(3).nextBytes(fileBytes);
+        ChunkProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes)).withChunkSize(1400);
+
+        ChunkChecksums checksums = ChunkChecksums.compute(fileProvider);
+        assertEquals(fileProvider.getChunkCount(), checksums.size());
+        PayloadFlyweight payload = new PayloadFlyweight();
+        for (long i = 0; i < checksums.size(); i++) {
+            byte[] chunk = fileProvider.getChunk(i);
+            assertEquals(payload.wrap(ByteBuffer.wrap(chunk), 0, chunk.length).getChecksum(), checksums.get(i));
+        }
+    }
+
+    @Test
+    public void getMerkleRoot_followsRfc6962() throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        assertArrayEquals(sha256.digest(), new ChunkChecksums(0).getMerkleRoot());
+
+        ChunkChecksums checksums = new ChunkChecksums(3);
+        checksums.set(0, 10);
+        checksums.set(1, 11);
+        checksums.set(2, 0x12345678);
+        byte[] a = leaf(sha256, 10);
+        byte[] b = leaf(sha256, 11);
+        byte[] c = leaf(sha256, 0x12345678);
+        // Three leaves split as two on the left, one on the right.
+        assertArrayEquals(node(sha256, node(sha256, a, b), c), checksums.getMerkleRoot());
+
+        ChunkChecksums single = new ChunkChecksums(1);
+        single.set(0, 10);
+        assertArrayEquals(a, single.getMerkleRoot());
+    }
+
+    @Test
+    public void getMerkleRoot_streamsAnyCount() throws Exception {
+        // The streaming computation matches the recursive definition for counts
+        // that are, and aren't, powers of two.
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        Random random = new Random(5);
+        for (int count : new int[] { 2, 4, 5, 7, 8, 13, 64, 100 }) {
+            ChunkChecksums checksums = new ChunkChecksums(count);
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = random.nextInt();
+                checksums.set(i, values[i]);
+            }
+            assertArrayEquals("count " + count, root(sha256, values, 0, count), checksums.getMerkleRoot());
+        }
+    }
+
+    static byte[] root(MessageDigest sha256, int[] values, int start, int end) {
+        if (end - start == 1) {
+            return leaf(sha256, values[start]);
+        }
+        int k = Integer.highestOneBit(end - start - 1);
+        return node(sha256, root(sha256, values, start, start + k), root(sha256, values, start + k, end));
+    }
+
+    static byte[] leaf(MessageDigest sha256, int checksum) {
+        sha256.update((byte) 0);
+        return sha256.digest(ByteBuffer.allocate(4).putInt(checksum).array());
+    }
+
+    static byte[] node(MessageDigest sha256, byte[] left, byte[] right) {
+        sha256.update((byte) 1);
+        sha256.update(left);
+        return sha256.digest(right);
+    }
+}
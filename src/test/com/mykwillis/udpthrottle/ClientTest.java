@@ -1,10 +1,12 @@
 package com.mykwillis.udpthrottle;
 
+import com.mykwillis.udpthrottle.message.ByteRange;
 import org.junit.Before;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
@@ -31,4 +33,15 @@ public class ClientTest {
         Client.main(new String[]{"10.1.1.1"});
         assertThat(testOut.toString(), containsString("Usage"));
     }
-}
\ No newline at end of file
+
+    @org.junit.Test
+    public void parseRange() throws Exception {
+        assertEquals(new ByteRange(0, 512), Client.parseRange("0-511"));
+        assertEquals(new ByteRange(1L << 33, 1), Client.parseRange((1L << 33) + "-" + (1L << 33)));
+    }
+
+    @org.junit.Test(expected = IllegalArgumentException.class)
+    public void parseRange_rejectsBackwardsRange() throws Exception {
+        Client.parseRange("100-99");
+    }
+}
@@ -0,0 +1,146 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CongestionControllerTest {
+    static final long MILLISECOND = 1000 * 1000;
+    static final int PACKET_SIZE = 1000;
+
+    CongestionController controller = new CongestionController(PACKET_SIZE);
+
+    // Cumulative counts, as the client reports them.
+    long timestamp = 0;
+    long packets = 0;
+    long bytes = 0;
+    long lost = 0;
+
+    /**
+     * Report that `bytesPerSecond` arrived over the last 100ms, with `lostPackets`
+     * lost.
+     */
+    boolean report(long bytesPerSecond, long lostPackets) {
+        timestamp += 100;
+        packets += bytesPerSecond / 10 / PACKET_SIZE;
+        bytes += bytesPerSecond / 10;
+        lost += lostPackets;
+        return controller.onReport(timestamp, packets, bytes, lost, 0, timestamp * MILLISECOND);
+    }
+
+    @Test
+    public void unpacedUntilFirstReport() throws Exception {
+        assertFalse(controller.isActive());
+        controller.onSend(PACKET_SIZE, 0);
+        controller.onSend(PACKET_SIZE, 0);
+        controller.onSend(PACKET_SIZE, 0);
+        assertEquals(0, controller.getDelay(0));
+
+        report(1000 * 1000, 0);
+        assertTrue(controller.isActive());
+        assertEquals(1000 * 1000, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void slowStart_doublesUntilLoss() throws Exception {
+        report(1000 * 1000, 0);
+        report(1000 * 1000, 0);
+        assertEquals(2 * 1000 * 1000, controller.getBytesPerSecond());
+        report(2 * 1000 * 1000, 0);
+        assertEquals(4 * 1000 * 1000, controller.getBytesPerSecond());
+
+        // The path only carries 3MB/s: cut to 70% of that.
+        report(3 * 1000 * 1000, 30);
+        assertEquals(2100 * 1000, controller.getBytesPerSecond());
+
+        // The next report still shows the loss from before the cut, and is ignored.
+        report(3 * 1000 * 1000, 30);
+        assertEquals(2100 * 1000, controller.getBytesPerSecond());
+
+        // After that, the rate grows by one packet per report interval.
+        report(2100 * 1000, 0);
+        assertEquals(2100 * 1000 + 10 * PACKET_SIZE, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void capacityEstimate_seedsRate() throws Exception {
+        timestamp += 10;
+        packets += 8;
+        bytes += 8 * PACKET_SIZE;
+        controller.onReport(timestamp, packets, bytes, lost, 3 * 1000 * 1000, timestamp * MILLISECOND);
+        assertEquals(3 * 1000 * 1000, controller.getBytesPerSecond());
+
+        // The capacity is known, so there is no slow start.
+        report(3 * 1000 * 1000, 0);
+        assertEquals(3 * 1000 * 1000 + 10 * PACKET_SIZE, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void awaitReport_holdsUntilFirstReport() throws Exception {
+        controller.awaitReport(0);
+        assertEquals(CongestionController.TRAIN_REPORT_TIMEOUT_NANOS, controller.getDelay(0));
+
+        report(1000 * 1000, 0);
+        assertEquals(0, controller.getDelay(timestamp * MILLISECOND));
+    }
+
+    @Test
+    public void awaitReport_givesUpOnClientsThatDontReport() throws Exception {
+        controller.awaitReport(0);
+        assertEquals(0, controller.getDelay(CongestionController.TRAIN_REPORT_TIMEOUT_NANOS));
+        assertFalse(controller.isActive());
+    }
+
+    @Test
+    public void smallLoss_isTolerated() throws Exception {
+        report(1000 * 1000, 0);
+        report(1000 * 1000, 1);   // 1%
+        assertEquals(2 * 1000 * 1000, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void appLimited_doesNotIncrease() throws Exception {
+        report(1000 * 1000, 0);
+        report(400 * 1000, 0);
+        assertEquals(1000 * 1000, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void rate_isNeverBelowMinimum() throws Exception {
+        report(1000, 0);
+        assertEquals(CongestionController.MIN_BYTES_PER_SECOND, controller.getBytesPerSecond());
+    }
+
+    @Test
+    public void staleReport_isIgnored() throws Exception {
+        assertTrue(report(1000 * 1000, 0));
+        timestamp -= 200;
+        assertFalse(report(1000 * 1000, 0));
+    }
+
+    @Test
+    public void getDelay_pacesAtRate() throws Exception {
+        report(1000 * 1000, 0);   // 1 packet per ms
+        long now = timestamp * MILLISECOND;
+
+        // A burst of packets may be sent at once, and then one per ms.
+        for (int i = 0; i < CongestionController.BURST_PACKETS; i++) {
+            assertEquals(0, controller.getDelay(now));
+            controller.onSend(PACKET_SIZE, now);
+        }
+        controller.onSend(PACKET_SIZE, now);
+        assertEquals(MILLISECOND, controller.getDelay(now));
+        assertEquals(0, controller.getDelay(now + MILLISECOND));
+    }
+
+    @Test
+    public void reportTimeout_halvesRate() throws Exception {
+        report(1000 * 1000, 0);
+        long now = timestamp * MILLISECOND;
+
+        controller.onSend(PACKET_SIZE, now + CongestionController.REPORT_TIMEOUT_NANOS);
+        assertEquals(1000 * 1000, controller.getBytesPerSecond());
+        controller.onSend(PACKET_SIZE, now + CongestionController.REPORT_TIMEOUT_NANOS + 1);
+        assertEquals(500 * 1000, controller.getBytesPerSecond());
+    }
+}
@@ -0,0 +1,54 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+    static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void getValue_matchesCheckValue() throws Exception {
+        // The standard check value of CRC-32C (iSCSI).
+        assertEquals(0xE3069283, new Crc32c().update(CHECK, 0, CHECK.length).getValue());
+
+        Crc32c.SoftwareCrc32c software = new Crc32c.SoftwareCrc32c();
+        software.update(CHECK, 0, CHECK.length);
+        assertEquals(0xE3069283L, software.getValue());
+    }
+
+    @Test
+    public void software_matchesJvm() throws Exception {
+        byte[] bytes = new byte[10000];
+        new Random(7).nextBytes(bytes);
+        Crc32c crc = new Crc32c();
+        Crc32c.SoftwareCrc32c software = new Crc32c.SoftwareCrc32c();
+        for (int length : new int[] { 0, 1, 7, 8, 9, 63, 1400, 10000 - 3 }) {
+            software.reset();
+            software.update(bytes, 3, length);
+            assertEquals((int) software.getValue(), crc.reset().update(bytes, 3, length).getValue());
+        }
+    }
+
+    @Test
+    public void update_buffersMatchArrays() throws Exception {
+        byte[] bytes = new byte[1000];
+        new Random(8).nextBytes(bytes);
+        Crc32c crc = new Crc32c();
+        int expected = crc.reset().updateLong(1L << 40).update(bytes, 100, 500).getValue();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).position(10).limit(20);
+        assertEquals(expected, crc.reset().updateLong(1L << 40).update(direct, 100, 500).getValue());
+        assertEquals(10, direct.position());
+        assertEquals(20, direct.limit());
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes, 100, 500);
+        assertEquals(expected, crc.reset().updateLong(1L << 40).update(heap).getValue());
+        assertEquals(100, heap.position());
+    }
+}
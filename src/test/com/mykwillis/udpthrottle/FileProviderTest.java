@@ -1,11 +1,15 @@
 package com.mykwillis.udpthrottle;
 
 import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Arrays;
@@ -72,6 +76,7 @@ public class FileProviderTest {
         FileProvider fileProvider = new FileProvider(file);
 
         byte[] fileBytes = Files.readAllBytes(file.toPath());
+        Crc32c crc = new Crc32c();
 
         int expectedChunks = getExpectedChunks(fileBytes.length);
         if (expectedChunks < 2) {
@@ -99,6 +104,7 @@ public class FileProviderTest {
             assertEquals(expectedChunkSize, chunk.length);  // validate length
             assertEquals(Message.MESSAGE_TYPE_PAYLOAD, byteBuffer.getInt());
             assertEquals(expectedPosition, byteBuffer.getLong()); // validate offset (header)
+            assertTrue(new PayloadFlyweight().wrap(byteBuffer, 0, chunk.length).isIntact(crc));
             byte[] chunkPayload = Arrays.copyOfRange(chunk, FileProvider.CHUNK_HEADER_SIZE, chunk.length);
             for(int pos=0;pos<chunkPayload.length;pos++) {
                 if (chunkPayload[pos] != fileBytes[expectedPosition+pos]) {
@@ -109,4 +115,60 @@ public class FileProviderTest {
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readFile_fillsChunksFromShortReads() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+
+        // A stream that returns at most 1000 bytes per read.
+        InputStream inputStream = new ByteArrayInputStream(fileBytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        FileProvider fileProvider = new FileProvider(inputStream);
+
+        assertEquals(fileBytes.length, fileProvider.getFileSize());
+        assertEquals(getExpectedChunks(fileBytes.length), fileProvider.getChunkCount());
+        ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        for (long i = 0; i < fileProvider.getChunkCount(); i++) {
+            ByteBuffer chunk = ByteBuffer.wrap(fileProvider.getChunk(i));
+            assertEquals(Message.MESSAGE_TYPE_PAYLOAD, chunk.getInt());
+            assertEquals(i * FileProvider.CHUNK_PAYLOAD_SIZE, chunk.getLong());
+            assertEquals(payloads.size(), fileProvider.getChunkPosition(i));
+            chunk.getInt();     // checksum
+            payloads.write(chunk.array(), chunk.position(), chunk.remaining());
+        }
+        assertArrayEquals(fileBytes, payloads.toByteArray());
+    }
+
+    @Test
+    public void withChunkSize_rechunksFile() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+        ChunkProvider fileProvider = new FileProvider(file).withChunkSize(1400);
+
+        assertEquals(1400, fileProvider.getChunkSize());
+        assertEquals(1384, fileProvider.getChunkPayloadSize());
+        assertEquals((fileBytes.length + 1383) / 1384, fileProvider.getChunkCount());
+
+        ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        for (long i = 0; i < fileProvider.getChunkCount(); i++) {
+            ByteBuffer chunk = ByteBuffer.wrap(fileProvider.getChunk(i));
+            assertEquals(Message.MESSAGE_TYPE_PAYLOAD, chunk.getInt());
+            assertEquals(fileProvider.getChunkPosition(i), chunk.getLong());
+            chunk.getInt();     // checksum
+            assertEquals(payloads.size(), fileProvider.getChunkPosition(i));
+            payloads.write(chunk.array(), chunk.position(), chunk.remaining());
+        }
+        assertArrayEquals(fileBytes, payloads.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void withChunkSize_rejectsInvalidSize() throws Exception {
+        new FileProvider(new File("src/test/resources/test-file-small.txt"))
+                .withChunkSize(FileProvider.MAX_CHUNK_SIZE + 1);
+    }
+}
@@ -1,11 +1,17 @@
 package com.mykwillis.udpthrottle;
 
-import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.ByteRange;
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.ParityMessage;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Arrays;
@@ -28,13 +34,15 @@ public class FileReceiverTest {
     public void deleteDownloadedFile() throws IOException {
         FileReceiver.FileDownloadResult result = fileReceiver.complete();
         result.file.delete();
+        // Tests that replace the receiver created above leave its file behind.
+        new File("test.download").delete();
     }
 
     @Test
     public void getExpectedChunks() throws Exception {
-        int actual;
-        int expected;
-        int bytes;
+        long actual;
+        long expected;
+        long bytes;
 
         bytes = 0;
         expected = 0;
@@ -65,13 +73,17 @@ public class FileReceiverTest {
         expected = 42;
         actual = FileReceiver.getExpectedChunks(bytes);
         assertEquals(expected, actual);
+
+        // more than 2^31 chunks
+        bytes = (1L << 31) * FileProvider.CHUNK_PAYLOAD_SIZE + 1;
+        expected = (1L << 31) + 1;
+        actual = FileReceiver.getExpectedChunks(bytes);
+        assertEquals(expected, actual);
     }
 
     @Test
     public void getChunkIndexByPosition() throws Exception {
         long position;
-        int expected;
-        int actual;
 
         position = 0;
         assertEquals(0, FileReceiver.getChunkIndexByPosition(position));
@@ -99,6 +111,9 @@ public class FileReceiverTest {
 
         position = 42 * FileProvider.CHUNK_PAYLOAD_SIZE + 1;
         assertEquals(42, FileReceiver.getChunkIndexByPosition(position));
+
+        position = 3L * Integer.MAX_VALUE * FileProvider.CHUNK_PAYLOAD_SIZE;
+        assertEquals(3L * Integer.MAX_VALUE, FileReceiver.getChunkIndexByPosition(position));
     }
 
     @Test
@@ -108,9 +123,7 @@ public class FileReceiverTest {
         // build random chunk of file data
         byte[] chunk = new byte[1000 + FileProvider.CHUNK_HEADER_SIZE];
         random.nextBytes(chunk);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(chunk);
-        byteBuffer.putInt(Message.MESSAGE_TYPE_PAYLOAD);
-        byteBuffer.putLong(0);
+        encodeHeader(chunk, 0);
 
         // verify processPacket takes 1000 bytes at position 0
         fileReceiver.processPacket(chunk, chunk.length);
@@ -136,9 +149,7 @@ public class FileReceiverTest {
         byte[] chunk = new byte[FileProvider.CHUNK_SIZE];
         random.nextBytes(chunk);
         int position = 3 * FileProvider.CHUNK_PAYLOAD_SIZE;   // beginning of fourth chunk
-        ByteBuffer byteBuffer = ByteBuffer.wrap(chunk);
-        byteBuffer.putInt(Message.MESSAGE_TYPE_PAYLOAD);
-        byteBuffer.putLong(position);
+        encodeHeader(chunk, position);
 
         fileReceiver.processPacket(chunk, chunk.length);
 
@@ -152,8 +163,386 @@ public class FileReceiverTest {
     }
 
     @Test
+    public void getMissingRanges() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        fileReceiver = new FileReceiver("test4.download", fileSize);
+
+        assertEquals(Arrays.asList(new ChunkRange(0, 7)), fileReceiver.getMissingRanges(10));
+
+        // receive chunks 1, 2 and 5
+        for (int chunkIndex : new int[] { 1, 2, 5 }) {
+            byte[] chunk = new byte[FileProvider.CHUNK_SIZE];
+            encodeHeader(chunk, chunkIndex * FileProvider.CHUNK_PAYLOAD_SIZE);
+            fileReceiver.processPacket(chunk, chunk.length);
+        }
+
+        assertEquals(Arrays.asList(new ChunkRange(0, 1), new ChunkRange(3, 2), new ChunkRange(6, 1)),
+                fileReceiver.getMissingRanges(10));
+        assertEquals(Arrays.asList(new ChunkRange(0, 1), new ChunkRange(3, 2)),
+                fileReceiver.getMissingRanges(2));
+    }
+
+    @Test
+    public void processParity_recoversLostChunk() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+        fileReceiver = new FileReceiver("test5.download", fileSize);
+
+        // Lose chunk 2 of the first block, and chunk 6 (the last, short chunk) of
+        // the second. The second block's parity arrives before its other chunks.
+        fileReceiver.processParity(parityMessage(parityProvider, 1), parityMessage(parityProvider, 1).length);
+        for (int chunk : new int[] { 0, 1, 3, 4, 5 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        assertFalse(fileReceiver.isDownloadComplete());
+        fileReceiver.processParity(parityMessage(parityProvider, 0), parityMessage(parityProvider, 0).length);
+
+        assertTrue(fileReceiver.isDownloadComplete());
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertArrayEquals(fileBytes, Files.readAllBytes(result.file.toPath()));
+        assertEquals(5, result.packetsReceived);
+        assertEquals(2, result.chunksRecovered);
+    }
+
+    @Test
+    public void processPacket_negotiatedChunkSize() throws Exception {
+        int chunkSize = 30000;
+        int fileSize = 100000;  // 4 chunks of 29984 bytes
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        ChunkProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes)).withChunkSize(chunkSize);
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+        fileReceiver = new FileReceiver("test8.download", fileSize, chunkSize);
+
+        assertEquals(4, fileProvider.getChunkCount());
+        for (int chunk : new int[] { 3, 0, 2 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        assertEquals(Arrays.asList(new ChunkRange(1, 1)), fileReceiver.getMissingRanges(10));
+        fileReceiver.processParity(parityMessage(parityProvider, 0), parityMessage(parityProvider, 0).length);
+
+        assertTrue(fileReceiver.isDownloadComplete());
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertArrayEquals(fileBytes, Files.readAllBytes(result.file.toPath()));
+        assertEquals(1, result.chunksRecovered);
+    }
+
+    @Test(expected = IOException.class)
+    public void processPacket_throwsOnChunkLargerThanNegotiated() throws Exception {
+        fileReceiver = new FileReceiver("test9.download", 100000, 1400);
+        byte[] chunk = new byte[FileProvider.CHUNK_SIZE];
+        encodeHeader(chunk, 0);
+        fileReceiver.processPacket(chunk, chunk.length);
+    }
+
+    /**
+     * Write a PAYLOAD header, with the checksum of the payload that follows it.
+     */
+    static void encodeHeader(byte[] chunk, long position) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        PayloadFlyweight.encodeHeader(buffer, position, PayloadFlyweight.checksum(new Crc32c(), position,
+                buffer, FileProvider.CHUNK_HEADER_SIZE, chunk.length - FileProvider.CHUNK_HEADER_SIZE));
+    }
+
+    static byte[] parityMessage(ParityProvider parityProvider, int block) throws IOException {
+        ByteBuffer parity = ByteBuffer.allocate(FileProvider.MAX_CHUNK_PAYLOAD_SIZE);
+        parityProvider.readParity(block, parity);
+        return new ParityMessage(parityProvider.getFirstChunk(block),
+                parityProvider.getBlockChunkCount(block),
+                Arrays.copyOf(parity.array(), parity.position())).getBytes();
+    }
+
+    @Test
+    public void processPacket_outOfOrderAndDuplicates() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        fileReceiver = new FileReceiver("test6.download", fileSize);
+
+        for (int chunk : new int[] { 6, 2, 0, 2, 5, 1, 3, 6, 4 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+
+        assertTrue(fileReceiver.isDownloadComplete());
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertArrayEquals(fileBytes, Files.readAllBytes(result.file.toPath()));
+        assertEquals(7, result.packetsReceived);
+    }
+
+    @Test
+    public void processPacket_countsLossAndReordering() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(new byte[fileSize]));
+        fileReceiver = new FileReceiver("test7.download", fileSize);
+
+        // 1 arrives after 2, and 3 after 6; 4 is lost, and 5 is duplicated.
+        for (int chunk : new int[] { 0, 2, 1, 5, 6, 3, 5 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+
+        ReceiveStats stats = fileReceiver.getStats();
+        assertEquals(7, stats.getPacketsReceived());
+        assertEquals(6 * FileProvider.CHUNK_SIZE + FileProvider.CHUNK_HEADER_SIZE + 1234, stats.getBytesReceived());
+        assertEquals(1, stats.getPacketsLost());
+        assertEquals(2, stats.getPacketsReordered());
+    }
+
+    @Test
+    public void processPacket_dropsCorruptChunks() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+        fileReceiver = new FileReceiver("test10.download", fileSize);
+
+        byte[] corrupt = fileProvider.getChunk(2).clone();
+        corrupt[100] ^= 1;
+        fileReceiver.processPacket(corrupt, corrupt.length);
+        byte[] corruptParity = parityMessage(parityProvider, 1);
+        corruptParity[corruptParity.length - 1] ^= 1;
+        fileReceiver.processParity(corruptParity, corruptParity.length);
+
+        // A chunk that fails its checksum is missing, as if it had been lost.
+        assertEquals(Arrays.asList(new ChunkRange(0, 7)), fileReceiver.getMissingRanges(10));
+        for (int chunk : new int[] { 4, 5 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        assertEquals(Arrays.asList(new ChunkRange(0, 4), new ChunkRange(6, 1)), fileReceiver.getMissingRanges(10));
+        assertEquals(2, fileReceiver.getPacketsCorrupted());
+    }
+
+    @Test
+    public void complete_verifiesMerkleRoot() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+        byte[] merkleRoot = ChunkChecksums.compute(fileProvider).getMerkleRoot();
+
+        // Chunk 2 is rebuilt from parity, so its checksum is computed rather than received.
+        fileReceiver = new FileReceiver("test11.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        for (int chunk : new int[] { 0, 1, 3, 4, 5, 6 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        assertFalse(fileReceiver.verify());
+        fileReceiver.processParity(parityMessage(parityProvider, 0), parityMessage(parityProvider, 0).length);
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertTrue(result.verified);
+        result.file.delete();
+
+        byte[] otherRoot = merkleRoot.clone();
+        otherRoot[0] ^= 1;
+        fileReceiver = new FileReceiver("test12.download", fileSize, FileProvider.CHUNK_SIZE, otherRoot);
+        for (int chunk = 0; chunk < fileProvider.getChunkCount(); chunk++) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        assertTrue(fileReceiver.isDownloadComplete());
+        assertFalse(fileReceiver.verify());
+    }
+
+    @Test
+    public void complete_savesProgressToResume() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        byte[] merkleRoot = ChunkChecksums.compute(fileProvider).getMerkleRoot();
+        File progressFile = ProgressFile.getProgressFile(new File("test13.download"));
+
+        fileReceiver = new FileReceiver("test13.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        assertFalse(fileReceiver.isResumed());
+        for (int chunk : new int[] { 0, 2, 3 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        fileReceiver.checkpoint();
+        byte[] bytes = fileProvider.getChunk(5);
+        fileReceiver.processPacket(bytes, bytes.length);
+        fileReceiver.complete();
+        assertTrue(progressFile.exists());
+
+        fileReceiver = new FileReceiver("test13.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        assertTrue(fileReceiver.isResumed());
+        assertEquals(4, fileReceiver.getChunksReceived());
+        assertEquals(Arrays.asList(new ChunkRange(1, 1), new ChunkRange(4, 1), new ChunkRange(6, 1)),
+                fileReceiver.getMissingRanges(10));
+        assertEquals(Arrays.asList(new ChunkRange(1, 1), new ChunkRange(4, 3)),
+                fileReceiver.getMissingRanges(2, true));
+
+        for (int chunk : new int[] { 1, 4, 6 }) {
+            bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertTrue(result.verified);
+        assertEquals(4, result.chunksResumed);
+        assertEquals(3, result.packetsReceived);
+        assertArrayEquals(fileBytes, Files.readAllBytes(result.file.toPath()));
+        assertFalse(progressFile.exists());
+        result.file.delete();
+    }
+
+    @Test
+    public void processPacket_resumedChunksAreNotCountedLost() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 9 + 1234;   // 10 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        byte[] merkleRoot = ChunkChecksums.compute(fileProvider).getMerkleRoot();
+
+        fileReceiver = new FileReceiver("test16.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        for (int chunk : new int[] { 0, 2, 3, 5, 8 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        fileReceiver.complete();
+
+        // Only the missing chunks are sent, and 6 is lost on the way.
+        fileReceiver = new FileReceiver("test16.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        assertTrue(fileReceiver.isResumed());
+        for (int chunk : new int[] { 1, 4, 7, 9 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        ReceiveStats stats = fileReceiver.getStats();
+        assertEquals(4, stats.getPacketsReceived());
+        assertEquals(1, stats.getPacketsLost());
+
+        byte[] bytes = fileProvider.getChunk(6);
+        fileReceiver.processPacket(bytes, bytes.length);
+        assertTrue(fileReceiver.complete().verified);
+        assertFalse(ProgressFile.getProgressFile(new File("test16.download")).exists());
+        new File("test16.download").delete();
+    }
+
+    @Test
+    public void complete_discardsProgressOfOtherFile() throws Exception {
+        int fileSize = FileProvider.CHUNK_PAYLOAD_SIZE * 2 + 1234;   // 3 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        byte[] merkleRoot = ChunkChecksums.compute(fileProvider).getMerkleRoot();
+        byte[] otherRoot = merkleRoot.clone();
+        otherRoot[0] ^= 1;
+
+        fileReceiver = new FileReceiver("test14.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot);
+        byte[] bytes = fileProvider.getChunk(0);
+        fileReceiver.processPacket(bytes, bytes.length);
+        fileReceiver.complete();
+
+        // The file has changed on the server since.
+        fileReceiver = new FileReceiver("test14.download", fileSize, FileProvider.CHUNK_SIZE, otherRoot);
+        assertFalse(fileReceiver.isResumed());
+        assertEquals(0, fileReceiver.getChunksReceived());
+        fileReceiver.complete();
+
+        // Without a Merkle root, progress is neither resumed nor saved.
+        fileReceiver = new FileReceiver("test14.download", fileSize, FileProvider.CHUNK_SIZE, null);
+        assertFalse(fileReceiver.isResumed());
+        fileReceiver.complete();
+        fileReceiver = new FileReceiver("test14.download", fileSize, FileProvider.CHUNK_SIZE, otherRoot);
+        assertTrue(fileReceiver.isResumed());
+        fileReceiver.complete();
+        assertTrue(ProgressFile.getProgressFile(new File("test14.download")).delete());
+    }
+
+    @Test
+    public void ranges_receiveOnlyChunksHoldingThem() throws Exception {
+        int p = FileProvider.CHUNK_PAYLOAD_SIZE;
+        int fileSize = p * 6 + 1234;   // 7 chunks
+        byte[] fileBytes = new byte[fileSize];
+        random.nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+        byte[] merkleRoot = ChunkChecksums.compute(fileProvider).getMerkleRoot();
+
+        // Chunks 0, 2 and 3, and 6.
+        fileReceiver = new FileReceiver("test15.download", fileSize, FileProvider.CHUNK_SIZE, merkleRoot,
+                Arrays.asList(new ByteRange(10, 20), new ByteRange(3 * p - 1, 2), new ByteRange(fileSize - 1, 1)));
+        assertEquals(Arrays.asList(new ChunkRange(0, 1), new ChunkRange(2, 2), new ChunkRange(6, 1)),
+                fileReceiver.getMissingRanges(10));
+
+        // Parity for a block with skipped chunks can't rebuild a chunk.
+        for (int chunk : new int[] { 0, 2, 6 }) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        fileReceiver.processParity(parityMessage(parityProvider, 0), parityMessage(parityProvider, 0).length);
+        assertEquals(Arrays.asList(new ChunkRange(3, 1)), fileReceiver.getMissingRanges(10));
+        assertEquals(1, fileReceiver.getStats().getPacketsLost());     // 3, but not 1, 4 or 5
+
+        byte[] bytes = fileProvider.getChunk(3);
+        fileReceiver.processPacket(bytes, bytes.length);
+        assertTrue(fileReceiver.isDownloadComplete());
+
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        assertFalse(result.verified);
+        assertEquals(3, result.chunksSkipped);
+        assertEquals(4, result.packetsReceived);
+        assertEquals(4, result.expectedPackets);
+        assertFalse(ProgressFile.getProgressFile(result.file).exists());
+
+        byte[] saved = Files.readAllBytes(result.file.toPath());
+        assertEquals(fileSize, saved.length);
+        for (int chunk : new int[] { 0, 2, 3, 6 }) {
+            int end = Math.min(fileSize, (chunk + 1) * p);
+            assertArrayEquals(Arrays.copyOfRange(fileBytes, chunk * p, end),
+                    Arrays.copyOfRange(saved, chunk * p, end));
+        }
+        assertEquals(0, saved[p]);  // skipped chunks are left as holes
+        result.file.delete();
+    }
+
+    @Test
+    public void processPacket_fileLargerThan2GB() throws Exception {
+        // The output file is sparse, so only the chunks written take up disk space.
+        long fileSize = 3L * 1024 * 1024 * 1024 + 100;
+        long lastChunk = FileReceiver.getExpectedChunks(fileSize) - 1;
+        fileReceiver = new FileReceiver("test7.download", fileSize);
+
+        long position = lastChunk * FileProvider.CHUNK_PAYLOAD_SIZE;
+        byte[] chunk = new byte[FileProvider.CHUNK_HEADER_SIZE + (int) (fileSize - position)];
+        chunk[chunk.length - 1] = 42;
+        encodeHeader(chunk, position);
+        fileReceiver.processPacket(chunk, chunk.length);
+
+        assertEquals(1, fileReceiver.getChunksReceived());
+        assertEquals(Arrays.asList(new ChunkRange(0, lastChunk)), fileReceiver.getMissingRanges(10));
+
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        try (RandomAccessFile file = new RandomAccessFile(result.file, "r")) {
+            assertEquals(fileSize, file.length());
+            file.seek(fileSize - 1);
+            assertEquals(42, file.read());
+        }
+    }
+
+    @Test(expected = IOException.class)
     public void readPacket_throwsOnInvalidPosition() throws Exception {
+        // A chunk may not straddle the end of the file.
+        byte[] chunk = new byte[FileProvider.CHUNK_SIZE];
+        encodeHeader(chunk, 0);
+        fileReceiver.processPacket(chunk, chunk.length);
+    }
 
+    @Test(expected = IOException.class)
+    public void readPacket_throwsOnUnalignedPosition() throws Exception {
+        byte[] chunk = new byte[FileProvider.CHUNK_HEADER_SIZE + 10];
+        encodeHeader(chunk, 5);
+        fileReceiver.processPacket(chunk, chunk.length);
     }
 
 
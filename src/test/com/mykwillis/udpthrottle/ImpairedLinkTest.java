@@ -0,0 +1,84 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ImpairedLinkTest {
+    DatagramSocket server;
+    DatagramSocket client;
+    ImpairedLink link;
+    Thread linkThread;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(1000);
+        client.setSoTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (link != null) {
+            link.close();
+            linkThread.join();
+        }
+        server.close();
+        client.close();
+    }
+
+    void startLink(Impairment downstream) throws Exception {
+        link = new ImpairedLink(server.getLocalSocketAddress(), () -> Impairment.NONE, () -> downstream);
+        linkThread = new Thread(link);
+        linkThread.start();
+    }
+
+    @Test
+    public void relaysBothWays() throws Exception {
+        startLink(Impairment.NONE);
+        InetSocketAddress linkAddress = link.getAddress();
+
+        client.send(new DatagramPacket(new byte[] { 1, 2, 3 }, 3, linkAddress));
+        DatagramPacket request = new DatagramPacket(new byte[16], 16);
+        server.receive(request);
+        assertEquals(3, request.getLength());
+        assertNotEquals(client.getLocalPort(), request.getPort());
+
+        server.send(new DatagramPacket(new byte[] { 4, 5 }, 2, request.getSocketAddress()));
+        DatagramPacket reply = new DatagramPacket(new byte[16], 16);
+        client.receive(reply);
+        assertEquals(2, reply.getLength());
+        assertEquals(5, reply.getData()[1]);
+        assertEquals(linkAddress.getPort(), reply.getPort());
+    }
+
+    @Test
+    public void dropsWhatTheImpairmentLoses() throws Exception {
+        startLink(new NetworkImpairment(1).setLossRate(1));
+
+        client.send(new DatagramPacket(new byte[1], 1, link.getAddress()));
+        DatagramPacket request = new DatagramPacket(new byte[16], 16);
+        server.receive(request);
+        server.send(new DatagramPacket(new byte[1], 1, request.getSocketAddress()));
+
+        client.setSoTimeout(200);
+        try {
+            client.receive(new DatagramPacket(new byte[16], 16));
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        link.close();
+        linkThread.join();
+        assertEquals(2, link.datagrams);
+        assertEquals(1, link.lost);
+    }
+}
@@ -0,0 +1,35 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void fairness() throws Exception {
+        assertEquals(1.0, LoadGenerator.fairness(new double[] { 5, 5, 5, 5 }), 1e-9);
+        assertEquals(0.25, LoadGenerator.fairness(new double[] { 8, 0, 0, 0 }), 1e-9);
+        assertEquals(6.0 / 7, LoadGenerator.fairness(new double[] { 1, 2, 3 }), 1e-9);
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void run_everyClientCompletesOverAnImpairedLink() throws Exception {
+        LoadGenerator generator = LoadGenerator.parseArguments(new String[] {
+                "--clients", "3", "--size", "300000", "--target", "50000",
+                "--loss", "0.02", "--reorder", "0.02", "--jitter", "2" });
+
+        LoadGenerator.ClientResult[] results = generator.run();
+
+        assertEquals(3, results.length);
+        for (LoadGenerator.ClientResult result : results) {
+            // A download is only complete if its checksum matches the served file's.
+            assertTrue(result.complete);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseArguments_rejectsNoSenderThreads() throws Exception {
+        LoadGenerator.parseArguments(new String[] { "--clients", "2", "--senders", "0" });
+    }
+}
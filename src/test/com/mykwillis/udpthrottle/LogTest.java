@@ -0,0 +1,109 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class LogTest {
+    PrintStream originalOut;
+    PrintStream originalErr;
+    Log.Level originalLevel;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() {
+        Log.flush();
+        originalOut = System.out;
+        originalErr = System.err;
+        originalLevel = Log.getLevel();
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+    }
+
+    @After
+    public void tearDown() {
+        Log.flush();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        Log.setLevel(originalLevel);
+    }
+
+    @Test
+    public void log_gatedByLevel() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        assertTrue(Log.isEnabled(Log.Level.ERROR));
+        assertFalse(Log.isEnabled(Log.Level.INFO));
+
+        Log.info("not written");
+        Log.warn("written %d", 1);
+        Log.flush();
+
+        assertEquals("", out.toString());
+        assertEquals("written 1", err.toString().trim());
+    }
+
+    @Test
+    public void log_writtenInOrder() throws Exception {
+        Log.setLevel(Log.Level.DEBUG);
+        for (int i = 0; i < 100; i++) {
+            Log.debug("message %d", i);
+        }
+        Log.flush();
+
+        String[] lines = out.toString().trim().split("\\R");
+        assertEquals(100, lines.length);
+        assertEquals("message 99", lines[99]);
+    }
+
+    @Test
+    public void log_badFormat() throws Exception {
+        Log.setLevel(Log.Level.INFO);
+        Log.info("missing %d");
+        Log.flush();
+
+        assertTrue(out.toString().startsWith("missing %d ("));
+    }
+
+    @Test
+    public void sampler_suppressesExcessMessages() throws Exception {
+        Log.setLevel(Log.Level.DEBUG);
+        Log.Sampler sampler = new Log.Sampler(Log.Level.DEBUG, 10);
+
+        assertTrue(sampler.isEnabled());
+        sampler.log("first");
+        for (int i = 0; i < 5; i++) {
+            assertFalse(sampler.isEnabled());
+        }
+        Thread.sleep(150);
+        assertTrue(sampler.isEnabled());
+        sampler.log("second");
+        Log.flush();
+
+        String[] lines = out.toString().trim().split("\\R");
+        assertArrayEquals(new String[] { "first", "second (5 similar messages suppressed)" }, lines);
+    }
+
+    @Test
+    public void sampler_disabledBelowLevel() throws Exception {
+        Log.setLevel(Log.Level.INFO);
+        Log.Sampler sampler = new Log.Sampler(Log.Level.DEBUG, 10);
+        assertFalse(sampler.isEnabled());
+    }
+
+    @Test
+    public void parseLevel() throws Exception {
+        assertEquals(Log.Level.DEBUG, Log.parseLevel("debug"));
+        assertEquals(Log.Level.WARN, Log.parseLevel(" WARN "));
+        try {
+            Log.parseLevel("verbose");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MappedFileProviderTest {
+    @Test
+    public void getChunk_singleChunkFile() throws Exception {
+        File file = new File("src/test/resources/test-file-small.txt");
+        MappedFileProvider fileProvider = new MappedFileProvider(file);
+
+        assertEquals(1, fileProvider.getChunkCount());
+        assertEquals(file.length(), fileProvider.getFileSize());
+        assertNotNull(fileProvider.getChunk(0));
+        assertNull(fileProvider.getChunk(1));
+        assertNull(fileProvider.getChunkPayload(1));
+        assertNull(fileProvider.getChunkPayload(-1));
+    }
+
+    @Test
+    public void getChunk_matchesFileProvider() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        FileProvider heapProvider = new FileProvider(file);
+        MappedFileProvider mappedProvider = new MappedFileProvider(file);
+
+        assertEquals(heapProvider.getChunkCount(), mappedProvider.getChunkCount());
+        for (int i = 0; i < heapProvider.getChunkCount(); i++) {
+            assertArrayEquals(heapProvider.getChunk(i), mappedProvider.getChunk(i));
+        }
+    }
+
+    @Test
+    public void getChunkPayload_viewsAreIndependent() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        MappedFileProvider fileProvider = new MappedFileProvider(file);
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+
+        ByteBuffer first = fileProvider.getChunkPayload(1);
+        ByteBuffer second = fileProvider.getChunkPayload(1);
+        assertEquals(FileProvider.CHUNK_PAYLOAD_SIZE, first.remaining());
+
+        // Consuming one view must not disturb another.
+        byte[] payload = new byte[first.remaining()];
+        first.get(payload);
+        assertEquals(FileProvider.CHUNK_PAYLOAD_SIZE, second.remaining());
+
+        for (int pos = 0; pos < payload.length; pos++) {
+            assertEquals(fileBytes[FileProvider.CHUNK_PAYLOAD_SIZE + pos], payload[pos]);
+        }
+    }
+
+    @Test
+    public void readChunk_matchesGetChunkPayload() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        MappedFileProvider fileProvider = new MappedFileProvider(file);
+        ByteBuffer buffer = ByteBuffer.allocate(FileProvider.CHUNK_PAYLOAD_SIZE);
+
+        for (int i = 0; i < fileProvider.getChunkCount(); i++) {
+            buffer.clear();
+            int length = fileProvider.readChunk(i, buffer);
+            buffer.flip();
+
+            assertEquals(fileProvider.getChunkLength(i), length);
+            assertEquals(fileProvider.getChunkPayload(i), buffer);
+        }
+        assertEquals(-1, fileProvider.readChunk(fileProvider.getChunkCount(), buffer));
+        assertEquals(-1, fileProvider.getChunkLength(fileProvider.getChunkCount()));
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        File file = File.createTempFile("mapped-provider", ".empty");
+        try {
+            MappedFileProvider fileProvider = new MappedFileProvider(file);
+            assertEquals(0, fileProvider.getChunkCount());
+            assertNull(fileProvider.getChunkPayload(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void withChunkSize_matchesFileProvider() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+        MappedFileProvider mappedProvider = new MappedFileProvider(file);
+
+        for (int chunkSize : new int[] { FileProvider.MIN_CHUNK_SIZE, 1400, FileProvider.MAX_CHUNK_SIZE }) {
+            ChunkProvider heapLayout = new FileProvider(file).withChunkSize(chunkSize);
+            ChunkProvider mappedLayout = mappedProvider.withChunkSize(chunkSize);
+
+            assertEquals(chunkSize, mappedLayout.getChunkSize());
+            assertEquals((fileBytes.length + chunkSize - FileProvider.CHUNK_HEADER_SIZE - 1)
+                    / (chunkSize - FileProvider.CHUNK_HEADER_SIZE), mappedLayout.getChunkCount());
+            assertEquals(heapLayout.getChunkCount(), mappedLayout.getChunkCount());
+            for (long i = 0; i < mappedLayout.getChunkCount(); i++) {
+                assertArrayEquals(heapLayout.getChunk(i), mappedLayout.getChunk(i));
+            }
+        }
+        assertSame(mappedProvider, mappedProvider.withChunkSize(FileProvider.CHUNK_SIZE));
+    }
+}
@@ -0,0 +1,71 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NetworkImpairmentTest {
+    static final long MILLISECOND = 1000 * 1000;
+
+    long[] deliveries = new long[Impairment.MAX_COPIES];
+
+    @Test
+    public void apply_noImpairment() throws Exception {
+        NetworkImpairment impairment = new NetworkImpairment(1);
+        assertEquals(1, impairment.apply(1000, 42, deliveries));
+        assertEquals(42, deliveries[0]);
+    }
+
+    @Test
+    public void apply_lossRate() throws Exception {
+        NetworkImpairment impairment = new NetworkImpairment(1).setLossRate(0.25);
+        int delivered = 0;
+        for (int i = 0; i < 10000; i++) {
+            delivered += impairment.apply(1000, 0, deliveries);
+        }
+        assertEquals(7500, delivered, 200);
+    }
+
+    @Test
+    public void apply_bandwidthQueuesAndDrops() throws Exception {
+        // 8 Mbps: 1000 bytes take 1ms. A 2.5ms queue holds two datagrams behind
+        // the one being sent.
+        NetworkImpairment impairment = new NetworkImpairment(1)
+                .setBandwidth(8 * 1000 * 1000, 5 * MILLISECOND / 2)
+                .setDelay(10 * MILLISECOND, 0);
+
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(1, impairment.apply(1000, 0, deliveries));
+            assertEquals(i * MILLISECOND + 10 * MILLISECOND, deliveries[0]);
+        }
+        assertEquals(0, impairment.apply(1000, 0, deliveries));
+
+        // once the queue has drained, datagrams go straight through
+        assertEquals(1, impairment.apply(1000, 100 * MILLISECOND, deliveries));
+        assertEquals(111 * MILLISECOND, deliveries[0]);
+    }
+
+    @Test
+    public void apply_jitterAndReordering() throws Exception {
+        NetworkImpairment impairment = new NetworkImpairment(1)
+                .setDelay(10 * MILLISECOND, 2 * MILLISECOND)
+                .setReorderRate(1);
+        for (int i = 0; i < 1000; i++) {
+            impairment.apply(1000, 0, deliveries);
+            assertTrue(deliveries[0] >= 8 * MILLISECOND + NetworkImpairment.REORDER_NANOS);
+            assertTrue(deliveries[0] <= 12 * MILLISECOND + NetworkImpairment.REORDER_NANOS);
+        }
+    }
+
+    @Test
+    public void apply_duplicates() throws Exception {
+        NetworkImpairment impairment = new NetworkImpairment(1).setDuplicateRate(1);
+        assertEquals(2, impairment.apply(1000, 5, deliveries));
+        assertEquals(5, deliveries[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setLossRate_rejectsInvalidRate() throws Exception {
+        new NetworkImpairment(1).setLossRate(1.5);
+    }
+}
@@ -0,0 +1,70 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketTrainTest {
+    static final long MILLISECOND = 1000 * 1000;
+    static final int PAYLOAD_SIZE = 1000;
+    static final int PACKET_SIZE = PAYLOAD_SIZE + FileProvider.CHUNK_HEADER_SIZE;
+
+    PacketTrain train = new PacketTrain();
+
+    @Test
+    public void estimate_fromDispersion() throws Exception {
+        // Four chunks, 1ms apart: three packets' bytes in 3ms.
+        for (int i = 0; i < 4; i++) {
+            train.onPacket(i * MILLISECOND, PACKET_SIZE, (long) i * PAYLOAD_SIZE);
+        }
+        assertTrue(train.isComplete(4, PAYLOAD_SIZE));
+        assertEquals(PACKET_SIZE * 1000, train.estimate(4, PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void estimate_ignoresBacklogAtHead() throws Exception {
+        // The first three chunks were read together, having waited in the socket's
+        // receive buffer; the rest arrived 2ms apart.
+        long[] arrivals = { 0, 10 * 1000, 20 * 1000, 2 * MILLISECOND, 4 * MILLISECOND, 6 * MILLISECOND };
+        for (int i = 0; i < arrivals.length; i++) {
+            train.onPacket(arrivals[i], PACKET_SIZE, (long) i * PAYLOAD_SIZE);
+        }
+        assertEquals(PACKET_SIZE * 500, train.estimate(arrivals.length, PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void estimate_includesPacketsAmongTheTrain() throws Exception {
+        train.onPacket(0, PACKET_SIZE, 0);
+        train.onPacket(MILLISECOND, 500, -1);   // parity
+        train.onPacket(2 * MILLISECOND, PACKET_SIZE, PAYLOAD_SIZE);
+        // after the train
+        train.onPacket(10 * MILLISECOND, PACKET_SIZE, 2 * PAYLOAD_SIZE);
+
+        assertTrue(train.isComplete(2, PAYLOAD_SIZE));
+        assertEquals((500 + PACKET_SIZE) * 500, train.estimate(2, PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void estimate_incompleteTrain() throws Exception {
+        assertEquals(0, train.estimate(4, PAYLOAD_SIZE));
+        train.onPacket(0, PACKET_SIZE, 0);
+        assertFalse(train.isComplete(4, PAYLOAD_SIZE));
+        assertEquals(0, train.estimate(4, PAYLOAD_SIZE));
+
+        train.onPacket(MILLISECOND, PACKET_SIZE, PAYLOAD_SIZE);
+        assertEquals(0, train.estimate(4, PAYLOAD_SIZE));
+
+        // Chunk 2 was lost; the rest of the train still gives an estimate.
+        train.onPacket(3 * MILLISECOND, PACKET_SIZE, 3 * PAYLOAD_SIZE);
+        assertFalse(train.isComplete(4, PAYLOAD_SIZE));
+        assertEquals(PACKET_SIZE * 2 * 1000 / 3, train.estimate(4, PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void estimate_simultaneousArrivals() throws Exception {
+        train.onPacket(5, PACKET_SIZE, 0);
+        train.onPacket(5, PACKET_SIZE, PAYLOAD_SIZE);
+        train.onPacket(5, PACKET_SIZE, 2 * PAYLOAD_SIZE);
+        assertEquals(0, train.estimate(3, PAYLOAD_SIZE));
+    }
+}
@@ -0,0 +1,57 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ParityProviderTest {
+    @Test
+    public void readParity_isXorOfBlock() throws Exception {
+        File file = new File("src/test/resources/test-file-medium.txt");
+        FileProvider fileProvider = new FileProvider(file);
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 4);
+
+        long chunkCount = fileProvider.getChunkCount();
+        assertEquals((chunkCount + 3) / 4, parityProvider.getBlockCount());
+
+        ByteBuffer parity = ByteBuffer.allocate(FileProvider.CHUNK_PAYLOAD_SIZE);
+        for (int block = 0; block < parityProvider.getBlockCount(); block++) {
+            byte[] expected = new byte[parityProvider.getParityLength(block)];
+            long first = parityProvider.getFirstChunk(block);
+            for (long chunk = first; chunk < first + parityProvider.getBlockChunkCount(block); chunk++) {
+                ByteBuffer payload = fileProvider.getChunkPayload(chunk);
+                for (int i = 0; payload.hasRemaining(); i++) {
+                    expected[i] ^= payload.get();
+                }
+            }
+
+            parity.clear();
+            assertEquals(expected.length, parityProvider.readParity(block, parity));
+            parity.flip();
+            assertEquals(ByteBuffer.wrap(expected), parity);
+        }
+        assertEquals(-1, parityProvider.readParity(parityProvider.getBlockCount(), parity));
+    }
+
+    @Test
+    public void isLastInBlock() throws Exception {
+        FileProvider fileProvider = new FileProvider(new File("src/test/resources/test-file-medium.txt"));
+        ParityProvider parityProvider = new ParityProvider(fileProvider, 2);
+        long lastChunk = fileProvider.getChunkCount() - 1;   // 4, alone in the last block
+
+        assertFalse(parityProvider.isLastInBlock(0));
+        assertTrue(parityProvider.isLastInBlock(1));
+        assertFalse(parityProvider.isLastInBlock(2));
+        assertTrue(parityProvider.isLastInBlock(lastChunk));
+        assertEquals(2, parityProvider.getBlockChunkCount(0));
+        assertEquals(1, parityProvider.getBlockChunkCount(parityProvider.getBlock(lastChunk)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_throwsOnInvalidBlockSize() throws Exception {
+        new ParityProvider(new FileProvider(new File("src/test/resources/test-file-small.txt")), 0);
+    }
+}
@@ -0,0 +1,68 @@
+package com.mykwillis.udpthrottle;
+
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadSpoolTest {
+    static final int CHUNK_COUNT = 10;
+
+    @Test
+    public void drainTo_deliversEveryPayload() throws Exception {
+        byte[] fileBytes = new byte[CHUNK_COUNT * FileProvider.CHUNK_PAYLOAD_SIZE - 77];
+        new Random(4321).nextBytes(fileBytes);
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+
+        // Only four payloads fit in memory; the rest are spilled to disk.
+        PayloadSpool spool = new PayloadSpool(4);
+        PayloadFlyweight payload = new PayloadFlyweight();
+        byte[] receiveBytes = new byte[FileProvider.CHUNK_SIZE];
+        for (int chunk = CHUNK_COUNT - 1; chunk >= 0; chunk--) {
+            // The receive buffer is reused, as by the client.
+            byte[] datagram = fileProvider.getChunk(chunk);
+            System.arraycopy(datagram, 0, receiveBytes, 0, datagram.length);
+            spool.add(payload.wrap(ByteBuffer.wrap(receiveBytes), 0, datagram.length));
+        }
+        assertEquals(CHUNK_COUNT, spool.size());
+        assertEquals(CHUNK_COUNT - 4, spool.getSpilled());
+
+        FileReceiver fileReceiver = new FileReceiver("spool.download", fileBytes.length);
+        spool.drainTo(fileReceiver);
+        assertEquals(0, spool.size());
+        assertTrue(fileReceiver.isDownloadComplete());
+
+        FileReceiver.FileDownloadResult result = fileReceiver.complete();
+        try {
+            assertArrayEquals(fileBytes, Files.readAllBytes(result.file.toPath()));
+        } finally {
+            result.file.delete();
+        }
+    }
+
+    @Test
+    public void drainTo_reusesSlots() throws Exception {
+        byte[] fileBytes = new byte[3 * FileProvider.CHUNK_PAYLOAD_SIZE];
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(fileBytes));
+        PayloadSpool spool = new PayloadSpool(2);
+        PayloadFlyweight payload = new PayloadFlyweight();
+
+        FileReceiver fileReceiver = new FileReceiver("spool2.download", fileBytes.length);
+        try {
+            for (int chunk = 0; chunk < 3; chunk++) {
+                byte[] datagram = fileProvider.getChunk(chunk);
+                spool.add(payload.wrap(ByteBuffer.wrap(datagram), 0, datagram.length));
+                spool.drainTo(fileReceiver);
+                assertEquals(0, spool.getSpilled());
+            }
+            assertTrue(fileReceiver.isDownloadComplete());
+        } finally {
+            fileReceiver.complete().file.delete();
+        }
+    }
+}
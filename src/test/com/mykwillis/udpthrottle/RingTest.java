@@ -0,0 +1,89 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RingTest {
+    static class Element extends Ring.Link<Element> {
+        final int id;
+
+        Element(int id) {
+            this.id = id;
+        }
+    }
+
+    static List<Integer> contents(Ring<Element> ring) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < ring.size(); i++) {
+            ids.add(ring.peekFirst().id);
+            ring.rotate();
+        }
+        return ids;
+    }
+
+    @Test
+    public void addLast_keepsOrder() {
+        Ring<Element> ring = new Ring<>();
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peekFirst());
+        assertNull(ring.pollFirst());
+
+        for (int i = 0; i < 3; i++) {
+            ring.addLast(new Element(i));
+        }
+        assertEquals(3, ring.size());
+        assertEquals(Arrays.asList(0, 1, 2), contents(ring));
+    }
+
+    @Test
+    public void rotate_movesFirstToBack() {
+        Ring<Element> ring = new Ring<>();
+        for (int i = 0; i < 3; i++) {
+            ring.addLast(new Element(i));
+        }
+        ring.rotate();
+        assertEquals(Arrays.asList(1, 2, 0), contents(ring));
+        ring.addLast(new Element(3));
+        assertEquals(Arrays.asList(1, 2, 0, 3), contents(ring));
+    }
+
+    @Test
+    public void remove_fromAnywhere() {
+        Ring<Element> ring = new Ring<>();
+        Element[] elements = new Element[4];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = new Element(i);
+            ring.addLast(elements[i]);
+        }
+
+        assertTrue(ring.remove(elements[2]));
+        assertFalse(ring.contains(elements[2]));
+        assertFalse(ring.remove(elements[2]));
+        assertEquals(Arrays.asList(0, 1, 3), contents(ring));
+
+        assertTrue(ring.remove(elements[0]));   // the first
+        assertEquals(Arrays.asList(1, 3), contents(ring));
+        assertSame(elements[1], ring.pollFirst());
+        assertSame(elements[3], ring.pollFirst());
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.size());
+
+        // A removed element may be added again.
+        ring.addLast(elements[2]);
+        assertTrue(ring.contains(elements[2]));
+        assertEquals(Arrays.asList(2), contents(ring));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addLast_rejectsElementAlreadyInRing() {
+        Ring<Element> ring = new Ring<>();
+        Element element = new Element(0);
+        ring.addLast(element);
+        ring.addLast(element);
+    }
+}
@@ -1,16 +1,53 @@
 package com.mykwillis.udpthrottle;
 
+import com.mykwillis.udpthrottle.message.BeginMessage;
+import com.mykwillis.udpthrottle.message.ByteRange;
+import com.mykwillis.udpthrottle.message.ChunkRange;
+import com.mykwillis.udpthrottle.message.EndFlyweight;
+import com.mykwillis.udpthrottle.message.Message;
+import com.mykwillis.udpthrottle.message.NackMessage;
+import com.mykwillis.udpthrottle.message.PayloadFlyweight;
+import com.mykwillis.udpthrottle.message.ProbeMessage;
+import com.mykwillis.udpthrottle.message.ResumeMessage;
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
-import static org.junit.Assert.assertThat;
+import static org.junit.Assert.*;
 import static org.junit.matchers.JUnitMatchers.containsString;
 
 public class ServerTest {
     private final ByteArrayOutputStream testOut = new ByteArrayOutputStream();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setupStreams() {
         System.setOut(new PrintStream(testOut));
@@ -30,4 +67,651 @@ public class ServerTest {
         Server.main(new String[]{"3000"});
         assertThat(testOut.toString(), containsString("Usage"));
     }
-}
\ No newline at end of file
+
+    @org.junit.Test
+    public void isCatalogName() throws Exception {
+        assertTrue(Server.isCatalogName("file.bin"));
+        assertTrue(Server.isCatalogName("..file"));
+        assertFalse(Server.isCatalogName(null));
+        assertFalse(Server.isCatalogName(".."));
+        assertFalse(Server.isCatalogName("../secret"));
+        assertFalse(Server.isCatalogName("dir/file.bin"));
+        assertFalse(Server.isCatalogName("dir\\file.bin"));
+    }
+
+    @org.junit.Test
+    public void catalog_servesFilesByName() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        Random random = new Random(1);
+        byte[][] contents = { new byte[300 * 1000], new byte[5000] };
+        String[] names = { "large.bin", "small.bin" };
+        for (int i = 0; i < names.length; i++) {
+            random.nextBytes(contents[i]);
+            Files.write(new File(catalog, names[i]).toPath(), contents[i]);
+        }
+
+        int port = startServer(catalog);
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        for (int i = 0; i < names.length; i++) {
+            FileReceiver.FileDownloadResult result = Client.receiveFile(host, port, names[i], 1, null,
+                    FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+            assertNotNull(result);
+            assertEquals(names[i], result.file.getName());
+            assertArrayEquals(contents[i], Files.readAllBytes(result.file.toPath()));
+        }
+    }
+
+    @org.junit.Test
+    public void receiveFile_discardsMalformedDatagrams() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        byte[] contents = new byte[100 * 1000];
+        new Random(14).nextBytes(contents);
+        Files.write(new File(catalog, "file.bin").toPath(), contents);
+        int port = startServer(catalog);
+
+        // The client reaches the server through a relay, which sends it truncated
+        // INFO and PAYLOAD messages ahead of the server's first reply.
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket relay = new DatagramSocket(0, loopback)) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+                SocketAddress client = null;
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        relay.receive(packet);
+                        if (packet.getPort() != port) {
+                            client = packet.getSocketAddress();
+                            packet.setSocketAddress(new InetSocketAddress(loopback, port));
+                        } else {
+                            for (int type : new int[] { Message.MESSAGE_TYPE_INFO, Message.MESSAGE_TYPE_PAYLOAD }) {
+                                byte[] truncated = ByteBuffer.allocate(6).putInt(type).array();
+                                relay.send(new DatagramPacket(truncated, truncated.length, client));
+                            }
+                            packet.setSocketAddress(client);
+                        }
+                        relay.send(packet);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "relay");
+            thread.setDaemon(true);
+            thread.start();
+
+            FileReceiver.FileDownloadResult result = Client.receiveFile(loopback.getHostAddress(),
+                    relay.getLocalPort(), "file.bin", 1, null, FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+            assertNotNull(result);
+            assertArrayEquals(contents, Files.readAllBytes(result.file.toPath()));
+        }
+    }
+
+    @org.junit.Test
+    public void catalog_closesIdleFilesOverBudget() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        Random random = new Random(8);
+        byte[][] contents = { new byte[100 * 1000], new byte[50 * 1000] };
+        String[] names = { "a.bin", "b.bin" };
+        for (int i = 0; i < names.length; i++) {
+            random.nextBytes(contents[i]);
+            Files.write(new File(catalog, names[i]).toPath(), contents[i]);
+        }
+
+        // With no cache, there is no room for the checksums of any file but the
+        // one being sent.
+        AtomicReference<Server> server = new AtomicReference<>();
+        int port = startServer(catalog, server::set);
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        for (int i : new int[] { 0, 1, 0 }) {
+            FileReceiver.FileDownloadResult result = Client.receiveFile(host, port, names[i], 1, null,
+                    FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+            assertNotNull(result);
+            assertArrayEquals(contents[i], Files.readAllBytes(result.file.toPath()));
+            assertNotNull(server.get().findFile(names[i]));
+            assertNull(server.get().findFile(names[1 - i]));
+        }
+    }
+
+    @org.junit.Test
+    public void resume_sendsOnlyMissingChunks() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        byte[] contents = new byte[300 * 1000];     // 37 chunks
+        new Random(2).nextBytes(contents);
+        Files.write(new File(catalog, "large.bin").toPath(), contents);
+        int port = startServer(catalog);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            List<ChunkRange> missing = Arrays.asList(new ChunkRange(2, 1), new ChunkRange(10, 3));
+            ResumeMessage resume = new ResumeMessage(1, FileProvider.MAX_DATAGRAM_SIZE, FileProvider.CHUNK_SIZE,
+                    missing, "large.bin");
+            socket.send(resume.getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+
+            long p = FileProvider.CHUNK_PAYLOAD_SIZE;
+            assertEquals(Arrays.asList(2 * p, 10 * p, 11 * p, 12 * p), receivePayloadPositions(socket));
+        }
+
+        // A client that has saved part of the file is sent the rest.
+        File output = new File(downloads, "large.bin");
+        FileProvider fileProvider = new FileProvider(new ByteArrayInputStream(contents));
+        FileReceiver fileReceiver = new FileReceiver(output.getPath(), contents.length, FileProvider.CHUNK_SIZE,
+                ChunkChecksums.compute(fileProvider).getMerkleRoot());
+        for (int chunk = 0; chunk < 20; chunk++) {
+            byte[] bytes = fileProvider.getChunk(chunk);
+            fileReceiver.processPacket(bytes, bytes.length);
+        }
+        fileReceiver.complete();
+
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        FileReceiver.FileDownloadResult result = Client.receiveFile(host, port, "large.bin", 1, null,
+                FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+        assertNotNull(result);
+        assertEquals(20, result.chunksResumed);
+        assertTrue(result.verified);
+        assertArrayEquals(contents, Files.readAllBytes(output.toPath()));
+        assertFalse(ProgressFile.getProgressFile(output).exists());
+    }
+
+    @org.junit.Test
+    public void begin_sendsOnlyChunksHoldingRanges() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        byte[] contents = new byte[300 * 1000];     // 37 chunks
+        new Random(3).nextBytes(contents);
+        Files.write(new File(catalog, "large.bin").toPath(), contents);
+        int port = startServer(catalog);
+        long p = FileProvider.CHUNK_PAYLOAD_SIZE;
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            List<ByteRange> ranges = Arrays.asList(new ByteRange(5 * p + 100, p), new ByteRange(0, 10));
+            BeginMessage begin = new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "large.bin", ranges);
+            socket.send(begin.getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+
+            assertEquals(Arrays.asList(0L, 5 * p, 6 * p), receivePayloadPositions(socket));
+        }
+
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        FileReceiver.FileDownloadResult result = Client.receiveFile(host, port, "large.bin", 1, null,
+                FileProvider.MAX_DATAGRAM_SIZE, false, downloads,
+                Arrays.asList(new ByteRange(contents.length - 1000, 1000)));
+        assertNotNull(result);
+        assertEquals(1, result.packetsReceived);
+        byte[] saved = Files.readAllBytes(result.file.toPath());
+        assertEquals(contents.length, saved.length);
+        assertArrayEquals(Arrays.copyOfRange(contents, contents.length - 1000, contents.length),
+                Arrays.copyOfRange(saved, contents.length - 1000, contents.length));
+    }
+
+    @org.junit.Test
+    public void end_sentOnceEveryChunkHasBeen() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        byte[] contents = new byte[20 * 1000];     // 3 chunks
+        new Random(4).nextBytes(contents);
+        Files.write(new File(catalog, "small.bin").toPath(), contents);
+        int port = startServer(catalog);
+        InetAddress host = InetAddress.getLoopbackAddress();
+        long p = FileProvider.CHUNK_PAYLOAD_SIZE;
+
+        // A client that never says it is done is sent every END.
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            assertEquals(Arrays.asList("PAYLOAD 0", "PAYLOAD " + p, "PAYLOAD " + 2 * p,
+                    "END 3 0", "END 3 1", "END 3 2", "END 3 3"), receiveMessages(socket));
+        }
+
+        // A NACK sent in reply to END is answered with the chunks asked for,
+        // and then END again; an empty NACK ends the session.
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            assertEquals("END 3 0", receiveUntilEnd(socket));
+            socket.send(new NackMessage(Collections.singletonList(new ChunkRange(1, 1)),
+                    FileProvider.CHUNK_SIZE, "small.bin").getDatagramPacket(host, port));
+            assertEquals("END 3 0", receiveUntilEnd(socket));
+            socket.send(new NackMessage(Collections.<ChunkRange>emptyList(),
+                    FileProvider.CHUNK_SIZE, "small.bin").getDatagramPacket(host, port));
+            List<String> after = receiveMessages(socket);
+            assertFalse(after.toString(), after.contains("END 3 3"));
+        }
+    }
+
+    @org.junit.Test
+    public void begin_repeatedBeginContinuesSession() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        byte[] contents = new byte[20 * 1000];     // 3 chunks
+        new Random(9).nextBytes(contents);
+        Files.write(new File(catalog, "small.bin").toPath(), contents);
+        int port = startServer(catalog);
+        InetAddress host = InetAddress.getLoopbackAddress();
+        long p = FileProvider.CHUNK_PAYLOAD_SIZE;
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // As when the client's INFO is late, whether before or after the file
+            // is open; every chunk is still sent once.
+            BeginMessage begin = new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin");
+            socket.send(begin.getDatagramPacket(host, port));
+            socket.send(begin.getDatagramPacket(host, port));
+            Thread.sleep(50);
+            socket.send(begin.getDatagramPacket(host, port));
+            assertEquals(Arrays.asList("PAYLOAD 0", "PAYLOAD " + p, "PAYLOAD " + 2 * p,
+                    "END 3 0", "END 3 1", "END 3 2", "END 3 3"), receiveMessages(socket));
+        }
+    }
+
+    @org.junit.Test
+    public void session_timesOutClientThatIsNeverHeardFrom() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        byte[] contents = new byte[300 * 1000];     // 37 chunks
+        new Random(10).nextBytes(contents);
+        Files.write(new File(catalog, "large.bin").toPath(), contents);
+        // The file takes over a second to send, but a client is dropped after
+        // 300ms without a word from it.
+        int port = startServer(catalog, 2 * 1000 * 1000, server -> server.setSessionTimeout(300L * 1000 * 1000));
+        InetAddress host = InetAddress.getLoopbackAddress();
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "large.bin")
+                    .getDatagramPacket(host, port));
+            List<String> messages = receiveMessages(socket);
+            assertTrue(messages.toString(), messages.size() < 37);
+            for (String message : messages) {
+                assertThat(message, containsString("PAYLOAD"));
+            }
+        }
+
+        // A client that reports as it receives is kept for as long as it takes.
+        FileReceiver.FileDownloadResult result = Client.receiveFile(host.getHostAddress(), port, "large.bin",
+                1, null, FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+        assertNotNull(result);
+        assertArrayEquals(contents, Files.readAllBytes(result.file.toPath()));
+    }
+
+    @org.junit.Test
+    public void begin_sharesBandwidthByWeight() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        byte[] contents = new byte[12 * 1000 * 1000];
+        new Random(11).nextBytes(contents);
+        Files.write(new File(catalog, "large.bin").toPath(), contents);
+        int port = startServer(catalog, 40 * 1000 * 1000, server -> { });
+
+        // Weights beyond the allowed range of 1 to 100 are clamped to it.
+        int[][] weights = { { 1, 3 }, { 0, 1 }, { 1000, 100 } };
+        double[] shares = { 3, 1, 1 };
+        for (int i = 0; i < weights.length; i++) {
+            long[] counts = receiveConcurrently(port, "large.bin", weights[i], 1500);
+            double share = (double) counts[1] / counts[0];
+            assertTrue(Arrays.toString(weights[i]) + ": " + Arrays.toString(counts),
+                    share > shares[i] / 1.5 && share < shares[i] * 1.5);
+        }
+    }
+
+    @org.junit.Test
+    public void senderThreads_clientsOnEveryLoopShareTheLimit() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        byte[] contents = new byte[300 * 1000];
+        new Random(13).nextBytes(contents);
+        Files.write(new File(catalog, "shared.bin").toPath(), contents);
+        long targetBitsPerSecond = 16 * 1000 * 1000;
+        int port = startServer(catalog, targetBitsPerSecond, server -> server.setSenderThreads(3));
+
+        // Clients are spread across the loops by address, and each receives into
+        // a directory of its own.
+        int clients = 6;
+        List<FutureTask<FileReceiver.FileDownloadResult>> downloadTasks = new ArrayList<>();
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            File directory = temporaryFolder.newFolder("downloads-" + i);
+            FutureTask<FileReceiver.FileDownloadResult> task = new FutureTask<>(() -> Client.receiveFile(
+                    host, port, "shared.bin", 1, null, FileProvider.MAX_DATAGRAM_SIZE, false, directory));
+            downloadTasks.add(task);
+            new Thread(task, "client-" + i).start();
+        }
+        for (FutureTask<FileReceiver.FileDownloadResult> task : downloadTasks) {
+            FileReceiver.FileDownloadResult result = task.get();
+            assertNotNull(result);
+            assertArrayEquals(contents, Files.readAllBytes(result.file.toPath()));
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        // The loops share one bandwidth budget, so together they can't send
+        // the file data (let alone the headers) faster than the limit.
+        long minimumNanos = clients * contents.length * 8L * 1000 * 1000 * 1000 / targetBitsPerSecond;
+        assertTrue("Sent in " + elapsedNanos / 1000000 + "ms; limit allows no less than "
+                + minimumNanos / 1000000 + "ms", elapsedNanos >= minimumNanos * 9 / 10);
+    }
+
+    @org.junit.Test
+    public void multicast_oneTransmissionReachesEveryReceiver() throws Exception {
+        File file = temporaryFolder.newFile("multicast.bin");
+        byte[] contents = new byte[20 * FileProvider.CHUNK_PAYLOAD_SIZE];
+        new Random(12).nextBytes(contents);
+        Files.write(file.toPath(), contents);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        InetSocketAddress group;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            group = new InetSocketAddress(InetAddress.getByName("239.255.42.99"), socket.getLocalPort());
+        }
+        int port = startServer(file, 8 * 1000 * 1000, server -> server.setMulticast(group, loopback));
+
+        try (MulticastSocket first = MulticastSupport.joinGroup(group, loopback);
+             MulticastSocket second = MulticastSupport.joinGroup(group, loopback);
+             DatagramSocket socket = new DatagramSocket()) {
+            // One client asks, and both members of the group are sent the file,
+            // each chunk once.
+            FutureTask<List<Long>> secondPositions = new FutureTask<>(() -> receivePayloadPositions(second));
+            new Thread(secondPositions).start();
+            socket.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE)
+                    .getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+            List<Long> expected = new ArrayList<>();
+            for (long chunk = 0; chunk < 20; chunk++) {
+                expected.add(chunk * FileProvider.CHUNK_PAYLOAD_SIZE);
+            }
+            assertEquals(expected, receivePayloadPositions(first));
+            assertEquals(expected, secondPositions.get());
+        }
+    }
+
+    @org.junit.Test
+    public void begin_manyChunkSizesFallBackToServerChunkSize() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        File downloads = temporaryFolder.newFolder("downloads");
+        byte[] contents = new byte[20 * 1000];
+        new Random(5).nextBytes(contents);
+        Files.write(new File(catalog, "small.bin").toPath(), contents);
+        int port = startServer(catalog);
+        InetAddress host = InetAddress.getLoopbackAddress();
+
+        // Each datagram size gives a chunk size of its own, more than can be kept.
+        for (int i = 0; i < 2 * Server.MAX_CHUNK_LAYOUTS; i++) {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.send(new BeginMessage(1, 1000 + 100 * i, "small.bin").getDatagramPacket(host, port));
+                assertThat(receiveUntilEnd(socket), containsString("END "));
+                socket.send(new NackMessage(Collections.<ChunkRange>emptyList(),
+                        FileProvider.CHUNK_SIZE, "small.bin").getDatagramPacket(host, port));
+            }
+        }
+
+        FileReceiver.FileDownloadResult result = Client.receiveFile(host.getHostAddress(), port, "small.bin",
+                1, null, FileProvider.MAX_DATAGRAM_SIZE, false, downloads);
+        assertNotNull(result);
+        assertArrayEquals(contents, Files.readAllBytes(result.file.toPath()));
+    }
+
+    @org.junit.Test
+    public void begin_newChunkSizeIsPreparedOffTheLoop() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        byte[] contents = new byte[20 * 1000];     // 3 chunks
+        new Random(6).nextBytes(contents);
+        Files.write(new File(catalog, "small.bin").toPath(), contents);
+        BlockingQueue<Runnable> layoutTasks = new LinkedBlockingQueue<>();
+        int port = startServer(catalog, server -> server.setLayoutExecutor(layoutTasks::add));
+        InetAddress host = InetAddress.getLoopbackAddress();
+
+        try (DatagramSocket first = new DatagramSocket();
+             DatagramSocket second = new DatagramSocket();
+             DatagramSocket third = new DatagramSocket()) {
+            first.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            assertEquals(Collections.emptyList(), receiveMessages(first));
+            layoutTasks.take().run();   // opens the file
+            layoutTasks.take().run();   // prepares its layout
+            assertEquals("END 3 0", receiveUntilEnd(first));
+
+            // While the layout for a new chunk size is being prepared, others are
+            // still served.
+            second.send(new BeginMessage(1, 2000, "small.bin").getDatagramPacket(host, port));
+            Runnable layoutTask = layoutTasks.take();
+            third.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            assertEquals("END 3 0", receiveUntilEnd(third));
+            assertEquals(Collections.emptyList(), receiveMessages(second));
+
+            layoutTask.run();
+            long chunks = FileReceiver.getExpectedChunks(contents.length,
+                    FileProvider.getChunkSizeForDatagram(2000) - FileProvider.CHUNK_HEADER_SIZE);
+            assertEquals("END " + chunks + " 0", receiveUntilEnd(second));
+            assertTrue(layoutTasks.isEmpty());
+        }
+    }
+
+    @org.junit.Test
+    public void catalog_fileIsOpenedOffTheLoop() throws Exception {
+        File catalog = temporaryFolder.newFolder("catalog");
+        Random random = new Random(7);
+        byte[][] contents = { new byte[20 * 1000], new byte[300 * 1000] };
+        String[] names = { "small.bin", "large.bin" };
+        for (int i = 0; i < names.length; i++) {
+            random.nextBytes(contents[i]);
+            Files.write(new File(catalog, names[i]).toPath(), contents[i]);
+        }
+        BlockingQueue<Runnable> layoutTasks = new LinkedBlockingQueue<>();
+        int port = startServer(catalog, server -> server.setLayoutExecutor(layoutTasks::add));
+        InetAddress host = InetAddress.getLoopbackAddress();
+
+        try (DatagramSocket first = new DatagramSocket();
+             DatagramSocket second = new DatagramSocket();
+             DatagramSocket third = new DatagramSocket()) {
+            first.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            layoutTasks.take().run();
+            layoutTasks.take().run();
+            assertEquals("END 3 0", receiveUntilEnd(first));
+
+            // While a file no client has asked for is opened, and read for its
+            // checksums, those already open are still served.
+            second.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "large.bin")
+                    .getDatagramPacket(host, port));
+            Runnable openTask = layoutTasks.take();
+            third.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "small.bin")
+                    .getDatagramPacket(host, port));
+            assertEquals("END 3 0", receiveUntilEnd(third));
+            openTask.run();
+            Runnable layoutTask = layoutTasks.take();
+            assertEquals(Collections.emptyList(), receiveMessages(second));
+
+            layoutTask.run();
+            assertEquals("END 37 0", receiveUntilEnd(second));
+
+            // A file that isn't in the catalog is looked for off the loop too.
+            first.send(new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, "missing.bin")
+                    .getDatagramPacket(host, port));
+            layoutTasks.take().run();
+            assertTrue(layoutTasks.isEmpty());
+        }
+    }
+
+    /**
+     * Receive messages until an END arrives.
+     *
+     * @return the END message, described as by receiveMessages().
+     */
+    private static String receiveUntilEnd(DatagramSocket socket) throws Exception {
+        byte[] buffer = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(1000);
+        do {
+            socket.receive(packet);
+        } while (!Message.isEndMessage(buffer));
+        return describe(buffer, packet.getLength());
+    }
+
+    /**
+     * Receive PAYLOAD and END messages until the server has been quiet for half
+     * a second.
+     *
+     * @return each message in the order received, described as "PAYLOAD
+     *  <position>" or "END <chunk count> <probe>".
+     */
+    private static List<String> receiveMessages(DatagramSocket socket) throws Exception {
+        List<String> messages = new ArrayList<>();
+        byte[] buffer = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(500);
+        try {
+            while (true) {
+                socket.receive(packet);
+                String message = describe(buffer, packet.getLength());
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the server has sent all it is going to
+        }
+        return messages;
+    }
+
+    /**
+     * Start a download of a file for each of several weights at once, each sent
+     * as given in its BEGIN message, and count the PAYLOAD messages each receives
+     * for a while. The clients then say they are done. A client's packet train
+     * counts against its share, so is counted too.
+     *
+     * @return the number of payloads received by each client.
+     */
+    private static long[] receiveConcurrently(int port, String filename, int[] weights, long millis)
+            throws Exception {
+        long[] counts = new long[weights.length];
+        DatagramSocket[] sockets = new DatagramSocket[weights.length];
+        Thread[] threads = new Thread[weights.length];
+        long deadline = System.currentTimeMillis() + millis;
+        try {
+            for (int i = 0; i < weights.length; i++) {
+                sockets[i] = new DatagramSocket();
+                sockets[i].setSoTimeout(100);
+                int client = i;
+                threads[i] = new Thread(() -> {
+                    byte[] buffer = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    while (System.currentTimeMillis() < deadline) {
+                        try {
+                            sockets[client].receive(packet);
+                        } catch (SocketTimeoutException e) {
+                            continue;
+                        } catch (Exception e) {
+                            break;
+                        }
+                        if (Message.isPayloadMessage(buffer)) {
+                            counts[client]++;
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (int i = 0; i < weights.length; i++) {
+                BeginMessage begin = new BeginMessage(1, FileProvider.MAX_DATAGRAM_SIZE, filename);
+                ByteBuffer.wrap(begin.getBytes()).putInt(4, weights[i]);   // unclamped
+                sockets[i].send(begin.getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (DatagramSocket socket : sockets) {
+                socket.send(new NackMessage(Collections.<ChunkRange>emptyList(), FileProvider.CHUNK_SIZE,
+                        filename).getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+            }
+        } finally {
+            for (DatagramSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static String describe(byte[] buffer, int length) {
+        if (Message.isPayloadMessage(buffer)) {
+            return "PAYLOAD " + new PayloadFlyweight().wrap(ByteBuffer.wrap(buffer), 0, length).getPosition();
+        } else if (Message.isEndMessage(buffer)) {
+            EndFlyweight end = new EndFlyweight().wrap(ByteBuffer.wrap(buffer), 0, length);
+            return "END " + end.getChunkCount() + " " + end.getProbe();
+        }
+        return null;
+    }
+
+    /**
+     * Receive PAYLOAD messages until the server has been quiet for half a second.
+     *
+     * @return the file offset of each payload, in the order received.
+     */
+    private static List<Long> receivePayloadPositions(DatagramSocket socket) throws Exception {
+        List<Long> positions = new ArrayList<>();
+        byte[] buffer = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(500);
+        try {
+            while (true) {
+                socket.receive(packet);
+                if (Message.isPayloadMessage(buffer)) {
+                    positions.add(new PayloadFlyweight().wrap(ByteBuffer.wrap(buffer), 0, packet.getLength())
+                            .getPosition());
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the server has sent all it is going to
+        }
+        return positions;
+    }
+
+    /**
+     * Start a server for a catalog (or a single file), on a free port.
+     */
+    private static int startServer(File catalog) throws Exception {
+        return startServer(catalog, server -> { });
+    }
+
+    private static int startServer(File catalog, Consumer<Server> configure) throws Exception {
+        return startServer(catalog, 100 * 1000 * 1000, configure);
+    }
+
+    /**
+     * Start a server for a catalog, on a free port. The server's threads can't be
+     * stopped, so it runs until the JVM exits.
+     *
+     * @param targetBitsPerSecond the server's bandwidth.
+     * @param configure called to configure the server before it starts.
+     * @return the server's port.
+     */
+    private static int startServer(File catalog, long targetBitsPerSecond, Consumer<Server> configure)
+            throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server server = new Server(port, catalog, targetBitsPerSecond);
+        server.setCacheSize(0);
+        configure.accept(server);
+        Thread thread = new Thread(server::run, "catalog-server");
+        thread.setDaemon(true);
+        thread.start();
+        awaitServer(port);
+        return port;
+    }
+
+    /**
+     * Wait until a server on `port` echoes probes.
+     */
+    private static void awaitServer(int port) throws Exception {
+        ProbeMessage probe = new ProbeMessage(FileProvider.MIN_CHUNK_SIZE);
+        byte[] reply = new byte[FileProvider.MAX_DATAGRAM_SIZE];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(100);
+            while (true) {
+                socket.send(probe.getDatagramPacket(InetAddress.getLoopbackAddress(), port));
+                try {
+                    socket.receive(new DatagramPacket(reply, reply.length));
+                    return;
+                } catch (SocketTimeoutException e) {
+                    // not listening yet
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.mykwillis.udpthrottle.TimingWheel.SLOTS;
+import static com.mykwillis.udpthrottle.TimingWheel.TICK_NANOS;
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    static final long START = -5 * TICK_NANOS + 3;  // nanoTime() may be negative
+
+    static class Flow extends TimingWheel.Timer<Flow> {
+        final int id;
+
+        Flow(int id) {
+            this.id = id;
+        }
+    }
+
+    static List<Integer> drain(Ring<Flow> ring) {
+        List<Integer> ids = new ArrayList<>();
+        Flow flow;
+        while ((flow = ring.pollFirst()) != null) {
+            ids.add(flow.id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void expire_movesOnlyDueFlows() {
+        TimingWheel<Flow> wheel = new TimingWheel<>(START);
+        Ring<Flow> due = new Ring<>();
+        wheel.schedule(new Flow(1), START + 10 * TICK_NANOS);
+        wheel.schedule(new Flow(2), START + 3 * TICK_NANOS);
+        wheel.schedule(new Flow(3), START + 3 * TICK_NANOS + 1);
+        assertEquals(3, wheel.size());
+        assertEquals(START + 3 * TICK_NANOS, wheel.nextDue());
+
+        wheel.expire(START + 3 * TICK_NANOS, due);
+        assertEquals(Arrays.asList(2), drain(due));
+        assertEquals(START + 3 * TICK_NANOS + 1, wheel.nextDue());
+
+        wheel.expire(START + 20 * TICK_NANOS, due);
+        assertEquals(Arrays.asList(3, 1), drain(due));
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextDue());
+    }
+
+    @Test
+    public void schedule_holdsFlowsDueAfterManyTurns() {
+        TimingWheel<Flow> wheel = new TimingWheel<>(START);
+        Ring<Flow> due = new Ring<>();
+        long later = START + 3L * SLOTS * TICK_NANOS + 7;
+        wheel.schedule(new Flow(1), later);
+
+        // Nothing is due within a turn, so the wheel is next looked at when the
+        // next turn begins.
+        long next = wheel.nextDue();
+        assertTrue(next > START && next <= later);
+        while (next < later) {
+            wheel.expire(next, due);
+            assertTrue(due.isEmpty());
+            next = wheel.nextDue();
+        }
+        assertEquals(later, next);
+        wheel.expire(later, due);
+        assertEquals(Arrays.asList(1), drain(due));
+    }
+
+    @Test
+    public void schedule_overdueFlowIsDueAtOnce() {
+        TimingWheel<Flow> wheel = new TimingWheel<>(START);
+        Ring<Flow> due = new Ring<>();
+        wheel.expire(START + 100 * TICK_NANOS, due);
+        wheel.schedule(new Flow(1), START);
+        assertEquals(START, wheel.nextDue());
+        wheel.expire(START + 100 * TICK_NANOS, due);
+        assertEquals(Arrays.asList(1), drain(due));
+    }
+
+    @Test
+    public void cancel_removesFlow() {
+        TimingWheel<Flow> wheel = new TimingWheel<>(START);
+        Ring<Flow> due = new Ring<>();
+        Flow flow = new Flow(1);
+        wheel.schedule(flow, START + TICK_NANOS);
+        assertTrue(wheel.cancel(flow));
+        assertFalse(wheel.cancel(flow));
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextDue());
+
+        // A cancelled flow may join a ring, or be scheduled again.
+        due.addLast(flow);
+        due.remove(flow);
+        wheel.schedule(flow, START + 2 * TICK_NANOS);
+        wheel.expire(START + 2 * TICK_NANOS, due);
+        assertEquals(Arrays.asList(1), drain(due));
+    }
+}
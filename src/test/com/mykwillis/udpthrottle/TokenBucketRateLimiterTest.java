@@ -0,0 +1,100 @@
+package com.mykwillis.udpthrottle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketRateLimiterTest {
+    static final long MILLISECOND = 1000 * 1000;
+
+    @Test
+    public void reserve_burstIsImmediate() throws Exception {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000 * 1000, 0, 10000, 0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.reserve(1000) <= System.nanoTime());
+        }
+        // The bucket is now empty: the next 1000 bytes need 1ms to accumulate.
+        long sendAt = limiter.reserve(1000);
+        assertTrue(sendAt - start >= MILLISECOND);
+        assertTrue(sendAt - System.nanoTime() <= MILLISECOND);
+    }
+
+    @Test
+    public void reserve_pacesAtByteRate() throws Exception {
+        // 1MB/s with no burst allowance: each 1000 byte packet is 1ms apart.
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000 * 1000, 0, 0, 0);
+
+        long previous = limiter.reserve(1000);
+        for (int i = 0; i < 100; i++) {
+            long sendAt = limiter.reserve(1000);
+            assertEquals(MILLISECOND, sendAt - previous);
+            previous = sendAt;
+        }
+    }
+
+    @Test
+    public void reserve_pacesAtPacketRate() throws Exception {
+        // Byte rate is unlimited; 500 packets/s means packets 2ms apart.
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(0, 500, 0, 1);
+
+        long first = limiter.reserve(100);
+        long second = limiter.reserve(100);
+        long third = limiter.reserve(100);
+        assertEquals(2 * MILLISECOND, third - second);
+        assertTrue(second - first <= 2 * MILLISECOND);
+    }
+
+    @Test
+    public void acquire_achievesTargetRate() throws Exception {
+        // 8 Mbps of 1000 byte packets, for 100ms.
+        RateLimiter limiter = TokenBucketRateLimiter.forBitsPerSecond(8 * 1000 * 1000);
+        limiter.acquire(FileProvider.CHUNK_SIZE);    // drain the initial burst
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(1000);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue("Sent too quickly: " + elapsed, elapsed >= 90 * MILLISECOND);
+        assertTrue("Sent too slowly: " + elapsed, elapsed < 500 * MILLISECOND);
+    }
+
+    @Test
+    public void reserve_sharedBetweenThreads() throws Exception {
+        // 1MB/s with no burst allowance: every 1000 byte reservation, no matter
+        // which thread makes it, must be exactly 1ms from its neighbours.
+        final TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000 * 1000, 0, 0, 0);
+        final int threads = 4;
+        final int reservationsPerThread = 1000;
+        final long[] sendTimes = new long[threads * reservationsPerThread];
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * reservationsPerThread;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < reservationsPerThread; i++) {
+                    sendTimes[offset + i] = limiter.reserve(1000);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Arrays.sort(sendTimes);
+        for (int i = 1; i < sendTimes.length; i++) {
+            assertTrue(sendTimes[i] - sendTimes[i - 1] >= MILLISECOND);
+        }
+        assertEquals((sendTimes.length - 1) * MILLISECOND, sendTimes[sendTimes.length - 1] - sendTimes[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_throwsOnNegativeRate() throws Exception {
+        new TokenBucketRateLimiter(-1, 0, 0, 0);
+    }
+}
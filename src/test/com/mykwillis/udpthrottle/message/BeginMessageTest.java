@@ -4,9 +4,15 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import static com.mykwillis.udpthrottle.message.Message.MESSAGE_TYPE_BEGIN;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class BeginMessageTest {
@@ -39,4 +45,113 @@ public class BeginMessageTest {
 
         assertArrayEquals(packet1.getBytes(), packet2.getBytes());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void createFromBytes_defaultsWeight() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_BEGIN);
+
+        BeginMessage packet = new BeginMessage(outputStream.toByteArray());
+
+        assertEquals(BeginMessage.DEFAULT_WEIGHT, packet.getWeight());
+    }
+
+    @Test
+    public void roundTrip_weight() throws Exception {
+        BeginMessage packet1 = new BeginMessage(7);
+        byte[] buffer = new byte[1024];
+        System.arraycopy(packet1.getBytes(), 0, buffer, 0, packet1.getBytes().length);
+        BeginMessage packet2 = new BeginMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(7, packet2.getWeight());
+    }
+
+    @Test
+    public void roundTrip_maxDatagramSize() throws Exception {
+        BeginMessage packet1 = new BeginMessage(3, 1472);
+        BeginMessage packet2 = new BeginMessage(packet1.getBytes());
+
+        assertEquals(3, packet2.getWeight());
+        assertEquals(1472, packet2.getMaxDatagramSize());
+    }
+
+    @Test
+    public void createFromBytes_defaultsMaxDatagramSize() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_BEGIN);
+        dos.writeInt(5);
+
+        BeginMessage packet = new BeginMessage(outputStream.toByteArray());
+
+        assertEquals(5, packet.getWeight());
+        assertEquals(BeginMessage.DEFAULT_MAX_DATAGRAM_SIZE, packet.getMaxDatagramSize());
+    }
+
+    @Test
+    public void roundTrip_filename() throws Exception {
+        BeginMessage packet1 = new BeginMessage(3, 1472, "r\u00e9sum\u00e9.pdf");
+        BeginMessage packet2 = new BeginMessage(packet1.getBytes());
+
+        assertEquals(1472, packet2.getMaxDatagramSize());
+        assertEquals("r\u00e9sum\u00e9.pdf", packet2.getFilename());
+        assertNull(new BeginMessage(3, 1472).getFilename());
+        assertNull(new BeginMessage(new BeginMessage(3, 1472).getBytes()).getFilename());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createFromBytes_rejectsOverlongFilename() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+
+        dos.writeInt(MESSAGE_TYPE_BEGIN);
+        dos.writeInt(1);
+        dos.writeInt(1472);
+        dos.writeInt(100);
+        dos.writeBytes("short");
+
+        new BeginMessage(outputStream.toByteArray());
+    }
+
+    @Test
+    public void create_clampsWeight() throws Exception {
+        assertEquals(BeginMessage.DEFAULT_WEIGHT, new BeginMessage(0).getWeight());
+        assertEquals(BeginMessage.MAX_WEIGHT, new BeginMessage(BeginMessage.MAX_WEIGHT + 1).getWeight());
+    }
+
+    @Test
+    public void roundTrip_ranges() throws Exception {
+        List<ByteRange> ranges = Arrays.asList(new ByteRange(0, 512), new ByteRange(1L << 33, 100));
+        BeginMessage packet1 = new BeginMessage(3, 1472, "a.bin", ranges);
+        BeginMessage packet2 = new BeginMessage(packet1.getBytes());
+
+        assertEquals("a.bin", packet2.getFilename());
+        assertEquals(ranges, packet2.getRanges());
+
+        // Ranges follow an empty filename when the client names no file.
+        BeginMessage packet3 = new BeginMessage(new BeginMessage(3, 1472, null, ranges).getBytes());
+        assertNull(packet3.getFilename());
+        assertEquals(ranges, packet3.getRanges());
+        assertTrue(new BeginMessage(packet1.getBytes(), packet1.getBytes().length - 2 * 16 - 4)
+                .getRanges().isEmpty());
+    }
+
+    @Test
+    public void getRanges_emptyWithoutRanges() throws Exception {
+        BeginFlyweight begin = new BeginFlyweight();
+        byte[] bytes = new BeginMessage(3, 1472, "a.bin").getBytes();
+        begin.wrap(ByteBuffer.wrap(bytes), 0, bytes.length);
+
+        assertEquals(0, begin.getRangeCount());
+        assertSame(begin.getRanges(), begin.getRanges());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createFromBytes_rejectsTruncatedRanges() throws Exception {
+        byte[] bytes = new BeginMessage(3, 1472, "a.bin", Arrays.asList(new ByteRange(0, 512))).getBytes();
+        new BeginMessage(bytes, bytes.length - 1);
+    }
+}
@@ -0,0 +1,35 @@
+package com.mykwillis.udpthrottle.message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+    @Test
+    public void toChunkRanges_coversEveryChunkTouched() throws Exception {
+        // 100 bytes per chunk, 10 chunks, the last of 50 bytes
+        assertEquals(Arrays.asList(new ChunkRange(0, 1)),
+                ByteRange.toChunkRanges(Arrays.asList(new ByteRange(0, 100)), 950, 100));
+        assertEquals(Arrays.asList(new ChunkRange(0, 2)),
+                ByteRange.toChunkRanges(Arrays.asList(new ByteRange(99, 2)), 950, 100));
+        assertEquals(Arrays.asList(new ChunkRange(9, 1)),
+                ByteRange.toChunkRanges(Arrays.asList(new ByteRange(940, 1000)), 950, 100));
+    }
+
+    @Test
+    public void toChunkRanges_mergesAndSorts() throws Exception {
+        assertEquals(Arrays.asList(new ChunkRange(0, 3), new ChunkRange(5, 1)),
+                ByteRange.toChunkRanges(Arrays.asList(
+                        new ByteRange(550, 10), new ByteRange(200, 50), new ByteRange(0, 150),
+                        new ByteRange(120, 10)), 950, 100));
+    }
+
+    @Test
+    public void toChunkRanges_ignoresEmptyRangesAndThosePastEnd() throws Exception {
+        assertEquals(Collections.emptyList(),
+                ByteRange.toChunkRanges(Arrays.asList(new ByteRange(950, 10), new ByteRange(10, 0)), 950, 100));
+    }
+}
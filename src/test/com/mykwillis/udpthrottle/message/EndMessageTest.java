@@ -0,0 +1,38 @@
+package com.mykwillis.udpthrottle.message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class EndMessageTest {
+    @Test
+    public void createFromArgs() throws Exception {
+        EndMessage packet = new EndMessage(1400, 1L << 33, 2);
+        assertTrue(Message.isEndMessage(packet.getBytes()));
+        assertEquals(EndFlyweight.HEADER_SIZE, packet.getBytes().length);
+        assertEquals(1400, packet.getChunkSize());
+        assertEquals(1L << 33, packet.getChunkCount());
+        assertEquals(2, packet.getProbe());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        EndMessage packet1 = new EndMessage(8192, 37, 0);
+        byte[] buffer = new byte[1024];
+        System.arraycopy(packet1.getBytes(), 0, buffer, 0, packet1.getBytes().length);
+        EndMessage packet2 = new EndMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(8192, packet2.getChunkSize());
+        assertEquals(37, packet2.getChunkCount());
+        assertEquals(0, packet2.getProbe());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrap_rejectsTruncatedMessage() {
+        ByteBuffer buffer = ByteBuffer.allocate(EndFlyweight.HEADER_SIZE);
+        EndFlyweight.encode(buffer, 8192, 37, 0);
+        new EndFlyweight().wrap(buffer, 0, EndFlyweight.HEADER_SIZE - 1);
+    }
+}
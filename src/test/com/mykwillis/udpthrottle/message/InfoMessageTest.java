@@ -1,11 +1,15 @@
 package com.mykwillis.udpthrottle.message;
 
+import com.mykwillis.udpthrottle.FileProvider;
 import com.mykwillis.udpthrottle.message.InfoMessage;
 import com.mykwillis.udpthrottle.message.Message;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 import static com.mykwillis.udpthrottle.message.Message.MESSAGE_TYPE_INFO;
 import static org.junit.Assert.*;
@@ -51,7 +55,88 @@ public class InfoMessageTest {
         assertArrayEquals(packet1.getBytes(), packet2.getBytes());
         assertEquals(packet1.getFilename(), packet2.getFilename());
         assertEquals(packet1.getFileSize(), packet2.getFileSize());
+        assertNull(packet2.getMulticastGroup());
     }
 
+    @Test
+    public void roundTrip_multicastGroup() throws Exception {
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.0.1"), 5099);
+        InfoMessage packet1 = new InfoMessage(testFilename, testFileSize, group);
+
+        // The message arrives in a buffer larger than itself.
+        byte[] buffer = Arrays.copyOf(packet1.getBytes(), 1024);
+        InfoMessage packet2 = new InfoMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(testFilename, packet2.getFilename());
+        assertEquals(testFileSize, packet2.getFileSize());
+        assertEquals(group, packet2.getMulticastGroup());
+    }
+
+    @Test
+    public void createFromBytes_noMulticastGroup() throws Exception {
+        // Messages from servers that predate multicast have no multicast fields,
+        // nor any that follow them.
+        byte[] bytes = new InfoMessage(testFilename, testFileSize).getBytes();
+        byte[] withoutGroup = Arrays.copyOf(bytes, bytes.length - 12);
+
+        InfoMessage packet = new InfoMessage(withoutGroup);
+        assertNull(packet.getMulticastGroup());
+        assertEquals(FileProvider.CHUNK_SIZE, packet.getChunkSize());
+        assertEquals(0, packet.getTrainLength());
+    }
+
+    @Test
+    public void roundTrip_chunkSize() throws Exception {
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.0.1"), 5099);
+        InfoMessage packet1 = new InfoMessage(testFilename, testFileSize, group, 1400);
+        InfoMessage packet2 = new InfoMessage(Arrays.copyOf(packet1.getBytes(), 1024), packet1.getBytes().length);
+
+        assertEquals(group, packet2.getMulticastGroup());
+        assertEquals(1400, packet2.getChunkSize());
+        assertEquals(1400, new InfoMessage(new InfoMessage(testFilename, testFileSize, null, 1400).getBytes())
+                .getChunkSize());
+    }
 
+    @Test
+    public void roundTrip_trainLength() throws Exception {
+        InfoMessage packet1 = new InfoMessage(testFilename, testFileSize, null, 1400, 8);
+        InfoMessage packet2 = new InfoMessage(packet1.getBytes());
+
+        assertEquals(1400, packet2.getChunkSize());
+        assertEquals(8, packet2.getTrainLength());
+
+        // Messages from servers that predate packet trains end at the chunk size.
+        byte[] bytes = packet1.getBytes();
+        InfoMessage packet3 = new InfoMessage(Arrays.copyOf(bytes, bytes.length - 4));
+        assertEquals(1400, packet3.getChunkSize());
+        assertEquals(0, packet3.getTrainLength());
+        assertNull(packet3.getMerkleRoot());
+    }
+
+    @Test
+    public void roundTrip_merkleRoot() throws Exception {
+        byte[] root = new byte[32];
+        Arrays.fill(root, (byte) 0xAB);
+        InfoMessage packet1 = new InfoMessage(testFilename, testFileSize, null, 1400, 8, root);
+        InfoMessage packet2 = new InfoMessage(Arrays.copyOf(packet1.getBytes(), 1024), packet1.getBytes().length);
+
+        assertEquals(8, packet2.getTrainLength());
+        assertArrayEquals(root, packet2.getMerkleRoot());
+        assertNull(new InfoMessage(new InfoMessage(testFilename, testFileSize, null, 1400, 8).getBytes())
+                .getMerkleRoot());
+    }
+
+    @Test
+    public void createFromBytes_rejectsTruncatedMessages() throws Exception {
+        byte[] bytes = new InfoMessage(testFilename, testFileSize).getBytes();
+        // Cut off in the file size, the filename's length, and the filename.
+        for (int length : new int[] { 6, 14, 20 }) {
+            try {
+                new InfoMessage(Arrays.copyOf(bytes, length), length);
+                fail("Accepted " + length + " of " + bytes.length + " bytes");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
 }
\ No newline at end of file
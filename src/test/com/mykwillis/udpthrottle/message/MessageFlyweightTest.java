@@ -0,0 +1,166 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+import com.mykwillis.udpthrottle.FileProvider;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageFlyweightTest {
+
+    @Test
+    public void getMessageType() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(new BeginMessage().getBytes());
+        assertEquals(Message.MESSAGE_TYPE_BEGIN, MessageFlyweight.getMessageType(buffer, 0, buffer.capacity()));
+        assertEquals(Message.MESSAGE_TYPE_INVALID, MessageFlyweight.getMessageType(buffer, 0, 3));
+        assertEquals(Message.MESSAGE_TYPE_BEGIN, Message.getMessageType(buffer.array()));
+        assertEquals(Message.MESSAGE_TYPE_INVALID, Message.getMessageType(new byte[2]));
+    }
+
+    @Test
+    public void payload_roundTrip() throws Exception {
+        // Encode a message part way into a direct buffer, as the server does.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.position(10 + PayloadFlyweight.HEADER_SIZE);
+        buffer.put(new byte[] { 1, 2, 3 });
+        Crc32c crc = new Crc32c();
+        int checksum = PayloadFlyweight.checksum(crc, 1L << 40, buffer, 10 + PayloadFlyweight.HEADER_SIZE, 3);
+        buffer.position(10);
+        PayloadFlyweight.encodeHeader(buffer, 1L << 40, checksum);
+
+        PayloadFlyweight payload = new PayloadFlyweight().wrap(buffer, 10, PayloadFlyweight.HEADER_SIZE + 3);
+        assertEquals(1L << 40, payload.getPosition());
+        assertEquals(checksum, payload.getChecksum());
+        assertEquals(26, payload.getPayloadOffset());
+        assertEquals(3, payload.getPayloadLength());
+        assertEquals(3, buffer.get(payload.getPayloadOffset() + 2));
+        assertTrue(payload.isIntact(crc));
+
+        // The checksum covers the position as well as the payload.
+        buffer.put(payload.getPayloadOffset() + 1, (byte) 7);
+        assertFalse(payload.isIntact(crc));
+        buffer.put(payload.getPayloadOffset() + 1, (byte) 2);
+        buffer.putLong(10 + 4, 0);
+        assertFalse(payload.isIntact(crc));
+    }
+
+    @Test
+    public void parity_roundTrip() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        Crc32c crc = new Crc32c();
+        ParityFlyweight.encodeHeader(buffer, 8, 4,
+                ParityFlyweight.checksum(crc, 8, 4, ByteBuffer.wrap(new byte[] { 9, 9 }), 0, 2));
+        buffer.put(new byte[] { 9, 9 });
+
+        ParityFlyweight parity = new ParityFlyweight().wrap(buffer, 0, buffer.position());
+        assertEquals(8, parity.getFirstChunk());
+        assertEquals(4, parity.getChunkCount());
+        assertEquals(2, parity.getParityLength());
+        assertTrue(parity.isIntact(crc));
+
+        buffer.putInt(4 + 8, 3);
+        assertFalse(parity.isIntact(crc));
+    }
+
+    @Test
+    public void nack_roundTrip() throws Exception {
+        List<ChunkRange> ranges = Arrays.asList(new ChunkRange(0, 1), new ChunkRange(1L << 33, 42));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        NackFlyweight.encode(buffer, ranges, FileProvider.CHUNK_SIZE);
+
+        NackFlyweight nack = new NackFlyweight().wrap(buffer, 0, buffer.position());
+        assertEquals(2, nack.getRangeCount());
+        assertEquals(1L << 33, nack.getFirstChunk(1));
+        assertEquals(42, nack.getChunkCount(1));
+        assertEquals(ranges, nack.getRanges());
+        assertArrayEquals(new NackMessage(ranges).getBytes(), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test
+    public void nack_filename() throws Exception {
+        List<ChunkRange> ranges = Arrays.asList(new ChunkRange(3, 4));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        NackFlyweight.encode(buffer, ranges, 1400, "a.bin");
+
+        NackFlyweight nack = new NackFlyweight().wrap(buffer, 0, buffer.position());
+        assertEquals(1400, nack.getChunkSize());
+        assertEquals("a.bin", nack.getFilename());
+        assertArrayEquals(new NackMessage(ranges, 1400, "a.bin").getBytes(),
+                Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test
+    public void begin_weight() throws Exception {
+        BeginFlyweight begin = new BeginFlyweight();
+        ByteBuffer buffer = ByteBuffer.wrap(new BeginMessage(7).getBytes());
+
+        assertEquals(7, begin.wrap(buffer, 0, buffer.capacity()).getWeight());
+        assertEquals(BeginMessage.DEFAULT_WEIGHT, begin.wrap(buffer, 0, 4).getWeight());
+    }
+
+    @Test
+    public void probe_isComplete() throws Exception {
+        byte[] bytes = new ProbeMessage(600).getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ProbeFlyweight probe = new ProbeFlyweight();
+
+        assertEquals(600, bytes.length);
+        assertEquals(Message.MESSAGE_TYPE_PROBE, Message.getMessageType(bytes));
+        assertTrue(probe.wrap(buffer, 0, bytes.length).isComplete());
+        assertEquals(600, probe.getProbeSize());
+
+        // truncated on the way
+        assertFalse(probe.wrap(buffer, 0, 548).isComplete());
+    }
+
+    @Test
+    public void report_roundTrip() throws Exception {
+        byte[] bytes = new ReportMessage(1500, 1L << 32, 1L << 45, 17, 3, 125000).getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        assertEquals(ReportFlyweight.HEADER_SIZE + 8, bytes.length);
+        assertEquals(Message.MESSAGE_TYPE_REPORT, Message.getMessageType(bytes));
+        ReportFlyweight report = new ReportFlyweight().wrap(buffer, 0, bytes.length);
+        assertEquals(1500, report.getTimestamp());
+        assertEquals(1L << 32, report.getPacketsReceived());
+        assertEquals(1L << 45, report.getBytesReceived());
+        assertEquals(17, report.getPacketsLost());
+        assertEquals(3, report.getPacketsReordered());
+        assertEquals(125000, report.getCapacityEstimate());
+        assertEquals(0, report.wrap(buffer, 0, ReportFlyweight.HEADER_SIZE).getCapacityEstimate());
+
+        ReportMessage message = new ReportMessage(bytes, bytes.length);
+        assertEquals(17, message.getPacketsLost());
+    }
+
+    @Test
+    public void wrap_rejectsMalformedMessages() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        PayloadFlyweight.encodeHeader(buffer, 0, 0);
+
+        // wrong type
+        try {
+            new ParityFlyweight().wrap(buffer, 0, buffer.position());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        // truncated header
+        try {
+            new PayloadFlyweight().wrap(buffer, 0, PayloadFlyweight.HEADER_SIZE - 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        // range count larger than the message
+        buffer.clear();
+        buffer.putInt(Message.MESSAGE_TYPE_NACK).putInt(3);
+        try {
+            new NackFlyweight().wrap(buffer, 0, buffer.position());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
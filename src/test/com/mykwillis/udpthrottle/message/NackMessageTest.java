@@ -0,0 +1,73 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.FileProvider;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NackMessageTest {
+    List<ChunkRange> testRanges = Arrays.asList(
+            new ChunkRange(0, 1), new ChunkRange(7, 3), new ChunkRange(1L << 33, 42));
+
+    @Test
+    public void createFromArgs() throws Exception {
+        NackMessage packet = new NackMessage(testRanges);
+        assertTrue(Message.isNackMessage(packet.getBytes()));
+        assertEquals(testRanges, packet.getRanges());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        NackMessage packet1 = new NackMessage(testRanges);
+        byte[] buffer = new byte[1024];
+        System.arraycopy(packet1.getBytes(), 0, buffer, 0, packet1.getBytes().length);
+        NackMessage packet2 = new NackMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(packet1.getRanges(), packet2.getRanges());
+    }
+
+    @Test
+    public void roundTrip_chunkSize() throws Exception {
+        NackMessage packet1 = new NackMessage(testRanges, 1400);
+        NackMessage packet2 = new NackMessage(packet1.getBytes(), packet1.getBytes().length);
+
+        assertEquals(testRanges, packet2.getRanges());
+        assertEquals(1400, packet2.getChunkSize());
+
+        // NACKs from clients that predate chunk size negotiation have no chunk size.
+        byte[] bytes = packet1.getBytes();
+        assertEquals(FileProvider.CHUNK_SIZE, new NackMessage(bytes, bytes.length - 4).getChunkSize());
+    }
+
+    @Test
+    public void roundTrip_filename() throws Exception {
+        NackMessage packet1 = new NackMessage(testRanges, 1400, "a.bin");
+        NackMessage packet2 = new NackMessage(packet1.getBytes(), packet1.getBytes().length);
+
+        assertEquals(testRanges, packet2.getRanges());
+        assertEquals(1400, packet2.getChunkSize());
+        assertEquals("a.bin", packet2.getFilename());
+        assertNull(new NackMessage(testRanges, 1400).getFilename());
+    }
+
+    @Test
+    public void roundTrip_noRanges() throws Exception {
+        NackMessage packet1 = new NackMessage(new ArrayList<ChunkRange>());
+        NackMessage packet2 = new NackMessage(packet1.getBytes(), packet1.getBytes().length);
+
+        assertTrue(packet2.getRanges().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_throwsOnTooManyRanges() throws Exception {
+        List<ChunkRange> ranges = new ArrayList<>();
+        for (int i = 0; i <= NackMessage.MAX_RANGES; i++) {
+            ranges.add(new ChunkRange(2 * i, 1));
+        }
+        new NackMessage(ranges);
+    }
+}
@@ -0,0 +1,36 @@
+package com.mykwillis.udpthrottle.message;
+
+import com.mykwillis.udpthrottle.Crc32c;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ParityMessageTest {
+    byte[] testParity = { 1, 2, 3, 4, 5 };
+
+    @Test
+    public void roundTrip() throws Exception {
+        ParityMessage packet1 = new ParityMessage(8, 4, testParity);
+        assertTrue(Message.isParityMessage(packet1.getBytes()));
+
+        byte[] buffer = Arrays.copyOf(packet1.getBytes(), 1024);
+        ParityMessage packet2 = new ParityMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(8, packet2.getFirstChunk());
+        assertEquals(4, packet2.getChunkCount());
+        assertEquals(testParity.length, packet2.getParitySize());
+        assertArrayEquals(testParity, Arrays.copyOfRange(buffer,
+                packet2.getHeaderSize(), packet2.getHeaderSize() + packet2.getParitySize()));
+        assertTrue(new ParityFlyweight().wrap(ByteBuffer.wrap(buffer), 0, packet1.getBytes().length)
+                .isIntact(new Crc32c()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createFromBytes_throwsOnEmptyBlock() throws Exception {
+        byte[] bytes = new ParityMessage(0, 0, testParity).getBytes();
+        new ParityMessage(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mykwillis.udpthrottle.message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResumeMessageTest {
+    List<ChunkRange> testRanges = Arrays.asList(
+            new ChunkRange(0, 1), new ChunkRange(7, 3), new ChunkRange(1L << 33, 42));
+
+    @Test
+    public void createFromArgs() throws Exception {
+        ResumeMessage packet = new ResumeMessage(5, 1500, 1400, testRanges, "a.bin");
+        assertTrue(Message.isResumeMessage(packet.getBytes()));
+        assertEquals(5, packet.getWeight());
+        assertEquals(1500, packet.getMaxDatagramSize());
+        assertEquals(1400, packet.getChunkSize());
+        assertEquals(testRanges, packet.getRanges());
+        assertEquals("a.bin", packet.getFilename());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ResumeMessage packet1 = new ResumeMessage(5, 1500, 1400, testRanges, "a.bin");
+        byte[] buffer = new byte[1024];
+        System.arraycopy(packet1.getBytes(), 0, buffer, 0, packet1.getBytes().length);
+        ResumeMessage packet2 = new ResumeMessage(buffer, packet1.getBytes().length);
+
+        assertEquals(5, packet2.getWeight());
+        assertEquals(1500, packet2.getMaxDatagramSize());
+        assertEquals(1400, packet2.getChunkSize());
+        assertEquals(testRanges, packet2.getRanges());
+        assertEquals("a.bin", packet2.getFilename());
+    }
+
+    @Test
+    public void roundTrip_noFilename() throws Exception {
+        ResumeMessage packet1 = new ResumeMessage(1, 1500, 1400, new ArrayList<ChunkRange>(), null);
+        ResumeMessage packet2 = new ResumeMessage(packet1.getBytes(), packet1.getBytes().length);
+
+        assertTrue(packet2.getRanges().isEmpty());
+        assertNull(packet2.getFilename());
+        assertEquals(ResumeFlyweight.HEADER_SIZE, packet1.getBytes().length);
+    }
+
+    @Test
+    public void create_clampsWeight() throws Exception {
+        ResumeMessage packet = new ResumeMessage(1000, 1500, 1400, testRanges, null);
+        assertEquals(BeginMessage.MAX_WEIGHT, packet.getWeight());
+        assertEquals(BeginMessage.MAX_WEIGHT,
+                new ResumeMessage(packet.getBytes(), packet.getBytes().length).getWeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_throwsOnTooManyRanges() throws Exception {
+        List<ChunkRange> ranges = new ArrayList<>();
+        for (int i = 0; i <= ResumeMessage.MAX_RANGES; i++) {
+            ranges.add(new ChunkRange(2 * i, 1));
+        }
+        new ResumeMessage(1, 1500, 1400, ranges, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_throwsOnTruncatedRanges() throws Exception {
+        ResumeMessage packet = new ResumeMessage(1, 1500, 1400, testRanges, null);
+        new ResumeMessage(packet.getBytes(), packet.getBytes().length - 8);
+    }
+}